@@ -0,0 +1,463 @@
+/**
+ * Copyright (C) 2015-2017 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.as4.attachment;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.WillNotClose;
+import javax.annotation.concurrent.ThreadSafe;
+
+import com.helger.as4.util.AS4ResourceManager;
+import com.helger.commons.CGlobal;
+import com.helger.commons.ValueEnforcer;
+import com.helger.commons.annotation.ELockType;
+import com.helger.commons.annotation.MustBeLocked;
+import com.helger.commons.collection.ext.CommonsArrayList;
+import com.helger.commons.collection.ext.ICommonsList;
+import com.helger.commons.concurrent.SimpleReadWriteLock;
+import com.helger.commons.io.file.FileHelper;
+import com.helger.commons.io.stream.StreamHelper;
+import com.helger.commons.string.ToStringGenerator;
+
+/**
+ * A write-once buffer for attachment content. Content up to a threshold is kept
+ * in pooled off-heap segments, bigger content is transparently spilled to a
+ * temporary file of the resource manager. Once filled, any number of
+ * independent readers can be created without copying the content.
+ * <p>
+ * The segments used by all buffers together are limited by a global budget
+ * (see {@link #setMaxDirectMemory(long)}). If the budget is exhausted, content
+ * is spilled to a file, even if it is below the threshold.
+ * <p>
+ * The buffer registers itself at the resource manager, so the segments are
+ * returned to the pool when the resource manager is closed. Readers must not be
+ * used afterwards.
+ *
+ * @author Philip Helger
+ */
+@ThreadSafe
+public final class AS4AttachmentBuffer implements Closeable
+{
+  /** Content up to this size (in bytes) is kept in memory by default */
+  public static final int DEFAULT_IN_MEMORY_THRESHOLD = CGlobal.BYTES_PER_MEGABYTE;
+
+  /** The size of a single off-heap segment */
+  public static final int SEGMENT_SIZE = 32 * CGlobal.BYTES_PER_KILOBYTE;
+
+  // At most 64 MB of idle segments are kept
+  private static final int MAX_POOLED_SEGMENTS = 2048;
+  private static final ConcurrentLinkedQueue <ByteBuffer> s_aSegmentPool = new ConcurrentLinkedQueue <> ();
+  private static final AtomicInteger s_aPooledSegmentCount = new AtomicInteger (0);
+
+  /** The default maximum number of segment bytes used by all buffers */
+  public static final long DEFAULT_MAX_DIRECT_MEMORY = 256L * CGlobal.BYTES_PER_MEGABYTE;
+
+  private static final AtomicLong s_aUsedDirectMemory = new AtomicLong (0);
+  private static volatile long s_nMaxDirectMemory = DEFAULT_MAX_DIRECT_MEMORY;
+
+  private final ICommonsList <ByteBuffer> m_aSegments;
+  private final File m_aFile;
+  private final long m_nSize;
+  private final AtomicBoolean m_aClosed = new AtomicBoolean (false);
+  // Readers use the read lock, so that segments are not returned to the pool
+  // while a read is in progress
+  private final SimpleReadWriteLock m_aRWLock = new SimpleReadWriteLock ();
+
+  private AS4AttachmentBuffer (@Nullable final ICommonsList <ByteBuffer> aSegments,
+                               @Nullable final File aFile,
+                               @Nonnegative final long nSize)
+  {
+    m_aSegments = aSegments;
+    m_aFile = aFile;
+    m_nSize = nSize;
+  }
+
+  /**
+   * Borrow a segment, if the global budget allows it.
+   *
+   * @return <code>null</code> if the budget is exhausted.
+   */
+  @Nullable
+  private static ByteBuffer _borrowSegment ()
+  {
+    if (s_aUsedDirectMemory.addAndGet (SEGMENT_SIZE) > s_nMaxDirectMemory)
+    {
+      s_aUsedDirectMemory.addAndGet (-SEGMENT_SIZE);
+      return null;
+    }
+
+    final ByteBuffer ret = s_aSegmentPool.poll ();
+    if (ret == null)
+      return ByteBuffer.allocateDirect (SEGMENT_SIZE);
+    s_aPooledSegmentCount.decrementAndGet ();
+    ret.clear ();
+    return ret;
+  }
+
+  private static void _returnSegments (@Nonnull final Iterable <ByteBuffer> aSegments)
+  {
+    for (final ByteBuffer aSegment : aSegments)
+    {
+      s_aUsedDirectMemory.addAndGet (-SEGMENT_SIZE);
+      if (s_aPooledSegmentCount.incrementAndGet () <= MAX_POOLED_SEGMENTS)
+        s_aSegmentPool.offer (aSegment);
+      else
+      {
+        // Pool is full - leave it to the GC
+        s_aPooledSegmentCount.decrementAndGet ();
+      }
+    }
+  }
+
+  /**
+   * @return The number of idle segments in the pool. For monitoring and
+   *         testing.
+   */
+  @Nonnegative
+  public static int getPooledSegmentCount ()
+  {
+    return s_aPooledSegmentCount.get ();
+  }
+
+  /**
+   * @return The number of segment bytes currently used by all buffers.
+   *         Idle segments in the pool are not contained.
+   */
+  @Nonnegative
+  public static long getUsedDirectMemory ()
+  {
+    return s_aUsedDirectMemory.get ();
+  }
+
+  /**
+   * @return The maximum number of segment bytes used by all buffers together.
+   */
+  @Nonnegative
+  public static long getMaxDirectMemory ()
+  {
+    return s_nMaxDirectMemory;
+  }
+
+  /**
+   * Set the maximum number of segment bytes used by all buffers together.
+   * Content that does not fit into the remaining budget is spilled to a file.
+   * Idle pooled segments are not accounted and are limited separately.
+   *
+   * @param nMaxDirectMemory
+   *        The maximum number of bytes. Must be &ge; 0. Use 0 to spill all
+   *        non-empty content to a file.
+   */
+  public static void setMaxDirectMemory (@Nonnegative final long nMaxDirectMemory)
+  {
+    ValueEnforcer.isGE0 (nMaxDirectMemory, "MaxDirectMemory");
+    s_nMaxDirectMemory = nMaxDirectMemory;
+  }
+
+  /**
+   * Read the passed stream completely into a new buffer.
+   *
+   * @param aIS
+   *        The stream to read. Is not closed. May not be <code>null</code>.
+   * @param nInMemoryThreshold
+   *        The maximum number of bytes to keep in memory. Must be &ge; 0.
+   * @param aResMgr
+   *        The resource manager for the temporary file and the cleanup. May
+   *        not be <code>null</code>.
+   * @return The filled buffer. Never <code>null</code>.
+   * @throws IOException
+   *         In case reading or writing fails
+   */
+  @Nonnull
+  public static AS4AttachmentBuffer create (@Nonnull @WillNotClose final InputStream aIS,
+                                            @Nonnegative final int nInMemoryThreshold,
+                                            @Nonnull final AS4ResourceManager aResMgr) throws IOException
+  {
+    ValueEnforcer.notNull (aIS, "InputStream");
+    ValueEnforcer.isGE0 (nInMemoryThreshold, "InMemoryThreshold");
+    ValueEnforcer.notNull (aResMgr, "ResMgr");
+
+    final byte [] aBuffer = new byte [16 * CGlobal.BYTES_PER_KILOBYTE];
+    final ICommonsList <ByteBuffer> aSegments = new CommonsArrayList <> ();
+    long nSize = 0;
+    // Bytes of aBuffer that did not fit into a segment
+    int nPendingOfs = 0;
+    int nPendingLen = 0;
+    boolean bSuccess = false;
+    try
+    {
+      // Read up to threshold + 1 bytes into memory
+      int nRead;
+      while (nSize <= nInMemoryThreshold && nPendingLen == 0 && (nRead = aIS.read (aBuffer)) > -1)
+      {
+        int nOfs = 0;
+        while (nOfs < nRead)
+        {
+          ByteBuffer aSegment = aSegments.getLast ();
+          if (aSegment == null || !aSegment.hasRemaining ())
+          {
+            aSegment = _borrowSegment ();
+            if (aSegment == null)
+            {
+              // Global budget exhausted
+              nPendingOfs = nOfs;
+              nPendingLen = nRead - nOfs;
+              break;
+            }
+            aSegments.add (aSegment);
+          }
+          final int nChunk = Math.min (nRead - nOfs, aSegment.remaining ());
+          aSegment.put (aBuffer, nOfs, nChunk);
+          nOfs += nChunk;
+        }
+        nSize += nRead;
+      }
+
+      if (nSize <= nInMemoryThreshold && nPendingLen == 0)
+      {
+        // Everything fits into memory - switch segments to read mode
+        for (final ByteBuffer aSegment : aSegments)
+          aSegment.flip ();
+        final AS4AttachmentBuffer ret = new AS4AttachmentBuffer (aSegments, null, nSize);
+        aResMgr.addCloseable (ret);
+        bSuccess = true;
+        return ret;
+      }
+
+      // Spill to temp file
+      final File aTempFile = aResMgr.createTempFile ();
+      try (final OutputStream aOS = aResMgr.getOutputStream (aTempFile))
+      {
+        for (final ByteBuffer aSegment : aSegments)
+        {
+          aSegment.flip ();
+          while (aSegment.hasRemaining ())
+          {
+            final int nChunk = Math.min (aSegment.remaining (), aBuffer.length);
+            aSegment.get (aBuffer, 0, nChunk);
+            aOS.write (aBuffer, 0, nChunk);
+          }
+        }
+        // Segments are no longer needed
+        _returnSegments (aSegments);
+        aSegments.clear ();
+        if (nPendingLen > 0)
+        {
+          // Already contained in nSize
+          aOS.write (aBuffer, nPendingOfs, nPendingLen);
+        }
+        while ((nRead = aIS.read (aBuffer)) > -1)
+        {
+          aOS.write (aBuffer, 0, nRead);
+          nSize += nRead;
+        }
+      }
+      return new AS4AttachmentBuffer (null, aTempFile, nSize);
+    }
+    finally
+    {
+      if (!bSuccess)
+        _returnSegments (aSegments);
+    }
+  }
+
+  /**
+   * @return The number of contained bytes.
+   */
+  @Nonnegative
+  public long getSize ()
+  {
+    return m_nSize;
+  }
+
+  /**
+   * @return <code>true</code> if the content is kept in memory,
+   *         <code>false</code> if it was spilled to a file.
+   */
+  public boolean isInMemory ()
+  {
+    return m_aFile == null;
+  }
+
+  /**
+   * @return The temporary file with the content or <code>null</code> if the
+   *         content is kept in memory.
+   */
+  @Nullable
+  public File getFile ()
+  {
+    return m_aFile;
+  }
+
+  /**
+   * Create a new independent reader for the content.
+   *
+   * @return A new input stream starting at the first byte. Never
+   *         <code>null</code>.
+   * @throws IOException
+   *         If the spill file cannot be opened
+   */
+  @Nonnull
+  public InputStream getInputStream () throws IOException
+  {
+    if (m_aClosed.get ())
+      throw new IOException ("Attachment buffer is already closed");
+    if (m_aFile != null)
+    {
+      final InputStream ret = StreamHelper.getBuffered (FileHelper.getInputStream (m_aFile));
+      if (ret == null)
+        throw new IOException ("Failed to open temporary file " + m_aFile.getAbsolutePath ());
+      return ret;
+    }
+    return new SegmentInputStream ();
+  }
+
+  /**
+   * Return all segments to the pool. All readers become invalid.
+   */
+  public void close ()
+  {
+    if (m_aClosed.compareAndSet (false, true) && m_aSegments != null)
+    {
+      // Wait for running reads - afterwards all readers see the closed state
+      m_aRWLock.writeLocked ( () -> _returnSegments (m_aSegments));
+    }
+  }
+
+  /**
+   * Reader over the segments. Each reader uses its own read-only views of the
+   * shared segments.
+   */
+  private final class SegmentInputStream extends InputStream
+  {
+    private final ByteBuffer [] m_aViews;
+    private int m_nIndex = 0;
+
+    SegmentInputStream ()
+    {
+      m_aViews = new ByteBuffer [m_aSegments.size ()];
+      for (int i = 0; i < m_aViews.length; ++i)
+        m_aViews[i] = m_aSegments.get (i).asReadOnlyBuffer ();
+    }
+
+    @Nullable
+    @MustBeLocked (ELockType.READ)
+    private ByteBuffer _getCurrent () throws IOException
+    {
+      if (m_aClosed.get ())
+        throw new IOException ("Attachment buffer is already closed");
+      while (m_nIndex < m_aViews.length && !m_aViews[m_nIndex].hasRemaining ())
+        m_nIndex++;
+      return m_nIndex < m_aViews.length ? m_aViews[m_nIndex] : null;
+    }
+
+    @Override
+    public int read () throws IOException
+    {
+      m_aRWLock.readLock ().lock ();
+      try
+      {
+        final ByteBuffer aView = _getCurrent ();
+        return aView == null ? -1 : aView.get () & 0xff;
+      }
+      finally
+      {
+        m_aRWLock.readLock ().unlock ();
+      }
+    }
+
+    @Override
+    public int read (@Nonnull final byte [] aBuf, final int nOfs, final int nLen) throws IOException
+    {
+      ValueEnforcer.isArrayOfsLen (aBuf, nOfs, nLen);
+      if (nLen == 0)
+        return 0;
+      m_aRWLock.readLock ().lock ();
+      try
+      {
+        final ByteBuffer aView = _getCurrent ();
+        if (aView == null)
+          return -1;
+        final int nChunk = Math.min (nLen, aView.remaining ());
+        aView.get (aBuf, nOfs, nChunk);
+        return nChunk;
+      }
+      finally
+      {
+        m_aRWLock.readLock ().unlock ();
+      }
+    }
+
+    @Override
+    public long skip (final long nCount) throws IOException
+    {
+      m_aRWLock.readLock ().lock ();
+      try
+      {
+        long nSkipped = 0;
+        ByteBuffer aView;
+        while (nSkipped < nCount && (aView = _getCurrent ()) != null)
+        {
+          final int nChunk = (int) Math.min (nCount - nSkipped, aView.remaining ());
+          aView.position (aView.position () + nChunk);
+          nSkipped += nChunk;
+        }
+        return nSkipped;
+      }
+      finally
+      {
+        m_aRWLock.readLock ().unlock ();
+      }
+    }
+
+    @Override
+    public int available () throws IOException
+    {
+      m_aRWLock.readLock ().lock ();
+      try
+      {
+        final ByteBuffer aView = _getCurrent ();
+        return aView == null ? 0 : aView.remaining ();
+      }
+      finally
+      {
+        m_aRWLock.readLock ().unlock ();
+      }
+    }
+  }
+
+  @Override
+  public String toString ()
+  {
+    return new ToStringGenerator (this).append ("Size", m_nSize)
+                                       .append ("SegmentCount", m_aSegments == null ? 0 : m_aSegments.size ())
+                                       .append ("File", m_aFile)
+                                       .append ("Closed", m_aClosed.get ())
+                                       .getToString ();
+  }
+}
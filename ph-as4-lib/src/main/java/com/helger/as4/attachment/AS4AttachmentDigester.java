@@ -0,0 +1,211 @@
+/**
+ * Copyright (C) 2015-2017 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.as4.attachment;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+
+import com.helger.as4.crypto.ECryptoAlgorithmSignDigest;
+import com.helger.commons.ValueEnforcer;
+import com.helger.commons.annotation.ReturnsMutableCopy;
+import com.helger.commons.collection.ext.CommonsLinkedHashMap;
+import com.helger.commons.collection.ext.ICommonsOrderedMap;
+import com.helger.commons.concurrent.BasicThreadFactory;
+
+/**
+ * Computes the digests of attachments concurrently on a bounded thread pool,
+ * so that signing many large attachments scales with the number of cores. The
+ * same pool is used to decrypt incoming attachments concurrently.<br>
+ * The digest is calculated over the raw attachment content. This is what the
+ * SwA "Attachment-Content-Signature-Transform" digests for all MIME types
+ * except text (line ending normalization) and XML (canonicalization), so only
+ * attachments with such MIME types are pre-digested.
+ *
+ * @author Philip Helger
+ */
+@ThreadSafe
+public final class AS4AttachmentDigester
+{
+  private static final int THREAD_COUNT = Runtime.getRuntime ().availableProcessors ();
+  private static final int BUFFER_SIZE = 64 * 1024;
+
+  // Lazily created and released in shutdown()
+  @GuardedBy ("AS4AttachmentDigester.class")
+  private static ExecutorService s_aExecutor;
+
+  private AS4AttachmentDigester ()
+  {}
+
+  /**
+   * @return The bounded pool for CPU intensive work on single attachments.
+   *         Never <code>null</code>.
+   */
+  @Nonnull
+  static synchronized ExecutorService getExecutor ()
+  {
+    if (s_aExecutor == null)
+      s_aExecutor = Executors.newFixedThreadPool (THREAD_COUNT,
+                                                  new BasicThreadFactory.Builder ().setNamingPattern ("as4-digest-%d")
+                                                                                   .setDaemon (true)
+                                                                                   .build ());
+    return s_aExecutor;
+  }
+
+  /**
+   * Stop the threads used for digesting. Running tasks are finished. A new
+   * thread pool is created upon the next use. To be called when the
+   * application is shut down.
+   */
+  public static synchronized void shutdown ()
+  {
+    if (s_aExecutor != null)
+    {
+      s_aExecutor.shutdown ();
+      s_aExecutor = null;
+    }
+  }
+
+  /**
+   * Check if the attachment content signature transform digests the raw
+   * content for the passed MIME type.
+   *
+   * @param sMimeType
+   *        The MIME type of the attachment. May be <code>null</code>.
+   * @return <code>true</code> if the content of attachments with the MIME type
+   *         can be pre-digested, <code>false</code> if not.
+   */
+  public static boolean isRawContentDigest (@Nullable final String sMimeType)
+  {
+    if (sMimeType == null)
+      return false;
+    // Conservative - everything with "xml" may be canonicalized
+    final String sLC = sMimeType.toLowerCase (Locale.US);
+    return !sLC.startsWith ("text/") && !sLC.contains ("xml");
+  }
+
+  /**
+   * Digest a stream until the end.
+   *
+   * @param aIS
+   *        The stream to digest. May not be <code>null</code>. Is not closed.
+   * @param eDigest
+   *        The digest algorithm to use. May not be <code>null</code>.
+   * @return The digest value. Never <code>null</code>.
+   * @throws IOException
+   *         In case reading fails
+   */
+  @Nonnull
+  public static byte [] getDigest (@Nonnull final InputStream aIS,
+                                   @Nonnull final ECryptoAlgorithmSignDigest eDigest) throws IOException
+  {
+    ValueEnforcer.notNull (aIS, "InputStream");
+    ValueEnforcer.notNull (eDigest, "Digest");
+
+    final MessageDigest aMD;
+    try
+    {
+      aMD = MessageDigest.getInstance (eDigest.getJCEName ());
+    }
+    catch (final NoSuchAlgorithmException ex)
+    {
+      throw new IllegalStateException ("Digest algorithm " + eDigest.getJCEName () + " is not supported", ex);
+    }
+
+    final byte [] aBuffer = new byte [BUFFER_SIZE];
+    int nRead;
+    while ((nRead = aIS.read (aBuffer)) > -1)
+      aMD.update (aBuffer, 0, nRead);
+    return aMD.digest ();
+  }
+
+  @Nonnull
+  private static byte [] _getDigest (@Nonnull final WSS4JAttachment aAttachment,
+                                     @Nonnull final ECryptoAlgorithmSignDigest eDigest) throws IOException
+  {
+    try (final InputStream aIS = aAttachment.getSourceStream ())
+    {
+      return getDigest (aIS, eDigest);
+    }
+  }
+
+  /**
+   * Digest the content of all attachments with a raw content digest
+   * concurrently.
+   *
+   * @param aAttachments
+   *        The attachments to digest. May not be <code>null</code>.
+   * @param eDigest
+   *        The digest algorithm to use. May not be <code>null</code>.
+   * @return A map from attachment ID to digest value in the order of the
+   *         attachments. Attachments for which
+   *         {@link #isRawContentDigest(String)} returns <code>false</code> are
+   *         not contained. Never <code>null</code>.
+   * @throws IOException
+   *         In case reading an attachment fails
+   */
+  @Nonnull
+  @ReturnsMutableCopy
+  public static ICommonsOrderedMap <String, byte []> getAllDigests (@Nonnull final Iterable <WSS4JAttachment> aAttachments,
+                                                                    @Nonnull final ECryptoAlgorithmSignDigest eDigest) throws IOException
+  {
+    ValueEnforcer.notNull (aAttachments, "Attachments");
+    ValueEnforcer.notNull (eDigest, "Digest");
+
+    final ExecutorService aExecutor = getExecutor ();
+    final ICommonsOrderedMap <String, Future <byte []>> aFutures = new CommonsLinkedHashMap <> ();
+    for (final WSS4JAttachment aAttachment : aAttachments)
+      if (isRawContentDigest (aAttachment.getMimeType ()))
+        aFutures.put (aAttachment.getId (), aExecutor.submit ( () -> _getDigest (aAttachment, eDigest)));
+
+    final ICommonsOrderedMap <String, byte []> ret = new CommonsLinkedHashMap <> ();
+    try
+    {
+      for (final Map.Entry <String, Future <byte []>> aEntry : aFutures.entrySet ())
+        ret.put (aEntry.getKey (), aEntry.getValue ().get ());
+    }
+    catch (final InterruptedException ex)
+    {
+      Thread.currentThread ().interrupt ();
+      throw new InterruptedIOException ("Interrupted while digesting attachments");
+    }
+    catch (final ExecutionException ex)
+    {
+      throw new IOException ("Failed to digest attachment", ex.getCause ());
+    }
+    finally
+    {
+      // No-op for the finished ones
+      for (final Future <byte []> aFuture : aFutures.values ())
+        aFuture.cancel (true);
+    }
+    return ret;
+  }
+}
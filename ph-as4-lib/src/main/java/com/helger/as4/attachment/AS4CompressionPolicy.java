@@ -0,0 +1,450 @@
+/**
+ * Copyright (C) 2015-2017 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.as4.attachment;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.Deflater;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.helger.commons.ValueEnforcer;
+import com.helger.commons.annotation.Nonempty;
+import com.helger.commons.annotation.ReturnsMutableCopy;
+import com.helger.commons.collection.ext.CommonsHashSet;
+import com.helger.commons.collection.ext.ICommonsSet;
+import com.helger.commons.concurrent.SimpleReadWriteLock;
+import com.helger.commons.io.file.FileHelper;
+import com.helger.commons.mime.IMimeType;
+import com.helger.commons.state.EChange;
+import com.helger.commons.string.ToStringGenerator;
+
+/**
+ * Adaptive compression policy for outgoing attachments. Compression is skipped
+ * if it is not worth the CPU time on both ends, which is decided in this order:
+ * <ol>
+ * <li>MIME types on the deny-list (like JPEG or ZIP) are never compressed.
+ * Entries may use a wildcard sub type like "video/*".</li>
+ * <li>The Shannon entropy of a sample from the beginning of the file must not
+ * exceed {@link #getMaxEntropyBitsPerByte()}.</li>
+ * <li>A fast trial compression of the same sample must save at least
+ * {@link #getMinSavingPercent()} percent.</li>
+ * </ol>
+ * Additionally counters are kept for the bytes saved and the time spent.
+ *
+ * @author Philip Helger
+ */
+@ThreadSafe
+public class AS4CompressionPolicy
+{
+  /** Number of bytes from the start of a file used for the decision */
+  public static final int DEFAULT_SAMPLE_SIZE = 64 * 1024;
+  /** Random data has 8 bits per byte */
+  public static final double DEFAULT_MAX_ENTROPY_BITS_PER_BYTE = 7.5;
+  public static final int DEFAULT_MIN_SAVING_PERCENT = 10;
+
+  private static final Logger s_aLogger = LoggerFactory.getLogger (AS4CompressionPolicy.class);
+
+  private final SimpleReadWriteLock m_aRWLock = new SimpleReadWriteLock ();
+  @GuardedBy ("m_aRWLock")
+  private final ICommonsSet <String> m_aDeniedMimeTypes = new CommonsHashSet <> ();
+  @GuardedBy ("m_aRWLock")
+  private int m_nSampleSize = DEFAULT_SAMPLE_SIZE;
+  @GuardedBy ("m_aRWLock")
+  private double m_dMaxEntropyBitsPerByte = DEFAULT_MAX_ENTROPY_BITS_PER_BYTE;
+  @GuardedBy ("m_aRWLock")
+  private int m_nMinSavingPercent = DEFAULT_MIN_SAVING_PERCENT;
+
+  private final AtomicLong m_aCompressedCount = new AtomicLong ();
+  private final AtomicLong m_aSkippedCount = new AtomicLong ();
+  private final AtomicLong m_aUncompressedBytes = new AtomicLong ();
+  private final AtomicLong m_aCompressedBytes = new AtomicLong ();
+  private final AtomicLong m_aSkippedBytes = new AtomicLong ();
+  private final AtomicLong m_aCompressionNanos = new AtomicLong ();
+  private final AtomicLong m_aSamplingNanos = new AtomicLong ();
+
+  public AS4CompressionPolicy ()
+  {
+    // Already compressed formats
+    for (final String sMimeType : new String [] { "image/jpeg",
+                                                  "image/png",
+                                                  "image/gif",
+                                                  "image/webp",
+                                                  "audio/*",
+                                                  "video/*",
+                                                  "application/zip",
+                                                  "application/gzip",
+                                                  "application/x-gzip",
+                                                  "application/x-bzip2",
+                                                  "application/x-xz",
+                                                  "application/x-7z-compressed",
+                                                  "application/x-rar-compressed",
+                                                  "application/vnd.rar",
+                                                  "application/zstd" })
+      m_aDeniedMimeTypes.add (sMimeType);
+  }
+
+  @Nonnull
+  private static String _unify (@Nonnull final String sMimeType)
+  {
+    return sMimeType.trim ().toLowerCase (Locale.US);
+  }
+
+  /**
+   * @return A copy of all MIME types on the deny-list. Never <code>null</code>.
+   */
+  @Nonnull
+  @ReturnsMutableCopy
+  public ICommonsSet <String> getAllDeniedMimeTypes ()
+  {
+    return m_aRWLock.readLocked ( () -> m_aDeniedMimeTypes.getClone ());
+  }
+
+  /**
+   * Add a MIME type that should never be compressed.
+   *
+   * @param sMimeType
+   *        MIME type without parameters, e.g. "application/pdf". The sub type
+   *        may be "*" to deny all sub types. May neither be <code>null</code>
+   *        nor empty.
+   * @return {@link EChange}
+   */
+  @Nonnull
+  public EChange addDeniedMimeType (@Nonnull @Nonempty final String sMimeType)
+  {
+    ValueEnforcer.notEmpty (sMimeType, "MimeType");
+    return m_aRWLock.writeLocked ( () -> EChange.valueOf (m_aDeniedMimeTypes.add (_unify (sMimeType))));
+  }
+
+  @Nonnull
+  public EChange removeDeniedMimeType (@Nullable final String sMimeType)
+  {
+    if (sMimeType == null)
+      return EChange.UNCHANGED;
+    return m_aRWLock.writeLocked ( () -> EChange.valueOf (m_aDeniedMimeTypes.remove (_unify (sMimeType))));
+  }
+
+  public boolean isDeniedMimeType (@Nullable final IMimeType aMimeType)
+  {
+    if (aMimeType == null)
+      return false;
+    final String sMimeType = _unify (aMimeType.getAsStringWithoutParameters ());
+    final String sWildcard = sMimeType.substring (0, sMimeType.indexOf ('/') + 1) + "*";
+    return m_aRWLock.readLocked ( () -> m_aDeniedMimeTypes.contains (sMimeType) ||
+                                        m_aDeniedMimeTypes.contains (sWildcard));
+  }
+
+  @Nonnegative
+  public int getSampleSize ()
+  {
+    return m_aRWLock.readLocked ( () -> m_nSampleSize);
+  }
+
+  public void setSampleSize (@Nonnegative final int nSampleSize)
+  {
+    ValueEnforcer.isGT0 (nSampleSize, "SampleSize");
+    m_aRWLock.writeLocked ( () -> m_nSampleSize = nSampleSize);
+  }
+
+  public double getMaxEntropyBitsPerByte ()
+  {
+    return m_aRWLock.readLocked ( () -> m_dMaxEntropyBitsPerByte);
+  }
+
+  /**
+   * @param dMaxEntropyBitsPerByte
+   *        The maximum entropy of the sample, in bits per byte. Values &ge; 8
+   *        disable the entropy check.
+   */
+  public void setMaxEntropyBitsPerByte (final double dMaxEntropyBitsPerByte)
+  {
+    ValueEnforcer.isGT0 (dMaxEntropyBitsPerByte, "MaxEntropyBitsPerByte");
+    m_aRWLock.writeLocked ( () -> m_dMaxEntropyBitsPerByte = dMaxEntropyBitsPerByte);
+  }
+
+  @Nonnegative
+  public int getMinSavingPercent ()
+  {
+    return m_aRWLock.readLocked ( () -> m_nMinSavingPercent);
+  }
+
+  /**
+   * @param nMinSavingPercent
+   *        The minimum percentage the trial compression must save. 0 disables
+   *        the trial compression.
+   */
+  public void setMinSavingPercent (@Nonnegative final int nMinSavingPercent)
+  {
+    ValueEnforcer.isBetweenInclusive (nMinSavingPercent, "MinSavingPercent", 0, 100);
+    m_aRWLock.writeLocked ( () -> m_nMinSavingPercent = nMinSavingPercent);
+  }
+
+  /**
+   * Calculate the Shannon entropy of the passed data.
+   *
+   * @param aData
+   *        The data. May not be <code>null</code>.
+   * @param nLength
+   *        The number of bytes to use from the beginning of the array.
+   * @return The entropy in bits per byte, between 0 and 8.
+   */
+  public static double getEntropyBitsPerByte (@Nonnull final byte [] aData, @Nonnegative final int nLength)
+  {
+    if (nLength == 0)
+      return 0;
+
+    final int [] aCounts = new int [256];
+    for (int i = 0; i < nLength; ++i)
+      aCounts[aData[i] & 0xff]++;
+
+    double ret = 0;
+    for (final int nCount : aCounts)
+      if (nCount > 0)
+      {
+        final double p = (double) nCount / nLength;
+        ret -= p * Math.log (p);
+      }
+    return ret / Math.log (2);
+  }
+
+  /**
+   * Compress the passed data with the fastest level.
+   *
+   * @param aData
+   *        The data. May not be <code>null</code>.
+   * @param nLength
+   *        The number of bytes to use from the beginning of the array.
+   * @return The number of compressed bytes, without any header.
+   */
+  @Nonnegative
+  public static int getTrialCompressedLength (@Nonnull final byte [] aData, @Nonnegative final int nLength)
+  {
+    final Deflater aDeflater = AS4GzipHelper.borrowDeflater (Deflater.BEST_SPEED);
+    try
+    {
+      aDeflater.setInput (aData, 0, nLength);
+      aDeflater.finish ();
+      final byte [] aBuf = new byte [16 * 1024];
+      int ret = 0;
+      while (!aDeflater.finished ())
+        ret += aDeflater.deflate (aBuf);
+      return ret;
+    }
+    finally
+    {
+      AS4GzipHelper.returnDeflater (Deflater.BEST_SPEED, aDeflater);
+    }
+  }
+
+  private boolean _isSampleCompressible (@Nonnull final File aFile) throws IOException
+  {
+    final int nSampleSize = getSampleSize ();
+    final byte [] aSample = new byte [(int) Math.min (nSampleSize, aFile.length ())];
+    int nRead = 0;
+    try (final InputStream aIS = FileHelper.getInputStream (aFile))
+    {
+      if (aIS == null)
+        throw new IOException ("Failed to read " + aFile.getAbsolutePath ());
+      while (nRead < aSample.length)
+      {
+        final int n = aIS.read (aSample, nRead, aSample.length - nRead);
+        if (n < 0)
+          break;
+        nRead += n;
+      }
+    }
+    if (nRead == 0)
+      return false;
+
+    final double dEntropy = getEntropyBitsPerByte (aSample, nRead);
+    if (dEntropy > getMaxEntropyBitsPerByte ())
+    {
+      if (s_aLogger.isDebugEnabled ())
+        s_aLogger.debug ("Entropy " + dEntropy + " of " + aFile.getName () + " is too high for compression");
+      return false;
+    }
+
+    final int nMinSavingPercent = getMinSavingPercent ();
+    if (nMinSavingPercent > 0)
+    {
+      final long nSaved = nRead - getTrialCompressedLength (aSample, nRead);
+      if (nSaved * 100 < (long) nMinSavingPercent * nRead)
+      {
+        if (s_aLogger.isDebugEnabled ())
+          s_aLogger.debug ("Trial compression of " + aFile.getName () + " saves only " + nSaved + " of " + nRead + " bytes");
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Decide whether the passed file should be compressed. If not, the skip is
+   * counted.
+   *
+   * @param aFile
+   *        The uncompressed file. May not be <code>null</code>.
+   * @param aMimeType
+   *        The MIME type of the file. May be <code>null</code>.
+   * @return <code>true</code> if compression is worth it.
+   * @throws IOException
+   *         If the sample cannot be read
+   */
+  public boolean isCompressionWorthwhile (@Nonnull final File aFile,
+                                          @Nullable final IMimeType aMimeType) throws IOException
+  {
+    ValueEnforcer.notNull (aFile, "File");
+
+    final long nStart = System.nanoTime ();
+    final boolean bWorthwhile = !isDeniedMimeType (aMimeType) && _isSampleCompressible (aFile);
+    m_aSamplingNanos.addAndGet (System.nanoTime () - nStart);
+    if (!bWorthwhile)
+    {
+      m_aSkippedCount.incrementAndGet ();
+      m_aSkippedBytes.addAndGet (aFile.length ());
+    }
+    return bWorthwhile;
+  }
+
+  /**
+   * Compress a file and update the counters.
+   *
+   * @param eCompressionMode
+   *        The compression mode to use. May not be <code>null</code>.
+   * @param aSrcFile
+   *        The file to compress. May not be <code>null</code>.
+   * @param aDstFile
+   *        The file to write the compressed data to. May not be
+   *        <code>null</code>.
+   * @param nLevel
+   *        The compression level from -1 (default) to 9.
+   * @throws IOException
+   *         In case of a read or write error
+   */
+  public void compressFile (@Nonnull final EAS4CompressionMode eCompressionMode,
+                            @Nonnull final File aSrcFile,
+                            @Nonnull final File aDstFile,
+                            final int nLevel) throws IOException
+  {
+    ValueEnforcer.notNull (eCompressionMode, "CompressionMode");
+
+    final long nStart = System.nanoTime ();
+    eCompressionMode.compressFile (aSrcFile, aDstFile, nLevel);
+    m_aCompressionNanos.addAndGet (System.nanoTime () - nStart);
+    m_aCompressedCount.incrementAndGet ();
+    m_aUncompressedBytes.addAndGet (aSrcFile.length ());
+    m_aCompressedBytes.addAndGet (aDstFile.length ());
+  }
+
+  /**
+   * @return The number of compressed files.
+   */
+  @Nonnegative
+  public long getCompressedCount ()
+  {
+    return m_aCompressedCount.get ();
+  }
+
+  /**
+   * @return The number of files for which compression was skipped.
+   */
+  @Nonnegative
+  public long getSkippedCount ()
+  {
+    return m_aSkippedCount.get ();
+  }
+
+  /**
+   * @return The total size of all compressed files before compression.
+   */
+  @Nonnegative
+  public long getUncompressedBytes ()
+  {
+    return m_aUncompressedBytes.get ();
+  }
+
+  /**
+   * @return The total size of all compressed files after compression.
+   */
+  @Nonnegative
+  public long getCompressedBytes ()
+  {
+    return m_aCompressedBytes.get ();
+  }
+
+  /**
+   * @return The number of bytes saved by compression. May be negative if
+   *         compression made files bigger.
+   */
+  public long getBytesSaved ()
+  {
+    return getUncompressedBytes () - getCompressedBytes ();
+  }
+
+  /**
+   * @return The total size of all files that were sent uncompressed, because
+   *         compression was skipped.
+   */
+  @Nonnegative
+  public long getSkippedBytes ()
+  {
+    return m_aSkippedBytes.get ();
+  }
+
+  /**
+   * @return The total time in milliseconds spent compressing. Parallel
+   *         compression of a single file is counted once.
+   */
+  @Nonnegative
+  public long getCompressionTimeMS ()
+  {
+    return TimeUnit.NANOSECONDS.toMillis (m_aCompressionNanos.get ());
+  }
+
+  /**
+   * @return The total time in milliseconds spent deciding whether to compress.
+   */
+  @Nonnegative
+  public long getSamplingTimeMS ()
+  {
+    return TimeUnit.NANOSECONDS.toMillis (m_aSamplingNanos.get ());
+  }
+
+  @Override
+  public String toString ()
+  {
+    return new ToStringGenerator (this).append ("DeniedMimeTypes", getAllDeniedMimeTypes ())
+                                       .append ("SampleSize", getSampleSize ())
+                                       .append ("MaxEntropyBitsPerByte", getMaxEntropyBitsPerByte ())
+                                       .append ("MinSavingPercent", getMinSavingPercent ())
+                                       .append ("CompressedCount", getCompressedCount ())
+                                       .append ("SkippedCount", getSkippedCount ())
+                                       .append ("BytesSaved", getBytesSaved ())
+                                       .getToString ();
+  }
+}
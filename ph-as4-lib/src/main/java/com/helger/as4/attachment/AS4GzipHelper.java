@@ -0,0 +1,326 @@
+/**
+ * Copyright (C) 2015-2017 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.as4.attachment;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+
+import com.helger.commons.ValueEnforcer;
+import com.helger.commons.concurrent.BasicThreadFactory;
+import com.helger.commons.io.file.FileHelper;
+import com.helger.commons.io.stream.NonBlockingByteArrayOutputStream;
+import com.helger.commons.io.stream.StreamHelper;
+
+/**
+ * Multi-core gzip support for attachments. Large files are split into blocks
+ * that are compressed in parallel, each as a complete gzip member. The members
+ * are concatenated in order, which is a valid multi-member gzip file (RFC 1952)
+ * that every gzip decoder can read. {@link Deflater} and {@link Inflater}
+ * instances are pooled, so that the native memory is not reallocated for every
+ * attachment.
+ *
+ * @author Philip Helger
+ */
+@ThreadSafe
+public final class AS4GzipHelper
+{
+  /** The block size for parallel compression */
+  public static final int DEFAULT_BLOCK_SIZE = 4 * 1024 * 1024;
+
+  /** The fixed header of all written gzip members */
+  static final byte [] GZIP_HEADER = new byte [] { 0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, 0 };
+
+  private static final int THREAD_COUNT = Runtime.getRuntime ().availableProcessors ();
+  // Limits the memory used per file: two blocks per thread
+  private static final int MAX_BLOCKS_IN_FLIGHT = 2 * THREAD_COUNT;
+
+  // Index 0 is the default level (-1), index 1-10 are levels 0-9
+  @SuppressWarnings ("unchecked")
+  private static final ConcurrentLinkedQueue <Deflater> [] s_aDeflaterPools = new ConcurrentLinkedQueue [Deflater.BEST_COMPRESSION +
+                                                                                                         2];
+  private static final ConcurrentLinkedQueue <Inflater> s_aInflaterPool = new ConcurrentLinkedQueue <> ();
+
+  static
+  {
+    for (int i = 0; i < s_aDeflaterPools.length; ++i)
+      s_aDeflaterPools[i] = new ConcurrentLinkedQueue <> ();
+  }
+
+  // Lazily created and released in shutdown()
+  @GuardedBy ("AS4GzipHelper.class")
+  private static ExecutorService s_aBlockExecutor;
+
+  private AS4GzipHelper ()
+  {}
+
+  @Nonnull
+  private static synchronized ExecutorService _getBlockExecutor ()
+  {
+    if (s_aBlockExecutor == null)
+      s_aBlockExecutor = Executors.newFixedThreadPool (THREAD_COUNT,
+                                                       new BasicThreadFactory.Builder ().setNamingPattern ("as4-gzip-%d")
+                                                                                        .setDaemon (true)
+                                                                                        .build ());
+    return s_aBlockExecutor;
+  }
+
+  /**
+   * Stop the threads used for compressing large files. Running compressions
+   * are finished. A new thread pool is created upon the next compression. To
+   * be called when the application is shut down.
+   */
+  public static synchronized void shutdown ()
+  {
+    if (s_aBlockExecutor != null)
+    {
+      s_aBlockExecutor.shutdown ();
+      s_aBlockExecutor = null;
+    }
+  }
+
+  @Nonnegative
+  private static int _getPoolIndex (final int nLevel)
+  {
+    ValueEnforcer.isBetweenInclusive (nLevel,
+                                      "Level",
+                                      Deflater.DEFAULT_COMPRESSION,
+                                      Deflater.BEST_COMPRESSION);
+    return nLevel + 1;
+  }
+
+  /**
+   * Get a raw (no zlib wrapper) deflater from the pool.
+   *
+   * @param nLevel
+   *        The compression level from -1 to 9.
+   * @return The deflater. Must be returned with
+   *         {@link #returnDeflater(int, Deflater)}.
+   */
+  @Nonnull
+  static Deflater borrowDeflater (final int nLevel)
+  {
+    final Deflater ret = s_aDeflaterPools[_getPoolIndex (nLevel)].poll ();
+    return ret != null ? ret : new Deflater (nLevel, true);
+  }
+
+  static void returnDeflater (final int nLevel, @Nonnull final Deflater aDeflater)
+  {
+    aDeflater.reset ();
+    s_aDeflaterPools[_getPoolIndex (nLevel)].offer (aDeflater);
+  }
+
+  /**
+   * @return A raw (no zlib wrapper) inflater from the pool. Must be returned
+   *         with {@link #returnInflater(Inflater)}.
+   */
+  @Nonnull
+  static Inflater borrowInflater ()
+  {
+    final Inflater ret = s_aInflaterPool.poll ();
+    return ret != null ? ret : new Inflater (true);
+  }
+
+  static void returnInflater (@Nonnull final Inflater aInflater)
+  {
+    aInflater.reset ();
+    s_aInflaterPool.offer (aInflater);
+  }
+
+  static void writeIntLE (@Nonnull final OutputStream aOS, final int n) throws IOException
+  {
+    aOS.write (n & 0xff);
+    aOS.write ((n >> 8) & 0xff);
+    aOS.write ((n >> 16) & 0xff);
+    aOS.write ((n >> 24) & 0xff);
+  }
+
+  /**
+   * Compress the passed data as a single complete gzip member.
+   *
+   * @param aData
+   *        The data to compress. May not be <code>null</code>.
+   * @param nLength
+   *        The number of bytes to use from the beginning of the array.
+   * @param nLevel
+   *        The compression level from -1 to 9.
+   * @return The gzip member. Never <code>null</code>.
+   */
+  @Nonnull
+  static byte [] compressMember (@Nonnull final byte [] aData, @Nonnegative final int nLength, final int nLevel)
+  {
+    final CRC32 aCRC = new CRC32 ();
+    aCRC.update (aData, 0, nLength);
+
+    try (final NonBlockingByteArrayOutputStream aBAOS = new NonBlockingByteArrayOutputStream (nLength / 2 + 64))
+    {
+      aBAOS.write (GZIP_HEADER);
+
+      final Deflater aDeflater = borrowDeflater (nLevel);
+      try
+      {
+        aDeflater.setInput (aData, 0, nLength);
+        aDeflater.finish ();
+        final byte [] aBuf = new byte [64 * 1024];
+        while (!aDeflater.finished ())
+        {
+          final int nDeflated = aDeflater.deflate (aBuf);
+          aBAOS.write (aBuf, 0, nDeflated);
+        }
+      }
+      finally
+      {
+        returnDeflater (nLevel, aDeflater);
+      }
+
+      writeIntLE (aBAOS, (int) aCRC.getValue ());
+      writeIntLE (aBAOS, nLength);
+      return aBAOS.toByteArray ();
+    }
+    catch (final IOException ex)
+    {
+      // Cannot happen on a byte array stream
+      throw new IllegalStateException (ex);
+    }
+  }
+
+  @Nonnull
+  private static byte [] _readBlock (@Nonnull final InputStream aIS, @Nonnegative final int nBlockSize) throws IOException
+  {
+    final byte [] aBlock = new byte [nBlockSize];
+    int nRead = 0;
+    while (nRead < nBlockSize)
+    {
+      final int n = aIS.read (aBlock, nRead, nBlockSize - nRead);
+      if (n < 0)
+        break;
+      nRead += n;
+    }
+    return nRead == nBlockSize ? aBlock : Arrays.copyOf (aBlock, nRead);
+  }
+
+  private static void _writeNext (@Nonnull final Deque <Future <byte []>> aPending,
+                                  @Nonnull final OutputStream aOS) throws IOException
+  {
+    try
+    {
+      aOS.write (aPending.removeFirst ().get ());
+    }
+    catch (final InterruptedException ex)
+    {
+      Thread.currentThread ().interrupt ();
+      throw new InterruptedIOException ("Interrupted while compressing");
+    }
+    catch (final ExecutionException ex)
+    {
+      throw new IOException ("Failed to compress block", ex.getCause ());
+    }
+  }
+
+  static void compressFile (@Nonnull final File aSrcFile,
+                            @Nonnull final File aDstFile,
+                            final int nLevel,
+                            @Nonnegative final int nBlockSize) throws IOException
+  {
+    ValueEnforcer.notNull (aSrcFile, "SrcFile");
+    ValueEnforcer.notNull (aDstFile, "DstFile");
+    _getPoolIndex (nLevel);
+    ValueEnforcer.isGT0 (nBlockSize, "BlockSize");
+
+    try (final InputStream aIS = FileHelper.getInputStream (aSrcFile);
+        final OutputStream aOS = StreamHelper.getBuffered (FileHelper.getOutputStream (aDstFile)))
+    {
+      if (aIS == null)
+        throw new IOException ("Failed to read " + aSrcFile.getAbsolutePath ());
+      if (aOS == null)
+        throw new IOException ("Failed to write " + aDstFile.getAbsolutePath ());
+
+      if (aSrcFile.length () < 2L * nBlockSize || THREAD_COUNT == 1)
+      {
+        // Not worth splitting
+        try (final OutputStream aGzipOS = new AS4GzipOutputStream (aOS, nLevel))
+        {
+          StreamHelper.copyInputStreamToOutputStream (StreamHelper.getBuffered (aIS), aGzipOS);
+        }
+        return;
+      }
+
+      final ExecutorService aExecutor = _getBlockExecutor ();
+      final Deque <Future <byte []>> aPending = new ArrayDeque <> ();
+      try
+      {
+        while (true)
+        {
+          final byte [] aBlock = _readBlock (aIS, nBlockSize);
+          if (aBlock.length == 0)
+            break;
+          aPending.addLast (aExecutor.submit ( () -> compressMember (aBlock, aBlock.length, nLevel)));
+          // Write in order, as soon as the window is full
+          if (aPending.size () >= MAX_BLOCKS_IN_FLIGHT)
+            _writeNext (aPending, aOS);
+          if (aBlock.length < nBlockSize)
+            break;
+        }
+        while (!aPending.isEmpty ())
+          _writeNext (aPending, aOS);
+      }
+      finally
+      {
+        for (final Future <byte []> aFuture : aPending)
+          aFuture.cancel (false);
+      }
+    }
+  }
+
+  /**
+   * Gzip compress a file. Files of at least two blocks are compressed in
+   * parallel on all available cores.
+   *
+   * @param aSrcFile
+   *        The file to compress. May not be <code>null</code>.
+   * @param aDstFile
+   *        The file to write the gzip data to. May not be <code>null</code>.
+   * @param nLevel
+   *        The compression level from -1 (default) to 9.
+   * @throws IOException
+   *         In case of a read or write error
+   */
+  public static void compressFile (@Nonnull final File aSrcFile,
+                                   @Nonnull final File aDstFile,
+                                   final int nLevel) throws IOException
+  {
+    compressFile (aSrcFile, aDstFile, nLevel, DEFAULT_BLOCK_SIZE);
+  }
+}
@@ -0,0 +1,259 @@
+/**
+ * Copyright (C) 2015-2017 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.as4.attachment;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
+
+import javax.annotation.Nonnull;
+
+import com.helger.commons.ValueEnforcer;
+
+/**
+ * A gzip input stream that uses a pooled {@link Inflater} and reads all members
+ * of a multi-member gzip stream, as e.g. created by
+ * {@link AS4GzipHelper#compressFile(java.io.File, java.io.File, int)}. As with
+ * {@link java.util.zip.GZIPInputStream}, data after a member that is not a gzip
+ * header is ignored.
+ *
+ * @author Philip Helger
+ */
+public class AS4GzipInputStream extends InputStream
+{
+  private static final int BUFFER_SIZE = 16 * 1024;
+
+  private static final int FHCRC = 2;
+  private static final int FEXTRA = 4;
+  private static final int FNAME = 8;
+  private static final int FCOMMENT = 16;
+
+  private final InputStream m_aIS;
+  private final Inflater m_aInflater;
+  private final CRC32 m_aCRC = new CRC32 ();
+  private final byte [] m_aBuf = new byte [BUFFER_SIZE];
+  private int m_nBufPos = 0;
+  private int m_nBufLen = 0;
+  private boolean m_bEOF = false;
+  private boolean m_bClosed = false;
+
+  /**
+   * Constructor
+   *
+   * @param aIS
+   *        The stream with the gzip data. May not be <code>null</code>.
+   * @throws IOException
+   *         If the stream does not start with a valid gzip header
+   */
+  public AS4GzipInputStream (@Nonnull final InputStream aIS) throws IOException
+  {
+    ValueEnforcer.notNull (aIS, "InputStream");
+    m_aIS = aIS;
+    m_aInflater = AS4GzipHelper.borrowInflater ();
+    try
+    {
+      _readHeader (true);
+    }
+    catch (final IOException ex)
+    {
+      m_bClosed = true;
+      AS4GzipHelper.returnInflater (m_aInflater);
+      throw ex;
+    }
+  }
+
+  private int _readByte () throws IOException
+  {
+    if (m_nBufPos >= m_nBufLen)
+    {
+      m_nBufPos = 0;
+      m_nBufLen = Math.max (m_aIS.read (m_aBuf), 0);
+      if (m_nBufLen == 0)
+        return -1;
+    }
+    return m_aBuf[m_nBufPos++] & 0xff;
+  }
+
+  private int _readRequiredByte () throws IOException
+  {
+    final int ret = _readByte ();
+    if (ret < 0)
+      throw new EOFException ("Unexpected end of GZIP stream");
+    return ret;
+  }
+
+  private void _skipBytes (final int nCount) throws IOException
+  {
+    for (int i = 0; i < nCount; ++i)
+      _readRequiredByte ();
+  }
+
+  private void _skipZeroTerminated () throws IOException
+  {
+    while (_readRequiredByte () != 0)
+    {}
+  }
+
+  private long _readIntLE () throws IOException
+  {
+    long ret = 0;
+    for (int i = 0; i < 4; ++i)
+      ret |= ((long) _readRequiredByte ()) << (i * 8);
+    return ret;
+  }
+
+  /**
+   * Read the header of the next member and prepare the inflater.
+   *
+   * @param bFirst
+   *        <code>true</code> for the first member, which must be present.
+   * @return <code>false</code> if no further member is present
+   */
+  private boolean _readHeader (final boolean bFirst) throws IOException
+  {
+    final int nMagic1 = _readByte ();
+    if (nMagic1 < 0)
+    {
+      if (bFirst)
+        throw new EOFException ("Empty GZIP stream");
+      return false;
+    }
+    final int nMagic2 = _readByte ();
+    if (nMagic1 != 0x1f || nMagic2 != 0x8b)
+    {
+      if (bFirst)
+        throw new ZipException ("Not in GZIP format");
+      // Trailing garbage
+      return false;
+    }
+    if (_readRequiredByte () != 8)
+      throw new ZipException ("Unsupported compression method");
+    final int nFlags = _readRequiredByte ();
+    // MTIME, XFL and OS
+    _skipBytes (6);
+    if ((nFlags & FEXTRA) != 0)
+      _skipBytes (_readRequiredByte () | (_readRequiredByte () << 8));
+    if ((nFlags & FNAME) != 0)
+      _skipZeroTerminated ();
+    if ((nFlags & FCOMMENT) != 0)
+      _skipZeroTerminated ();
+    if ((nFlags & FHCRC) != 0)
+      _skipBytes (2);
+
+    m_aInflater.reset ();
+    m_aCRC.reset ();
+    if (m_nBufPos < m_nBufLen)
+    {
+      m_aInflater.setInput (m_aBuf, m_nBufPos, m_nBufLen - m_nBufPos);
+      m_nBufPos = m_nBufLen;
+    }
+    return true;
+  }
+
+  private void _readTrailer () throws IOException
+  {
+    // Give back what the inflater did not consume
+    m_nBufPos = m_nBufLen - m_aInflater.getRemaining ();
+    final long nCRC = _readIntLE ();
+    final long nSize = _readIntLE ();
+    if (nCRC != m_aCRC.getValue () || nSize != (m_aInflater.getBytesWritten () & 0xffffffffL))
+      throw new ZipException ("Corrupt GZIP trailer");
+  }
+
+  @Override
+  public int read () throws IOException
+  {
+    final byte [] aOne = new byte [1];
+    return read (aOne, 0, 1) < 0 ? -1 : aOne[0] & 0xff;
+  }
+
+  @Override
+  public int read (@Nonnull final byte [] aBuf, final int nOfs, final int nLen) throws IOException
+  {
+    ValueEnforcer.isArrayOfsLen (aBuf, nOfs, nLen);
+    if (m_bClosed)
+      throw new IOException ("Stream closed");
+    if (m_bEOF)
+      return -1;
+    if (nLen == 0)
+      return 0;
+
+    while (true)
+    {
+      final int nInflated;
+      try
+      {
+        nInflated = m_aInflater.inflate (aBuf, nOfs, nLen);
+      }
+      catch (final DataFormatException ex)
+      {
+        final String sMsg = ex.getMessage ();
+        throw new ZipException (sMsg != null ? sMsg : "Invalid ZLIB data format");
+      }
+      if (nInflated > 0)
+      {
+        m_aCRC.update (aBuf, nOfs, nInflated);
+        return nInflated;
+      }
+
+      if (m_aInflater.finished ())
+      {
+        _readTrailer ();
+        if (!_readHeader (false))
+        {
+          m_bEOF = true;
+          return -1;
+        }
+      }
+      else
+        if (m_aInflater.needsDictionary ())
+          throw new ZipException ("GZIP member requires a preset dictionary");
+        else
+          if (m_aInflater.needsInput ())
+          {
+            m_nBufLen = Math.max (m_aIS.read (m_aBuf), 0);
+            if (m_nBufLen == 0)
+              throw new EOFException ("Unexpected end of ZLIB input stream");
+            m_aInflater.setInput (m_aBuf, 0, m_nBufLen);
+            m_nBufPos = m_nBufLen;
+          }
+    }
+  }
+
+  @Override
+  public int available () throws IOException
+  {
+    if (m_bClosed)
+      throw new IOException ("Stream closed");
+    return m_bEOF ? 0 : 1;
+  }
+
+  @Override
+  public void close () throws IOException
+  {
+    if (!m_bClosed)
+    {
+      m_bClosed = true;
+      AS4GzipHelper.returnInflater (m_aInflater);
+      m_aIS.close ();
+    }
+  }
+}
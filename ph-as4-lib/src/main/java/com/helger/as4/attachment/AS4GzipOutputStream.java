@@ -0,0 +1,107 @@
+/**
+ * Copyright (C) 2015-2017 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.as4.attachment;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+import javax.annotation.Nonnull;
+
+/**
+ * A gzip output stream that uses a pooled {@link Deflater} with a configurable
+ * compression level. The output is identical in format to
+ * {@link java.util.zip.GZIPOutputStream}.
+ *
+ * @author Philip Helger
+ */
+public class AS4GzipOutputStream extends DeflaterOutputStream
+{
+  private static final int BUFFER_SIZE = 16 * 1024;
+
+  private final int m_nLevel;
+  private final CRC32 m_aCRC = new CRC32 ();
+  private boolean m_bDeflaterReturned = false;
+
+  /**
+   * Constructor
+   *
+   * @param aOS
+   *        The stream to write the compressed data to. May not be
+   *        <code>null</code>.
+   * @param nLevel
+   *        The compression level from -1 (default) to 9.
+   * @throws IOException
+   *         If writing the gzip header fails
+   */
+  public AS4GzipOutputStream (@Nonnull final OutputStream aOS, final int nLevel) throws IOException
+  {
+    super (aOS, AS4GzipHelper.borrowDeflater (nLevel), BUFFER_SIZE);
+    m_nLevel = nLevel;
+    try
+    {
+      aOS.write (AS4GzipHelper.GZIP_HEADER);
+    }
+    catch (final IOException ex)
+    {
+      _returnDeflater ();
+      throw ex;
+    }
+  }
+
+  private void _returnDeflater ()
+  {
+    if (!m_bDeflaterReturned)
+    {
+      m_bDeflaterReturned = true;
+      AS4GzipHelper.returnDeflater (m_nLevel, def);
+    }
+  }
+
+  @Override
+  public void write (@Nonnull final byte [] aBuf, final int nOfs, final int nLen) throws IOException
+  {
+    super.write (aBuf, nOfs, nLen);
+    m_aCRC.update (aBuf, nOfs, nLen);
+  }
+
+  @Override
+  public void finish () throws IOException
+  {
+    if (!def.finished ())
+    {
+      super.finish ();
+      AS4GzipHelper.writeIntLE (out, (int) m_aCRC.getValue ());
+      AS4GzipHelper.writeIntLE (out, (int) def.getBytesRead ());
+    }
+  }
+
+  @Override
+  public void close () throws IOException
+  {
+    try
+    {
+      super.close ();
+    }
+    finally
+    {
+      _returnDeflater ();
+    }
+  }
+}
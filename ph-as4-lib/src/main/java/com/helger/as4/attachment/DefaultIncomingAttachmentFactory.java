@@ -0,0 +1,94 @@
+/**
+ * Copyright (C) 2015-2017 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.as4.attachment;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.Immutable;
+import javax.mail.MessagingException;
+import javax.mail.internet.InternetHeaders;
+import javax.mail.internet.MimeBodyPart;
+
+import com.helger.as4.util.AS4ResourceManager;
+import com.helger.commons.ValueEnforcer;
+import com.helger.commons.string.ToStringGenerator;
+
+/**
+ * Default implementation of {@link IIncomingAttachmentFactory} that supports
+ * both the {@link MimeBodyPart} based and the streaming variant. Small
+ * attachments are kept in pooled off-heap memory, bigger ones are written to
+ * temporary files (see {@link AS4AttachmentBuffer}).
+ *
+ * @author Philip Helger
+ */
+@Immutable
+public class DefaultIncomingAttachmentFactory implements IIncomingAttachmentFactory
+{
+  private final int m_nInMemoryThreshold;
+
+  public DefaultIncomingAttachmentFactory ()
+  {
+    this (WSS4JAttachment.DEFAULT_IN_MEMORY_THRESHOLD);
+  }
+
+  /**
+   * @param nInMemoryThreshold
+   *        The maximum number of bytes of an attachment that are kept in
+   *        memory. Must be &ge; 0.
+   */
+  public DefaultIncomingAttachmentFactory (@Nonnegative final int nInMemoryThreshold)
+  {
+    ValueEnforcer.isGE0 (nInMemoryThreshold, "InMemoryThreshold");
+    m_nInMemoryThreshold = nInMemoryThreshold;
+  }
+
+  /**
+   * @return The maximum number of bytes kept in memory. Always &ge; 0.
+   */
+  @Nonnegative
+  public final int getInMemoryThreshold ()
+  {
+    return m_nInMemoryThreshold;
+  }
+
+  @Nonnull
+  public WSS4JAttachment createAttachment (@Nonnull final MimeBodyPart aBodyPart,
+                                           @Nonnull final AS4ResourceManager aResMgr) throws IOException,
+                                                                                      MessagingException
+  {
+    return WSS4JAttachment.createIncomingFileAttachment (aBodyPart, m_nInMemoryThreshold, aResMgr);
+  }
+
+  @Override
+  @Nonnull
+  public WSS4JAttachment createAttachment (@Nonnull final InternetHeaders aHeaders,
+                                           @Nonnull final InputStream aBodyIS,
+                                           @Nonnull final AS4ResourceManager aResMgr) throws IOException,
+                                                                                      MessagingException
+  {
+    return WSS4JAttachment.createIncomingFileAttachment (aHeaders, aBodyIS, m_nInMemoryThreshold, aResMgr);
+  }
+
+  @Override
+  public String toString ()
+  {
+    return new ToStringGenerator (this).append ("InMemoryThreshold", m_nInMemoryThreshold).getToString ();
+  }
+}
@@ -16,17 +16,25 @@
  */
 package com.helger.as4.attachment;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.util.zip.GZIPInputStream;
-import java.util.zip.GZIPOutputStream;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.Deflater;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
 
+import com.helger.commons.ValueEnforcer;
 import com.helger.commons.annotation.Nonempty;
+import com.helger.commons.concurrent.BasicThreadFactory;
 import com.helger.commons.id.IHasID;
+import com.helger.commons.io.file.FileHelper;
+import com.helger.commons.io.stream.StreamHelper;
 import com.helger.commons.lang.EnumHelper;
 import com.helger.commons.mime.CMimeType;
 import com.helger.commons.mime.IMimeType;
@@ -45,17 +53,55 @@ public enum EAS4CompressionMode implements IHasID <String>
     @Nonnull
     public InputStream getDecompressStream (@Nonnull final InputStream aIS) throws IOException
     {
-      return new GZIPInputStream (aIS);
+      return new AS4GzipInputStream (aIS);
     }
 
     @Override
     @Nonnull
-    public OutputStream getCompressStream (@Nonnull final OutputStream aOS) throws IOException
+    public OutputStream getCompressStream (@Nonnull final OutputStream aOS, final int nLevel) throws IOException
     {
-      return new GZIPOutputStream (aOS);
+      return new AS4GzipOutputStream (aOS, nLevel);
+    }
+
+    @Override
+    public void compressFile (@Nonnull final File aSrcFile,
+                              @Nonnull final File aDstFile,
+                              final int nLevel) throws IOException
+    {
+      // Uses all cores for large files
+      AS4GzipHelper.compressFile (aSrcFile, aDstFile, nLevel);
     }
   };
 
+  /** The compression level to use if none is configured */
+  public static final int DEFAULT_COMPRESSION_LEVEL = Deflater.DEFAULT_COMPRESSION;
+
+  // Lazily created, so that no thread pool exists unless it is needed
+  private static final class ExecutorHolder
+  {
+    @GuardedBy ("ExecutorHolder.class")
+    private static ExecutorService s_aFileExecutor;
+
+    @Nonnull
+    static synchronized ExecutorService getFileExecutor ()
+    {
+      if (s_aFileExecutor == null)
+        s_aFileExecutor = Executors.newCachedThreadPool (new BasicThreadFactory.Builder ().setNamingPattern ("as4-compress-%d")
+                                                                                          .setDaemon (true)
+                                                                                          .build ());
+      return s_aFileExecutor;
+    }
+
+    static synchronized void shutdown ()
+    {
+      if (s_aFileExecutor != null)
+      {
+        s_aFileExecutor.shutdown ();
+        s_aFileExecutor = null;
+      }
+    }
+  }
+
   private final String m_sID;
   private final IMimeType m_aMimeType;
   private final String m_sFileExtension;
@@ -103,7 +149,119 @@ public enum EAS4CompressionMode implements IHasID <String>
   public abstract InputStream getDecompressStream (@Nonnull InputStream aIS) throws IOException;
 
   @Nonnull
-  public abstract OutputStream getCompressStream (@Nonnull OutputStream aOS) throws IOException;
+  public final OutputStream getCompressStream (@Nonnull final OutputStream aOS) throws IOException
+  {
+    return getCompressStream (aOS, DEFAULT_COMPRESSION_LEVEL);
+  }
+
+  /**
+   * Get a stream that compresses everything written to it.
+   *
+   * @param aOS
+   *        The stream to write the compressed data to. May not be
+   *        <code>null</code>.
+   * @param nLevel
+   *        The compression level from -1 (default) to 9.
+   * @return The compressing stream. Never <code>null</code>.
+   * @throws IOException
+   *         In case of an error
+   */
+  @Nonnull
+  public abstract OutputStream getCompressStream (@Nonnull OutputStream aOS, int nLevel) throws IOException;
+
+  /**
+   * Compress a whole file into another file.
+   *
+   * @param aSrcFile
+   *        The file to compress. May not be <code>null</code>.
+   * @param aDstFile
+   *        The file to write the compressed data to. May not be
+   *        <code>null</code>.
+   * @param nLevel
+   *        The compression level from -1 (default) to 9.
+   * @throws IOException
+   *         In case of a read or write error
+   */
+  public void compressFile (@Nonnull final File aSrcFile,
+                            @Nonnull final File aDstFile,
+                            final int nLevel) throws IOException
+  {
+    try (final InputStream aIS = StreamHelper.getBuffered (FileHelper.getInputStream (aSrcFile));
+        final OutputStream aOS = getCompressStream (StreamHelper.getBuffered (FileHelper.getOutputStream (aDstFile)),
+                                                    nLevel))
+    {
+      StreamHelper.copyInputStreamToOutputStream (aIS, aOS);
+    }
+  }
+
+  /**
+   * Compress a whole file into another file in the background, so that several
+   * files can be compressed concurrently.
+   *
+   * @param aSrcFile
+   *        The file to compress. May not be <code>null</code>.
+   * @param aDstFile
+   *        The file to write the compressed data to. May not be
+   *        <code>null</code>.
+   * @param nLevel
+   *        The compression level from -1 (default) to 9.
+   * @return The future that is done, when the destination file is complete.
+   *         Never <code>null</code>.
+   * @see #compressFile(File, File, int)
+   */
+  @Nonnull
+  public final Future <File> compressFileAsync (@Nonnull final File aSrcFile,
+                                                @Nonnull final File aDstFile,
+                                                final int nLevel)
+  {
+    return compressFileAsync (aSrcFile, aDstFile, nLevel, null);
+  }
+
+  /**
+   * Compress a whole file into another file in the background, so that several
+   * files can be compressed concurrently.
+   *
+   * @param aSrcFile
+   *        The file to compress. May not be <code>null</code>.
+   * @param aDstFile
+   *        The file to write the compressed data to. May not be
+   *        <code>null</code>.
+   * @param nLevel
+   *        The compression level from -1 (default) to 9.
+   * @param aPolicy
+   *        The compression policy whose counters should be updated. May be
+   *        <code>null</code>.
+   * @return The future that is done, when the destination file is complete.
+   *         Never <code>null</code>.
+   */
+  @Nonnull
+  public final Future <File> compressFileAsync (@Nonnull final File aSrcFile,
+                                                @Nonnull final File aDstFile,
+                                                final int nLevel,
+                                                @Nullable final AS4CompressionPolicy aPolicy)
+  {
+    ValueEnforcer.notNull (aSrcFile, "SrcFile");
+    ValueEnforcer.notNull (aDstFile, "DstFile");
+    return ExecutorHolder.getFileExecutor ().submit ( () -> {
+      if (aPolicy != null)
+        aPolicy.compressFile (this, aSrcFile, aDstFile, nLevel);
+      else
+        compressFile (aSrcFile, aDstFile, nLevel);
+      return aDstFile;
+    });
+  }
+
+  /**
+   * Stop the threads used for background compression, including the ones of
+   * {@link AS4GzipHelper}. Running compressions are finished. New thread pools
+   * are created upon the next compression. To be called when the application
+   * is shut down.
+   */
+  public static void shutdownExecutors ()
+  {
+    ExecutorHolder.shutdown ();
+    AS4GzipHelper.shutdown ();
+  }
 
   @Nullable
   public static EAS4CompressionMode getFromMimeTypeStringOrNull (@Nullable final String sMimeType)
@@ -19,26 +19,29 @@ package com.helger.as4.attachment;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
 import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
 import java.util.Enumeration;
 import java.util.UUID;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 
 import javax.activation.DataHandler;
+import javax.annotation.Nonnegative;
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 import javax.mail.Header;
 import javax.mail.MessagingException;
+import javax.mail.internet.InternetHeaders;
 import javax.mail.internet.MimeBodyPart;
 import javax.mail.internet.MimeMultipart;
+import javax.mail.internet.MimeUtility;
 
 import org.apache.wss4j.common.ext.Attachment;
 import org.apache.wss4j.common.util.AttachmentUtils;
 
 import com.helger.as4.CAS4;
 import com.helger.as4.util.AS4ResourceManager;
-import com.helger.commons.CGlobal;
 import com.helger.commons.ValueEnforcer;
 import com.helger.commons.io.file.FileHelper;
 import com.helger.commons.io.file.FilenameHelper;
@@ -61,6 +64,12 @@ import com.helger.mail.datasource.InputStreamDataSource;
  */
 public class WSS4JAttachment extends Attachment
 {
+  /**
+   * Incoming attachments up to this size (in bytes) are kept in memory; bigger
+   * ones are written to a temporary file.
+   */
+  public static final int DEFAULT_IN_MEMORY_THRESHOLD = AS4AttachmentBuffer.DEFAULT_IN_MEMORY_THRESHOLD;
+
   @FunctionalInterface
   public interface IHasAttachmentSourceStream
   {
@@ -151,6 +160,34 @@ public class WSS4JAttachment extends Attachment
     m_aISP = aISP;
   }
 
+  /**
+   * Read the current source stream once into an {@link AS4AttachmentBuffer}
+   * and use the buffer as the new source. Afterwards the content can be read
+   * any number of times without being recomputed, e.g. after decryption or
+   * decompression.
+   *
+   * @param nInMemoryThreshold
+   *        The maximum number of bytes to keep in memory. Must be &ge; 0.
+   * @throws IOException
+   *         In case reading or writing fails
+   */
+  public void bufferSourceStream (@Nonnegative final int nInMemoryThreshold) throws IOException
+  {
+    final AS4AttachmentBuffer aBuffer;
+    try (final InputStream aIS = getSourceStream ())
+    {
+      aBuffer = AS4AttachmentBuffer.create (aIS, nInMemoryThreshold, m_aResMgr);
+    }
+    catch (final IllegalStateException ex)
+    {
+      // Thrown by getSourceStream
+      if (ex.getCause () instanceof IOException)
+        throw (IOException) ex.getCause ();
+      throw ex;
+    }
+    setSourceStreamProvider (aBuffer::getInputStream);
+  }
+
   /**
    * @return The content transfer encoding to be used. Required for MIME
    *         multipart handling only.
@@ -250,6 +287,37 @@ public class WSS4JAttachment extends Attachment
                                        .getToString ();
   }
 
+  @Nonnull
+  private static WSS4JAttachment _createOutgoingFileAttachment (@Nonnull final File aFile,
+                                                                @Nonnull final IMimeType aMimeType,
+                                                                @Nonnull final AS4ResourceManager aResMgr)
+  {
+    ValueEnforcer.notNull (aFile, "File");
+    ValueEnforcer.notNull (aMimeType, "MimeType");
+
+    final WSS4JAttachment ret = new WSS4JAttachment (aResMgr, aMimeType.getAsString ());
+    ret.setUniqueID ();
+
+    // Set after ID and MimeType!
+    ret.addHeader (AttachmentUtils.MIME_HEADER_CONTENT_DESCRIPTION, "Attachment");
+    ret.addHeader (AttachmentUtils.MIME_HEADER_CONTENT_DISPOSITION,
+                   "attachment; filename=\"" + FilenameHelper.getWithoutPath (aFile) + "\"");
+    ret.addHeader (AttachmentUtils.MIME_HEADER_CONTENT_ID, "<attachment=" + ret.getId () + ">");
+    ret.addHeader (AttachmentUtils.MIME_HEADER_CONTENT_TYPE, ret.getMimeType ());
+    return ret;
+  }
+
+  private static boolean _isCompress (@Nonnull final File aFile,
+                                      @Nonnull final IMimeType aMimeType,
+                                      @Nullable final EAS4CompressionMode eCompressionMode,
+                                      @Nullable final AS4CompressionPolicy aCompressionPolicy) throws IOException
+  {
+    if (eCompressionMode == null)
+      return false;
+    // Without a policy, always compress as requested
+    return aCompressionPolicy == null || aCompressionPolicy.isCompressionWorthwhile (aFile, aMimeType);
+  }
+
   /**
    * Constructor. Performs compression internally.
    *
@@ -271,32 +339,87 @@ public class WSS4JAttachment extends Attachment
                                                               @Nullable final EAS4CompressionMode eCompressionMode,
                                                               @Nonnull final AS4ResourceManager aResMgr) throws IOException
   {
-    ValueEnforcer.notNull (aFile, "File");
-    ValueEnforcer.notNull (aMimeType, "MimeType");
+    return createOutgoingFileAttachment (aFile,
+                                         aMimeType,
+                                         eCompressionMode,
+                                         EAS4CompressionMode.DEFAULT_COMPRESSION_LEVEL,
+                                         null,
+                                         aResMgr);
+  }
 
-    final WSS4JAttachment ret = new WSS4JAttachment (aResMgr, aMimeType.getAsString ());
-    ret.setUniqueID ();
+  /**
+   * Constructor. Performs compression internally.
+   *
+   * @param aFile
+   *        Source, uncompressed, unencrypted file.
+   * @param aMimeType
+   *        Original mime type of the file.
+   * @param eCompressionMode
+   *        Optional compression mode to use. May be <code>null</code>.
+   * @param nCompressionLevel
+   *        The compression level from -1 (default) to 9. Only used if a
+   *        compression mode is present.
+   * @param aResMgr
+   *        The resource manager to use. May not be <code>null</code>.
+   * @return The newly created attachment instance. Never <code>null</code>.
+   * @throws IOException
+   *         In case something goes wrong during compression
+   */
+  @Nonnull
+  public static WSS4JAttachment createOutgoingFileAttachment (@Nonnull final File aFile,
+                                                              @Nonnull final IMimeType aMimeType,
+                                                              @Nullable final EAS4CompressionMode eCompressionMode,
+                                                              final int nCompressionLevel,
+                                                              @Nonnull final AS4ResourceManager aResMgr) throws IOException
+  {
+    return createOutgoingFileAttachment (aFile, aMimeType, eCompressionMode, nCompressionLevel, null, aResMgr);
+  }
 
-    // Set after ID and MimeType!
-    ret.addHeader (AttachmentUtils.MIME_HEADER_CONTENT_DESCRIPTION, "Attachment");
-    ret.addHeader (AttachmentUtils.MIME_HEADER_CONTENT_DISPOSITION,
-                   "attachment; filename=\"" + FilenameHelper.getWithoutPath (aFile) + "\"");
-    ret.addHeader (AttachmentUtils.MIME_HEADER_CONTENT_ID, "<attachment=" + ret.getId () + ">");
-    ret.addHeader (AttachmentUtils.MIME_HEADER_CONTENT_TYPE, ret.getMimeType ());
+  /**
+   * Constructor. Performs compression internally.
+   *
+   * @param aFile
+   *        Source, uncompressed, unencrypted file.
+   * @param aMimeType
+   *        Original mime type of the file.
+   * @param eCompressionMode
+   *        Optional compression mode to use. May be <code>null</code>.
+   * @param nCompressionLevel
+   *        The compression level from -1 (default) to 9. Only used if a
+   *        compression mode is present.
+   * @param aCompressionPolicy
+   *        Optional adaptive compression policy. If present, compression is
+   *        only applied if the policy considers it worthwhile. May be
+   *        <code>null</code>.
+   * @param aResMgr
+   *        The resource manager to use. May not be <code>null</code>.
+   * @return The newly created attachment instance. Never <code>null</code>.
+   * @throws IOException
+   *         In case something goes wrong during compression
+   */
+  @Nonnull
+  public static WSS4JAttachment createOutgoingFileAttachment (@Nonnull final File aFile,
+                                                              @Nonnull final IMimeType aMimeType,
+                                                              @Nullable final EAS4CompressionMode eCompressionMode,
+                                                              final int nCompressionLevel,
+                                                              @Nullable final AS4CompressionPolicy aCompressionPolicy,
+                                                              @Nonnull final AS4ResourceManager aResMgr) throws IOException
+  {
+    final WSS4JAttachment ret = _createOutgoingFileAttachment (aFile, aMimeType, aResMgr);
 
     // If the attachment has an compressionMode do it directly, so that
     // encryption later on works on the compressed content
     File aRealFile;
-    if (eCompressionMode != null)
+    if (_isCompress (aFile, aMimeType, eCompressionMode, aCompressionPolicy))
     {
       ret.setCompressionMode (eCompressionMode);
 
       // Create temporary file with compressed content
       aRealFile = aResMgr.createTempFile ();
-      try (final OutputStream aOS = eCompressionMode.getCompressStream (StreamHelper.getBuffered (FileHelper.getOutputStream (aRealFile))))
-      {
-        StreamHelper.copyInputStreamToOutputStream (StreamHelper.getBuffered (FileHelper.getInputStream (aFile)), aOS);
-      }
+      if (aCompressionPolicy != null)
+        aCompressionPolicy.compressFile (eCompressionMode, aFile, aRealFile, nCompressionLevel);
+      else
+        eCompressionMode.compressFile (aFile, aRealFile, nCompressionLevel);
     }
     else
     {
@@ -307,8 +430,126 @@ public class WSS4JAttachment extends Attachment
     return ret;
   }
 
+  /**
+   * Constructor. Compression is performed in the background, so that several
+   * attachments can be compressed concurrently. The first access to the source
+   * stream waits until the compression is finished.<br>
+   * Note: errors during compression are not thrown by this method, but by
+   * {@link #getSourceStream()} as an {@link IllegalStateException} with the
+   * causing {@link IOException}, i.e. usually when the message is built.
+   *
+   * @param aFile
+   *        Source, uncompressed, unencrypted file.
+   * @param aMimeType
+   *        Original mime type of the file.
+   * @param eCompressionMode
+   *        Optional compression mode to use. May be <code>null</code>.
+   * @param nCompressionLevel
+   *        The compression level from -1 (default) to 9. Only used if a
+   *        compression mode is present.
+   * @param aResMgr
+   *        The resource manager to use. May not be <code>null</code>.
+   * @return The newly created attachment instance. Never <code>null</code>.
+   * @throws IOException
+   *         In case the temporary file cannot be created
+   */
+  @Nonnull
+  public static WSS4JAttachment createOutgoingFileAttachmentAsync (@Nonnull final File aFile,
+                                                                   @Nonnull final IMimeType aMimeType,
+                                                                   @Nullable final EAS4CompressionMode eCompressionMode,
+                                                                   final int nCompressionLevel,
+                                                                   @Nonnull final AS4ResourceManager aResMgr) throws IOException
+  {
+    return createOutgoingFileAttachmentAsync (aFile, aMimeType, eCompressionMode, nCompressionLevel, null, aResMgr);
+  }
+
+  /**
+   * Constructor. Compression is performed in the background, so that several
+   * attachments can be compressed concurrently. The first access to the source
+   * stream waits until the compression is finished.<br>
+   * Note: errors during compression are not thrown by this method, but by
+   * {@link #getSourceStream()} as an {@link IllegalStateException} with the
+   * causing {@link IOException}, i.e. usually when the message is built.
+   *
+   * @param aFile
+   *        Source, uncompressed, unencrypted file.
+   * @param aMimeType
+   *        Original mime type of the file.
+   * @param eCompressionMode
+   *        Optional compression mode to use. May be <code>null</code>.
+   * @param nCompressionLevel
+   *        The compression level from -1 (default) to 9. Only used if a
+   *        compression mode is present.
+   * @param aCompressionPolicy
+   *        Optional adaptive compression policy. If present, compression is
+   *        only applied if the policy considers it worthwhile. May be
+   *        <code>null</code>.
+   * @param aResMgr
+   *        The resource manager to use. May not be <code>null</code>.
+   * @return The newly created attachment instance. Never <code>null</code>.
+   * @throws IOException
+   *         In case the temporary file cannot be created
+   */
+  @Nonnull
+  public static WSS4JAttachment createOutgoingFileAttachmentAsync (@Nonnull final File aFile,
+                                                                   @Nonnull final IMimeType aMimeType,
+                                                                   @Nullable final EAS4CompressionMode eCompressionMode,
+                                                                   final int nCompressionLevel,
+                                                                   @Nullable final AS4CompressionPolicy aCompressionPolicy,
+                                                                   @Nonnull final AS4ResourceManager aResMgr) throws IOException
+  {
+    if (!_isCompress (aFile, aMimeType, eCompressionMode, aCompressionPolicy))
+      return createOutgoingFileAttachment (aFile, aMimeType, null, nCompressionLevel, null, aResMgr);
+
+    final WSS4JAttachment ret = _createOutgoingFileAttachment (aFile, aMimeType, aResMgr);
+    ret.setCompressionMode (eCompressionMode);
+
+    final Future <File> aFuture = eCompressionMode.compressFileAsync (aFile,
+                                                                      aResMgr.createTempFile (),
+                                                                      nCompressionLevel,
+                                                                      aCompressionPolicy);
+    ret.setSourceStreamProvider ( () -> {
+      final File aRealFile;
+      try
+      {
+        aRealFile = aFuture.get ();
+      }
+      catch (final ExecutionException ex)
+      {
+        throw new IOException ("Failed to compress " + aFile.getAbsolutePath (), ex.getCause ());
+      }
+      return StreamHelper.getBuffered (FileHelper.getInputStream (aRealFile));
+    });
+    return ret;
+  }
+
+  @Nonnull
+  public static WSS4JAttachment createIncomingFileAttachment (@Nonnull final MimeBodyPart aBodyPart,
+                                                              @Nonnull final AS4ResourceManager aResMgr) throws MessagingException,
+                                                                                                         IOException
+  {
+    return createIncomingFileAttachment (aBodyPart, DEFAULT_IN_MEMORY_THRESHOLD, aResMgr);
+  }
+
+  /**
+   * Create an incoming attachment from a parsed MIME body part. The content is
+   * copied into an {@link AS4AttachmentBuffer}.
+   *
+   * @param aBodyPart
+   *        The MIME body part. May not be <code>null</code>.
+   * @param nInMemoryThreshold
+   *        The maximum number of bytes to keep in memory. Must be &ge; 0.
+   * @param aResMgr
+   *        The resource manager to use. May not be <code>null</code>.
+   * @return The newly created attachment instance. Never <code>null</code>.
+   * @throws MessagingException
+   *         In case the body part cannot be read
+   * @throws IOException
+   *         In case reading or writing fails
+   */
   @Nonnull
   public static WSS4JAttachment createIncomingFileAttachment (@Nonnull final MimeBodyPart aBodyPart,
+                                                              @Nonnegative final int nInMemoryThreshold,
                                                               @Nonnull final AS4ResourceManager aResMgr) throws MessagingException,
                                                                                                          IOException
   {
@@ -326,35 +567,90 @@ public class WSS4JAttachment extends Attachment
       ret.setId (sRealContentID);
     }
 
-    // keep some small parts in memory
-    if (aBodyPart.getSize () < 64 * CGlobal.BYTES_PER_KILOBYTE)
+    // Small parts in memory, big parts in a file
+    final AS4AttachmentBuffer aBuffer;
+    try (final InputStream aIS = aBodyPart.getDataHandler ().getInputStream ())
     {
-      ret.setSourceStreamProvider ( () -> aBodyPart.getDataHandler ().getInputStream ());
-    }
-    else
-    {
-      // Write to temp file
-      final File aTempFile = aResMgr.createTempFile ();
-      try (final OutputStream aOS = StreamHelper.getBuffered (FileHelper.getOutputStream (aTempFile)))
-      {
-        aBodyPart.getDataHandler ().writeTo (aOS);
-      }
-      ret.setSourceStreamProvider ( () -> StreamHelper.getBuffered (FileHelper.getInputStream (aTempFile)));
+      aBuffer = AS4AttachmentBuffer.create (aIS, nInMemoryThreshold, aResMgr);
     }
+    ret.setSourceStreamProvider (aBuffer::getInputStream);
 
+    _addIncomingHeaders (ret, aBodyPart.getAllHeaders ());
+    return ret;
+  }
+
+  private static void _addIncomingHeaders (@Nonnull final WSS4JAttachment aAttachment,
+                                           @Nonnull final Enumeration <?> aEnum)
+  {
     // Convert all headers to attributes
-    final Enumeration <?> aEnum = aBodyPart.getAllHeaders ();
     while (aEnum.hasMoreElements ())
     {
       final Header aHeader = (Header) aEnum.nextElement ();
-      ret.addHeader (aHeader.getName (), aHeader.getValue ());
+      aAttachment.addHeader (aHeader.getName (), aHeader.getValue ());
     }
 
     // These headers are mandatory and overwrite headers from the MIME body part
-    ret.addHeader (AttachmentUtils.MIME_HEADER_CONTENT_DESCRIPTION, "Attachment");
-    ret.addHeader (AttachmentUtils.MIME_HEADER_CONTENT_ID, "<attachment=" + ret.getId () + ">");
-    ret.addHeader (AttachmentUtils.MIME_HEADER_CONTENT_TYPE, ret.getMimeType ());
+    aAttachment.addHeader (AttachmentUtils.MIME_HEADER_CONTENT_DESCRIPTION, "Attachment");
+    aAttachment.addHeader (AttachmentUtils.MIME_HEADER_CONTENT_ID, "<attachment=" + aAttachment.getId () + ">");
+    aAttachment.addHeader (AttachmentUtils.MIME_HEADER_CONTENT_TYPE, aAttachment.getMimeType ());
+  }
+
+  /**
+   * Create an incoming attachment directly from the request stream. The part
+   * body is copied into an {@link AS4AttachmentBuffer}: as long as it is not
+   * larger than the provided threshold it stays in memory. As soon as the
+   * threshold is exceeded, the already read bytes and the rest of the stream
+   * are written to a temporary file, so that the part is never completely held
+   * in memory.
+   *
+   * @param aHeaders
+   *        The parsed MIME part headers. May not be <code>null</code>.
+   * @param aBodyIS
+   *        The raw part body. Is consumed completely. May not be
+   *        <code>null</code>.
+   * @param nInMemoryThreshold
+   *        The maximum number of bytes to keep in memory. Must be &ge; 0.
+   * @param aResMgr
+   *        The resource manager to use. May not be <code>null</code>.
+   * @return The newly created attachment instance. Never <code>null</code>.
+   * @throws MessagingException
+   *         In case the content transfer encoding is unsupported
+   * @throws IOException
+   *         In case reading or writing fails
+   */
+  @Nonnull
+  public static WSS4JAttachment createIncomingFileAttachment (@Nonnull final InternetHeaders aHeaders,
+                                                              @Nonnull final InputStream aBodyIS,
+                                                              @Nonnegative final int nInMemoryThreshold,
+                                                              @Nonnull final AS4ResourceManager aResMgr) throws MessagingException,
+                                                                                                         IOException
+  {
+    ValueEnforcer.notNull (aHeaders, "Headers");
+    ValueEnforcer.notNull (aBodyIS, "BodyIS");
+    ValueEnforcer.isGE0 (nInMemoryThreshold, "InMemoryThreshold");
+    ValueEnforcer.notNull (aResMgr, "ResMgr");
+
+    // Same default as MimeBodyPart.getContentType ()
+    String sContentType = aHeaders.getHeader (CHTTPHeader.CONTENT_TYPE, null);
+    if (sContentType == null)
+      sContentType = "text/plain";
+    final WSS4JAttachment ret = new WSS4JAttachment (aResMgr, sContentType);
+
+    // Reference in header is: <ID>
+    // See chapter 5.2 of the WSS SwA profile
+    ret.setId (StringHelper.trimStartAndEnd (aHeaders.getHeader (AttachmentUtils.MIME_HEADER_CONTENT_ID, null),
+                                             '<',
+                                             '>'));
+
+    // Decode the transfer encoding while reading (no-op for binary)
+    final String sCTE = aHeaders.getHeader (CHTTPHeader.CONTENT_TRANSFER_ENCODING, null);
+    final InputStream aDecodedIS = sCTE == null ? aBodyIS : MimeUtility.decode (aBodyIS, sCTE.trim ());
+
+    // Memory up to the threshold, a temporary file above
+    final AS4AttachmentBuffer aBuffer = AS4AttachmentBuffer.create (aDecodedIS, nInMemoryThreshold, aResMgr);
+    ret.setSourceStreamProvider (aBuffer::getInputStream);
 
+    _addIncomingHeaders (ret, aHeaders.getAllHeaders ());
     return ret;
   }
 }
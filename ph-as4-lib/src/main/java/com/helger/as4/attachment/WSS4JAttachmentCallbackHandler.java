@@ -17,7 +17,12 @@
 package com.helger.as4.attachment;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 
+import javax.annotation.Nonnegative;
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 import javax.security.auth.callback.Callback;
@@ -31,6 +36,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.helger.as4.util.AS4ResourceManager;
+import com.helger.commons.CGlobal;
 import com.helger.commons.ValueEnforcer;
 import com.helger.commons.annotation.ReturnsMutableCopy;
 import com.helger.commons.collection.ext.CommonsArrayList;
@@ -51,14 +57,69 @@ public class WSS4JAttachmentCallbackHandler implements CallbackHandler
 
   private final ICommonsOrderedMap <String, WSS4JAttachment> m_aAttachmentMap = new CommonsLinkedHashMap <> ();
   private final AS4ResourceManager m_aResMgr;
+  private final int m_nInMemoryThreshold;
+  private final ICommonsList <Future <AS4AttachmentBuffer>> m_aBufferFutures = new CommonsArrayList <> ();
 
   public WSS4JAttachmentCallbackHandler (@Nullable final Iterable <WSS4JAttachment> aAttachments,
                                          @Nonnull final AS4ResourceManager aResMgr)
+  {
+    this (aAttachments, aResMgr, CGlobal.ILLEGAL_UINT);
+  }
+
+  /**
+   * Constructor
+   *
+   * @param aAttachments
+   *        The attachments to be provided to WSS4J. May be <code>null</code>.
+   * @param aResMgr
+   *        The resource manager to use. May not be <code>null</code>.
+   * @param nInMemoryThreshold
+   *        If &ge; 0, the resulting attachments (e.g. decrypted) are buffered
+   *        concurrently as soon as WSS4J provides them, using the passed
+   *        in-memory threshold. If &lt; 0 they are not buffered.
+   */
+  public WSS4JAttachmentCallbackHandler (@Nullable final Iterable <WSS4JAttachment> aAttachments,
+                                         @Nonnull final AS4ResourceManager aResMgr,
+                                         final int nInMemoryThreshold)
   {
     if (aAttachments != null)
       for (final WSS4JAttachment aAttachment : aAttachments)
         m_aAttachmentMap.put (aAttachment.getId (), aAttachment);
     m_aResMgr = ValueEnforcer.notNull (aResMgr, "ResMgr");
+    m_nInMemoryThreshold = nInMemoryThreshold;
+  }
+
+  @Nonnull
+  private static AS4AttachmentBuffer _getBuffer (@Nonnull final Future <AS4AttachmentBuffer> aFuture) throws IOException
+  {
+    try
+    {
+      return aFuture.get ();
+    }
+    catch (final InterruptedException ex)
+    {
+      Thread.currentThread ().interrupt ();
+      throw new InterruptedIOException ("Interrupted while buffering attachment");
+    }
+    catch (final ExecutionException ex)
+    {
+      if (ex.getCause () instanceof IOException)
+        throw (IOException) ex.getCause ();
+      throw new IOException ("Failed to buffer attachment", ex.getCause ());
+    }
+  }
+
+  @Nonnull
+  private Future <AS4AttachmentBuffer> _bufferAsync (@Nonnull final Attachment aAttachment,
+                                                     @Nonnegative final int nInMemoryThreshold)
+  {
+    // E.g. decryption happens while reading, concurrently for all attachments
+    return AS4AttachmentDigester.getExecutor ().submit ( () -> {
+      try (final InputStream aIS = aAttachment.getSourceStream ())
+      {
+        return AS4AttachmentBuffer.create (aIS, nInMemoryThreshold, m_aResMgr);
+      }
+    });
   }
 
   /**
@@ -110,7 +171,14 @@ public class WSS4JAttachmentCallbackHandler implements CallbackHandler
           final WSS4JAttachment aRealAttachment = new WSS4JAttachment (m_aResMgr, aResponseAttachment.getMimeType ());
           aRealAttachment.setId (sAttachmentID);
           aRealAttachment.addHeaders (aResponseAttachment.getHeaders ());
-          aRealAttachment.setSourceStreamProvider ( () -> aResponseAttachment.getSourceStream ());
+          if (m_nInMemoryThreshold >= 0)
+          {
+            final Future <AS4AttachmentBuffer> aFuture = _bufferAsync (aResponseAttachment, m_nInMemoryThreshold);
+            m_aBufferFutures.add (aFuture);
+            aRealAttachment.setSourceStreamProvider ( () -> _getBuffer (aFuture).getInputStream ());
+          }
+          else
+            aRealAttachment.setSourceStreamProvider ( () -> aResponseAttachment.getSourceStream ());
 
           m_aAttachmentMap.put (sAttachmentID, aRealAttachment);
         }
@@ -121,6 +189,19 @@ public class WSS4JAttachmentCallbackHandler implements CallbackHandler
     }
   }
 
+  /**
+   * Wait until all resulting attachments are buffered. Only has an effect if
+   * an in-memory threshold &ge; 0 was passed in the constructor.
+   *
+   * @throws IOException
+   *         If buffering of at least one attachment failed
+   */
+  public void waitForBufferedAttachments () throws IOException
+  {
+    for (final Future <AS4AttachmentBuffer> aFuture : m_aBufferFutures)
+      _getBuffer (aFuture);
+  }
+
   @Nonnull
   @ReturnsMutableCopy
   public ICommonsList <WSS4JAttachment> getAllResponseAttachments ()
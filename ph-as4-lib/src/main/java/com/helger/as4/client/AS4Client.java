@@ -16,34 +16,43 @@
  */
 package com.helger.as4.client;
 
+import java.io.Closeable;
 import java.io.File;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CompletableFuture;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 import javax.annotation.concurrent.NotThreadSafe;
 import javax.mail.internet.MimeMessage;
+import javax.xml.transform.TransformerException;
 
 import org.apache.http.HttpEntity;
 import org.apache.http.client.ResponseHandler;
 import org.apache.http.client.methods.HttpPost;
-import org.apache.http.entity.StringEntity;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.EntityTemplate;
 import org.w3c.dom.Document;
 import org.w3c.dom.Node;
 
 import com.helger.as4.CAS4;
+import com.helger.as4.attachment.AS4CompressionPolicy;
 import com.helger.as4.attachment.EAS4CompressionMode;
 import com.helger.as4.attachment.WSS4JAttachment;
 import com.helger.as4.crypto.AS4CryptoFactory;
 import com.helger.as4.crypto.ECryptoAlgorithmCrypt;
 import com.helger.as4.crypto.ECryptoAlgorithmSign;
 import com.helger.as4.crypto.ECryptoAlgorithmSignDigest;
+import com.helger.as4.messaging.domain.AS4PullRequestMessage;
 import com.helger.as4.messaging.domain.AS4UserMessage;
+import com.helger.as4.messaging.domain.CreatePullRequestMessage;
 import com.helger.as4.messaging.domain.CreateUserMessage;
 import com.helger.as4.messaging.domain.MessageHelperMethods;
 import com.helger.as4.messaging.encrypt.EncryptionCreator;
 import com.helger.as4.messaging.mime.MimeMessageCreator;
 import com.helger.as4.messaging.sign.SignedMessageCreator;
+import com.helger.as4.model.pmode.PModePayloadService;
 import com.helger.as4.soap.ESOAPVersion;
 import com.helger.as4.util.AS4ResourceManager;
 import com.helger.as4.util.AS4XMLHelper;
@@ -53,14 +62,14 @@ import com.helger.as4lib.ebms3header.Ebms3MessageProperties;
 import com.helger.as4lib.ebms3header.Ebms3PartyInfo;
 import com.helger.as4lib.ebms3header.Ebms3PayloadInfo;
 import com.helger.as4lib.ebms3header.Ebms3Property;
+import com.helger.as4lib.ebms3header.Ebms3SignalMessage;
 import com.helger.commons.ValueEnforcer;
 import com.helger.commons.annotation.Nonempty;
 import com.helger.commons.annotation.OverrideOnDemand;
 import com.helger.commons.annotation.ReturnsMutableCopy;
 import com.helger.commons.collection.ext.CommonsArrayList;
-import com.helger.commons.collection.ext.CommonsLinkedHashMap;
 import com.helger.commons.collection.ext.ICommonsList;
-import com.helger.commons.collection.ext.ICommonsMap;
+import com.helger.commons.io.stream.StreamHelper;
 import com.helger.commons.mime.IMimeType;
 import com.helger.commons.string.StringHelper;
 import com.helger.httpclient.HttpClientFactory;
@@ -81,10 +90,13 @@ public class AS4Client
 {
   private final AS4ResourceManager m_aResMgr;
   private IHttpClientProvider m_aHTTPClientProvider = new AS4HttpClientFactory ();
+  private AS4HttpClientPool m_aHttpClientPool;
 
   private ESOAPVersion m_eSOAPVersion = ESOAPVersion.AS4_DEFAULT;
   private Node m_aPayload;
   private final ICommonsList <WSS4JAttachment> m_aAttachments = new CommonsArrayList <> ();
+  private int m_nCompressionLevel = EAS4CompressionMode.DEFAULT_COMPRESSION_LEVEL;
+  private AS4CompressionPolicy m_aCompressionPolicy;
 
   // Document related attributes
   private final ICommonsList <Ebms3Property> m_aEbms3Properties = new CommonsArrayList <> ();
@@ -109,6 +121,7 @@ public class AS4Client
   private String m_sToPartyID;
 
   // Keystore attributes
+  private AS4CryptoFactory m_aCryptoFactory;
   private File m_aKeyStoreFile;
   private String m_sKeyStoreType = "jks";
   private String m_sKeyStoreAlias;
@@ -165,6 +178,34 @@ public class AS4Client
     return this;
   }
 
+  /**
+   * @return The shared HTTP client pool used in
+   *         {@link #sendMessage(String, ResponseHandler)}. May be
+   *         <code>null</code>.
+   */
+  @Nullable
+  public AS4HttpClientPool getHttpClientPool ()
+  {
+    return m_aHttpClientPool;
+  }
+
+  /**
+   * Set a shared HTTP client pool to be used. If a pool is set, the HTTP
+   * client provider is not used and connections are reused between messages.
+   * The pool must be started and its lifecycle is not managed by this client.
+   *
+   * @param aHttpClientPool
+   *        The HTTP client pool to be used. May be <code>null</code> to create
+   *        a new HTTP client from the HTTP client provider for every message.
+   * @return this for chaining
+   */
+  @Nonnull
+  public AS4Client setHttpClientPool (@Nullable final AS4HttpClientPool aHttpClientPool)
+  {
+    m_aHttpClientPool = aHttpClientPool;
+    return this;
+  }
+
   private void _checkMandatoryAttributes ()
   {
     if (StringHelper.hasNoText (m_sAction))
@@ -215,6 +256,30 @@ public class AS4Client
       throw new IllegalStateException ("Key store password is configured.");
   }
 
+  @Nonnull
+  private AS4CryptoFactory _getCryptoFactory ()
+  {
+    if (m_aCryptoFactory != null)
+      return m_aCryptoFactory;
+
+    _checkKeystoreAttributes ();
+    return AS4CryptoFactoryCache.getCryptoFactory (m_aKeyStoreFile,
+                                                   m_sKeyStoreType,
+                                                   m_sKeyStoreAlias,
+                                                   m_sKeyStorePassword);
+  }
+
+  /**
+   * @return A new random message ID including the message ID prefix, if
+   *         present. Never <code>null</code>.
+   */
+  @Nonnull
+  @Nonempty
+  public String createMessageID ()
+  {
+    return StringHelper.getConcatenatedOnDemand (m_sMessageIDPrefix, '@', MessageHelperMethods.createRandomMessageID ());
+  }
+
   /**
    * Build the AS4 message to be sent. It uses all the attributes of this class
    * to build the final message. Compression, signing and encryption happens in
@@ -227,17 +292,32 @@ public class AS4Client
   @Nonnull
   public HttpEntity buildMessage () throws Exception
   {
+    // Create a new message ID for each build!
+    return buildMessage (createMessageID ());
+  }
+
+  /**
+   * Build the AS4 message to be sent with the passed message ID. Use this
+   * method if the message ID must be known to the caller, e.g. to correlate
+   * the receipt.
+   *
+   * @param sMessageID
+   *        The message ID to use. May neither be <code>null</code> nor empty.
+   * @return The HTTP entity to be sent. Never <code>null</code>.
+   * @throws Exception
+   *         in case something goes wrong
+   * @see #createMessageID()
+   */
+  @Nonnull
+  public HttpEntity buildMessage (@Nonnull @Nonempty final String sMessageID) throws Exception
+  {
+    ValueEnforcer.notEmpty (sMessageID, "MessageID");
     _checkMandatoryAttributes ();
 
     final boolean bSign = m_eCryptoAlgorithmSign != null && m_eCryptoAlgorithmSignDigest != null;
     final boolean bEncrypt = m_eCryptoAlgorithmCrypt != null;
     final boolean bAttachmentsPresent = m_aAttachments.isNotEmpty ();
 
-    // Create a new message ID for each build!
-    final String sMessageID = StringHelper.getConcatenatedOnDemand (m_sMessageIDPrefix,
-                                                                    '@',
-                                                                    MessageHelperMethods.createRandomMessageID ());
-
     final Ebms3MessageInfo aEbms3MessageInfo = MessageHelperMethods.createEbms3MessageInfo (sMessageID, null);
     final Ebms3PayloadInfo aEbms3PayloadInfo = CreateUserMessage.createEbms3PayloadInfo (m_aPayload, m_aAttachments);
     final Ebms3CollaborationInfo aEbms3CollaborationInfo = CreateUserMessage.createEbms3CollaborationInfo (m_sAction,
@@ -269,15 +349,7 @@ public class AS4Client
     MimeMessage aMimeMsg = null;
     if (bSign || bEncrypt)
     {
-      _checkKeystoreAttributes ();
-
-      final ICommonsMap <String, String> aCryptoProps = new CommonsLinkedHashMap <> ();
-      aCryptoProps.put ("org.apache.wss4j.crypto.provider", "org.apache.wss4j.common.crypto.Merlin");
-      aCryptoProps.put ("org.apache.wss4j.crypto.merlin.keystore.file", m_aKeyStoreFile.getPath ());
-      aCryptoProps.put ("org.apache.wss4j.crypto.merlin.keystore.type", m_sKeyStoreType);
-      aCryptoProps.put ("org.apache.wss4j.crypto.merlin.keystore.password", m_sKeyStorePassword);
-      aCryptoProps.put ("org.apache.wss4j.crypto.merlin.keystore.alias", m_sKeyStoreAlias);
-      final AS4CryptoFactory aCryptoFactory = new AS4CryptoFactory (aCryptoProps);
+      final AS4CryptoFactory aCryptoFactory = _getCryptoFactory ();
 
       // 2a. sign
       if (bSign)
@@ -296,7 +368,6 @@ public class AS4Client
       // 2b. encrypt
       if (bEncrypt)
       {
-        _checkKeystoreAttributes ();
         final EncryptionCreator aEncCreator = new EncryptionCreator (aCryptoFactory);
         // MustUnderstand always set to true
         final boolean bMustUnderstand = true;
@@ -325,11 +396,81 @@ public class AS4Client
 
     if (aMimeMsg != null)
     {
-      return new HttpMimeMessageEntity (aMimeMsg);
+      // Spooled upon first access to send it with a fixed length
+      return new HttpSpooledMimeMessageEntity (aMimeMsg, m_aResMgr);
     }
 
-    // Wrap SOAP XML
-    return new StringEntity (AS4XMLHelper.serializeXML (aDoc));
+    return _createXMLEntity (aDoc);
+  }
+
+  @Nonnull
+  private HttpEntity _createXMLEntity (@Nonnull final Document aDoc)
+  {
+    // Wrap SOAP XML - serialized directly to the connection when sending
+    final EntityTemplate ret = new EntityTemplate (aOS -> {
+      try
+      {
+        AS4XMLHelper.serializeXML (aDoc, aOS);
+      }
+      catch (final TransformerException ex)
+      {
+        throw new IOException ("Failed to serialize SOAP document", ex);
+      }
+    });
+    ret.setContentType (ContentType.create (m_eSOAPVersion.getMimeType ().getAsString (), StandardCharsets.UTF_8)
+                                   .toString ());
+    return ret;
+  }
+
+  /**
+   * Build a pull request signal message for the passed MPC. It is signed, if
+   * the signing algorithms are set. Only the SOAP version, the key store and
+   * the signing attributes of this client are used. This method only reads
+   * the attributes and may therefore be invoked concurrently, as long as the
+   * client is not modified.
+   *
+   * @param sMessageID
+   *        The message ID of the pull request. May neither be
+   *        <code>null</code> nor empty.
+   * @param sMPC
+   *        The MPC to pull from. May neither be <code>null</code> nor empty.
+   * @param aBundledSignals
+   *        Optional signal messages (e.g. receipts) to be bundled with the pull
+   *        request. May be <code>null</code>.
+   * @return The HTTP entity to be sent. Never <code>null</code>.
+   * @throws Exception
+   *         in case something goes wrong
+   */
+  @Nonnull
+  public HttpEntity buildPullRequestMessage (@Nonnull @Nonempty final String sMessageID,
+                                             @Nonnull @Nonempty final String sMPC,
+                                             @Nullable final Iterable <? extends Ebms3SignalMessage> aBundledSignals) throws Exception
+  {
+    ValueEnforcer.notEmpty (sMessageID, "MessageID");
+    ValueEnforcer.notEmpty (sMPC, "MPC");
+
+    final AS4PullRequestMessage aPullRequest = CreatePullRequestMessage.createPullRequestMessage (m_eSOAPVersion,
+                                                                                                 MessageHelperMethods.createEbms3MessageInfo (sMessageID,
+                                                                                                                                              null),
+                                                                                                 sMPC)
+                                                                        .setMustUnderstand (true);
+    if (aBundledSignals != null)
+      for (final Ebms3SignalMessage aSignal : aBundledSignals)
+        aPullRequest.addBundledSignalMessage (aSignal);
+
+    Document aDoc = aPullRequest.getAsSOAPDocument (null);
+    if (m_eCryptoAlgorithmSign != null && m_eCryptoAlgorithmSignDigest != null)
+    {
+      final boolean bMustUnderstand = true;
+      aDoc = new SignedMessageCreator (_getCryptoFactory ()).createSignedMessage (aDoc,
+                                                                                 m_eSOAPVersion,
+                                                                                 null,
+                                                                                 m_aResMgr,
+                                                                                 bMustUnderstand,
+                                                                                 m_eCryptoAlgorithmSign,
+                                                                                 m_eCryptoAlgorithmSignDigest);
+    }
+    return _createXMLEntity (aDoc);
   }
 
   /**
@@ -350,27 +491,93 @@ public class AS4Client
     ValueEnforcer.notEmpty (sURL, "URL");
     ValueEnforcer.notNull (aHttpEntity, "HttpEntity");
 
-    try (final HttpClientManager aClient = new HttpClientManager (m_aHTTPClientProvider))
-    {
-      final HttpPost aPost = new HttpPost (sURL);
-      if (aHttpEntity instanceof HttpMimeMessageEntity)
-        MessageHelperMethods.moveMIMEHeadersToHTTPHeader (((HttpMimeMessageEntity) aHttpEntity).getMimeMessage (),
-                                                          aPost);
-      aPost.setEntity (aHttpEntity);
+    final HttpPost aPost = new HttpPost (sURL);
+    if (aHttpEntity instanceof HttpMimeMessageEntity)
+      MessageHelperMethods.moveMIMEHeadersToHTTPHeader (((HttpMimeMessageEntity) aHttpEntity).getMimeMessage (),
+                                                        aPost);
+    aPost.setEntity (aHttpEntity);
+
+    // Overridable method
+    customizeHttpPost (aPost);
 
-      // Overridable method
-      customizeHttpPost (aPost);
+    final AS4HttpClientPool aHttpClientPool = m_aHttpClientPool;
+    if (aHttpClientPool != null)
+      return aHttpClientPool.execute (aPost, aResponseHandler);
 
+    try (final HttpClientManager aClient = new HttpClientManager (m_aHTTPClientProvider))
+    {
       return aClient.execute (aPost, aResponseHandler);
     }
   }
 
+  /**
+   * Release the resources of a message created by {@link #buildMessage()}
+   * after it was sent. Spooled MIME messages are deleted from disk.
+   *
+   * @param aHttpEntity
+   *        The message to release. May be <code>null</code>.
+   */
+  public static void releaseMessage (@Nullable final HttpEntity aHttpEntity)
+  {
+    if (aHttpEntity instanceof Closeable)
+      StreamHelper.close ((Closeable) aHttpEntity);
+  }
+
   @Nullable
   public <T> T sendMessage (@Nonnull final String sURL,
                             @Nonnull final ResponseHandler <? extends T> aResponseHandler) throws Exception
   {
     final HttpEntity aRequestEntity = buildMessage ();
-    return internalSendMessage (sURL, aRequestEntity, aResponseHandler);
+    try
+    {
+      return internalSendMessage (sURL, aRequestEntity, aResponseHandler);
+    }
+    finally
+    {
+      releaseMessage (aRequestEntity);
+    }
+  }
+
+  /**
+   * Build and send the message in the background. The message is built on the
+   * build pool of the passed sender and sent with blocking I/O on its send
+   * pool, so this client may not be modified until the returned future is
+   * completed.<br>
+   * Note: this is not backed by a non-blocking HTTP transport. Each request in
+   * flight occupies a thread of the send pool until the response was handled,
+   * and the number of concurrent requests is bounded by the sender.
+   *
+   * @param sURL
+   *        The URL to send to. May neither be <code>null</code> nor empty.
+   * @param aResponseHandler
+   *        The response handler to use. May not be <code>null</code>.
+   * @param aSender
+   *        The sender to use. May not be <code>null</code>.
+   * @return The future with the result of the response handler. Never
+   *         <code>null</code>.
+   * @param <T>
+   *        response type
+   */
+  @Nonnull
+  public <T> CompletableFuture <T> sendMessageInBackground (@Nonnull final String sURL,
+                                                            @Nonnull final ResponseHandler <? extends T> aResponseHandler,
+                                                            @Nonnull final AS4ThrottledSender aSender)
+  {
+    ValueEnforcer.notEmpty (sURL, "URL");
+    ValueEnforcer.notNull (aResponseHandler, "ResponseHandler");
+    ValueEnforcer.notNull (aSender, "Sender");
+
+    return aSender.build (this::buildMessage)
+                  .thenCompose (aRequestEntity -> aSender.send (sURL, () -> {
+                    try
+                    {
+                      return internalSendMessage (sURL, aRequestEntity, aResponseHandler);
+                    }
+                    finally
+                    {
+                      releaseMessage (aRequestEntity);
+                    }
+                  }));
   }
 
   @Nullable
@@ -427,6 +634,58 @@ public class AS4Client
     return m_aAttachments.getClone ();
   }
 
+  /**
+   * @return The compression level used for compressed file attachments. From
+   *         -1 (default) to 9.
+   */
+  public int getCompressionLevel ()
+  {
+    return m_nCompressionLevel;
+  }
+
+  /**
+   * Set the compression level to be used for file attachments added
+   * afterwards. When adding attachments with a PMode payload service, the
+   * level of the payload service is used instead.
+   *
+   * @param nCompressionLevel
+   *        The compression level from -1 (default) to 9.
+   */
+  public void setCompressionLevel (final int nCompressionLevel)
+  {
+    ValueEnforcer.isBetweenInclusive (nCompressionLevel,
+                                      "CompressionLevel",
+                                      EAS4CompressionMode.DEFAULT_COMPRESSION_LEVEL,
+                                      9);
+    m_nCompressionLevel = nCompressionLevel;
+  }
+
+  /**
+   * @return The adaptive compression policy used for file attachments. May be
+   *         <code>null</code>.
+   */
+  @Nullable
+  public AS4CompressionPolicy getCompressionPolicy ()
+  {
+    return m_aCompressionPolicy;
+  }
+
+  /**
+   * Set an adaptive compression policy for file attachments added afterwards.
+   * With a policy, attachments that would not benefit from compression (e.g.
+   * JPEG images) are sent uncompressed, even if a compression mode is
+   * requested. The same policy may be shared between clients to aggregate the
+   * counters.
+   *
+   * @param aCompressionPolicy
+   *        The policy to use. May be <code>null</code> to always compress as
+   *        requested.
+   */
+  public void setCompressionPolicy (@Nullable final AS4CompressionPolicy aCompressionPolicy)
+  {
+    m_aCompressionPolicy = aCompressionPolicy;
+  }
+
   /**
    * Adds a file as attachment to the message.
    *
@@ -454,7 +713,8 @@ public class AS4Client
    *        MIME type of the given file. May not be <code>null</code>.
    * @param eAS4CompressionMode
    *        which compression type should be used to compress the attachment.
-   *        May be <code>null</code>.
+   *        May be <code>null</code>. If a compression policy is set, it may
+   *        decide to not compress the attachment.
    * @return this for chaining
    * @throws IOException
    *         if something goes wrong in the adding process or the compression
@@ -467,9 +727,77 @@ public class AS4Client
     return addAttachment (WSS4JAttachment.createOutgoingFileAttachment (aAttachment,
                                                                         aMimeType,
                                                                         eAS4CompressionMode,
+                                                                        m_nCompressionLevel,
+                                                                        m_aCompressionPolicy,
+                                                                        m_aResMgr));
+  }
+
+  /**
+   * Adds a file as attachment to the message, using the compression mode and
+   * compression level of the passed PMode payload service.
+   *
+   * @param aAttachment
+   *        Attachment to be added. May not be <code>null</code>.
+   * @param aMimeType
+   *        MIME type of the given file. May not be <code>null</code>.
+   * @param aPayloadService
+   *        The payload service of the PMode to use. May be <code>null</code>
+   *        in which case the attachment is not compressed.
+   * @return this for chaining
+   * @throws IOException
+   *         if something goes wrong in the adding process or the compression
+   */
+  @Nonnull
+  public AS4Client addAttachmentWithPayloadService (@Nonnull final File aAttachment,
+                                                    @Nonnull final IMimeType aMimeType,
+                                                    @Nullable final PModePayloadService aPayloadService) throws IOException
+  {
+    if (aPayloadService == null || aPayloadService.getCompressionMode () == null)
+      return addAttachment (aAttachment, aMimeType, null);
+
+    return addAttachment (WSS4JAttachment.createOutgoingFileAttachment (aAttachment,
+                                                                        aMimeType,
+                                                                        aPayloadService.getCompressionMode (),
+                                                                        aPayloadService.getCompressionLevel (),
+                                                                        m_aCompressionPolicy,
                                                                         m_aResMgr));
   }
 
+  /**
+   * Adds a file as attachment to the message. Other than
+   * {@link #addAttachment(File, IMimeType, EAS4CompressionMode)} the
+   * compression runs in the background, so that several attachments are
+   * compressed concurrently.<br>
+   * Note: compression errors are not thrown by this method but when the
+   * message is built, as an {@link IllegalStateException} with the causing
+   * {@link IOException}.
+   *
+   * @param aAttachment
+   *        Attachment to be added. May not be <code>null</code>.
+   * @param aMimeType
+   *        MIME type of the given file. May not be <code>null</code>.
+   * @param eAS4CompressionMode
+   *        which compression type should be used to compress the attachment.
+   *        May be <code>null</code>. If a compression policy is set, it may
+   *        decide to not compress the attachment.
+   * @return this for chaining
+   * @throws IOException
+   *         if something goes wrong in the adding process or the compression
+   *         cannot be started
+   */
+  @Nonnull
+  public AS4Client addAttachmentCompressedInBackground (@Nonnull final File aAttachment,
+                                                        @Nonnull final IMimeType aMimeType,
+                                                        @Nullable final EAS4CompressionMode eAS4CompressionMode) throws IOException
+  {
+    return addAttachment (WSS4JAttachment.createOutgoingFileAttachmentAsync (aAttachment,
+                                                                             aMimeType,
+                                                                             eAS4CompressionMode,
+                                                                             m_nCompressionLevel,
+                                                                             m_aCompressionPolicy,
+                                                                             m_aResMgr));
+  }
+
   /**
    * Adds a file as attachment to the message. The caller of the method must
    * ensure the attachment is already compressed (if desired)!
@@ -717,6 +1045,28 @@ public class AS4Client
     m_sToPartyID = sToPartyID;
   }
 
+  @Nullable
+  public AS4CryptoFactory getCryptoFactory ()
+  {
+    return m_aCryptoFactory;
+  }
+
+  /**
+   * Set a prebuilt crypto factory to be used for signing and encryption. If
+   * set, the keystore attributes of this client are ignored.
+   *
+   * @param aCryptoFactory
+   *        The crypto factory to use. May be <code>null</code> to use the
+   *        keystore attributes.
+   * @return this for chaining
+   */
+  @Nonnull
+  public AS4Client setCryptoFactory (@Nullable final AS4CryptoFactory aCryptoFactory)
+  {
+    m_aCryptoFactory = aCryptoFactory;
+    return this;
+  }
+
   public File getKeyStoreFile ()
   {
     return m_aKeyStoreFile;
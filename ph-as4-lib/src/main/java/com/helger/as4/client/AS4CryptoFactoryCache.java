@@ -0,0 +1,189 @@
+/**
+ * Copyright (C) 2015-2017 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.as4.client;
+
+import java.io.File;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.Immutable;
+import javax.annotation.concurrent.ThreadSafe;
+
+import com.helger.as4.crypto.AS4CryptoFactory;
+import com.helger.as4.crypto.AS4CryptoRegistry;
+import com.helger.commons.ValueEnforcer;
+import com.helger.commons.collection.ext.CommonsLinkedHashMap;
+import com.helger.commons.collection.ext.ICommonsMap;
+import com.helger.commons.hashcode.HashCodeGenerator;
+
+/**
+ * Shared cache of {@link AS4CryptoFactory} objects for keystore files, so that
+ * an {@link AS4Client} doesn't need to load the keystore for every message.
+ * If the last modification date of a keystore file changes, the keystore is
+ * reloaded.
+ *
+ * @author Philip Helger
+ */
+@ThreadSafe
+public final class AS4CryptoFactoryCache
+{
+  @Immutable
+  private static final class CacheKey
+  {
+    private final String m_sPath;
+    private final String m_sType;
+    private final String m_sAlias;
+    private final String m_sPassword;
+    private final int m_nHashCode;
+
+    CacheKey (@Nonnull final String sPath,
+              @Nonnull final String sType,
+              @Nonnull final String sAlias,
+              @Nonnull final String sPassword)
+    {
+      m_sPath = sPath;
+      m_sType = sType;
+      m_sAlias = sAlias;
+      m_sPassword = sPassword;
+      m_nHashCode = new HashCodeGenerator (this).append (sPath)
+                                                .append (sType)
+                                                .append (sAlias)
+                                                .append (sPassword)
+                                                .getHashCode ();
+    }
+
+    @Override
+    public boolean equals (final Object o)
+    {
+      if (o == this)
+        return true;
+      if (o == null || !getClass ().equals (o.getClass ()))
+        return false;
+      final CacheKey rhs = (CacheKey) o;
+      return m_sPath.equals (rhs.m_sPath) &&
+             m_sType.equals (rhs.m_sType) &&
+             m_sAlias.equals (rhs.m_sAlias) &&
+             m_sPassword.equals (rhs.m_sPassword);
+    }
+
+    @Override
+    public int hashCode ()
+    {
+      return m_nHashCode;
+    }
+  }
+
+  @Immutable
+  private static final class CacheValue
+  {
+    private final long m_nLastModified;
+    private final AS4CryptoFactory m_aCryptoFactory;
+
+    CacheValue (final long nLastModified, @Nonnull final AS4CryptoFactory aCryptoFactory)
+    {
+      m_nLastModified = nLastModified;
+      m_aCryptoFactory = aCryptoFactory;
+    }
+  }
+
+  private static final Map <CacheKey, CacheValue> s_aMap = new ConcurrentHashMap <> ();
+
+  private AS4CryptoFactoryCache ()
+  {}
+
+  /**
+   * Create the crypto properties for a Merlin keystore.
+   *
+   * @param aKeyStoreFile
+   *        Key store file. May not be <code>null</code>.
+   * @param sKeyStoreType
+   *        Key store type. May not be <code>null</code>.
+   * @param sKeyStoreAlias
+   *        Alias of the key to use. May not be <code>null</code>.
+   * @param sKeyStorePassword
+   *        Password of the key store and the key. May not be
+   *        <code>null</code>.
+   * @return The crypto properties map. Never <code>null</code>.
+   */
+  @Nonnull
+  public static ICommonsMap <String, String> createCryptoProperties (@Nonnull final File aKeyStoreFile,
+                                                                     @Nonnull final String sKeyStoreType,
+                                                                     @Nonnull final String sKeyStoreAlias,
+                                                                     @Nonnull final String sKeyStorePassword)
+  {
+    final ICommonsMap <String, String> aCryptoProps = new CommonsLinkedHashMap <> ();
+    aCryptoProps.put ("org.apache.wss4j.crypto.provider", "org.apache.wss4j.common.crypto.Merlin");
+    aCryptoProps.put ("org.apache.wss4j.crypto.merlin.keystore.file", aKeyStoreFile.getPath ());
+    aCryptoProps.put ("org.apache.wss4j.crypto.merlin.keystore.type", sKeyStoreType);
+    aCryptoProps.put ("org.apache.wss4j.crypto.merlin.keystore.password", sKeyStorePassword);
+    aCryptoProps.put ("org.apache.wss4j.crypto.merlin.keystore.alias", sKeyStoreAlias);
+    return aCryptoProps;
+  }
+
+  /**
+   * Get the crypto factory for the passed keystore, creating it if necessary.
+   *
+   * @param aKeyStoreFile
+   *        Key store file. May not be <code>null</code>.
+   * @param sKeyStoreType
+   *        Key store type. May not be <code>null</code>.
+   * @param sKeyStoreAlias
+   *        Alias of the key to use. May not be <code>null</code>.
+   * @param sKeyStorePassword
+   *        Password of the key store and the key. May not be
+   *        <code>null</code>.
+   * @return The crypto factory. Never <code>null</code>.
+   */
+  @Nonnull
+  public static AS4CryptoFactory getCryptoFactory (@Nonnull final File aKeyStoreFile,
+                                                   @Nonnull final String sKeyStoreType,
+                                                   @Nonnull final String sKeyStoreAlias,
+                                                   @Nonnull final String sKeyStorePassword)
+  {
+    ValueEnforcer.notNull (aKeyStoreFile, "KeyStoreFile");
+    ValueEnforcer.notNull (sKeyStoreType, "KeyStoreType");
+    ValueEnforcer.notNull (sKeyStoreAlias, "KeyStoreAlias");
+    ValueEnforcer.notNull (sKeyStorePassword, "KeyStorePassword");
+
+    final CacheKey aKey = new CacheKey (aKeyStoreFile.getPath (), sKeyStoreType, sKeyStoreAlias, sKeyStorePassword);
+    final long nLastModified = aKeyStoreFile.lastModified ();
+    final CacheValue aValue = s_aMap.get (aKey);
+    if (aValue != null && aValue.m_nLastModified == nLastModified)
+      return aValue.m_aCryptoFactory;
+
+    final AS4CryptoFactory aCryptoFactory = new AS4CryptoFactory (createCryptoProperties (aKeyStoreFile,
+                                                                                         sKeyStoreType,
+                                                                                         sKeyStoreAlias,
+                                                                                         sKeyStorePassword));
+    if (aValue != null)
+    {
+      // The keystore file changed - the registry still has the old content
+      AS4CryptoRegistry.reload (aCryptoFactory.getCryptoProperties ());
+    }
+    s_aMap.put (aKey, new CacheValue (nLastModified, aCryptoFactory));
+    return aCryptoFactory;
+  }
+
+  /**
+   * Remove all cached crypto factories.
+   */
+  public static void clearCache ()
+  {
+    s_aMap.clear ();
+  }
+}
@@ -0,0 +1,390 @@
+/**
+ * Copyright (C) 2015-2017 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.as4.client;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+import javax.net.ssl.SSLContext;
+
+import org.apache.http.HttpHost;
+import org.apache.http.client.ResponseHandler;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.config.Registry;
+import org.apache.http.config.RegistryBuilder;
+import org.apache.http.conn.UnsupportedSchemeException;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.conn.socket.ConnectionSocketFactory;
+import org.apache.http.conn.ssl.SSLConnectionSocketFactory;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.impl.conn.DefaultSchemePortResolver;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.pool.PoolStats;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.helger.commons.ValueEnforcer;
+import com.helger.commons.collection.ext.CommonsLinkedHashMap;
+import com.helger.commons.collection.ext.ICommonsOrderedMap;
+import com.helger.commons.concurrent.SimpleReadWriteLock;
+import com.helger.commons.io.stream.StreamHelper;
+import com.helger.commons.string.ToStringGenerator;
+
+/**
+ * A long-living HTTP client with a pooled connection manager that can be
+ * shared between many {@link AS4Client} instances and threads. Connections
+ * (including their TLS sessions) are kept alive and reused between messages,
+ * and idle connections are closed in the background.<br>
+ * The pool must be configured before {@link #start()} is called, and must be
+ * closed with {@link #close()} when it is no longer needed.
+ *
+ * @author Philip Helger
+ */
+@ThreadSafe
+public class AS4HttpClientPool implements Closeable
+{
+  public static final int DEFAULT_MAX_TOTAL = 100;
+  public static final int DEFAULT_MAX_PER_ROUTE = 20;
+  public static final Duration DEFAULT_IDLE_TIMEOUT = Duration.ofSeconds (30);
+  public static final Duration DEFAULT_VALIDATE_AFTER_INACTIVITY = Duration.ofSeconds (2);
+
+  private static final Logger s_aLogger = LoggerFactory.getLogger (AS4HttpClientPool.class);
+
+  private final SimpleReadWriteLock m_aRWLock = new SimpleReadWriteLock ();
+  private final AS4HttpClientFactory m_aHttpClientFactory;
+  @GuardedBy ("m_aRWLock")
+  private int m_nMaxTotal = DEFAULT_MAX_TOTAL;
+  @GuardedBy ("m_aRWLock")
+  private int m_nMaxPerRoute = DEFAULT_MAX_PER_ROUTE;
+  @GuardedBy ("m_aRWLock")
+  private final ICommonsOrderedMap <HttpRoute, Integer> m_aMaxPerRoute = new CommonsLinkedHashMap <> ();
+  @GuardedBy ("m_aRWLock")
+  private Duration m_aIdleTimeout = DEFAULT_IDLE_TIMEOUT;
+  @GuardedBy ("m_aRWLock")
+  private SSLContext m_aSSLContext;
+  @GuardedBy ("m_aRWLock")
+  private PoolingHttpClientConnectionManager m_aConnMgr;
+  @GuardedBy ("m_aRWLock")
+  private CloseableHttpClient m_aHttpClient;
+  @GuardedBy ("m_aRWLock")
+  private boolean m_bClosed = false;
+
+  public AS4HttpClientPool ()
+  {
+    this (new AS4HttpClientFactory ());
+  }
+
+  /**
+   * Constructor
+   *
+   * @param aHttpClientFactory
+   *        The factory to create the HTTP client builder. The connection
+   *        manager is always replaced by the pooled one. May not be
+   *        <code>null</code>.
+   */
+  public AS4HttpClientPool (@Nonnull final AS4HttpClientFactory aHttpClientFactory)
+  {
+    m_aHttpClientFactory = ValueEnforcer.notNull (aHttpClientFactory, "HttpClientFactory");
+  }
+
+  @GuardedBy ("m_aRWLock")
+  private void _checkNotStarted ()
+  {
+    if (m_aHttpClient != null || m_bClosed)
+      throw new IllegalStateException ("The pool can only be configured before it is started");
+  }
+
+  /**
+   * Create the route that the HTTP client uses for a direct connection to the
+   * passed host. This resembles the default route planner of HttpClient: the
+   * default port of the scheme is used if none is specified, and HTTPS routes
+   * are secure.
+   *
+   * @param aHost
+   *        The target host. May not be <code>null</code>.
+   * @return The route to the host and never <code>null</code>.
+   * @throws IllegalArgumentException
+   *         if the scheme of the host is not supported
+   */
+  @Nonnull
+  public static HttpRoute createRoute (@Nonnull final HttpHost aHost)
+  {
+    ValueEnforcer.notNull (aHost, "Host");
+    HttpHost aTarget = aHost;
+    if (aTarget.getPort () <= 0)
+      try
+      {
+        aTarget = new HttpHost (aHost.getHostName (),
+                                DefaultSchemePortResolver.INSTANCE.resolve (aHost),
+                                aHost.getSchemeName ());
+      }
+      catch (final UnsupportedSchemeException ex)
+      {
+        throw new IllegalArgumentException ("Unsupported scheme of host " + aHost, ex);
+      }
+    final boolean bSecure = aTarget.getSchemeName ().equalsIgnoreCase ("https");
+    return new HttpRoute (aTarget, null, bSecure);
+  }
+
+  /**
+   * @param nMaxTotal
+   *        The maximum number of open connections. Must be &gt; 0.
+   * @return this for chaining
+   */
+  @Nonnull
+  public AS4HttpClientPool setMaxTotal (@Nonnegative final int nMaxTotal)
+  {
+    ValueEnforcer.isGT0 (nMaxTotal, "MaxTotal");
+    m_aRWLock.writeLocked ( () -> {
+      _checkNotStarted ();
+      m_nMaxTotal = nMaxTotal;
+    });
+    return this;
+  }
+
+  /**
+   * @param nMaxPerRoute
+   *        The default maximum number of open connections per route. Must be
+   *        &gt; 0.
+   * @return this for chaining
+   */
+  @Nonnull
+  public AS4HttpClientPool setMaxPerRoute (@Nonnegative final int nMaxPerRoute)
+  {
+    ValueEnforcer.isGT0 (nMaxPerRoute, "MaxPerRoute");
+    m_aRWLock.writeLocked ( () -> {
+      _checkNotStarted ();
+      m_nMaxPerRoute = nMaxPerRoute;
+    });
+    return this;
+  }
+
+  /**
+   * @param aHost
+   *        The target host. May not be <code>null</code>.
+   * @param nMaxPerRoute
+   *        The maximum number of open connections to this host. Must be &gt;
+   *        0.
+   * @return this for chaining
+   */
+  @Nonnull
+  public AS4HttpClientPool setMaxPerRoute (@Nonnull final HttpHost aHost, @Nonnegative final int nMaxPerRoute)
+  {
+    ValueEnforcer.isGT0 (nMaxPerRoute, "MaxPerRoute");
+    final HttpRoute aRoute = createRoute (aHost);
+    m_aRWLock.writeLocked ( () -> {
+      _checkNotStarted ();
+      m_aMaxPerRoute.put (aRoute, Integer.valueOf (nMaxPerRoute));
+    });
+    return this;
+  }
+
+  /**
+   * @param aIdleTimeout
+   *        The time after which idle connections are closed. May not be
+   *        <code>null</code>.
+   * @return this for chaining
+   */
+  @Nonnull
+  public AS4HttpClientPool setIdleTimeout (@Nonnull final Duration aIdleTimeout)
+  {
+    ValueEnforcer.notNull (aIdleTimeout, "IdleTimeout");
+    ValueEnforcer.isFalse (aIdleTimeout.isNegative () || aIdleTimeout.isZero (), "IdleTimeout must be positive");
+    m_aRWLock.writeLocked ( () -> {
+      _checkNotStarted ();
+      m_aIdleTimeout = aIdleTimeout;
+    });
+    return this;
+  }
+
+  /**
+   * @param aSSLContext
+   *        The SSL context to use for HTTPS connections. May be
+   *        <code>null</code> to use the SSL settings of the HTTP client
+   *        factory.
+   * @return this for chaining
+   */
+  @Nonnull
+  public AS4HttpClientPool setSSLContext (@Nullable final SSLContext aSSLContext)
+  {
+    m_aRWLock.writeLocked ( () -> {
+      _checkNotStarted ();
+      m_aSSLContext = aSSLContext;
+    });
+    return this;
+  }
+
+  @Nonnull
+  private Registry <ConnectionSocketFactory> _createSocketFactoryRegistry ()
+  {
+    // The socket factories are shared by all connections, so that TLS
+    // sessions are cached and resumed
+    final Registry <ConnectionSocketFactory> aFactoryRegistry = m_aHttpClientFactory.createConnectionSocketFactoryRegistry ();
+    if (m_aSSLContext == null)
+      return aFactoryRegistry;
+
+    return RegistryBuilder.<ConnectionSocketFactory> create ()
+                          .register ("http", aFactoryRegistry.lookup ("http"))
+                          .register ("https", new SSLConnectionSocketFactory (m_aSSLContext))
+                          .build ();
+  }
+
+  /**
+   * Create the pooled connection manager and the HTTP client. Calling this
+   * method on a started pool has no effect.
+   *
+   * @return this for chaining
+   * @throws IllegalStateException
+   *         if the pool was already closed
+   */
+  @Nonnull
+  public AS4HttpClientPool start ()
+  {
+    m_aRWLock.writeLocked ( () -> {
+      if (m_bClosed)
+        throw new IllegalStateException ("The pool was already closed");
+      if (m_aHttpClient != null)
+        return;
+
+      final PoolingHttpClientConnectionManager aConnMgr = new PoolingHttpClientConnectionManager (_createSocketFactoryRegistry ());
+      aConnMgr.setMaxTotal (m_nMaxTotal);
+      aConnMgr.setDefaultMaxPerRoute (m_nMaxPerRoute);
+      for (final Map.Entry <HttpRoute, Integer> aEntry : m_aMaxPerRoute.entrySet ())
+        aConnMgr.setMaxPerRoute (aEntry.getKey (), aEntry.getValue ().intValue ());
+      aConnMgr.setValidateAfterInactivity ((int) DEFAULT_VALIDATE_AFTER_INACTIVITY.toMillis ());
+
+      final HttpClientBuilder aBuilder = m_aHttpClientFactory.createHttpClientBuilder ();
+      aBuilder.setConnectionManager (aConnMgr);
+      // Background thread closing idle and expired connections
+      aBuilder.evictExpiredConnections ();
+      aBuilder.evictIdleConnections (m_aIdleTimeout.toMillis (), TimeUnit.MILLISECONDS);
+      // Connections must be reusable independent of the calling thread
+      aBuilder.disableConnectionState ();
+
+      m_aConnMgr = aConnMgr;
+      m_aHttpClient = aBuilder.build ();
+      s_aLogger.info ("Started AS4 HTTP client pool " + toString ());
+    });
+    return this;
+  }
+
+  /**
+   * @return <code>true</code> if the pool is started and not yet closed.
+   */
+  public boolean isStarted ()
+  {
+    return m_aRWLock.readLocked ( () -> m_aHttpClient != null);
+  }
+
+  /**
+   * Close all connections. The pool cannot be restarted afterwards.
+   */
+  public void close ()
+  {
+    final CloseableHttpClient aHttpClient = m_aRWLock.writeLocked ( () -> {
+      final CloseableHttpClient ret = m_aHttpClient;
+      m_aHttpClient = null;
+      m_aConnMgr = null;
+      m_bClosed = true;
+      return ret;
+    });
+    if (aHttpClient != null)
+    {
+      // Also shuts down the connection manager and the idle connection
+      // evictor
+      StreamHelper.close (aHttpClient);
+      s_aLogger.info ("Closed AS4 HTTP client pool");
+    }
+  }
+
+  @Nonnull
+  private CloseableHttpClient _getHttpClient ()
+  {
+    final CloseableHttpClient ret = m_aRWLock.readLocked ( () -> m_aHttpClient);
+    if (ret == null)
+      throw new IllegalStateException ("The pool is not started");
+    return ret;
+  }
+
+  /**
+   * Execute the passed request using a pooled connection.
+   *
+   * @param aRequest
+   *        The request to execute. May not be <code>null</code>.
+   * @param aResponseHandler
+   *        The response handler to use. May not be <code>null</code>.
+   * @return The result of the response handler.
+   * @param <T>
+   *        response type
+   * @throws IOException
+   *         in case of a problem or the connection was aborted
+   * @throws IllegalStateException
+   *         if the pool is not started
+   */
+  @Nullable
+  public <T> T execute (@Nonnull final HttpUriRequest aRequest,
+                        @Nonnull final ResponseHandler <? extends T> aResponseHandler) throws IOException
+  {
+    ValueEnforcer.notNull (aRequest, "Request");
+    ValueEnforcer.notNull (aResponseHandler, "ResponseHandler");
+    return _getHttpClient ().execute (aRequest, aResponseHandler);
+  }
+
+  /**
+   * @return The total statistics of the pool. May be <code>null</code> if the
+   *         pool is not started.
+   */
+  @Nullable
+  public PoolStats getTotalStats ()
+  {
+    return m_aRWLock.readLocked ( () -> m_aConnMgr == null ? null : m_aConnMgr.getTotalStats ());
+  }
+
+  /**
+   * @param aHost
+   *        The target host. May not be <code>null</code>.
+   * @return The statistics of the route to the passed host. May be
+   *         <code>null</code> if the pool is not started.
+   */
+  @Nullable
+  public PoolStats getStats (@Nonnull final HttpHost aHost)
+  {
+    final HttpRoute aRoute = createRoute (aHost);
+    return m_aRWLock.readLocked ( () -> m_aConnMgr == null ? null : m_aConnMgr.getStats (aRoute));
+  }
+
+  @Override
+  public String toString ()
+  {
+    return m_aRWLock.readLocked ( () -> new ToStringGenerator (this).append ("MaxTotal", m_nMaxTotal)
+                                                                    .append ("MaxPerRoute", m_nMaxPerRoute)
+                                                                    .append ("MaxPerSpecificRoute", m_aMaxPerRoute)
+                                                                    .append ("IdleTimeout", m_aIdleTimeout)
+                                                                    .append ("Started", m_aHttpClient != null)
+                                                                    .append ("Closed", m_bClosed)
+                                                                    .getToString ());
+  }
+}
@@ -0,0 +1,463 @@
+/**
+ * Copyright (C) 2015-2017 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.as4.client;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
+import javax.mail.internet.MimeMultipart;
+import javax.mail.util.ByteArrayDataSource;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.StatusLine;
+import org.apache.http.client.HttpResponseException;
+import org.apache.http.client.ResponseHandler;
+import org.apache.http.util.EntityUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.w3c.dom.Document;
+import org.w3c.dom.Node;
+
+import com.helger.as4.CAS4;
+import com.helger.as4.error.EEbmsError;
+import com.helger.as4.marshaller.AS4Marshaller;
+import com.helger.as4.marshaller.EEbms3DocumentType;
+import com.helger.as4.messaging.domain.CreateReceiptMessage;
+import com.helger.as4.messaging.domain.MessageHelperMethods;
+import com.helger.as4lib.ebms3header.Ebms3Error;
+import com.helger.as4lib.ebms3header.Ebms3Messaging;
+import com.helger.as4lib.ebms3header.Ebms3SignalMessage;
+import com.helger.as4lib.ebms3header.Ebms3UserMessage;
+import com.helger.commons.ValueEnforcer;
+import com.helger.commons.annotation.Nonempty;
+import com.helger.commons.collection.ArrayHelper;
+import com.helger.commons.collection.ext.CommonsArrayList;
+import com.helger.commons.collection.ext.CommonsLinkedHashMap;
+import com.helger.commons.collection.ext.ICommonsList;
+import com.helger.commons.collection.ext.ICommonsOrderedMap;
+import com.helger.commons.concurrent.BasicThreadFactory;
+import com.helger.commons.concurrent.ManagedExecutorService;
+import com.helger.commons.io.stream.NonBlockingByteArrayInputStream;
+import com.helger.xml.serialize.read.DOMReader;
+
+/**
+ * Client side of the Pull MEP. Each configured MPC of a remote MSH is polled by
+ * a configurable number of parallel consumers. Pulled user messages are handed
+ * to an {@link IAS4PulledMessageHandler} and the receipts of successfully
+ * handled messages are bundled with the next pull request for the same MPC.
+ * <p>
+ * The polling interval of each MPC adapts to the traffic: as long as messages
+ * are returned, the next pull request is sent immediately. Each empty MPC
+ * response (or error) doubles the interval, up to the configured maximum.
+ * <p>
+ * The passed {@link AS4Client} provides the SOAP version, the key store and the
+ * signing algorithms. It may not be modified while the consumer is running.
+ *
+ * @author Philip Helger
+ */
+@ThreadSafe
+public class AS4PullConsumer implements Closeable
+{
+  public static final long DEFAULT_MIN_POLL_INTERVAL_MS = 100;
+  public static final long DEFAULT_MAX_POLL_INTERVAL_MS = 60_000;
+  public static final int DEFAULT_CONSUMERS_PER_MPC = 1;
+
+  private static final Logger s_aLogger = LoggerFactory.getLogger (AS4PullConsumer.class);
+
+  /**
+   * The state shared by all consumers of a single MPC.
+   */
+  private static final class MPCState
+  {
+    private final String m_sMPC;
+    private final int m_nConsumers;
+    private final AtomicLong m_aIntervalMS;
+    private final ConcurrentLinkedQueue <Ebms3SignalMessage> m_aPendingReceipts = new ConcurrentLinkedQueue <> ();
+    private final AtomicLong m_aPulledCount = new AtomicLong (0);
+
+    MPCState (@Nonnull @Nonempty final String sMPC, @Nonnegative final int nConsumers, final long nIntervalMS)
+    {
+      m_sMPC = sMPC;
+      m_nConsumers = nConsumers;
+      m_aIntervalMS = new AtomicLong (nIntervalMS);
+    }
+  }
+
+  private final AS4Client m_aClient;
+  private final String m_sURL;
+  private final IAS4PulledMessageHandler m_aHandler;
+  private final ICommonsOrderedMap <String, MPCState> m_aMPCs = new CommonsLinkedHashMap <> ();
+  private long m_nMinPollIntervalMS = DEFAULT_MIN_POLL_INTERVAL_MS;
+  private long m_nMaxPollIntervalMS = DEFAULT_MAX_POLL_INTERVAL_MS;
+  private ScheduledThreadPoolExecutor m_aExecutor;
+  private volatile boolean m_bClosed = false;
+
+  /**
+   * Constructor. Add the MPCs to poll and call {@link #start()} afterwards.
+   *
+   * @param aClient
+   *        The client providing the configuration to build the pull requests
+   *        and the HTTP settings. May not be <code>null</code>.
+   * @param sURL
+   *        The URL of the remote MSH. May neither be <code>null</code> nor
+   *        empty.
+   * @param aHandler
+   *        The handler for pulled messages. May not be <code>null</code>.
+   */
+  public AS4PullConsumer (@Nonnull final AS4Client aClient,
+                          @Nonnull @Nonempty final String sURL,
+                          @Nonnull final IAS4PulledMessageHandler aHandler)
+  {
+    ValueEnforcer.notNull (aClient, "Client");
+    ValueEnforcer.notEmpty (sURL, "URL");
+    ValueEnforcer.notNull (aHandler, "Handler");
+    m_aClient = aClient;
+    m_sURL = sURL;
+    m_aHandler = aHandler;
+  }
+
+  private void _checkNotStarted ()
+  {
+    if (m_aExecutor != null)
+      throw new IllegalStateException ("The pull consumer was already started");
+  }
+
+  /**
+   * Set the poll interval range.
+   *
+   * @param nMinPollIntervalMS
+   *        The interval after the first empty response. Must be &gt; 0.
+   * @param nMaxPollIntervalMS
+   *        The maximum interval for idle MPCs. Must be &ge; the minimum.
+   * @return this for chaining
+   */
+  @Nonnull
+  public synchronized AS4PullConsumer setPollInterval (@Nonnegative final long nMinPollIntervalMS,
+                                                       @Nonnegative final long nMaxPollIntervalMS)
+  {
+    ValueEnforcer.isGT0 (nMinPollIntervalMS, "MinPollIntervalMS");
+    ValueEnforcer.isTrue (nMaxPollIntervalMS >= nMinPollIntervalMS, "MaxPollIntervalMS must be >= MinPollIntervalMS");
+    _checkNotStarted ();
+    m_nMinPollIntervalMS = nMinPollIntervalMS;
+    m_nMaxPollIntervalMS = nMaxPollIntervalMS;
+    return this;
+  }
+
+  /**
+   * Add an MPC to be polled.
+   *
+   * @param sMPC
+   *        The MPC ID. May neither be <code>null</code> nor empty.
+   * @param nConsumers
+   *        The number of parallel consumers for this MPC. Must be &gt; 0.
+   * @return this for chaining
+   */
+  @Nonnull
+  public synchronized AS4PullConsumer addMPC (@Nonnull @Nonempty final String sMPC,
+                                              @Nonnegative final int nConsumers)
+  {
+    ValueEnforcer.notEmpty (sMPC, "MPC");
+    ValueEnforcer.isGT0 (nConsumers, "Consumers");
+    _checkNotStarted ();
+    if (m_aMPCs.containsKey (sMPC))
+      throw new IllegalArgumentException ("The MPC '" + sMPC + "' was already added");
+    m_aMPCs.put (sMPC, new MPCState (sMPC, nConsumers, m_nMinPollIntervalMS));
+    return this;
+  }
+
+  /**
+   * Start all consumers.
+   */
+  public synchronized void start ()
+  {
+    _checkNotStarted ();
+    if (m_aMPCs.isEmpty ())
+      throw new IllegalStateException ("No MPC was added");
+
+    int nTotalConsumers = 0;
+    for (final MPCState aState : m_aMPCs.values ())
+      nTotalConsumers += aState.m_nConsumers;
+
+    m_aExecutor = new ScheduledThreadPoolExecutor (nTotalConsumers,
+                                                   new BasicThreadFactory.Builder ().setNamingPattern ("as4-pull-%d")
+                                                                                    .setDaemon (true)
+                                                                                    .build ());
+    m_aExecutor.setExecuteExistingDelayedTasksAfterShutdownPolicy (false);
+    for (final MPCState aState : m_aMPCs.values ())
+      for (int i = 0; i < aState.m_nConsumers; ++i)
+        _schedule (aState, 0);
+  }
+
+  public boolean isStarted ()
+  {
+    return m_aExecutor != null;
+  }
+
+  /**
+   * Stop all consumers and wait for the running pull requests to finish.
+   * Receipts that were not yet bundled with a pull request are discarded, so
+   * the remote MSH may offer these messages again.
+   */
+  public void close ()
+  {
+    m_bClosed = true;
+    final ScheduledThreadPoolExecutor aExecutor;
+    synchronized (this)
+    {
+      aExecutor = m_aExecutor;
+    }
+    if (aExecutor != null)
+      ManagedExecutorService.shutdownAndWaitUntilAllTasksAreFinished (aExecutor);
+  }
+
+  /**
+   * @param sMPC
+   *        The MPC ID to query. May be <code>null</code>.
+   * @return The number of user messages pulled from the MPC so far.
+   */
+  @Nonnegative
+  public long getPulledCount (@Nullable final String sMPC)
+  {
+    final MPCState aState;
+    synchronized (this)
+    {
+      aState = m_aMPCs.get (sMPC);
+    }
+    return aState == null ? 0 : aState.m_aPulledCount.get ();
+  }
+
+  /**
+   * @param sMPC
+   *        The MPC ID to query. May be <code>null</code>.
+   * @return The current poll interval of the MPC in milliseconds or 0 if the
+   *         MPC is unknown.
+   */
+  @Nonnegative
+  public long getCurrentPollIntervalMS (@Nullable final String sMPC)
+  {
+    final MPCState aState;
+    synchronized (this)
+    {
+      aState = m_aMPCs.get (sMPC);
+    }
+    return aState == null ? 0 : aState.m_aIntervalMS.get ();
+  }
+
+  /**
+   * Get the next poll interval after an empty (or failed) pull.
+   *
+   * @param nCurrentIntervalMS
+   *        The current interval.
+   * @param nMinIntervalMS
+   *        The minimum interval.
+   * @param nMaxIntervalMS
+   *        The maximum interval.
+   * @return The doubled interval, bounded by minimum and maximum.
+   */
+  static long getIncreasedIntervalMS (final long nCurrentIntervalMS,
+                                      final long nMinIntervalMS,
+                                      final long nMaxIntervalMS)
+  {
+    if (nCurrentIntervalMS >= nMaxIntervalMS / 2)
+      return nMaxIntervalMS;
+    return Math.max (nMinIntervalMS, nCurrentIntervalMS * 2);
+  }
+
+  private void _schedule (@Nonnull final MPCState aState, final long nDelayMS)
+  {
+    if (m_bClosed)
+      return;
+    try
+    {
+      m_aExecutor.schedule ( () -> _pull (aState), nDelayMS, TimeUnit.MILLISECONDS);
+    }
+    catch (final RejectedExecutionException ex)
+    {
+      // Shutting down
+    }
+  }
+
+  private void _onIdle (@Nonnull final MPCState aState)
+  {
+    final long nIntervalMS = aState.m_aIntervalMS.updateAndGet (x -> getIncreasedIntervalMS (x,
+                                                                                             m_nMinPollIntervalMS,
+                                                                                             m_nMaxPollIntervalMS));
+    _schedule (aState, nIntervalMS);
+  }
+
+  private void _pull (@Nonnull final MPCState aState)
+  {
+    if (m_bClosed)
+      return;
+
+    // Bundle all receipts available so far
+    final ICommonsList <Ebms3SignalMessage> aReceipts = new CommonsArrayList <> ();
+    Ebms3SignalMessage aReceipt;
+    while ((aReceipt = aState.m_aPendingReceipts.poll ()) != null)
+      aReceipts.add (aReceipt);
+
+    AS4PulledMessage aPulledMessage;
+    try
+    {
+      final HttpEntity aRequestEntity = m_aClient.buildPullRequestMessage (m_aClient.createMessageID (),
+                                                                           aState.m_sMPC,
+                                                                           aReceipts);
+      try
+      {
+        aPulledMessage = m_aClient.internalSendMessage (m_sURL,
+                                                        aRequestEntity,
+                                                        _createResponseHandler (aState.m_sMPC));
+      }
+      finally
+      {
+        AS4Client.releaseMessage (aRequestEntity);
+      }
+    }
+    catch (final Exception ex)
+    {
+      // Try the receipts again with the next pull request
+      aState.m_aPendingReceipts.addAll (aReceipts);
+      s_aLogger.warn ("Failed to pull from MPC '" + aState.m_sMPC + "' at " + m_sURL, ex);
+      _onIdle (aState);
+      return;
+    }
+
+    if (aPulledMessage == null)
+    {
+      if (s_aLogger.isDebugEnabled ())
+        s_aLogger.debug ("MPC '" + aState.m_sMPC + "' is empty");
+      _onIdle (aState);
+      return;
+    }
+
+    // Messages are flowing - pull again immediately
+    aState.m_aPulledCount.incrementAndGet ();
+    aState.m_aIntervalMS.set (m_nMinPollIntervalMS);
+    _schedule (aState, 0);
+
+    try
+    {
+      if (m_aHandler.handlePulledMessage (aPulledMessage).isSuccess ())
+        aState.m_aPendingReceipts.add (CreateReceiptMessage.createReceiptMessage (m_aClient.getSOAPVersion (),
+                                                                                  MessageHelperMethods.createEbms3MessageInfo (),
+                                                                                  aPulledMessage.getUserMessage (),
+                                                                                  aPulledMessage.getSOAPDocument (),
+                                                                                  true)
+                                                                 .getEbms3SignalMessage ());
+      else
+        s_aLogger.warn ("Handler failed to process pulled message '" + aPulledMessage.getMessageID () + "'");
+    }
+    catch (final Exception ex)
+    {
+      s_aLogger.error ("Error handling pulled message '" + aPulledMessage.getMessageID () + "'", ex);
+    }
+  }
+
+  @Nonnull
+  private static ResponseHandler <AS4PulledMessage> _createResponseHandler (@Nonnull final String sMPC)
+  {
+    return aHttpResponse -> {
+      final StatusLine aStatusLine = aHttpResponse.getStatusLine ();
+      final HttpEntity aEntity = aHttpResponse.getEntity ();
+      if (aStatusLine.getStatusCode () >= 300)
+      {
+        EntityUtils.consume (aEntity);
+        throw new HttpResponseException (aStatusLine.getStatusCode (), aStatusLine.getReasonPhrase ());
+      }
+      if (aEntity == null)
+        return null;
+      final byte [] aBody = EntityUtils.toByteArray (aEntity);
+      final String sContentType = aEntity.getContentType () == null ? null : aEntity.getContentType ().getValue ();
+      return parsePullResponse (sMPC, aBody, sContentType);
+    };
+  }
+
+  /**
+   * Parse the response of a pull request.
+   *
+   * @param sMPC
+   *        The MPC that was pulled from. May neither be <code>null</code> nor
+   *        empty.
+   * @param aBody
+   *        The HTTP response body. May be <code>null</code>.
+   * @param sContentType
+   *        The HTTP content type. May be <code>null</code>.
+   * @return <code>null</code> if the MPC is empty.
+   * @throws IOException
+   *         If the response is neither a user message nor an empty MPC
+   *         error.
+   */
+  @Nullable
+  static AS4PulledMessage parsePullResponse (@Nonnull @Nonempty final String sMPC,
+                                             @Nullable final byte [] aBody,
+                                             @Nullable final String sContentType) throws IOException
+  {
+    if (ArrayHelper.isEmpty (aBody))
+      return null;
+
+    Document aSOAPDoc;
+    MimeMultipart aMimeMultipart = null;
+    try
+    {
+      if (sContentType != null && sContentType.trim ().toLowerCase (Locale.US).startsWith ("multipart/"))
+      {
+        aMimeMultipart = new MimeMultipart (new ByteArrayDataSource (aBody, sContentType));
+        aSOAPDoc = DOMReader.readXMLDOM (aMimeMultipart.getBodyPart (0).getInputStream ());
+      }
+      else
+        aSOAPDoc = DOMReader.readXMLDOM (new NonBlockingByteArrayInputStream (aBody));
+    }
+    catch (final Exception ex)
+    {
+      throw new IOException ("Failed to parse the pull response", ex);
+    }
+    if (aSOAPDoc == null)
+      throw new IOException ("The pull response is not XML");
+
+    final Node aMessagingNode = aSOAPDoc.getElementsByTagNameNS (CAS4.EBMS_NS, "Messaging").item (0);
+    final Ebms3Messaging aMessaging = aMessagingNode == null ? null
+                                                             : AS4Marshaller.read (EEbms3DocumentType.MESSAGING,
+                                                                                   Ebms3Messaging.class,
+                                                                                   aMessagingNode,
+                                                                                   null);
+    if (aMessaging == null)
+      throw new IOException ("The pull response contains no valid ebMS Messaging header");
+
+    final Ebms3UserMessage aUserMessage = aMessaging.getUserMessageAtIndex (0);
+    if (aUserMessage != null)
+      return new AS4PulledMessage (sMPC, aUserMessage, aSOAPDoc, aMimeMultipart);
+
+    final Ebms3SignalMessage aSignal = aMessaging.getSignalMessageAtIndex (0);
+    final Ebms3Error aError = aSignal == null ? null : aSignal.getErrorAtIndex (0);
+    if (aError != null &&
+        EEbmsError.EBMS_EMPTY_MESSAGE_PARTITION_CHANNEL.getErrorCode ().equals (aError.getErrorCode ()))
+      return null;
+
+    throw new IOException ("The pull response contains no user message" +
+                           (aError == null ? "" : " but the ebMS error " + aError.getErrorCode ()));
+  }
+}
@@ -0,0 +1,122 @@
+/**
+ * Copyright (C) 2015-2017 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.as4.client;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.Immutable;
+import javax.mail.internet.MimeMultipart;
+
+import org.w3c.dom.Document;
+
+import com.helger.as4lib.ebms3header.Ebms3UserMessage;
+import com.helger.commons.ValueEnforcer;
+import com.helger.commons.annotation.Nonempty;
+import com.helger.commons.string.ToStringGenerator;
+
+/**
+ * A user message that was returned by a remote MSH upon a pull request. The
+ * message is handed out as received - signature verification and decryption
+ * are up to the {@link IAS4PulledMessageHandler}.
+ *
+ * @author Philip Helger
+ */
+@Immutable
+public final class AS4PulledMessage
+{
+  private final String m_sMPC;
+  private final Ebms3UserMessage m_aUserMessage;
+  private final Document m_aSOAPDocument;
+  private final MimeMultipart m_aMimeMultipart;
+
+  public AS4PulledMessage (@Nonnull @Nonempty final String sMPC,
+                           @Nonnull final Ebms3UserMessage aUserMessage,
+                           @Nonnull final Document aSOAPDocument,
+                           @Nullable final MimeMultipart aMimeMultipart)
+  {
+    ValueEnforcer.notEmpty (sMPC, "MPC");
+    ValueEnforcer.notNull (aUserMessage, "UserMessage");
+    ValueEnforcer.notNull (aSOAPDocument, "SOAPDocument");
+    m_sMPC = sMPC;
+    m_aUserMessage = aUserMessage;
+    m_aSOAPDocument = aSOAPDocument;
+    m_aMimeMultipart = aMimeMultipart;
+  }
+
+  /**
+   * @return The MPC the message was pulled from. Neither <code>null</code> nor
+   *         empty.
+   */
+  @Nonnull
+  @Nonempty
+  public String getMPC ()
+  {
+    return m_sMPC;
+  }
+
+  /**
+   * @return The ebMS user message header. Never <code>null</code>.
+   */
+  @Nonnull
+  public Ebms3UserMessage getUserMessage ()
+  {
+    return m_aUserMessage;
+  }
+
+  /**
+   * @return The AS4 message ID of the pulled user message.
+   */
+  @Nullable
+  public String getMessageID ()
+  {
+    return m_aUserMessage.getMessageInfo () == null ? null : m_aUserMessage.getMessageInfo ().getMessageId ();
+  }
+
+  /**
+   * @return The complete SOAP document as received. Never <code>null</code>.
+   */
+  @Nonnull
+  public Document getSOAPDocument ()
+  {
+    return m_aSOAPDocument;
+  }
+
+  /**
+   * @return The complete MIME message, if the user message was received with
+   *         attachments. The first body part is the SOAP document. May be
+   *         <code>null</code>.
+   */
+  @Nullable
+  public MimeMultipart getMimeMultipart ()
+  {
+    return m_aMimeMultipart;
+  }
+
+  public boolean hasAttachments ()
+  {
+    return m_aMimeMultipart != null;
+  }
+
+  @Override
+  public String toString ()
+  {
+    return new ToStringGenerator (this).append ("MPC", m_sMPC)
+                                       .append ("MessageID", getMessageID ())
+                                       .append ("HasAttachments", hasAttachments ())
+                                       .getToString ();
+  }
+}
@@ -0,0 +1,394 @@
+/**
+ * Copyright (C) 2015-2017 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.as4.client;
+
+import java.io.Closeable;
+import java.net.URI;
+import java.util.Iterator;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+
+import com.helger.commons.ValueEnforcer;
+import com.helger.commons.collection.ext.CommonsArrayList;
+import com.helger.commons.collection.ext.CommonsHashMap;
+import com.helger.commons.collection.ext.ICommonsList;
+import com.helger.commons.collection.ext.ICommonsMap;
+import com.helger.commons.concurrent.BasicThreadFactory;
+import com.helger.commons.concurrent.ManagedExecutorService;
+import com.helger.commons.string.ToStringGenerator;
+
+/**
+ * Executor for sending with {@link AS4Client} in the background. Messages are
+ * built (signed and encrypted) on a CPU bound pool and sent on a separate I/O
+ * pool. Sending uses the blocking HTTP client, so each request in flight
+ * occupies one thread of the I/O pool for its whole duration. This is not a
+ * non-blocking transport: the number of concurrent sends is bounded by
+ * {@link #getMaxInFlight()} threads, but not decoupled from it.<br>
+ * The number of requests in flight is limited globally and per endpoint
+ * (scheme, host and port). Requests exceeding a limit are queued without
+ * blocking a thread and are started as soon as a running request for the
+ * same endpoint finished.<br>
+ * Use an {@link AS4HttpClientPool} on the clients, so that the connections
+ * are reused.
+ *
+ * @author Philip Helger
+ */
+@ThreadSafe
+public class AS4ThrottledSender implements Closeable
+{
+  public static final int DEFAULT_MAX_IN_FLIGHT = 50;
+  public static final int DEFAULT_MAX_IN_FLIGHT_PER_ENDPOINT = 10;
+
+  private static final class PendingSend <T>
+  {
+    private final String m_sEndpoint;
+    private final Callable <? extends T> m_aCallable;
+    private final CompletableFuture <T> m_aFuture;
+
+    PendingSend (@Nonnull final String sEndpoint,
+                 @Nonnull final Callable <? extends T> aCallable,
+                 @Nonnull final CompletableFuture <T> aFuture)
+    {
+      m_sEndpoint = sEndpoint;
+      m_aCallable = aCallable;
+      m_aFuture = aFuture;
+    }
+  }
+
+  private final int m_nMaxInFlight;
+  private final int m_nMaxInFlightPerEndpoint;
+  private final ExecutorService m_aBuildExecutor;
+  private final ExecutorService m_aSendExecutor;
+
+  @GuardedBy ("this")
+  private int m_nInFlight = 0;
+  @GuardedBy ("this")
+  private final ICommonsMap <String, Integer> m_aInFlightPerEndpoint = new CommonsHashMap <> ();
+  @GuardedBy ("this")
+  private final ICommonsList <PendingSend <?>> m_aPending = new CommonsArrayList <> ();
+  @GuardedBy ("this")
+  private boolean m_bClosed = false;
+
+  public AS4ThrottledSender ()
+  {
+    this (DEFAULT_MAX_IN_FLIGHT, DEFAULT_MAX_IN_FLIGHT_PER_ENDPOINT);
+  }
+
+  /**
+   * Constructor
+   *
+   * @param nMaxInFlight
+   *        Maximum number of requests in flight over all endpoints. This is
+   *        also the number of I/O threads. Must be &gt; 0.
+   * @param nMaxInFlightPerEndpoint
+   *        Maximum number of requests in flight to a single endpoint. Must be
+   *        &gt; 0.
+   */
+  public AS4ThrottledSender (@Nonnegative final int nMaxInFlight, @Nonnegative final int nMaxInFlightPerEndpoint)
+  {
+    ValueEnforcer.isGT0 (nMaxInFlight, "MaxInFlight");
+    ValueEnforcer.isGT0 (nMaxInFlightPerEndpoint, "MaxInFlightPerEndpoint");
+    m_nMaxInFlight = nMaxInFlight;
+    m_nMaxInFlightPerEndpoint = nMaxInFlightPerEndpoint;
+    m_aBuildExecutor = Executors.newFixedThreadPool (Runtime.getRuntime ().availableProcessors (),
+                                                     new BasicThreadFactory.Builder ().setNamingPattern ("as4-build-%d")
+                                                                                      .setDaemon (true)
+                                                                                      .build ());
+    m_aSendExecutor = Executors.newFixedThreadPool (nMaxInFlight,
+                                                    new BasicThreadFactory.Builder ().setNamingPattern ("as4-send-%d")
+                                                                                     .setDaemon (true)
+                                                                                     .build ());
+  }
+
+  @Nonnegative
+  public final int getMaxInFlight ()
+  {
+    return m_nMaxInFlight;
+  }
+
+  @Nonnegative
+  public final int getMaxInFlightPerEndpoint ()
+  {
+    return m_nMaxInFlightPerEndpoint;
+  }
+
+  /**
+   * @return The number of requests currently being sent. Always &ge; 0.
+   */
+  @Nonnegative
+  public synchronized int getInFlightCount ()
+  {
+    return m_nInFlight;
+  }
+
+  /**
+   * @return The number of requests waiting for a free slot. Always &ge; 0.
+   */
+  @Nonnegative
+  public synchronized int getPendingCount ()
+  {
+    return m_aPending.size ();
+  }
+
+  /**
+   * Get the endpoint of the passed URL, on which the concurrency is limited.
+   *
+   * @param sURL
+   *        The URL to send to. May not be <code>null</code>.
+   * @return The endpoint key. Never <code>null</code>.
+   */
+  @Nonnull
+  public static String getEndpoint (@Nonnull final String sURL)
+  {
+    try
+    {
+      final URI aURI = new URI (sURL);
+      if (aURI.getScheme () != null && aURI.getRawAuthority () != null)
+        return aURI.getScheme ().toLowerCase () + "://" + aURI.getRawAuthority ().toLowerCase ();
+    }
+    catch (final Exception ex)
+    {
+      // Fall through
+    }
+    return sURL;
+  }
+
+  @Nonnull
+  private static <T> CompletableFuture <T> _failed (@Nonnull final Throwable t)
+  {
+    final CompletableFuture <T> ret = new CompletableFuture <> ();
+    ret.completeExceptionally (t);
+    return ret;
+  }
+
+  @Nonnull
+  private static <T> Runnable _createRunnable (@Nonnull final Callable <? extends T> aCallable,
+                                               @Nonnull final CompletableFuture <T> aFuture)
+  {
+    return () -> {
+      try
+      {
+        aFuture.complete (aCallable.call ());
+      }
+      catch (final Throwable t)
+      {
+        aFuture.completeExceptionally (t);
+      }
+    };
+  }
+
+  /**
+   * Run the passed CPU bound action (e.g. building, signing and encrypting a
+   * message) on the build pool.
+   *
+   * @param aCallable
+   *        The action to run. May not be <code>null</code>.
+   * @return The future with the result. Never <code>null</code>.
+   * @param <T>
+   *        result type
+   */
+  @Nonnull
+  public <T> CompletableFuture <T> build (@Nonnull final Callable <? extends T> aCallable)
+  {
+    ValueEnforcer.notNull (aCallable, "Callable");
+
+    final CompletableFuture <T> ret = new CompletableFuture <> ();
+    try
+    {
+      m_aBuildExecutor.execute (_createRunnable (aCallable, ret));
+    }
+    catch (final RejectedExecutionException ex)
+    {
+      return _failed (ex);
+    }
+    return ret;
+  }
+
+  @GuardedBy ("this")
+  private boolean _canStart (@Nonnull final String sEndpoint)
+  {
+    if (m_nInFlight >= m_nMaxInFlight)
+      return false;
+    final Integer aCount = m_aInFlightPerEndpoint.get (sEndpoint);
+    return aCount == null || aCount.intValue () < m_nMaxInFlightPerEndpoint;
+  }
+
+  @GuardedBy ("this")
+  private void _acquire (@Nonnull final String sEndpoint)
+  {
+    m_nInFlight++;
+    m_aInFlightPerEndpoint.merge (sEndpoint, Integer.valueOf (1), (a, b) -> Integer.valueOf (a.intValue () + 1));
+  }
+
+  @GuardedBy ("this")
+  private void _release (@Nonnull final String sEndpoint)
+  {
+    m_nInFlight--;
+    final int nCount = m_aInFlightPerEndpoint.get (sEndpoint).intValue () - 1;
+    if (nCount == 0)
+      m_aInFlightPerEndpoint.remove (sEndpoint);
+    else
+      m_aInFlightPerEndpoint.put (sEndpoint, Integer.valueOf (nCount));
+  }
+
+  private <T> void _start (@Nonnull final PendingSend <T> aSend)
+  {
+    try
+    {
+      m_aSendExecutor.execute ( () -> {
+        T aResult = null;
+        Throwable aError = null;
+        try
+        {
+          aResult = aSend.m_aCallable.call ();
+        }
+        catch (final Throwable t)
+        {
+          aError = t;
+        }
+        // Release the slot before the future is completed
+        _onFinished (aSend.m_sEndpoint);
+        if (aError != null)
+          aSend.m_aFuture.completeExceptionally (aError);
+        else
+          aSend.m_aFuture.complete (aResult);
+      });
+    }
+    catch (final RejectedExecutionException ex)
+    {
+      // Shut down
+      aSend.m_aFuture.completeExceptionally (ex);
+      _onFinished (aSend.m_sEndpoint);
+    }
+  }
+
+  private void _onFinished (@Nonnull final String sEndpoint)
+  {
+    final ICommonsList <PendingSend <?>> aToStart = new CommonsArrayList <> ();
+    synchronized (this)
+    {
+      _release (sEndpoint);
+
+      // Start the oldest pending sends that fit into the limits
+      final Iterator <PendingSend <?>> it = m_aPending.iterator ();
+      while (it.hasNext () && m_nInFlight < m_nMaxInFlight)
+      {
+        final PendingSend <?> aPending = it.next ();
+        if (_canStart (aPending.m_sEndpoint))
+        {
+          it.remove ();
+          _acquire (aPending.m_sEndpoint);
+          aToStart.add (aPending);
+        }
+      }
+
+      // Wake up close
+      if (_isIdle ())
+        notifyAll ();
+    }
+    for (final PendingSend <?> aPending : aToStart)
+      _start (aPending);
+  }
+
+  @GuardedBy ("this")
+  private boolean _isIdle ()
+  {
+    return m_nInFlight == 0 && m_aPending.isEmpty ();
+  }
+
+  /**
+   * Run the passed I/O bound action (e.g. sending a message) on the send pool,
+   * as soon as the concurrency limits allow it.
+   *
+   * @param sURL
+   *        The destination URL. Used to determine the endpoint. May not be
+   *        <code>null</code>.
+   * @param aCallable
+   *        The action to run. May not be <code>null</code>.
+   * @return The future with the result. Never <code>null</code>.
+   * @param <T>
+   *        result type
+   */
+  @Nonnull
+  public <T> CompletableFuture <T> send (@Nonnull final String sURL, @Nonnull final Callable <? extends T> aCallable)
+  {
+    ValueEnforcer.notNull (sURL, "URL");
+    ValueEnforcer.notNull (aCallable, "Callable");
+
+    final CompletableFuture <T> ret = new CompletableFuture <> ();
+    final PendingSend <T> aSend = new PendingSend <> (getEndpoint (sURL), aCallable, ret);
+    final boolean bStart;
+    synchronized (this)
+    {
+      if (m_bClosed)
+        return _failed (new RejectedExecutionException ("The sender is closed"));
+      bStart = _canStart (aSend.m_sEndpoint);
+      if (bStart)
+        _acquire (aSend.m_sEndpoint);
+      else
+        m_aPending.add (aSend);
+    }
+    if (bStart)
+      _start (aSend);
+    return ret;
+  }
+
+  /**
+   * Shutdown the pools and wait until all running and pending sends are
+   * finished. Sends issued by builds that were already submitted are still
+   * accepted, all later sends fail with a {@link RejectedExecutionException}.
+   */
+  public void close ()
+  {
+    ManagedExecutorService.shutdownAndWaitUntilAllTasksAreFinished (m_aBuildExecutor);
+
+    synchronized (this)
+    {
+      m_bClosed = true;
+      // Notified by the last finished send
+      while (!_isIdle ())
+      {
+        try
+        {
+          wait ();
+        }
+        catch (final InterruptedException ex)
+        {
+          Thread.currentThread ().interrupt ();
+          break;
+        }
+      }
+    }
+    ManagedExecutorService.shutdownAndWaitUntilAllTasksAreFinished (m_aSendExecutor);
+  }
+
+  @Override
+  public String toString ()
+  {
+    return new ToStringGenerator (this).append ("MaxInFlight", m_nMaxInFlight)
+                                       .append ("MaxInFlightPerEndpoint", m_nMaxInFlightPerEndpoint)
+                                       .getToString ();
+  }
+}
@@ -29,7 +29,10 @@ import org.apache.http.entity.AbstractHttpEntity;
 import com.helger.commons.ValueEnforcer;
 
 /**
- * Special HTTP entity that reads and writes to a {@link MimeMessage}.
+ * Special HTTP entity that reads and writes to a {@link MimeMessage}. The
+ * content is streamed chunked and cannot be repeated. See
+ * {@link HttpSpooledMimeMessageEntity} for a repeatable entity with a known
+ * length.
  *
  * @author Philip Helger
  * @author bayerlma
@@ -55,8 +58,9 @@ public class HttpMimeMessageEntity extends AbstractHttpEntity
 
   public boolean isRepeatable ()
   {
-    // Is it always repeatable? Depends on the underlying DataHandler
-    return true;
+    // The DataHandlers of the MIME message may wrap streams that can only be
+    // read once - use HttpSpooledMimeMessageEntity if repetition is needed
+    return false;
   }
 
   public long getContentLength ()
@@ -0,0 +1,155 @@
+/**
+ * Copyright (C) 2015-2017 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.as4.client;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+import javax.mail.MessagingException;
+import javax.mail.internet.MimeMessage;
+
+import com.helger.as4.util.AS4ResourceManager;
+import com.helger.commons.ValueEnforcer;
+
+/**
+ * Special HTTP entity that writes a {@link MimeMessage} once to a temporary
+ * file of an {@link AS4ResourceManager} and sends it from there. Therefore
+ * the content length is known (no chunked transfer encoding is needed) and the
+ * entity is really repeatable, so that requests can be retried.<br>
+ * The file is created upon the first access of the content, so the MIME
+ * message may still be modified (e.g. to move the MIME headers to the HTTP
+ * headers) until then, but not afterwards.<br>
+ * The file is deleted and its spool quota is released upon {@link #close()},
+ * so the entity must be closed after sending, even if the resource manager
+ * lives on.
+ *
+ * @author Philip Helger
+ */
+@ThreadSafe
+public class HttpSpooledMimeMessageEntity extends HttpMimeMessageEntity implements Closeable
+{
+  private static final int BUFFER_SIZE = 64 * 1024;
+
+  private final AS4ResourceManager m_aResMgr;
+  @GuardedBy ("this")
+  private File m_aSpoolFile;
+  @GuardedBy ("this")
+  private boolean m_bClosed = false;
+
+  public HttpSpooledMimeMessageEntity (@Nonnull final MimeMessage aMsg, @Nonnull final AS4ResourceManager aResMgr)
+  {
+    super (aMsg);
+    m_aResMgr = ValueEnforcer.notNull (aResMgr, "ResMgr");
+  }
+
+  /**
+   * @return The file containing the serialized MIME message. Created upon the
+   *         first call. Never <code>null</code>.
+   * @throws IOException
+   *         In case writing the file failed or the entity is already closed
+   */
+  @Nonnull
+  public synchronized File getSpoolFile () throws IOException
+  {
+    if (m_bClosed)
+      throw new IOException ("The spooled MIME message entity is already closed");
+    if (m_aSpoolFile == null)
+    {
+      final File aFile = m_aResMgr.createTempFile ();
+      try (final OutputStream aOS = m_aResMgr.getOutputStream (aFile))
+      {
+        getMimeMessage ().writeTo (aOS);
+      }
+      catch (final MessagingException ex)
+      {
+        throw new IOException ("Error writing MIME message", ex);
+      }
+      m_aSpoolFile = aFile;
+    }
+    return m_aSpoolFile;
+  }
+
+  @Override
+  public boolean isRepeatable ()
+  {
+    return true;
+  }
+
+  @Override
+  public long getContentLength ()
+  {
+    try
+    {
+      return getSpoolFile ().length ();
+    }
+    catch (final IOException ex)
+    {
+      // length unknown - negative number
+      return -1;
+    }
+  }
+
+  @Override
+  public boolean isStreaming ()
+  {
+    return false;
+  }
+
+  @Override
+  public InputStream getContent () throws IOException
+  {
+    return new FileInputStream (getSpoolFile ());
+  }
+
+  @Override
+  public void writeTo (@Nonnull final OutputStream aOS) throws IOException
+  {
+    ValueEnforcer.notNull (aOS, "OutputStream");
+
+    // A plain copy - the target is a stream of the HTTP client and not a
+    // channel, so a zero-copy transfer is not possible anyway
+    try (final InputStream aIS = getContent ())
+    {
+      final byte [] aBuffer = new byte [BUFFER_SIZE];
+      int nRead;
+      while ((nRead = aIS.read (aBuffer)) != -1)
+        aOS.write (aBuffer, 0, nRead);
+    }
+    aOS.flush ();
+  }
+
+  /**
+   * Delete the spool file (if it was created) and release its spool quota.
+   * The content cannot be accessed afterwards.
+   */
+  public synchronized void close ()
+  {
+    m_bClosed = true;
+    if (m_aSpoolFile != null)
+    {
+      m_aResMgr.deleteTempFile (m_aSpoolFile);
+      m_aSpoolFile = null;
+    }
+  }
+}
@@ -0,0 +1,44 @@
+/**
+ * Copyright (C) 2015-2017 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.as4.client;
+
+import javax.annotation.Nonnull;
+
+import com.helger.commons.state.ESuccess;
+
+/**
+ * Callback for user messages received by an {@link AS4PullConsumer}.
+ *
+ * @author Philip Helger
+ */
+@FunctionalInterface
+public interface IAS4PulledMessageHandler
+{
+  /**
+   * Handle a pulled user message. This method is invoked concurrently by all
+   * consumers.
+   *
+   * @param aMessage
+   *        The pulled message. Never <code>null</code>.
+   * @return {@link ESuccess#SUCCESS} if the message was processed and a receipt
+   *         should be sent.
+   * @throws Exception
+   *         In case of an error. No receipt is sent in this case.
+   */
+  @Nonnull
+  ESuccess handlePulledMessage (@Nonnull AS4PulledMessage aMessage) throws Exception;
+}
@@ -0,0 +1,423 @@
+/**
+ * Copyright (C) 2015-2017 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.as4.client.outbox;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
+
+import org.apache.http.HttpEntity;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+
+import com.helger.as4.CAS4;
+import com.helger.as4.client.AS4Client;
+import com.helger.as4.client.AS4HttpClientPool;
+import com.helger.as4.model.pmode.PModeReceptionAwareness;
+import com.helger.commons.ValueEnforcer;
+import com.helger.commons.annotation.Nonempty;
+import com.helger.commons.concurrent.BasicThreadFactory;
+import com.helger.commons.concurrent.ManagedExecutorService;
+import com.helger.commons.datetime.PDTFactory;
+import com.helger.commons.state.EChange;
+import com.helger.httpclient.response.ResponseHandlerXml;
+
+/**
+ * The durable outbox. Built (signed and encrypted) messages are persisted via
+ * the {@link AS4OutboxManager} and sent by a worker pool. If no receipt
+ * referencing the message ID is returned, the message is sent again with
+ * exponential backoff and jitter, until the retry budget of the P-Mode
+ * reception awareness is exhausted. Receipts that arrive asynchronously must
+ * be reported via {@link #onReceipt(String)}. Entries that were not yet
+ * acknowledged are picked up again after a restart.
+ *
+ * @author Philip Helger
+ */
+@ThreadSafe
+public class AS4Outbox implements Closeable
+{
+  public static final int DEFAULT_WORKER_COUNT = 4;
+  /** The default time finally failed entries are kept for late receipts */
+  public static final Duration DEFAULT_FAILED_RETENTION = Duration.ofDays (30);
+
+  /**
+   * The outcome of a single send attempt.
+   */
+  enum EResponseType
+  {
+    /** A receipt for the message was returned */
+    RECEIPT,
+    /** An ebMS error for the message was returned */
+    ERROR,
+    /** Neither a receipt nor an error - e.g. an asynchronous receipt */
+    NONE;
+  }
+
+  private static final Logger s_aLogger = LoggerFactory.getLogger (AS4Outbox.class);
+  private static final long MAX_RETRY_DELAY_MS = Duration.ofHours (1).toMillis ();
+
+  private final AS4OutboxManager m_aMgr;
+  private final AS4HttpClientPool m_aHttpClientPool;
+  private final ScheduledThreadPoolExecutor m_aExecutor;
+  private volatile Duration m_aFailedRetention = DEFAULT_FAILED_RETENTION;
+
+  /**
+   * Constructor. Call {@link #start()} afterwards.
+   *
+   * @param aMgr
+   *        The persistent outbox store. May not be <code>null</code>.
+   * @param aHttpClientPool
+   *        The started HTTP client pool to send with. Its lifecycle is not
+   *        managed by the outbox. May not be <code>null</code>.
+   * @param nWorkerCount
+   *        The number of concurrent senders. Must be &gt; 0.
+   */
+  public AS4Outbox (@Nonnull final AS4OutboxManager aMgr,
+                    @Nonnull final AS4HttpClientPool aHttpClientPool,
+                    @Nonnegative final int nWorkerCount)
+  {
+    ValueEnforcer.notNull (aMgr, "Mgr");
+    ValueEnforcer.notNull (aHttpClientPool, "HttpClientPool");
+    ValueEnforcer.isGT0 (nWorkerCount, "WorkerCount");
+    m_aMgr = aMgr;
+    m_aHttpClientPool = aHttpClientPool;
+    m_aExecutor = new ScheduledThreadPoolExecutor (nWorkerCount,
+                                                   new BasicThreadFactory.Builder ().setNamingPattern ("as4-outbox-%d")
+                                                                                    .setDaemon (true)
+                                                                                    .build ());
+    // Pending entries are recovered from the journal upon next startup
+    m_aExecutor.setExecuteExistingDelayedTasksAfterShutdownPolicy (false);
+  }
+
+  @Nonnull
+  public AS4OutboxManager getOutboxMgr ()
+  {
+    return m_aMgr;
+  }
+
+  /**
+   * @return The time finally failed entries are kept, so that late receipts
+   *         can still be matched. Never <code>null</code>.
+   */
+  @Nonnull
+  public Duration getFailedRetention ()
+  {
+    return m_aFailedRetention;
+  }
+
+  /**
+   * @param aFailedRetention
+   *        The time finally failed entries are kept, so that late receipts can
+   *        still be matched. May not be <code>null</code>.
+   */
+  public void setFailedRetention (@Nonnull final Duration aFailedRetention)
+  {
+    ValueEnforcer.notNull (aFailedRetention, "FailedRetention");
+    ValueEnforcer.isFalse (aFailedRetention.isNegative (), "FailedRetention may not be negative");
+    m_aFailedRetention = aFailedRetention;
+  }
+
+  /**
+   * Remove all finally failed entries (and their spool files) whose last
+   * attempt is older than the failed retention. This is also done hourly
+   * after {@link #start()}.
+   *
+   * @return The number of removed entries. Always &ge; 0.
+   */
+  @Nonnegative
+  public int purgeFailedEntries ()
+  {
+    final int ret = m_aMgr.purgeFailedEntries (PDTFactory.getCurrentLocalDateTime ().minus (m_aFailedRetention));
+    if (ret > 0)
+      s_aLogger.info ("Purged " + ret + " finally failed outbox entries");
+    return ret;
+  }
+
+  /**
+   * Schedule all stored entries that did not finally fail (crash recovery),
+   * and start purging old finally failed entries.
+   *
+   * @return The number of scheduled entries.
+   */
+  @Nonnegative
+  public int start ()
+  {
+    int nRecovered = 0;
+    for (final AS4OutboxEntry aEntry : m_aMgr.getAllEntries ())
+      if (!aEntry.isFinallyFailed ())
+      {
+        _schedule (aEntry);
+        nRecovered++;
+      }
+    if (nRecovered > 0)
+      s_aLogger.info ("Recovered " + nRecovered + " pending outbox entries");
+
+    m_aExecutor.scheduleWithFixedDelay ( () -> {
+      try
+      {
+        purgeFailedEntries ();
+      }
+      catch (final RuntimeException ex)
+      {
+        s_aLogger.error ("Failed to purge finally failed outbox entries", ex);
+      }
+    }, 0, 1, TimeUnit.HOURS);
+    return nRecovered;
+  }
+
+  /**
+   * Stop sending. Pending entries are sent again after the next
+   * {@link #start()}.
+   */
+  public void close ()
+  {
+    ManagedExecutorService.shutdownAndWaitUntilAllTasksAreFinished (m_aExecutor);
+  }
+
+  /**
+   * Build the message of the passed client, durably store it and schedule it
+   * for sending. The client may be modified after this method returns.
+   *
+   * @param aClient
+   *        The client to build the message. May not be <code>null</code>.
+   * @param sURL
+   *        The URL to send to. May neither be <code>null</code> nor empty.
+   * @param aReceptionAwareness
+   *        The reception awareness of the P-Mode, defining the retry budget.
+   *        May be <code>null</code> to use the defaults.
+   * @return The stored entry. Never <code>null</code>.
+   * @throws Exception
+   *         If building or storing the message failed
+   */
+  @Nonnull
+  public AS4OutboxEntry enqueue (@Nonnull final AS4Client aClient,
+                                 @Nonnull final String sURL,
+                                 @Nullable final PModeReceptionAwareness aReceptionAwareness) throws Exception
+  {
+    ValueEnforcer.notNull (aClient, "Client");
+    ValueEnforcer.notEmpty (sURL, "URL");
+
+    final String sMessageID = aClient.createMessageID ();
+    final HttpEntity aHttpEntity = aClient.buildMessage (sMessageID);
+    try
+    {
+      return enqueue (sMessageID, sURL, aHttpEntity, aReceptionAwareness);
+    }
+    finally
+    {
+      AS4Client.releaseMessage (aHttpEntity);
+    }
+  }
+
+  /**
+   * Durably store an already built message and schedule it for sending.
+   *
+   * @param sMessageID
+   *        The AS4 message ID of the built message. Receipts are matched
+   *        against it. May neither be <code>null</code> nor empty.
+   * @param sURL
+   *        The URL to send to. May neither be <code>null</code> nor empty.
+   * @param aHttpEntity
+   *        The built message. It is copied to the outbox. May not be
+   *        <code>null</code>.
+   * @param aReceptionAwareness
+   *        The reception awareness of the P-Mode, defining the retry budget.
+   *        May be <code>null</code> to use the defaults.
+   * @return The stored entry. Never <code>null</code>.
+   * @throws IOException
+   *         If storing the message failed
+   */
+  @Nonnull
+  public AS4OutboxEntry enqueue (@Nonnull @Nonempty final String sMessageID,
+                                 @Nonnull @Nonempty final String sURL,
+                                 @Nonnull final HttpEntity aHttpEntity,
+                                 @Nullable final PModeReceptionAwareness aReceptionAwareness) throws IOException
+  {
+    final boolean bRetry = aReceptionAwareness == null ? PModeReceptionAwareness.DEFAULT_RETRY
+                                                       : aReceptionAwareness.isRetry ();
+    final int nMaxRetries = aReceptionAwareness == null ? PModeReceptionAwareness.DEFAULT_MAX_RETRIES
+                                                        : aReceptionAwareness.getMaxRetries ();
+    final long nRetryIntervalMS = aReceptionAwareness == null ? PModeReceptionAwareness.DEFAULT_RETRY_INTERVAL_MS
+                                                              : aReceptionAwareness.getRetryIntervalMS ();
+
+    final AS4OutboxEntry aEntry = m_aMgr.storeMessage (sMessageID,
+                                                       sURL,
+                                                       aHttpEntity,
+                                                       bRetry ? 1 + nMaxRetries : 1,
+                                                       nRetryIntervalMS);
+    if (s_aLogger.isDebugEnabled ())
+      s_aLogger.debug ("Stored message " + sMessageID + " in outbox as " + aEntry.getID ());
+    _schedule (aEntry);
+    return aEntry;
+  }
+
+  /**
+   * Notify the outbox about a receipt that was received asynchronously.
+   *
+   * @param sRefToMessageID
+   *        The message ID referenced by the receipt. May be <code>null</code>.
+   * @return {@link EChange#CHANGED} if a pending message was acknowledged.
+   */
+  @Nonnull
+  public EChange onReceipt (@Nullable final String sRefToMessageID)
+  {
+    final AS4OutboxEntry aEntry = m_aMgr.getEntryOfMessageID (sRefToMessageID);
+    if (aEntry == null)
+      return EChange.UNCHANGED;
+    if (s_aLogger.isDebugEnabled ())
+      s_aLogger.debug ("Received receipt for outbox entry " + aEntry.getID ());
+    return m_aMgr.markDelivered (aEntry);
+  }
+
+  private void _schedule (@Nonnull final AS4OutboxEntry aEntry)
+  {
+    final LocalDateTime aNextDT = aEntry.getNextAttemptDateTime ();
+    final long nDelayMS = aNextDT == null ? 0
+                                          : Math.max (0,
+                                                      Duration.between (PDTFactory.getCurrentLocalDateTime (), aNextDT)
+                                                              .toMillis ());
+    try
+    {
+      m_aExecutor.schedule ( () -> _send (aEntry), nDelayMS, TimeUnit.MILLISECONDS);
+    }
+    catch (final RejectedExecutionException ex)
+    {
+      // Shutting down - will be recovered on next startup
+      s_aLogger.info ("Outbox entry " + aEntry.getID () + " will be sent after restart");
+    }
+  }
+
+  private static boolean _hasChild (@Nonnull final Element aParent, @Nonnull final String sLocalName)
+  {
+    return aParent.getElementsByTagNameNS (CAS4.EBMS_NS, sLocalName).getLength () > 0;
+  }
+
+  /**
+   * Check if the passed response contains a receipt or an error for the passed
+   * message ID.
+   *
+   * @param aDoc
+   *        The response SOAP document. May be <code>null</code>.
+   * @param sMessageID
+   *        The sent message ID. May not be <code>null</code>.
+   * @return Never <code>null</code>.
+   */
+  @Nonnull
+  static EResponseType getResponseType (@Nullable final Document aDoc, @Nonnull final String sMessageID)
+  {
+    if (aDoc == null)
+      return EResponseType.NONE;
+
+    final NodeList aSignals = aDoc.getElementsByTagNameNS (CAS4.EBMS_NS, "SignalMessage");
+    for (int i = 0; i < aSignals.getLength (); ++i)
+    {
+      final Element aSignal = (Element) aSignals.item (i);
+      final NodeList aRefs = aSignal.getElementsByTagNameNS (CAS4.EBMS_NS, "RefToMessageId");
+      final Node aRef = aRefs.getLength () > 0 ? aRefs.item (0) : null;
+      final boolean bMatches = aRef != null && sMessageID.equals (aRef.getTextContent ().trim ());
+      if (bMatches && _hasChild (aSignal, "Receipt"))
+        return EResponseType.RECEIPT;
+      // Errors may reference the message only in the Error element
+      final NodeList aErrors = aSignal.getElementsByTagNameNS (CAS4.EBMS_NS, "Error");
+      for (int j = 0; j < aErrors.getLength (); ++j)
+      {
+        final String sRefInError = ((Element) aErrors.item (j)).getAttribute ("refToMessageInError");
+        if (bMatches || sMessageID.equals (sRefInError))
+          return EResponseType.ERROR;
+      }
+    }
+    return EResponseType.NONE;
+  }
+
+  private void _send (@Nonnull final AS4OutboxEntry aEntry)
+  {
+    if (!m_aMgr.isPending (aEntry))
+    {
+      // Receipt was received in the meantime
+      return;
+    }
+
+    EResponseType eResponseType;
+    String sError;
+    try
+    {
+      final Document aResponseDoc = m_aHttpClientPool.execute (m_aMgr.createHttpPost (aEntry),
+                                                               new ResponseHandlerXml ());
+      eResponseType = getResponseType (aResponseDoc, aEntry.getMessageID ());
+      sError = eResponseType == EResponseType.ERROR ? "The receiver returned an ebMS error"
+                                                    : "No receipt received";
+    }
+    catch (final Throwable t)
+    {
+      s_aLogger.warn ("Error sending outbox entry " + aEntry.getID (), t);
+      eResponseType = EResponseType.NONE;
+      sError = t.getClass ().getName () + ": " + t.getMessage ();
+    }
+
+    if (eResponseType == EResponseType.RECEIPT)
+    {
+      m_aMgr.markDelivered (aEntry);
+      if (s_aLogger.isDebugEnabled ())
+        s_aLogger.debug ("Successfully sent outbox entry " + aEntry.getID ());
+      return;
+    }
+
+    final int nAttempt = aEntry.getAttempts () + 1;
+    if (eResponseType == EResponseType.NONE && nAttempt < aEntry.getMaxAttempts ())
+    {
+      // Exponential backoff with jitter in the upper half
+      final long nMaxDelayMS = Math.min (MAX_RETRY_DELAY_MS,
+                                         aEntry.getRetryIntervalMS () << Math.min (nAttempt - 1, 30));
+      final long nDelayMS = nMaxDelayMS / 2 + ThreadLocalRandom.current ().nextLong (nMaxDelayMS / 2 + 1);
+      if (m_aMgr.markAttemptFailed (aEntry,
+                                    PDTFactory.getCurrentLocalDateTime ().plus (Duration.ofMillis (nDelayMS)),
+                                    sError)
+                .isChanged ())
+      {
+        s_aLogger.warn ("Send attempt " + nAttempt + " of outbox entry " + aEntry.getID () + " failed: " + sError);
+        _schedule (aEntry);
+      }
+    }
+    else
+    {
+      // Still waiting for a late asynchronous receipt
+      if (m_aMgr.markAttemptFailed (aEntry, null, sError).isChanged ())
+        s_aLogger.error ("Giving up sending outbox entry " +
+                         aEntry.getID () +
+                         " with message ID " +
+                         aEntry.getMessageID () +
+                         " after " +
+                         nAttempt +
+                         " attempts: " +
+                         sError);
+    }
+  }
+}
@@ -0,0 +1,260 @@
+/**
+ * Copyright (C) 2015-2017 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.as4.client.outbox;
+
+import java.io.Serializable;
+import java.time.LocalDateTime;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.NotThreadSafe;
+
+import com.helger.commons.ValueEnforcer;
+import com.helger.commons.annotation.Nonempty;
+import com.helger.commons.annotation.ReturnsMutableCopy;
+import com.helger.commons.collection.ext.CommonsLinkedHashMap;
+import com.helger.commons.collection.ext.ICommonsOrderedMap;
+import com.helger.commons.datetime.PDTFactory;
+import com.helger.commons.hashcode.HashCodeGenerator;
+import com.helger.commons.id.IHasID;
+import com.helger.commons.string.ToStringGenerator;
+
+/**
+ * A single built message stored in the durable outbox, waiting to be sent
+ * until a receipt is received.
+ *
+ * @author Philip Helger
+ */
+@NotThreadSafe
+public class AS4OutboxEntry implements IHasID <String>, Serializable
+{
+  private final String m_sID;
+  private final String m_sMessageID;
+  private final String m_sURL;
+  private final LocalDateTime m_aCreationDT;
+  private final ICommonsOrderedMap <String, String> m_aHeaders;
+  private final int m_nMaxAttempts;
+  private final long m_nRetryIntervalMS;
+  private int m_nAttempts;
+  private LocalDateTime m_aNextAttemptDT;
+  private LocalDateTime m_aLastAttemptDT;
+  private String m_sLastError;
+
+  public AS4OutboxEntry (@Nonnull @Nonempty final String sID,
+                         @Nonnull @Nonempty final String sMessageID,
+                         @Nonnull @Nonempty final String sURL,
+                         @Nonnull final ICommonsOrderedMap <String, String> aHeaders,
+                         @Nonnegative final int nMaxAttempts,
+                         @Nonnegative final long nRetryIntervalMS)
+  {
+    this (sID,
+          sMessageID,
+          sURL,
+          PDTFactory.getCurrentLocalDateTime (),
+          aHeaders,
+          nMaxAttempts,
+          nRetryIntervalMS,
+          0,
+          null,
+          null,
+          null);
+  }
+
+  AS4OutboxEntry (@Nonnull @Nonempty final String sID,
+                  @Nonnull @Nonempty final String sMessageID,
+                  @Nonnull @Nonempty final String sURL,
+                  @Nonnull final LocalDateTime aCreationDT,
+                  @Nonnull final ICommonsOrderedMap <String, String> aHeaders,
+                  @Nonnegative final int nMaxAttempts,
+                  @Nonnegative final long nRetryIntervalMS,
+                  @Nonnegative final int nAttempts,
+                  @Nullable final LocalDateTime aNextAttemptDT,
+                  @Nullable final LocalDateTime aLastAttemptDT,
+                  @Nullable final String sLastError)
+  {
+    m_sID = ValueEnforcer.notEmpty (sID, "ID");
+    m_sMessageID = ValueEnforcer.notEmpty (sMessageID, "MessageID");
+    m_sURL = ValueEnforcer.notEmpty (sURL, "URL");
+    m_aCreationDT = ValueEnforcer.notNull (aCreationDT, "CreationDT");
+    m_aHeaders = new CommonsLinkedHashMap <> (ValueEnforcer.notNull (aHeaders, "Headers"));
+    m_nMaxAttempts = ValueEnforcer.isGT0 (nMaxAttempts, "MaxAttempts");
+    m_nRetryIntervalMS = ValueEnforcer.isGE0 (nRetryIntervalMS, "RetryIntervalMS");
+    m_nAttempts = ValueEnforcer.isGE0 (nAttempts, "Attempts");
+    m_aNextAttemptDT = aNextAttemptDT;
+    m_aLastAttemptDT = aLastAttemptDT;
+    m_sLastError = sLastError;
+  }
+
+  /**
+   * @return The internal outbox ID which is also the spool directory name.
+   */
+  @Nonnull
+  @Nonempty
+  public String getID ()
+  {
+    return m_sID;
+  }
+
+  /**
+   * @return The AS4 message ID of the stored user message.
+   */
+  @Nonnull
+  @Nonempty
+  public String getMessageID ()
+  {
+    return m_sMessageID;
+  }
+
+  /**
+   * @return The URL to send the message to.
+   */
+  @Nonnull
+  @Nonempty
+  public String getURL ()
+  {
+    return m_sURL;
+  }
+
+  @Nonnull
+  public LocalDateTime getCreationDateTime ()
+  {
+    return m_aCreationDT;
+  }
+
+  /**
+   * @return The HTTP headers to be sent with the message (including the
+   *         content type).
+   */
+  @Nonnull
+  @ReturnsMutableCopy
+  public ICommonsOrderedMap <String, String> getAllHeaders ()
+  {
+    return m_aHeaders.getClone ();
+  }
+
+  /**
+   * @return The maximum number of send attempts (first attempt plus retries).
+   *         Always &gt; 0.
+   */
+  @Nonnegative
+  public int getMaxAttempts ()
+  {
+    return m_nMaxAttempts;
+  }
+
+  /**
+   * @return The base interval in milliseconds between two attempts.
+   */
+  @Nonnegative
+  public long getRetryIntervalMS ()
+  {
+    return m_nRetryIntervalMS;
+  }
+
+  /**
+   * @return The number of failed send attempts so far.
+   */
+  @Nonnegative
+  public int getAttempts ()
+  {
+    return m_nAttempts;
+  }
+
+  /**
+   * @return The earliest date time for the next send attempt. May be
+   *         <code>null</code> if the entry can be sent immediately or if it
+   *         failed finally.
+   */
+  @Nullable
+  public LocalDateTime getNextAttemptDateTime ()
+  {
+    return m_aNextAttemptDT;
+  }
+
+  /**
+   * @return <code>true</code> if no further attempts are made for this entry.
+   *         It is only removed if a receipt arrives later on.
+   */
+  public boolean isFinallyFailed ()
+  {
+    return m_nAttempts > 0 && m_aNextAttemptDT == null;
+  }
+
+  /**
+   * @return The date time of the last failed attempt. May be
+   *         <code>null</code> if no attempt failed so far.
+   */
+  @Nullable
+  public LocalDateTime getLastAttemptDateTime ()
+  {
+    return m_aLastAttemptDT;
+  }
+
+  /**
+   * @return The error message of the last failed attempt. May be
+   *         <code>null</code>.
+   */
+  @Nullable
+  public String getLastError ()
+  {
+    return m_sLastError;
+  }
+
+  void onFailedAttempt (@Nullable final LocalDateTime aNextAttemptDT, @Nullable final String sLastError)
+  {
+    m_nAttempts++;
+    m_aNextAttemptDT = aNextAttemptDT;
+    m_aLastAttemptDT = PDTFactory.getCurrentLocalDateTime ();
+    m_aLastAttemptDT = aLastAttemptDT;
+    m_sLastError = sLastError;
+  }
+
+  @Override
+  public boolean equals (final Object o)
+  {
+    if (o == this)
+      return true;
+    if (o == null || !getClass ().equals (o.getClass ()))
+      return false;
+    final AS4OutboxEntry rhs = (AS4OutboxEntry) o;
+    return m_sID.equals (rhs.m_sID);
+  }
+
+  @Override
+  public int hashCode ()
+  {
+    return new HashCodeGenerator (this).append (m_sID).getHashCode ();
+  }
+
+  @Override
+  public String toString ()
+  {
+    return new ToStringGenerator (null).append ("ID", m_sID)
+                                       .append ("MessageID", m_sMessageID)
+                                       .append ("URL", m_sURL)
+                                       .append ("CreationDT", m_aCreationDT)
+                                       .append ("Headers", m_aHeaders)
+                                       .append ("MaxAttempts", m_nMaxAttempts)
+                                       .append ("RetryIntervalMS", m_nRetryIntervalMS)
+                                       .append ("Attempts", m_nAttempts)
+                                       .append ("NextAttemptDT", m_aNextAttemptDT)
+                                       .append ("LastAttemptDT", m_aLastAttemptDT)
+                                       .append ("LastError", m_sLastError)
+                                       .getToString ();
+  }
+}
@@ -0,0 +1,110 @@
+/**
+ * Copyright (C) 2015-2017 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.as4.client.outbox;
+
+import java.time.LocalDateTime;
+import java.util.Map;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import com.helger.commons.collection.ext.CommonsLinkedHashMap;
+import com.helger.commons.collection.ext.ICommonsOrderedMap;
+import com.helger.xml.microdom.IMicroElement;
+import com.helger.xml.microdom.MicroElement;
+import com.helger.xml.microdom.convert.IMicroTypeConverter;
+
+/**
+ * Micro type converter for class {@link AS4OutboxEntry}.
+ *
+ * @author Philip Helger
+ */
+public final class AS4OutboxEntryMicroTypeConverter implements IMicroTypeConverter
+{
+  private static final String ATTR_ID = "id";
+  private static final String ATTR_MESSAGE_ID = "msgid";
+  private static final String ATTR_URL = "url";
+  private static final String ATTR_CREATION_DT = "creationdt";
+  private static final String ATTR_MAX_ATTEMPTS = "maxattempts";
+  private static final String ATTR_RETRY_INTERVAL_MS = "retryintervalms";
+  private static final String ATTR_ATTEMPTS = "attempts";
+  private static final String ATTR_NEXT_ATTEMPT_DT = "nextattemptdt";
+  private static final String ATTR_LAST_ATTEMPT_DT = "lastattemptdt";
+  private static final String ELEMENT_LAST_ERROR = "lasterror";
+  private static final String ELEMENT_HEADER = "header";
+  private static final String ATTR_HEADER_NAME = "name";
+
+  @Nonnull
+  public IMicroElement convertToMicroElement (@Nonnull final Object aObject,
+                                              @Nullable final String sNamespaceURI,
+                                              @Nonnull final String sTagName)
+  {
+    final AS4OutboxEntry aValue = (AS4OutboxEntry) aObject;
+    final IMicroElement ret = new MicroElement (sNamespaceURI, sTagName);
+    ret.setAttribute (ATTR_ID, aValue.getID ());
+    ret.setAttribute (ATTR_MESSAGE_ID, aValue.getMessageID ());
+    ret.setAttribute (ATTR_URL, aValue.getURL ());
+    ret.setAttributeWithConversion (ATTR_CREATION_DT, aValue.getCreationDateTime ());
+    ret.setAttribute (ATTR_MAX_ATTEMPTS, aValue.getMaxAttempts ());
+    ret.setAttribute (ATTR_RETRY_INTERVAL_MS, aValue.getRetryIntervalMS ());
+    ret.setAttribute (ATTR_ATTEMPTS, aValue.getAttempts ());
+    ret.setAttributeWithConversion (ATTR_NEXT_ATTEMPT_DT, aValue.getNextAttemptDateTime ());
+    ret.setAttributeWithConversion (ATTR_LAST_ATTEMPT_DT, aValue.getLastAttemptDateTime ());
+    if (aValue.getLastError () != null)
+      ret.appendElement (sNamespaceURI, ELEMENT_LAST_ERROR).appendText (aValue.getLastError ());
+    for (final Map.Entry <String, String> aEntry : aValue.getAllHeaders ().entrySet ())
+      ret.appendElement (sNamespaceURI, ELEMENT_HEADER)
+         .setAttribute (ATTR_HEADER_NAME, aEntry.getKey ())
+         .appendText (aEntry.getValue ());
+    return ret;
+  }
+
+  @Nonnull
+  public AS4OutboxEntry convertToNative (@Nonnull final IMicroElement aElement)
+  {
+    final String sID = aElement.getAttributeValue (ATTR_ID);
+    final String sMessageID = aElement.getAttributeValue (ATTR_MESSAGE_ID);
+    final String sURL = aElement.getAttributeValue (ATTR_URL);
+    final LocalDateTime aCreationDT = aElement.getAttributeValueWithConversion (ATTR_CREATION_DT,
+                                                                                 LocalDateTime.class);
+    final int nMaxAttempts = aElement.getAttributeValueAsInt (ATTR_MAX_ATTEMPTS, 1);
+    final long nRetryIntervalMS = aElement.getAttributeValueAsLong (ATTR_RETRY_INTERVAL_MS, 0);
+    final int nAttempts = aElement.getAttributeValueAsInt (ATTR_ATTEMPTS, 0);
+    final LocalDateTime aNextAttemptDT = aElement.getAttributeValueWithConversion (ATTR_NEXT_ATTEMPT_DT,
+                                                                                    LocalDateTime.class);
+    final LocalDateTime aLastAttemptDT = aElement.getAttributeValueWithConversion (ATTR_LAST_ATTEMPT_DT,
+                                                                                    LocalDateTime.class);
+    final IMicroElement eLastError = aElement.getFirstChildElement (ELEMENT_LAST_ERROR);
+    final String sLastError = eLastError == null ? null : eLastError.getTextContent ();
+
+    final ICommonsOrderedMap <String, String> aHeaders = new CommonsLinkedHashMap <> ();
+    for (final IMicroElement eHeader : aElement.getAllChildElements (ELEMENT_HEADER))
+      aHeaders.put (eHeader.getAttributeValue (ATTR_HEADER_NAME), eHeader.getTextContent ());
+
+    return new AS4OutboxEntry (sID,
+                               sMessageID,
+                               sURL,
+                               aCreationDT,
+                               aHeaders,
+                               nMaxAttempts,
+                               nRetryIntervalMS,
+                               nAttempts,
+                               aNextAttemptDT,
+                               aLastAttemptDT,
+                               sLastError);
+  }
+}
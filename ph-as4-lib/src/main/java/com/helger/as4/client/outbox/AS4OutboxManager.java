@@ -0,0 +1,306 @@
+/**
+ * Copyright (C) 2015-2017 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.as4.client.outbox;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.time.LocalDateTime;
+import java.util.Map;
+import java.util.UUID;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.entity.FileEntity;
+
+import com.helger.as4.messaging.domain.MessageHelperMethods;
+import com.helger.as4.util.AS4IOHelper;
+import com.helger.commons.ValueEnforcer;
+import com.helger.commons.annotation.Nonempty;
+import com.helger.commons.annotation.ReturnsMutableCopy;
+import com.helger.commons.collection.ext.CommonsArrayList;
+import com.helger.commons.collection.ext.CommonsHashMap;
+import com.helger.commons.collection.ext.ICommonsList;
+import com.helger.commons.collection.ext.ICommonsMap;
+import com.helger.commons.collection.ext.ICommonsOrderedMap;
+import com.helger.commons.io.file.FileHelper;
+import com.helger.commons.io.stream.StreamHelper;
+import com.helger.commons.state.EChange;
+import com.helger.photon.basic.app.dao.impl.AbstractMapBasedWALDAO;
+import com.helger.photon.basic.app.dao.impl.DAOException;
+
+/**
+ * Persistent store of the durable outbox. The meta data of all entries
+ * (including the HTTP headers) is journaled in a WAL DAO, whereas the fully
+ * built (signed and encrypted) HTTP body is spooled into one directory per
+ * entry.
+ *
+ * @author Philip Helger
+ */
+@ThreadSafe
+public final class AS4OutboxManager extends AbstractMapBasedWALDAO <AS4OutboxEntry, AS4OutboxEntry>
+{
+  private static final String FILENAME_BODY = "body.bin";
+
+  private final File m_aSpoolDir;
+  // AS4 message ID to outbox entry ID
+  @GuardedBy ("m_aRWLock")
+  private final ICommonsMap <String, String> m_aMessageIDIndex = new CommonsHashMap <> ();
+
+  public AS4OutboxManager (@Nullable final String sFilename, @Nonnull final File aSpoolDir) throws DAOException
+  {
+    super (AS4OutboxEntry.class, sFilename);
+    ValueEnforcer.notNull (aSpoolDir, "SpoolDir");
+    m_aSpoolDir = aSpoolDir;
+    if (AS4IOHelper.getFileOperationManager ().createDirRecursiveIfNotExisting (aSpoolDir).isFailure ())
+      throw new DAOException ("Failed to create outbox spool directory " + aSpoolDir.getAbsolutePath ());
+    m_aRWLock.writeLocked ( () -> {
+      for (final AS4OutboxEntry aEntry : getAll ())
+        m_aMessageIDIndex.put (aEntry.getMessageID (), aEntry.getID ());
+    });
+  }
+
+  @Nonnull
+  private File _getEntryDir (@Nonnull final String sID)
+  {
+    return new File (m_aSpoolDir, sID);
+  }
+
+  /**
+   * Persist a new built message in the outbox. When this method returns, the
+   * message is durably stored.
+   *
+   * @param sMessageID
+   *        The AS4 message ID of the built message. May neither be
+   *        <code>null</code> nor empty.
+   * @param sURL
+   *        The URL to send the message to. May neither be <code>null</code>
+   *        nor empty.
+   * @param aHttpEntity
+   *        The built message. MIME headers are moved to the HTTP headers. May
+   *        not be <code>null</code>.
+   * @param nMaxAttempts
+   *        The maximum number of send attempts. Must be &gt; 0.
+   * @param nRetryIntervalMS
+   *        The base interval between two attempts. Must be &ge; 0.
+   * @return The created entry. Never <code>null</code>.
+   * @throws IOException
+   *         In case storing fails
+   */
+  @Nonnull
+  public AS4OutboxEntry storeMessage (@Nonnull @Nonempty final String sMessageID,
+                                     @Nonnull @Nonempty final String sURL,
+                                     @Nonnull final HttpEntity aHttpEntity,
+                                     @Nonnegative final int nMaxAttempts,
+                                     @Nonnegative final long nRetryIntervalMS) throws IOException
+  {
+    ValueEnforcer.notEmpty (sMessageID, "MessageID");
+    ValueEnforcer.notEmpty (sURL, "URL");
+    ValueEnforcer.notNull (aHttpEntity, "HttpEntity");
+
+    // Determine the headers the same way as AS4Client does
+    final ICommonsOrderedMap <String, String> aHeaders;
+    try
+    {
+      aHeaders = MessageHelperMethods.getAllHTTPHeaders (aHttpEntity);
+    }
+    catch (final Exception ex)
+    {
+      throw new IOException ("Failed to determine MIME headers", ex);
+    }
+
+    final String sID = UUID.randomUUID ().toString ();
+    final File aDir = _getEntryDir (sID);
+    if (AS4IOHelper.getFileOperationManager ().createDir (aDir).isFailure ())
+      throw new IOException ("Failed to create outbox directory " + aDir.getAbsolutePath ());
+
+    try
+    {
+      try (final OutputStream aOS = StreamHelper.getBuffered (FileHelper.getOutputStream (new File (aDir,
+                                                                                               FILENAME_BODY))))
+      {
+        if (aOS == null)
+          throw new IOException ("Failed to write message body to outbox");
+        aHttpEntity.writeTo (aOS);
+      }
+
+      final AS4OutboxEntry aEntry = new AS4OutboxEntry (sID,
+                                                        sMessageID,
+                                                        sURL,
+                                                        aHeaders,
+                                                        nMaxAttempts,
+                                                        nRetryIntervalMS);
+      m_aRWLock.writeLocked ( () -> {
+        internalCreateItem (aEntry);
+        m_aMessageIDIndex.put (sMessageID, sID);
+      });
+      return aEntry;
+    }
+    catch (final IOException | RuntimeException ex)
+    {
+      AS4IOHelper.getFileOperationManager ().deleteDirRecursiveIfExisting (aDir);
+      throw ex;
+    }
+  }
+
+  /**
+   * Create the HTTP request to send the passed entry.
+   *
+   * @param aEntry
+   *        The entry to send. May not be <code>null</code>.
+   * @return The repeatable HTTP request. Never <code>null</code>.
+   */
+  @Nonnull
+  public HttpPost createHttpPost (@Nonnull final AS4OutboxEntry aEntry)
+  {
+    ValueEnforcer.notNull (aEntry, "Entry");
+
+    final HttpPost aPost = new HttpPost (aEntry.getURL ());
+    for (final Map.Entry <String, String> aHeader : aEntry.getAllHeaders ().entrySet ())
+      aPost.addHeader (aHeader.getKey (), aHeader.getValue ());
+    // The content type is part of the headers
+    aPost.setEntity (new FileEntity (new File (_getEntryDir (aEntry.getID ()), FILENAME_BODY)));
+    return aPost;
+  }
+
+  /**
+   * Remember a failed send attempt.
+   *
+   * @param aEntry
+   *        The entry that failed. May not be <code>null</code>.
+   * @param aNextAttemptDT
+   *        The date time of the next attempt. May be <code>null</code> if no
+   *        further attempts should be made.
+   * @param sError
+   *        The error message. May be <code>null</code>.
+   * @return {@link EChange#UNCHANGED} if the entry was already removed, e.g.
+   *         because a receipt arrived in the meantime.
+   */
+  @Nonnull
+  public EChange markAttemptFailed (@Nonnull final AS4OutboxEntry aEntry,
+                                    @Nullable final LocalDateTime aNextAttemptDT,
+                                    @Nullable final String sError)
+  {
+    ValueEnforcer.notNull (aEntry, "Entry");
+    return m_aRWLock.writeLocked ( () -> {
+      if (!containsWithID (aEntry.getID ()))
+        return EChange.UNCHANGED;
+      aEntry.onFailedAttempt (aNextAttemptDT, sError);
+      internalUpdateItem (aEntry);
+      return EChange.CHANGED;
+    });
+  }
+
+  /**
+   * Remove an entry and its spool files after the receipt was received.
+   *
+   * @param aEntry
+   *        The entry that was delivered. May not be <code>null</code>.
+   * @return {@link EChange#UNCHANGED} if the entry was already removed.
+   */
+  @Nonnull
+  public EChange markDelivered (@Nonnull final AS4OutboxEntry aEntry)
+  {
+    ValueEnforcer.notNull (aEntry, "Entry");
+    final EChange eChange = m_aRWLock.writeLocked ( () -> _delete (aEntry));
+    if (eChange.isChanged ())
+      AS4IOHelper.getFileOperationManager ().deleteDirRecursiveIfExisting (_getEntryDir (aEntry.getID ()));
+    return eChange;
+  }
+
+  @Nonnull
+  private EChange _delete (@Nonnull final AS4OutboxEntry aEntry)
+  {
+    if (internalDeleteItem (aEntry.getID ()) == null)
+      return EChange.UNCHANGED;
+    m_aMessageIDIndex.remove (aEntry.getMessageID (), aEntry.getID ());
+    return EChange.CHANGED;
+  }
+
+  /**
+   * Remove all entries that finally failed and whose last attempt is older
+   * than the passed date time, together with their spool files. Late receipts
+   * for these entries are ignored afterwards.
+   *
+   * @param aLastAttemptBefore
+   *        Only entries whose last attempt is before this date time are
+   *        removed. May not be <code>null</code>.
+   * @return The number of removed entries. Always &ge; 0.
+   */
+  @Nonnegative
+  public int purgeFailedEntries (@Nonnull final LocalDateTime aLastAttemptBefore)
+  {
+    ValueEnforcer.notNull (aLastAttemptBefore, "LastAttemptBefore");
+
+    final ICommonsList <AS4OutboxEntry> aPurged = m_aRWLock.writeLocked ( () -> {
+      final ICommonsList <AS4OutboxEntry> ret = new CommonsArrayList <> ();
+      for (final AS4OutboxEntry aEntry : getAll ())
+      {
+        final LocalDateTime aLastAttemptDT = aEntry.getLastAttemptDateTime ();
+        if (aEntry.isFinallyFailed () &&
+            aLastAttemptDT != null &&
+            aLastAttemptDT.isBefore (aLastAttemptBefore) &&
+            _delete (aEntry).isChanged ())
+          ret.add (aEntry);
+      }
+      return ret;
+    });
+    for (final AS4OutboxEntry aEntry : aPurged)
+      AS4IOHelper.getFileOperationManager ().deleteDirRecursiveIfExisting (_getEntryDir (aEntry.getID ()));
+    return aPurged.size ();
+  }
+
+  /**
+   * @param aEntry
+   *        The entry to check. May be <code>null</code>.
+   * @return <code>true</code> if the entry is still waiting for a receipt.
+   */
+  public boolean isPending (@Nullable final AS4OutboxEntry aEntry)
+  {
+    return aEntry != null && containsWithID (aEntry.getID ());
+  }
+
+  /**
+   * Find the entry of an AS4 message ID. This is an index lookup and does not
+   * iterate all entries.
+   *
+   * @param sMessageID
+   *        The message ID to search. May be <code>null</code>.
+   * @return <code>null</code> if no such entry is present.
+   */
+  @Nullable
+  public AS4OutboxEntry getEntryOfMessageID (@Nullable final String sMessageID)
+  {
+    if (sMessageID == null)
+      return null;
+    final String sID = m_aRWLock.readLocked ( () -> m_aMessageIDIndex.get (sMessageID));
+    return sID == null ? null : getOfID (sID);
+  }
+
+  @Nonnull
+  @ReturnsMutableCopy
+  public ICommonsList <AS4OutboxEntry> getAllEntries ()
+  {
+    return getAll ();
+  }
+}
@@ -0,0 +1,93 @@
+/**
+ * Copyright (C) 2015-2017 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.as4.crypto;
+
+import java.io.IOException;
+import java.security.PrivateKey;
+import java.security.cert.X509Certificate;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
+
+import org.apache.wss4j.common.crypto.CryptoType;
+import org.apache.wss4j.common.crypto.Merlin;
+import org.apache.wss4j.common.crypto.PasswordEncryptor;
+import org.apache.wss4j.common.ext.WSSecurityException;
+
+/**
+ * A {@link Merlin} that remembers decoded private keys and the certificate
+ * chains looked up by alias. Decoding a private key means decrypting it from
+ * the keystore, which is expensive and was done for every signed message
+ * before. The keystore itself is only read once in the constructor.
+ *
+ * @author Philip Helger
+ */
+@ThreadSafe
+public class AS4CachingMerlin extends Merlin
+{
+  // Alias and password to private key
+  private final Map <String, PrivateKey> m_aPrivateKeys = new ConcurrentHashMap <> ();
+  // Alias to certificate chain
+  private final Map <String, X509Certificate []> m_aCertificates = new ConcurrentHashMap <> ();
+
+  public AS4CachingMerlin (@Nullable final Properties aProps,
+                           @Nullable final ClassLoader aClassLoader,
+                           @Nullable final PasswordEncryptor aPasswordEncryptor) throws WSSecurityException,
+                                                                                  IOException
+  {
+    super (aProps, aClassLoader, aPasswordEncryptor);
+  }
+
+  @Override
+  public PrivateKey getPrivateKey (final String sIdentifier, final String sPassword) throws WSSecurityException
+  {
+    if (sIdentifier == null)
+      return super.getPrivateKey (sIdentifier, sPassword);
+
+    // The password is part of the key, so a wrong password always fails
+    final String sKey = sIdentifier + '\0' + sPassword;
+    PrivateKey ret = m_aPrivateKeys.get (sKey);
+    if (ret == null)
+    {
+      ret = super.getPrivateKey (sIdentifier, sPassword);
+      if (ret != null)
+        m_aPrivateKeys.put (sKey, ret);
+    }
+    return ret;
+  }
+
+  @Override
+  public X509Certificate [] getX509Certificates (final CryptoType aCryptoType) throws WSSecurityException
+  {
+    if (aCryptoType == null || aCryptoType.getType () != CryptoType.TYPE.ALIAS || aCryptoType.getAlias () == null)
+      return super.getX509Certificates (aCryptoType);
+
+    X509Certificate [] ret = m_aCertificates.get (aCryptoType.getAlias ());
+    if (ret == null)
+    {
+      ret = super.getX509Certificates (aCryptoType);
+      if (ret == null)
+        return null;
+      m_aCertificates.put (aCryptoType.getAlias (), ret);
+    }
+    // Callers may modify the array
+    return ret.clone ();
+  }
+}
@@ -24,13 +24,19 @@ import javax.annotation.Nullable;
 import javax.annotation.concurrent.Immutable;
 
 import org.apache.wss4j.common.crypto.Crypto;
-import org.apache.wss4j.common.crypto.CryptoFactory;
 import org.apache.wss4j.dom.engine.WSSConfig;
 
 import com.helger.commons.exception.InitializationException;
 import com.helger.commons.io.resource.ClassPathResource;
 import com.helger.commons.string.StringHelper;
 
+/**
+ * Wrapper around {@link CryptoProperties} that provides the matching
+ * {@link Crypto}. The keystores are loaded and shared via the
+ * {@link AS4CryptoRegistry}.
+ *
+ * @author Philip Helger
+ */
 @Immutable
 public final class AS4CryptoFactory implements Serializable
 {
@@ -40,8 +46,14 @@ public final class AS4CryptoFactory implements Serializable
     WSSConfig.init ();
   }
 
+  private static final class DefaultInstanceHolder
+  {
+    // Only created upon first usage
+    static final AS4CryptoFactory s_aInstance = new AS4CryptoFactory ();
+  }
+
   private final CryptoProperties m_aCryptoProps;
-  private transient Crypto m_aCrypto;
+  private transient volatile AS4CryptoRegistry.Entry m_aEntry;
 
   /**
    * If this constructor is used the default properties get used.
@@ -97,22 +109,26 @@ public final class AS4CryptoFactory implements Serializable
     return m_aCryptoProps;
   }
 
+  /**
+   * @return The shared crypto factory using the default crypto properties
+   *         file. Never <code>null</code>.
+   */
+  @Nonnull
+  public static AS4CryptoFactory getDefaultInstance ()
+  {
+    return DefaultInstanceHolder.s_aInstance;
+  }
+
   @Nonnull
   public Crypto getCrypto ()
   {
-    Crypto ret = m_aCrypto;
-    if (ret == null)
+    AS4CryptoRegistry.Entry aEntry = m_aEntry;
+    if (aEntry == null)
     {
-      try
-      {
-        ret = CryptoFactory.getInstance (m_aCryptoProps.getProperties ());
-      }
-      catch (final Throwable t)
-      {
-        throw new InitializationException ("Failed to init crypto properties!", t);
-      }
-      m_aCrypto = ret;
+      // The registry returns the same entry for concurrent calls
+      aEntry = AS4CryptoRegistry.getEntry (m_aCryptoProps);
+      m_aEntry = aEntry;
     }
-    return ret;
+    return aEntry.getCrypto ();
   }
 }
@@ -0,0 +1,259 @@
+/**
+ * Copyright (C) 2015-2017 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.as4.crypto;
+
+import java.io.File;
+import java.security.cert.X509Certificate;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
+
+import org.apache.wss4j.common.crypto.Crypto;
+import org.apache.wss4j.common.crypto.CryptoFactory;
+import org.apache.wss4j.common.crypto.CryptoType;
+import org.apache.wss4j.common.crypto.Merlin;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.helger.commons.ValueEnforcer;
+import com.helger.commons.collection.ext.CommonsHashMap;
+import com.helger.commons.collection.ext.ICommonsMap;
+import com.helger.commons.exception.InitializationException;
+import com.helger.commons.io.resource.ClassPathResource;
+import com.helger.commons.lang.ClassLoaderHelper;
+import com.helger.commons.state.EChange;
+import com.helger.commons.string.StringHelper;
+
+/**
+ * Process-wide registry of loaded {@link Crypto} instances, indexed by the
+ * crypto properties. Each keystore is only loaded once and the private key and
+ * certificate chain of the configured alias are decoded upon loading. If the
+ * keystore file changes, {@link #reloadAllModified()} or
+ * {@link #reload(CryptoProperties)} must be called explicitly.
+ *
+ * @author Philip Helger
+ */
+@ThreadSafe
+public final class AS4CryptoRegistry
+{
+  public static final String PROPERTY_PROVIDER = "org.apache.wss4j.crypto.provider";
+  public static final String PROPERTY_KEYSTORE_FILE = "org.apache.wss4j.crypto.merlin.keystore.file";
+
+  /**
+   * A single loaded keystore.
+   */
+  @ThreadSafe
+  public static final class Entry
+  {
+    private final Properties m_aProps;
+    private final String m_sKeyAlias;
+    private final String m_sKeyPassword;
+    private final File m_aKeyStoreFile;
+    private volatile Crypto m_aCrypto;
+    private volatile long m_nLastModified;
+
+    Entry (@Nonnull final CryptoProperties aCryptoProps)
+    {
+      m_aProps = aCryptoProps.getProperties ();
+      m_sKeyAlias = aCryptoProps.getKeyAlias ();
+      m_sKeyPassword = aCryptoProps.getKeyPassword ();
+      m_aKeyStoreFile = _getKeyStoreFile (m_aProps.getProperty (PROPERTY_KEYSTORE_FILE));
+      load ();
+    }
+
+    @Nullable
+    private static File _getKeyStoreFile (@Nullable final String sPath)
+    {
+      if (StringHelper.hasNoText (sPath))
+        return null;
+
+      // Same order as in Merlin: file system first, class path second
+      final File aFile = new File (sPath);
+      if (aFile.isFile ())
+        return aFile;
+      return new ClassPathResource (sPath).getAsFile ();
+    }
+
+    private long _getLastModified ()
+    {
+      return m_aKeyStoreFile == null ? 0 : m_aKeyStoreFile.lastModified ();
+    }
+
+    synchronized void load ()
+    {
+      final long nLastModified = _getLastModified ();
+      final Crypto aCrypto;
+      try
+      {
+        final String sProvider = m_aProps.getProperty (PROPERTY_PROVIDER);
+        if (sProvider == null || Merlin.class.getName ().equals (sProvider))
+          aCrypto = new AS4CachingMerlin (m_aProps, ClassLoaderHelper.getDefaultClassLoader (), null);
+        else
+          aCrypto = CryptoFactory.getInstance (m_aProps);
+      }
+      catch (final Throwable t)
+      {
+        throw new InitializationException ("Failed to init crypto properties!", t);
+      }
+
+      if (m_sKeyAlias != null)
+      {
+        // Decode everything needed for signing once
+        try
+        {
+          final CryptoType aCryptoType = new CryptoType (CryptoType.TYPE.ALIAS);
+          aCryptoType.setAlias (m_sKeyAlias);
+          final X509Certificate [] aCerts = aCrypto.getX509Certificates (aCryptoType);
+          aCrypto.getPrivateKey (m_sKeyAlias, m_sKeyPassword);
+          if (s_aLogger.isDebugEnabled ())
+            s_aLogger.debug ("Loaded key '" +
+                             m_sKeyAlias +
+                             "' with " +
+                             (aCerts == null ? 0 : aCerts.length) +
+                             " certificate(s)");
+        }
+        catch (final Exception ex)
+        {
+          s_aLogger.warn ("Failed to decode key '" + m_sKeyAlias + "' from the keystore", ex);
+        }
+      }
+
+      m_aCrypto = aCrypto;
+      m_nLastModified = nLastModified;
+    }
+
+    /**
+     * @return The loaded crypto. Never <code>null</code>.
+     */
+    @Nonnull
+    public Crypto getCrypto ()
+    {
+      return m_aCrypto;
+    }
+
+    /**
+     * @return The resolved keystore file. May be <code>null</code> if the
+     *         keystore is not file based.
+     */
+    @Nullable
+    public File getKeyStoreFile ()
+    {
+      return m_aKeyStoreFile;
+    }
+
+    /**
+     * @return <code>true</code> if the keystore file changed since it was
+     *         loaded.
+     */
+    public boolean isModified ()
+    {
+      return _getLastModified () != m_nLastModified;
+    }
+  }
+
+  private static final Logger s_aLogger = LoggerFactory.getLogger (AS4CryptoRegistry.class);
+  private static final Map <ICommonsMap <Object, Object>, Entry> s_aMap = new ConcurrentHashMap <> ();
+
+  private AS4CryptoRegistry ()
+  {}
+
+  @Nonnull
+  private static ICommonsMap <Object, Object> _getKey (@Nonnull final CryptoProperties aCryptoProps)
+  {
+    ValueEnforcer.notNull (aCryptoProps, "CryptoProps");
+    ValueEnforcer.isTrue (aCryptoProps.isRead (), "CryptoProps were not read");
+    return new CommonsHashMap <> (aCryptoProps.getProperties ());
+  }
+
+  /**
+   * Get the registry entry of the passed crypto properties, loading the
+   * keystore if this is the first access.
+   *
+   * @param aCryptoProps
+   *        The crypto properties to use. May not be <code>null</code>.
+   * @return The entry and never <code>null</code>.
+   */
+  @Nonnull
+  public static Entry getEntry (@Nonnull final CryptoProperties aCryptoProps)
+  {
+    return s_aMap.computeIfAbsent (_getKey (aCryptoProps), k -> new Entry (aCryptoProps));
+  }
+
+  /**
+   * Shortcut for <code>getEntry (aCryptoProps).getCrypto ()</code>.
+   *
+   * @param aCryptoProps
+   *        The crypto properties to use. May not be <code>null</code>.
+   * @return The crypto and never <code>null</code>.
+   */
+  @Nonnull
+  public static Crypto getCrypto (@Nonnull final CryptoProperties aCryptoProps)
+  {
+    return getEntry (aCryptoProps).getCrypto ();
+  }
+
+  /**
+   * Reload the keystore of the passed crypto properties, if it was already
+   * loaded.
+   *
+   * @param aCryptoProps
+   *        The crypto properties to use. May not be <code>null</code>.
+   * @return {@link EChange#CHANGED} if the keystore was reloaded.
+   */
+  @Nonnull
+  public static EChange reload (@Nonnull final CryptoProperties aCryptoProps)
+  {
+    final Entry aEntry = s_aMap.get (_getKey (aCryptoProps));
+    if (aEntry == null)
+      return EChange.UNCHANGED;
+    aEntry.load ();
+    return EChange.CHANGED;
+  }
+
+  /**
+   * Reload all keystores whose file changed since they were loaded.
+   *
+   * @return The number of reloaded keystores. Always &ge; 0.
+   */
+  @Nonnegative
+  public static int reloadAllModified ()
+  {
+    int ret = 0;
+    for (final Entry aEntry : s_aMap.values ())
+      if (aEntry.isModified ())
+      {
+        s_aLogger.info ("Reloading modified keystore " + aEntry.getKeyStoreFile ());
+        aEntry.load ();
+        ret++;
+      }
+    return ret;
+  }
+
+  /**
+   * Remove all entries. Existing {@link AS4CryptoFactory} objects keep their
+   * current entry.
+   */
+  public static void clear ()
+  {
+    s_aMap.clear ();
+  }
+}
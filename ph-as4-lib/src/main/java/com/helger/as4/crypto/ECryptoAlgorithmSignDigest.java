@@ -33,20 +33,23 @@ import com.helger.commons.string.StringHelper;
  */
 public enum ECryptoAlgorithmSignDigest implements IHasID <String>
 {
-  DIGEST_SHA_256 ("sha-256", WSS4JConstants.SHA256),
-  DIGEST_SHA_384 ("sha-384", WSS4JConstants.SHA384),
-  DIGEST_SHA_512 ("sha-512", WSS4JConstants.SHA512);
+  DIGEST_SHA_256 ("sha-256", WSS4JConstants.SHA256, "SHA-256"),
+  DIGEST_SHA_384 ("sha-384", WSS4JConstants.SHA384, "SHA-384"),
+  DIGEST_SHA_512 ("sha-512", WSS4JConstants.SHA512, "SHA-512");
 
   public static final ECryptoAlgorithmSignDigest SIGN_DIGEST_ALGORITHM_DEFAULT = DIGEST_SHA_256;
 
   private final String m_sID;
   private final String m_sAlgorithmURI;
+  private final String m_sJCEName;
 
   private ECryptoAlgorithmSignDigest (@Nonnull @Nonempty final String sID,
-                                      @Nonnull @Nonempty final String sAlgorithmURI)
+                                      @Nonnull @Nonempty final String sAlgorithmURI,
+                                      @Nonnull @Nonempty final String sJCEName)
   {
     m_sID = sID;
     m_sAlgorithmURI = sAlgorithmURI;
+    m_sJCEName = sJCEName;
   }
 
   @Nonnull
@@ -63,6 +66,17 @@ public enum ECryptoAlgorithmSignDigest implements IHasID <String>
     return m_sAlgorithmURI;
   }
 
+  /**
+   * @return The name of the algorithm for
+   *         {@link java.security.MessageDigest#getInstance(String)}.
+   */
+  @Nonnull
+  @Nonempty
+  public String getJCEName ()
+  {
+    return m_sJCEName;
+  }
+
   @Nullable
   public static ECryptoAlgorithmSignDigest getFromIDOrNull (@Nullable final String sID)
   {
@@ -2,26 +2,38 @@ package com.helger.as4.duplicate;
 
 import java.time.LocalDateTime;
 
+import javax.annotation.Nonnegative;
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
 
-import com.helger.commons.annotation.ReturnsMutableCopy;
-import com.helger.commons.collection.ext.ICommonsList;
+import com.helger.commons.ValueEnforcer;
 import com.helger.commons.state.EContinue;
 import com.helger.commons.string.StringHelper;
-import com.helger.photon.basic.app.dao.impl.AbstractMapBasedWALDAO;
-import com.helger.photon.basic.app.dao.impl.DAOException;
 
 /**
- * This is the duplicate checker for avoiding duplicate messages.
+ * This is the duplicate checker for avoiding duplicate messages. The actual
+ * storage is delegated to an {@link IAS4DuplicateStore}.
  *
  * @author Philip Helger
  */
-public final class AS4DuplicateManager extends AbstractMapBasedWALDAO <AS4DuplicateItem, AS4DuplicateItem>
+@ThreadSafe
+public final class AS4DuplicateManager implements AutoCloseable
 {
-  public AS4DuplicateManager (@Nullable final String sFilename) throws DAOException
+  private final IAS4DuplicateStore m_aStore;
+
+  public AS4DuplicateManager (@Nonnull final IAS4DuplicateStore aStore)
   {
-    super (AS4DuplicateItem.class, sFilename);
+    m_aStore = ValueEnforcer.notNull (aStore, "Store");
+  }
+
+  /**
+   * @return The underlying store. Never <code>null</code>.
+   */
+  @Nonnull
+  public IAS4DuplicateStore getStore ()
+  {
+    return m_aStore;
   }
 
   /**
@@ -40,19 +52,8 @@ public final class AS4DuplicateManager extends AbstractMapBasedWALDAO <AS4Duplic
       return EContinue.CONTINUE;
     }
 
-    final AS4DuplicateItem aItem = new AS4DuplicateItem (sMessageID);
-    try
-    {
-      m_aRWLock.writeLocked ( () -> {
-        internalCreateItem (aItem);
-      });
-    }
-    catch (final IllegalArgumentException ex)
-    {
-      // ID already in use
-      return EContinue.BREAK;
-    }
-    return EContinue.CONTINUE;
+    // ID already in use?
+    return EContinue.valueOf (m_aStore.registerIfAbsent (sMessageID));
   }
 
   /**
@@ -60,19 +61,24 @@ public final class AS4DuplicateManager extends AbstractMapBasedWALDAO <AS4Duplic
    */
   public void clearCache ()
   {
-    m_aRWLock.writeLocked ( () -> internalRemoveAllItemsNoCallback ());
+    m_aStore.clear ();
   }
 
-  @Nonnull
-  @ReturnsMutableCopy
-  public ICommonsList <String> evictAllItemsBefore (@Nonnull final LocalDateTime aRefDT)
+  /**
+   * Remove all message IDs registered before the passed date time.
+   *
+   * @param aRefDT
+   *        Reference date time. May not be <code>null</code>.
+   * @return The number of evicted message IDs. Always &ge; 0.
+   */
+  @Nonnegative
+  public int evictAllItemsBefore (@Nonnull final LocalDateTime aRefDT)
+  {
+    return m_aStore.evictAllItemsBefore (aRefDT);
+  }
+
+  public void close ()
   {
-    final ICommonsList <String> aEvictItems = getAllMapped (x -> x.getDateTime ().isBefore (aRefDT),
-                                                            AS4DuplicateItem::getMessageID);
-    m_aRWLock.writeLocked ( () -> {
-      for (final String sItemID : aEvictItems)
-        internalDeleteItem (sItemID);
-    });
-    return aEvictItems;
+    m_aStore.close ();
   }
 }
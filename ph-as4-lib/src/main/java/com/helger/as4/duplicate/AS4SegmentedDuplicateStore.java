@@ -0,0 +1,463 @@
+/**
+ * Copyright (C) 2015-2017 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.as4.duplicate;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.helger.as4.util.AS4IOHelper;
+import com.helger.commons.ValueEnforcer;
+import com.helger.commons.annotation.Nonempty;
+import com.helger.commons.collection.ext.CommonsArrayList;
+import com.helger.commons.collection.ext.ICommonsList;
+import com.helger.commons.concurrent.BasicThreadFactory;
+import com.helger.commons.datetime.PDTFactory;
+import com.helger.commons.io.EAppend;
+import com.helger.commons.io.file.FileHelper;
+import com.helger.commons.io.stream.StreamHelper;
+import com.helger.commons.string.StringHelper;
+import com.helger.commons.string.StringParser;
+import com.helger.xml.microdom.IMicroDocument;
+import com.helger.xml.microdom.IMicroElement;
+import com.helger.xml.microdom.serialize.MicroReader;
+
+/**
+ * Duplicate store that keeps all message IDs in a concurrent in-memory index
+ * and groups them into time buckets of a fixed width. Eviction drops whole
+ * buckets, so message IDs may be kept up to one bucket width longer than
+ * requested.<br>
+ * If a directory is provided, each bucket appends its message IDs to its own
+ * binary segment file. On startup all segment files are read back, and
+ * dropping a bucket simply deletes its file. A partially written record at the
+ * end of a segment (e.g. after a crash) is ignored.<br>
+ * Segments are flushed after {@link #FLUSH_BATCH_SIZE} records or after the
+ * flush interval at the latest, so a process crash may lose the message IDs
+ * registered within the last flush interval.
+ *
+ * @author Philip Helger
+ */
+@ThreadSafe
+public class AS4SegmentedDuplicateStore implements IAS4DuplicateStore
+{
+  public static final Duration DEFAULT_BUCKET_WIDTH = Duration.ofMinutes (1);
+  public static final Duration DEFAULT_FLUSH_INTERVAL = Duration.ofSeconds (1);
+  /** The number of unflushed records that triggers an immediate flush */
+  public static final int FLUSH_BATCH_SIZE = 64;
+  /** The suffix appended to a legacy XML file after it was imported */
+  public static final String LEGACY_IMPORTED_SUFFIX = ".imported";
+
+  private static final Logger s_aLogger = LoggerFactory.getLogger (AS4SegmentedDuplicateStore.class);
+  private static final String SEGMENT_PREFIX = "dup-";
+  private static final String SEGMENT_SUFFIX = ".bin";
+  // Each record is the unsigned 16 bit length followed by the UTF-8 bytes
+  private static final int MAX_RECORD_BYTES = 0xffff;
+  // Attributes of the items in the legacy XML file
+  private static final String LEGACY_ATTR_DT = "dt";
+  private static final String LEGACY_ATTR_MESSAGE_ID = "msgid";
+
+  /**
+   * All message IDs registered within one time window.
+   */
+  private final class Bucket
+  {
+    private final long m_nKey;
+    @GuardedBy ("this")
+    private final ICommonsList <String> m_aMessageIDs = new CommonsArrayList <> ();
+    @GuardedBy ("this")
+    private DataOutputStream m_aLog;
+    @GuardedBy ("this")
+    private int m_nUnflushed = 0;
+    @GuardedBy ("this")
+    private boolean m_bDropped = false;
+
+    Bucket (final long nKey)
+    {
+      m_nKey = nKey;
+    }
+
+    synchronized boolean add (@Nonnull final String sMessageID)
+    {
+      if (m_bDropped)
+        return false;
+      m_aMessageIDs.add (sMessageID);
+      if (m_aDir != null)
+        try
+        {
+          if (m_aLog == null)
+          {
+            final OutputStream aOS = FileHelper.getOutputStream (_getSegmentFile (m_nKey), EAppend.APPEND);
+            if (aOS == null)
+              throw new IOException ("Failed to open duplicate segment for " + m_nKey);
+            m_aLog = new DataOutputStream (StreamHelper.getBuffered (aOS));
+          }
+          final byte [] aBytes = sMessageID.getBytes (StandardCharsets.UTF_8);
+          if (aBytes.length > MAX_RECORD_BYTES)
+            throw new IOException ("Message ID is too long");
+          m_aLog.writeShort (aBytes.length);
+          m_aLog.write (aBytes);
+          // The rest is handed over to the OS by the flush timer
+          if (++m_nUnflushed >= FLUSH_BATCH_SIZE)
+            _flush ();
+        }
+        catch (final IOException ex)
+        {
+          s_aLogger.error ("Failed to persist duplicate message ID '" + sMessageID + "'", ex);
+        }
+      return true;
+    }
+
+    @GuardedBy ("this")
+    private void _flush () throws IOException
+    {
+      if (m_aLog != null && m_nUnflushed > 0)
+      {
+        m_aLog.flush ();
+        m_nUnflushed = 0;
+      }
+    }
+
+    synchronized void flush ()
+    {
+      try
+      {
+        _flush ();
+      }
+      catch (final IOException ex)
+      {
+        s_aLogger.error ("Failed to flush duplicate segment for " + m_nKey, ex);
+      }
+    }
+
+    synchronized void addRecovered (@Nonnull final String sMessageID)
+    {
+      m_aMessageIDs.add (sMessageID);
+    }
+
+    @Nonnull
+    synchronized ICommonsList <String> drop ()
+    {
+      m_bDropped = true;
+      StreamHelper.close (m_aLog);
+      m_aLog = null;
+      m_nUnflushed = 0;
+      if (m_aDir != null)
+        AS4IOHelper.getFileOperationManager ().deleteFileIfExisting (_getSegmentFile (m_nKey));
+      return m_aMessageIDs;
+    }
+
+    synchronized void close ()
+    {
+      // Closing flushes the buffered records
+      StreamHelper.close (m_aLog);
+      m_aLog = null;
+      m_nUnflushed = 0;
+    }
+  }
+
+  private final File m_aDir;
+  private final long m_nBucketWidthSecs;
+  // Message ID to bucket key
+  private final Map <String, Long> m_aIndex = new ConcurrentHashMap <> ();
+  private final ConcurrentNavigableMap <Long, Bucket> m_aBuckets = new ConcurrentSkipListMap <> ();
+  // Only present if a directory is used
+  private final ScheduledExecutorService m_aFlushExecutor;
+
+  /**
+   * Constructor using the default flush interval.
+   *
+   * @param aDir
+   *        The directory to store the segment files in. May be
+   *        <code>null</code> to keep everything in memory only.
+   * @param aBucketWidth
+   *        The time window covered by a single bucket. Must be at least one
+   *        second.
+   */
+  public AS4SegmentedDuplicateStore (@Nullable final File aDir, @Nonnull final Duration aBucketWidth)
+  {
+    this (aDir, aBucketWidth, DEFAULT_FLUSH_INTERVAL);
+  }
+
+  /**
+   * Constructor
+   *
+   * @param aDir
+   *        The directory to store the segment files in. May be
+   *        <code>null</code> to keep everything in memory only.
+   * @param aBucketWidth
+   *        The time window covered by a single bucket. Must be at least one
+   *        second.
+   * @param aFlushInterval
+   *        The maximum time a registered message ID stays in the write buffer
+   *        of its segment. Must be positive.
+   */
+  public AS4SegmentedDuplicateStore (@Nullable final File aDir,
+                                     @Nonnull final Duration aBucketWidth,
+                                     @Nonnull final Duration aFlushInterval)
+  {
+    ValueEnforcer.notNull (aBucketWidth, "BucketWidth");
+    ValueEnforcer.isTrue (aBucketWidth.getSeconds () >= 1, "BucketWidth must be at least one second");
+    ValueEnforcer.notNull (aFlushInterval, "FlushInterval");
+    ValueEnforcer.isTrue (aFlushInterval.toMillis () > 0, "FlushInterval must be positive");
+    m_aDir = aDir;
+    m_nBucketWidthSecs = aBucketWidth.getSeconds ();
+    if (aDir != null)
+    {
+      AS4IOHelper.getFileOperationManager ().createDirRecursiveIfNotExisting (aDir);
+      _recover ();
+      m_aFlushExecutor = Executors.newSingleThreadScheduledExecutor (new BasicThreadFactory.Builder ().setNamingPattern ("as4-duplicate-flush-%d")
+                                                                                                      .setDaemon (true)
+                                                                                                      .build ());
+      final long nIntervalMS = aFlushInterval.toMillis ();
+      m_aFlushExecutor.scheduleWithFixedDelay (this::flush, nIntervalMS, nIntervalMS, TimeUnit.MILLISECONDS);
+    }
+    else
+      m_aFlushExecutor = null;
+  }
+
+  @Nonnull
+  private File _getSegmentFile (final long nKey)
+  {
+    return new File (m_aDir, SEGMENT_PREFIX + nKey + SEGMENT_SUFFIX);
+  }
+
+  private long _getBucketKey (@Nonnull final LocalDateTime aDT)
+  {
+    final long nSecs = aDT.toEpochSecond (ZoneOffset.UTC);
+    return Math.floorDiv (nSecs, m_nBucketWidthSecs) * m_nBucketWidthSecs;
+  }
+
+  @Nonnull
+  private Bucket _getOrCreateBucket (final long nKey)
+  {
+    return m_aBuckets.computeIfAbsent (Long.valueOf (nKey), k -> new Bucket (nKey));
+  }
+
+  private void _recover ()
+  {
+    final File [] aFiles = m_aDir.listFiles ( (d, n) -> n.startsWith (SEGMENT_PREFIX) && n.endsWith (SEGMENT_SUFFIX));
+    if (aFiles == null)
+      return;
+
+    int nRecovered = 0;
+    for (final File aFile : aFiles)
+    {
+      final String sName = aFile.getName ();
+      final long nKey = StringParser.parseLong (sName.substring (SEGMENT_PREFIX.length (),
+                                                                 sName.length () - SEGMENT_SUFFIX.length ()),
+                                                Long.MIN_VALUE);
+      if (nKey == Long.MIN_VALUE)
+      {
+        s_aLogger.warn ("Ignoring unexpected duplicate segment file " + aFile.getAbsolutePath ());
+        continue;
+      }
+
+      final Bucket aBucket = _getOrCreateBucket (nKey);
+      final InputStream aIS = FileHelper.getInputStream (aFile);
+      if (aIS == null)
+        continue;
+      long nValidBytes = 0;
+      boolean bEndReached = false;
+      try (final DataInputStream aDIS = new DataInputStream (StreamHelper.getBuffered (aIS)))
+      {
+        while (true)
+        {
+          final byte [] aBytes = new byte [aDIS.readUnsignedShort ()];
+          aDIS.readFully (aBytes);
+          nValidBytes += 2 + aBytes.length;
+          final String sMessageID = new String (aBytes, StandardCharsets.UTF_8);
+          if (m_aIndex.putIfAbsent (sMessageID, Long.valueOf (nKey)) == null)
+          {
+            aBucket.addRecovered (sMessageID);
+            nRecovered++;
+          }
+        }
+      }
+      catch (final EOFException ex)
+      {
+        // End of segment or truncated last record
+        bEndReached = true;
+      }
+      catch (final IOException ex)
+      {
+        s_aLogger.error ("Failed to read duplicate segment " + aFile.getAbsolutePath (), ex);
+      }
+
+      if (bEndReached && aFile.length () > nValidBytes)
+      {
+        // Cut off the incomplete record so that new records can be appended
+        s_aLogger.warn ("Truncating duplicate segment " + aFile.getAbsolutePath () + " to " + nValidBytes + " bytes");
+        try (final FileChannel aChannel = FileChannel.open (aFile.toPath (), StandardOpenOption.WRITE))
+        {
+          aChannel.truncate (nValidBytes);
+        }
+        catch (final IOException ex)
+        {
+          s_aLogger.error ("Failed to truncate duplicate segment " + aFile.getAbsolutePath (), ex);
+        }
+      }
+    }
+    if (nRecovered > 0)
+      s_aLogger.info ("Recovered " + nRecovered + " duplicate message IDs from " + aFiles.length + " segments");
+  }
+
+  /**
+   * Import the message IDs of the XML file written by the previous WAL based
+   * duplicate manager (e.g. <code>as4-duplicate-incoming.xml</code>). Each
+   * message ID is put into the bucket of its original registration date time,
+   * so that it is evicted as if it was registered in this store. Afterwards the
+   * file is renamed by appending {@link #LEGACY_IMPORTED_SUFFIX}, so it is
+   * imported only once.
+   *
+   * @param aFile
+   *        The legacy XML file. May not be <code>null</code>. If it does not
+   *        exist, nothing happens.
+   * @return The number of imported message IDs. Always &ge; 0.
+   */
+  @Nonnegative
+  public int importLegacyXML (@Nonnull final File aFile)
+  {
+    ValueEnforcer.notNull (aFile, "File");
+
+    if (!aFile.isFile ())
+      return 0;
+
+    final IMicroDocument aDoc = MicroReader.readMicroXML (aFile);
+    if (aDoc == null || aDoc.getDocumentElement () == null)
+    {
+      s_aLogger.error ("Failed to read legacy duplicate file " + aFile.getAbsolutePath ());
+      return 0;
+    }
+
+    final LocalDateTime aNow = PDTFactory.getCurrentLocalDateTime ();
+    int ret = 0;
+    for (final IMicroElement eItem : aDoc.getDocumentElement ().getAllChildElements ())
+    {
+      final String sMessageID = eItem.getAttributeValue (LEGACY_ATTR_MESSAGE_ID);
+      if (StringHelper.hasText (sMessageID))
+      {
+        final LocalDateTime aDT = eItem.getAttributeValueWithConversion (LEGACY_ATTR_DT, LocalDateTime.class);
+        if (_register (sMessageID, _getBucketKey (aDT != null ? aDT : aNow)))
+          ret++;
+      }
+    }
+    flush ();
+
+    final File aImportedFile = new File (aFile.getParentFile (), aFile.getName () + LEGACY_IMPORTED_SUFFIX);
+    if (AS4IOHelper.getFileOperationManager ().renameFile (aFile, aImportedFile).isFailure ())
+      s_aLogger.warn ("Failed to rename legacy duplicate file " + aFile.getAbsolutePath ());
+    s_aLogger.info ("Imported " + ret + " duplicate message IDs from legacy file " + aFile.getAbsolutePath ());
+    return ret;
+  }
+
+  public boolean registerIfAbsent (@Nonnull @Nonempty final String sMessageID)
+  {
+    ValueEnforcer.notEmpty (sMessageID, "MessageID");
+
+    return _register (sMessageID, _getBucketKey (PDTFactory.getCurrentLocalDateTime ()));
+  }
+
+  private boolean _register (@Nonnull final String sMessageID, final long nKey)
+  {
+    final Long aKey = Long.valueOf (nKey);
+    if (m_aIndex.putIfAbsent (sMessageID, aKey) != null)
+      return false;
+
+    // If the bucket was dropped concurrently (e.g. by clear), it was already
+    // removed from the map, so the next attempt uses a new bucket
+    while (!_getOrCreateBucket (nKey).add (sMessageID))
+    {}
+    return true;
+  }
+
+  @Nonnegative
+  public int evictAllItemsBefore (@Nonnull final LocalDateTime aRefDT)
+  {
+    ValueEnforcer.notNull (aRefDT, "RefDT");
+
+    // Only buckets that end before the reference date time
+    final long nFirstKeyToKeep = aRefDT.toEpochSecond (ZoneOffset.UTC) - m_nBucketWidthSecs + 1;
+    return _dropAll (m_aBuckets.headMap (Long.valueOf (nFirstKeyToKeep)));
+  }
+
+  private int _dropAll (@Nonnull final Map <Long, Bucket> aBuckets)
+  {
+    int ret = 0;
+    for (final Map.Entry <Long, Bucket> aEntry : new CommonsArrayList <> (aBuckets.entrySet ()))
+      if (m_aBuckets.remove (aEntry.getKey (), aEntry.getValue ()))
+        for (final String sMessageID : aEntry.getValue ().drop ())
+          if (m_aIndex.remove (sMessageID, aEntry.getKey ()))
+            ret++;
+    return ret;
+  }
+
+  public void clear ()
+  {
+    _dropAll (m_aBuckets);
+  }
+
+  @Nonnegative
+  public int size ()
+  {
+    return m_aIndex.size ();
+  }
+
+  /**
+   * Hand over all buffered message IDs to the operating system. This is
+   * called periodically by the flush timer.
+   */
+  public void flush ()
+  {
+    for (final Bucket aBucket : m_aBuckets.values ())
+      aBucket.flush ();
+  }
+
+  @Override
+  public void close ()
+  {
+    if (m_aFlushExecutor != null)
+      m_aFlushExecutor.shutdown ();
+    for (final Bucket aBucket : m_aBuckets.values ())
+      aBucket.close ();
+  }
+}
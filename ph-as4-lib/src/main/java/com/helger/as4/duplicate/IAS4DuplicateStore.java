@@ -0,0 +1,72 @@
+/**
+ * Copyright (C) 2015-2017 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.as4.duplicate;
+
+import java.io.Closeable;
+import java.time.LocalDateTime;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+
+import com.helger.commons.annotation.Nonempty;
+
+/**
+ * Storage backend of the {@link AS4DuplicateManager}. Implementations must be
+ * thread-safe.
+ *
+ * @author Philip Helger
+ */
+public interface IAS4DuplicateStore extends Closeable
+{
+  /**
+   * Register the passed message ID if it is not yet contained.
+   *
+   * @param sMessageID
+   *        Message ID to register. May neither be <code>null</code> nor empty.
+   * @return <code>true</code> if the message ID was newly registered,
+   *         <code>false</code> if it is a duplicate.
+   */
+  boolean registerIfAbsent (@Nonnull @Nonempty String sMessageID);
+
+  /**
+   * Remove all message IDs registered before the passed date time.
+   * Implementations may keep entries slightly longer than requested.
+   *
+   * @param aRefDT
+   *        Reference date time. May not be <code>null</code>.
+   * @return The number of evicted message IDs. Always &ge; 0.
+   */
+  @Nonnegative
+  int evictAllItemsBefore (@Nonnull LocalDateTime aRefDT);
+
+  /**
+   * Remove all message IDs.
+   */
+  void clear ();
+
+  /**
+   * @return The number of contained message IDs. Always &ge; 0.
+   */
+  @Nonnegative
+  int size ();
+
+  /**
+   * Release all resources. The default implementation does nothing.
+   */
+  default void close ()
+  {}
+}
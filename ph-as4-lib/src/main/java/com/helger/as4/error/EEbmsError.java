@@ -49,7 +49,7 @@ public enum EEbmsError implements IEbmsError
                            EEbmsErrorText.CONNECTION_FAILURE,
                            EEbmsErrorCategory.COMMUNICATION),
   EBMS_EMPTY_MESSAGE_PARTITION_CHANNEL ("EBMS:0006",
-                                        EEbmsErrorSeverity.FAILURE,
+                                        EEbmsErrorSeverity.WARNING,
                                         "EmptyMessagePartitionChannel",
                                         EEbmsErrorText.EMPTY_MESSAGE_PARTITION_CHANNEL,
                                         EEbmsErrorCategory.COMMUNICATION),
@@ -0,0 +1,414 @@
+/**
+ * Copyright (C) 2015-2017 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.as4.marshaller;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
+import javax.xml.bind.JAXBContext;
+import javax.xml.bind.JAXBElement;
+import javax.xml.bind.JAXBException;
+import javax.xml.bind.Marshaller;
+import javax.xml.bind.Unmarshaller;
+import javax.xml.bind.ValidationEventHandler;
+import javax.xml.namespace.QName;
+import javax.xml.transform.dom.DOMResult;
+import javax.xml.validation.Schema;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.w3c.dom.Document;
+import org.w3c.dom.Node;
+import org.xml.sax.SAXException;
+
+import com.helger.commons.ValueEnforcer;
+import com.helger.commons.io.file.FileHelper;
+import com.helger.commons.io.stream.StreamHelper;
+import com.helger.commons.state.ESuccess;
+import com.helger.jaxb.JAXBMarshallerHelper;
+import com.helger.jaxb.builder.IJAXBDocumentType;
+import com.helger.jaxb.validation.CollectingValidationEventHandler;
+import com.helger.xml.XMLFactory;
+import com.helger.xml.serialize.read.DOMReader;
+
+/**
+ * Shared marshalling facility for all {@link EEbms3DocumentType} and
+ * {@link EXMLDSigDocumentType} documents. The {@link JAXBContext} and the
+ * compiled {@link Schema} are created only once per document type and the
+ * {@link Marshaller} and {@link Unmarshaller} instances are pooled.
+ * In contrast to {@link Ebms3ReaderBuilder} and {@link Ebms3WriterBuilder} this
+ * class is meant to be used on the hot path of message processing.
+ *
+ * @author Philip Helger
+ */
+@ThreadSafe
+public final class AS4Marshaller
+{
+  private static final Logger s_aLogger = LoggerFactory.getLogger (AS4Marshaller.class);
+  // A class level pool instead of a ThreadLocal, so that container threads do
+  // not keep references into the web application class loader.
+  private static final int MAX_POOLED_INSTANCES = 2 * Runtime.getRuntime ().availableProcessors ();
+
+  /**
+   * Everything that can be reused for a single document type.
+   */
+  private static final class CachedDocType
+  {
+    private final IJAXBDocumentType m_aDocType;
+    private final JAXBContext m_aJAXBContext;
+    private final Schema m_aSchema;
+    private final QName m_aRootElementName;
+    private final BlockingQueue <Marshaller> m_aMarshallerPool = new ArrayBlockingQueue <> (MAX_POOLED_INSTANCES);
+    private final BlockingQueue <Unmarshaller> m_aUnmarshallerPool = new ArrayBlockingQueue <> (MAX_POOLED_INSTANCES);
+
+    CachedDocType (@Nonnull final IJAXBDocumentType aDocType)
+    {
+      final Class <?> aImplClass = aDocType.getImplementationClass ();
+      m_aDocType = aDocType;
+      try
+      {
+        m_aJAXBContext = JAXBContext.newInstance (aImplClass.getPackage ().getName (), aImplClass.getClassLoader ());
+      }
+      catch (final JAXBException ex)
+      {
+        throw new IllegalStateException ("Failed to create JAXB context for " + aImplClass.getName (), ex);
+      }
+      m_aSchema = aDocType.getSchema (aImplClass.getClassLoader ());
+      m_aRootElementName = new QName (aDocType.getNamespaceURI (), aDocType.getLocalName ());
+    }
+
+    @Nonnull
+    private Marshaller _createMarshaller ()
+    {
+      try
+      {
+        final Marshaller aMarshaller = m_aJAXBContext.createMarshaller ();
+        try
+        {
+          JAXBMarshallerHelper.setSunNamespacePrefixMapper (aMarshaller, new Ebms3NamespaceHandler ());
+        }
+        catch (final IllegalArgumentException ex)
+        {
+          // Non-Sun JAXB implementation
+          s_aLogger.warn ("Failed to set namespace prefix mapper for " + m_aDocType.getLocalName (), ex);
+        }
+        return aMarshaller;
+      }
+      catch (final JAXBException ex)
+      {
+        throw new IllegalStateException ("Failed to create Marshaller for " + m_aDocType.getLocalName (), ex);
+      }
+    }
+
+    @Nonnull
+    private Unmarshaller _createUnmarshaller ()
+    {
+      try
+      {
+        final Unmarshaller aUnmarshaller = m_aJAXBContext.createUnmarshaller ();
+        // Incoming documents are always validated
+        aUnmarshaller.setSchema (m_aSchema);
+        return aUnmarshaller;
+      }
+      catch (final JAXBException ex)
+      {
+        throw new IllegalStateException ("Failed to create Unmarshaller for " + m_aDocType.getLocalName (), ex);
+      }
+    }
+
+    /**
+     * @return A marshaller that must be handed back via
+     *         {@link #returnMarshaller(Marshaller)}. Never <code>null</code>.
+     */
+    @Nonnull
+    Marshaller borrowMarshaller ()
+    {
+      Marshaller ret = m_aMarshallerPool.poll ();
+      if (ret == null)
+        ret = _createMarshaller ();
+      ret.setSchema (s_bValidateOutbound ? m_aSchema : null);
+      return ret;
+    }
+
+    void returnMarshaller (@Nonnull final Marshaller aMarshaller)
+    {
+      // Discarded if the pool is full
+      m_aMarshallerPool.offer (aMarshaller);
+    }
+
+    /**
+     * @param aEventHandler
+     *        The validation event handler to use. May not be
+     *        <code>null</code>.
+     * @return An unmarshaller that must be handed back via
+     *         {@link #returnUnmarshaller(Unmarshaller)}. Never
+     *         <code>null</code>.
+     */
+    @Nonnull
+    Unmarshaller borrowUnmarshaller (@Nonnull final ValidationEventHandler aEventHandler)
+    {
+      Unmarshaller ret = m_aUnmarshallerPool.poll ();
+      if (ret == null)
+        ret = _createUnmarshaller ();
+      try
+      {
+        ret.setEventHandler (aEventHandler);
+      }
+      catch (final JAXBException ex)
+      {
+        throw new IllegalStateException ("Failed to set Unmarshaller event handler", ex);
+      }
+      return ret;
+    }
+
+    void returnUnmarshaller (@Nonnull final Unmarshaller aUnmarshaller)
+    {
+      try
+      {
+        // Don't keep a reference to the handler of the caller
+        aUnmarshaller.setEventHandler (null);
+      }
+      catch (final JAXBException ex)
+      {
+        // Don't reuse it
+        s_aLogger.warn ("Failed to reset Unmarshaller of " + m_aDocType.getLocalName (), ex);
+        return;
+      }
+      // Discarded if the pool is full
+      m_aUnmarshallerPool.offer (aUnmarshaller);
+    }
+
+    @Nonnull
+    <T> JAXBElement <T> wrap (@Nonnull final Class <T> aClass, @Nonnull final T aObject)
+    {
+      return new JAXBElement <> (m_aRootElementName, aClass, aObject);
+    }
+  }
+
+  private static final Map <IJAXBDocumentType, CachedDocType> s_aCache = new ConcurrentHashMap <> ();
+  private static volatile boolean s_bValidateOutbound = true;
+
+  private AS4Marshaller ()
+  {}
+
+  @Nonnull
+  private static CachedDocType _get (@Nonnull final IJAXBDocumentType aDocType)
+  {
+    ValueEnforcer.notNull (aDocType, "DocType");
+    return s_aCache.computeIfAbsent (aDocType, CachedDocType::new);
+  }
+
+  /**
+   * @return <code>true</code> if documents created by this AS4 stack are
+   *         validated against the XML Schema before they are sent. Default is
+   *         <code>true</code>.
+   */
+  public static boolean isValidateOutbound ()
+  {
+    return s_bValidateOutbound;
+  }
+
+  /**
+   * Enable or disable the XML Schema validation of documents created by this
+   * AS4 stack. Incoming documents are always validated.
+   *
+   * @param bValidateOutbound
+   *        <code>true</code> to validate, <code>false</code> to skip
+   *        validation.
+   */
+  public static void setValidateOutbound (final boolean bValidateOutbound)
+  {
+    s_bValidateOutbound = bValidateOutbound;
+  }
+
+  /**
+   * Read the passed DOM node.
+   *
+   * @param aDocType
+   *        Document type to read. May not be <code>null</code>.
+   * @param aClass
+   *        The implementation class of the document type. May not be
+   *        <code>null</code>.
+   * @param aNode
+   *        The node to read from. May not be <code>null</code>.
+   * @param aEventHandler
+   *        The validation event handler to use. May be <code>null</code> in
+   *        which case validation errors are logged.
+   * @return <code>null</code> if reading or validation failed.
+   * @param <T>
+   *        JAXB type
+   */
+  @Nullable
+  public static <T> T read (@Nonnull final IJAXBDocumentType aDocType,
+                            @Nonnull final Class <T> aClass,
+                            @Nonnull final Node aNode,
+                            @Nullable final ValidationEventHandler aEventHandler)
+  {
+    ValueEnforcer.notNull (aClass, "Class");
+    ValueEnforcer.notNull (aNode, "Node");
+
+    final CollectingValidationEventHandler aLoggingEH = aEventHandler == null ? new CollectingValidationEventHandler ()
+                                                                              : null;
+    final CachedDocType aCached = _get (aDocType);
+    final Unmarshaller aUnmarshaller = aCached.borrowUnmarshaller (aEventHandler != null ? aEventHandler : aLoggingEH);
+    try
+    {
+      return aUnmarshaller.unmarshal (aNode, aClass).getValue ();
+    }
+    catch (final JAXBException ex)
+    {
+      if (aLoggingEH != null && aLoggingEH.getErrorList ().isNotEmpty ())
+        s_aLogger.warn ("Failed to read " + aDocType.getLocalName () + ": " + aLoggingEH.getErrorList ());
+      else
+        s_aLogger.warn ("Failed to read " + aDocType.getLocalName (), ex);
+      return null;
+    }
+    finally
+    {
+      aCached.returnUnmarshaller (aUnmarshaller);
+    }
+  }
+
+  /**
+   * Read the passed XML file.
+   *
+   * @param aDocType
+   *        Document type to read. May not be <code>null</code>.
+   * @param aClass
+   *        The implementation class of the document type. May not be
+   *        <code>null</code>.
+   * @param aFile
+   *        The file to read from. May not be <code>null</code>.
+   * @return <code>null</code> if parsing, reading or validation failed.
+   * @param <T>
+   *        JAXB type
+   */
+  @Nullable
+  public static <T> T read (@Nonnull final IJAXBDocumentType aDocType,
+                            @Nonnull final Class <T> aClass,
+                            @Nonnull final File aFile)
+  {
+    ValueEnforcer.notNull (aFile, "File");
+
+    final Document aDoc;
+    try
+    {
+      aDoc = DOMReader.readXMLDOM (aFile);
+    }
+    catch (final SAXException ex)
+    {
+      s_aLogger.warn ("Failed to parse " + aFile.getAbsolutePath (), ex);
+      return null;
+    }
+    return aDoc == null ? null : read (aDocType, aClass, aDoc, null);
+  }
+
+  /**
+   * Create a new DOM document from the passed object.
+   *
+   * @param aDocType
+   *        Document type to write. May not be <code>null</code>.
+   * @param aClass
+   *        The implementation class of the document type. May not be
+   *        <code>null</code>.
+   * @param aObject
+   *        The object to write. May not be <code>null</code>.
+   * @return <code>null</code> if writing or validation failed.
+   * @param <T>
+   *        JAXB type
+   */
+  @Nullable
+  public static <T> Document getAsDocument (@Nonnull final IJAXBDocumentType aDocType,
+                                            @Nonnull final Class <T> aClass,
+                                            @Nonnull final T aObject)
+  {
+    ValueEnforcer.notNull (aClass, "Class");
+    ValueEnforcer.notNull (aObject, "Object");
+
+    final CachedDocType aCached = _get (aDocType);
+    final Document aDoc = XMLFactory.newDocument ();
+    final Marshaller aMarshaller = aCached.borrowMarshaller ();
+    try
+    {
+      aMarshaller.marshal (aCached.wrap (aClass, aObject), new DOMResult (aDoc));
+      return aDoc;
+    }
+    catch (final JAXBException ex)
+    {
+      s_aLogger.warn ("Failed to write " + aDocType.getLocalName (), ex);
+      return null;
+    }
+    finally
+    {
+      aCached.returnMarshaller (aMarshaller);
+    }
+  }
+
+  /**
+   * Write the passed object to a file.
+   *
+   * @param aDocType
+   *        Document type to write. May not be <code>null</code>.
+   * @param aClass
+   *        The implementation class of the document type. May not be
+   *        <code>null</code>.
+   * @param aObject
+   *        The object to write. May not be <code>null</code>.
+   * @param aFile
+   *        The file to write to. May not be <code>null</code>.
+   * @return {@link ESuccess}
+   * @param <T>
+   *        JAXB type
+   */
+  @Nonnull
+  public static <T> ESuccess write (@Nonnull final IJAXBDocumentType aDocType,
+                                    @Nonnull final Class <T> aClass,
+                                    @Nonnull final T aObject,
+                                    @Nonnull final File aFile)
+  {
+    ValueEnforcer.notNull (aClass, "Class");
+    ValueEnforcer.notNull (aObject, "Object");
+    ValueEnforcer.notNull (aFile, "File");
+
+    final CachedDocType aCached = _get (aDocType);
+    final Marshaller aMarshaller = aCached.borrowMarshaller ();
+    try (final OutputStream aOS = StreamHelper.getBuffered (FileHelper.getOutputStream (aFile)))
+    {
+      if (aOS == null)
+        return ESuccess.FAILURE;
+      aMarshaller.marshal (aCached.wrap (aClass, aObject), aOS);
+      return ESuccess.SUCCESS;
+    }
+    catch (final JAXBException | IOException ex)
+    {
+      s_aLogger.warn ("Failed to write " + aDocType.getLocalName () + " to " + aFile.getAbsolutePath (), ex);
+      return ESuccess.FAILURE;
+    }
+    finally
+    {
+      aCached.returnMarshaller (aMarshaller);
+    }
+  }
+}
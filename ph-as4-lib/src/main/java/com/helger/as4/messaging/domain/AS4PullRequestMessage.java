@@ -36,4 +36,21 @@ public class AS4PullRequestMessage extends AbstractAS4Message <AS4PullRequestMes
     ValueEnforcer.notNull (aSignalMessage, "SignalMessage");
     m_aMessaging.addSignalMessage (aSignalMessage);
   }
+
+  /**
+   * Bundle another signal message (e.g. a receipt for a previously pulled user
+   * message) with this pull request. The pull request always stays the first
+   * signal message.
+   *
+   * @param aSignalMessage
+   *        The signal message to bundle. May not be <code>null</code>.
+   * @return this for chaining
+   */
+  @Nonnull
+  public AS4PullRequestMessage addBundledSignalMessage (@Nonnull final Ebms3SignalMessage aSignalMessage)
+  {
+    ValueEnforcer.notNull (aSignalMessage, "SignalMessage");
+    m_aMessaging.addSignalMessage (aSignalMessage);
+    return this;
+  }
 }
@@ -35,4 +35,13 @@ public class AS4ReceiptMessage extends AbstractAS4Message <AS4ReceiptMessage>
     ValueEnforcer.notNull (aSignalMessage, "SignalMessage");
     m_aMessaging.addSignalMessage (aSignalMessage);
   }
+
+  /**
+   * @return The contained receipt signal message. Never <code>null</code>.
+   */
+  @Nonnull
+  public Ebms3SignalMessage getEbms3SignalMessage ()
+  {
+    return m_aMessaging.getSignalMessageAtIndex (0);
+  }
 }
@@ -22,8 +22,9 @@ import javax.annotation.Nullable;
 import org.w3c.dom.Node;
 
 import com.helger.as4.CAS4;
-import com.helger.as4.marshaller.Ebms3WriterBuilder;
-import com.helger.as4.marshaller.XMLDSigReaderBuilder;
+import com.helger.as4.marshaller.AS4Marshaller;
+import com.helger.as4.marshaller.EEbms3DocumentType;
+import com.helger.as4.marshaller.EXMLDSigDocumentType;
 import com.helger.as4.soap.ESOAPVersion;
 import com.helger.as4lib.ebms3header.Ebms3MessageInfo;
 import com.helger.as4lib.ebms3header.Ebms3Receipt;
@@ -104,7 +105,10 @@ public final class CreateReceiptMessage
       final NonRepudiationInformation aNonRepudiationInformation = new NonRepudiationInformation ();
       for (final Node aRef : aDSRefs)
       {
-        final ReferenceType aRefObj = XMLDSigReaderBuilder.dsigReference ().read (aRef);
+        final ReferenceType aRefObj = AS4Marshaller.read (EXMLDSigDocumentType.REFERENCE,
+                                                          ReferenceType.class,
+                                                          aRef,
+                                                          null);
 
         final MessagePartNRInformation aMessagePartNRInformation = new MessagePartNRInformation ();
         aMessagePartNRInformation.setReference (aRefObj);
@@ -112,9 +116,10 @@ public final class CreateReceiptMessage
         aNonRepudiationInformation.addMessagePartNRInformation (aMessagePartNRInformation);
       }
 
-      aEbms3Receipt.addAny (Ebms3WriterBuilder.nonRepudiationInformation ()
-                                              .getAsDocument (aNonRepudiationInformation)
-                                              .getDocumentElement ());
+      aEbms3Receipt.addAny (AS4Marshaller.getAsDocument (EEbms3DocumentType.NON_REPUDIATION_INFORMATION,
+                                                         NonRepudiationInformation.class,
+                                                         aNonRepudiationInformation)
+                                         .getDocumentElement ());
     }
     else
     {
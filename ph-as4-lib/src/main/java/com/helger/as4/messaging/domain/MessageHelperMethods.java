@@ -26,12 +26,18 @@ import javax.mail.Header;
 import javax.mail.MessagingException;
 import javax.mail.internet.MimeMessage;
 
+import org.apache.http.HttpEntity;
 import org.apache.http.HttpMessage;
+import org.apache.http.client.methods.HttpPost;
 
 import com.helger.as4.CAS4;
+import com.helger.as4.client.HttpMimeMessageEntity;
 import com.helger.as4lib.ebms3header.Ebms3MessageInfo;
 import com.helger.commons.ValueEnforcer;
 import com.helger.commons.annotation.Nonempty;
+import com.helger.commons.annotation.ReturnsMutableCopy;
+import com.helger.commons.collection.ext.CommonsLinkedHashMap;
+import com.helger.commons.collection.ext.ICommonsOrderedMap;
 import com.helger.commons.string.StringHelper;
 import com.helger.datetime.util.PDTXMLConverter;
 import com.helger.http.HTTPStringHelper;
@@ -112,4 +118,34 @@ public final class MessageHelperMethods
       aMimeMsg.removeHeader (h.getName ());
     }
   }
+
+  /**
+   * Determine all HTTP headers required to transmit the passed entity, the same
+   * way as the AS4 client does. If the entity is a MIME message, the MIME
+   * headers are moved to the resulting map.
+   *
+   * @param aHttpEntity
+   *        The built message entity. May not be <code>null</code>.
+   * @return The ordered map from header name to single-line header value.
+   *         Never <code>null</code>.
+   * @throws MessagingException
+   *         In case the MIME headers cannot be read
+   */
+  @Nonnull
+  @ReturnsMutableCopy
+  public static ICommonsOrderedMap <String, String> getAllHTTPHeaders (@Nonnull final HttpEntity aHttpEntity) throws MessagingException
+  {
+    ValueEnforcer.notNull (aHttpEntity, "HttpEntity");
+
+    final HttpPost aPost = new HttpPost ();
+    if (aHttpEntity instanceof HttpMimeMessageEntity)
+      moveMIMEHeadersToHTTPHeader (((HttpMimeMessageEntity) aHttpEntity).getMimeMessage (), aPost);
+
+    final ICommonsOrderedMap <String, String> ret = new CommonsLinkedHashMap <> ();
+    for (final org.apache.http.Header aHeader : aPost.getAllHeaders ())
+      ret.put (aHeader.getName (), aHeader.getValue ());
+    if (aHttpEntity.getContentType () != null)
+      ret.putIfAbsent (aHttpEntity.getContentType ().getName (), aHttpEntity.getContentType ().getValue ());
+    return ret;
+  }
 }
@@ -52,7 +52,7 @@ public class EncryptionCreator
 
   public EncryptionCreator ()
   {
-    this (new AS4CryptoFactory ());
+    this (AS4CryptoFactory.getDefaultInstance ());
   }
 
   public EncryptionCreator (@Nonnull final AS4CryptoFactory aCryptoFactory)
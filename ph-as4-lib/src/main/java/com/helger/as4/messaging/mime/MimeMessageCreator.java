@@ -16,8 +16,14 @@
  */
 package com.helger.as4.messaging.mime;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.UnknownServiceException;
 import java.nio.charset.StandardCharsets;
 
+import javax.activation.DataHandler;
+import javax.activation.DataSource;
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 import javax.mail.MessagingException;
@@ -28,18 +34,99 @@ import javax.xml.transform.TransformerException;
 import javax.xml.transform.TransformerFactoryConfigurationError;
 
 import org.w3c.dom.Document;
+import org.w3c.dom.Node;
 
 import com.helger.as4.attachment.WSS4JAttachment;
 import com.helger.as4.soap.ESOAPVersion;
 import com.helger.as4.util.AS4XMLHelper;
 import com.helger.commons.ValueEnforcer;
 import com.helger.commons.collection.ext.ICommonsList;
+import com.helger.commons.io.stream.NonBlockingByteArrayInputStream;
+import com.helger.http.CHTTPHeader;
 import com.helger.mail.cte.EContentTransferEncoding;
 
 public final class MimeMessageCreator
 {
   private static final String CONTENT_TRANSFER_ENCODING = "Content-Transfer-Encoding";
 
+  /**
+   * Data source for an XML node that is serialized on demand.
+   *
+   * @author Philip Helger
+   */
+  private static final class XMLDataSource implements DataSource
+  {
+    private final Node m_aNode;
+    private final String m_sContentType;
+
+    XMLDataSource (@Nonnull final Node aNode, @Nonnull final String sContentType)
+    {
+      m_aNode = aNode;
+      m_sContentType = sContentType;
+    }
+
+    @Nonnull
+    public InputStream getInputStream () throws IOException
+    {
+      // Only used by readers of the part - writing uses XMLDataHandler
+      try
+      {
+        return new NonBlockingByteArrayInputStream (AS4XMLHelper.serializeXMLToBytes (m_aNode));
+      }
+      catch (final TransformerException ex)
+      {
+        throw new IOException ("Failed to serialize XML", ex);
+      }
+    }
+
+    public OutputStream getOutputStream () throws IOException
+    {
+      throw new UnknownServiceException ("XML data source is read-only");
+    }
+
+    @Nonnull
+    public String getContentType ()
+    {
+      return m_sContentType;
+    }
+
+    @Nullable
+    public String getName ()
+    {
+      return null;
+    }
+  }
+
+  /**
+   * Data handler that serializes an XML node directly to the output stream
+   * without creating an intermediate byte array.
+   *
+   * @author Philip Helger
+   */
+  private static final class XMLDataHandler extends DataHandler
+  {
+    private final Node m_aNode;
+
+    XMLDataHandler (@Nonnull final Node aNode, @Nonnull final String sContentType)
+    {
+      super (new XMLDataSource (aNode, sContentType));
+      m_aNode = aNode;
+    }
+
+    @Override
+    public void writeTo (@Nonnull final OutputStream aOS) throws IOException
+    {
+      try
+      {
+        AS4XMLHelper.serializeXML (m_aNode, aOS);
+      }
+      catch (final TransformerException ex)
+      {
+        throw new IOException ("Failed to serialize XML", ex);
+      }
+    }
+  }
+
   private final ESOAPVersion m_eSOAPVersion;
 
   public MimeMessageCreator (@Nonnull final ESOAPVersion eSOAPVersion)
@@ -59,8 +146,10 @@ public final class MimeMessageCreator
     {
       // Message Itself
       final MimeBodyPart aMessagePart = new MimeBodyPart ();
-      final String aDoc = AS4XMLHelper.serializeXML (aSOAPEnvelope);
-      aMessagePart.setContent (aDoc, m_eSOAPVersion.getMimeType (StandardCharsets.UTF_8).getAsString ());
+      final String sContentType = m_eSOAPVersion.getMimeType (StandardCharsets.UTF_8).getAsString ();
+      // Serialized directly into the MIME output when the message is written
+      aMessagePart.setDataHandler (new XMLDataHandler (aSOAPEnvelope, sContentType));
+      aMessagePart.setHeader (CHTTPHeader.CONTENT_TYPE, sContentType);
       aMessagePart.setHeader (CONTENT_TRANSFER_ENCODING, eCTE.getID ());
       aMimeMultipart.addBodyPart (aMessagePart);
     }
@@ -16,17 +16,27 @@
  */
 package com.helger.as4.messaging.sign;
 
+import java.io.IOException;
+import java.security.NoSuchProviderException;
+import java.util.List;
+
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
+import javax.xml.crypto.dsig.Reference;
+import javax.xml.crypto.dsig.Transform;
+import javax.xml.crypto.dsig.XMLSignatureFactory;
 
 import org.apache.wss4j.common.WSEncryptionPart;
 import org.apache.wss4j.common.ext.WSSecurityException;
 import org.apache.wss4j.dom.WSConstants;
 import org.apache.wss4j.dom.message.WSSecHeader;
 import org.apache.wss4j.dom.message.WSSecSignature;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.w3c.dom.Attr;
 import org.w3c.dom.Document;
 
+import com.helger.as4.attachment.AS4AttachmentDigester;
 import com.helger.as4.attachment.WSS4JAttachment;
 import com.helger.as4.attachment.WSS4JAttachmentCallbackHandler;
 import com.helger.as4.crypto.AS4CryptoFactory;
@@ -38,15 +48,98 @@ import com.helger.as4.soap.ESOAPVersion;
 import com.helger.as4.util.AS4ResourceManager;
 import com.helger.commons.ValueEnforcer;
 import com.helger.commons.collection.CollectionHelper;
+import com.helger.commons.collection.ext.CommonsArrayList;
+import com.helger.commons.collection.ext.CommonsHashMap;
 import com.helger.commons.collection.ext.ICommonsList;
+import com.helger.commons.collection.ext.ICommonsMap;
 
 public class SignedMessageCreator
 {
+  /**
+   * Signature builder that uses pre-calculated digests for the attachment
+   * references, so that WSS4J does not digest the attachments sequentially.
+   *
+   * @author Philip Helger
+   */
+  private static final class PreDigestedSignature extends WSSecSignature
+  {
+    private final ECryptoAlgorithmSignDigest m_eDigest;
+    private final ICommonsMap <String, byte []> m_aDigests;
+
+    PreDigestedSignature (@Nonnull final ECryptoAlgorithmSignDigest eDigest,
+                          @Nonnull final ICommonsMap <String, byte []> aDigests)
+    {
+      m_eDigest = eDigest;
+      m_aDigests = aDigests;
+    }
+
+    @Nonnull
+    private static XMLSignatureFactory _getSignatureFactory ()
+    {
+      // Same lookup as in WSS4J, so that the references are of the same
+      // implementation
+      try
+      {
+        return XMLSignatureFactory.getInstance ("DOM", "ApacheXMLDSig");
+      }
+      catch (final NoSuchProviderException ex)
+      {
+        return XMLSignatureFactory.getInstance ("DOM");
+      }
+    }
+
+    @Nullable
+    private byte [] _getDigest (@Nonnull final Reference aRef)
+    {
+      final String sURI = aRef.getURI ();
+      if (sURI == null || !sURI.startsWith (CreateUserMessage.PREFIX_CID))
+        return null;
+      if (!m_eDigest.getAlgorithmURI ().equals (aRef.getDigestMethod ().getAlgorithm ()))
+        return null;
+
+      // The digest is only valid for the content transform
+      final List <?> aTransforms = aRef.getTransforms ();
+      if (aTransforms.size () != 1 ||
+          !WSConstants.SWA_ATTACHMENT_CONTENT_SIG_TRANS.equals (((Transform) aTransforms.get (0)).getAlgorithm ()))
+        return null;
+
+      return m_aDigests.get (sURI.substring (CreateUserMessage.PREFIX_CID.length ()));
+    }
+
+    @Override
+    public List <Reference> addReferencesToSign (final List <WSEncryptionPart> aParts,
+                                                 final WSSecHeader aSecHeader) throws WSSecurityException
+    {
+      final List <Reference> aRefs = super.addReferencesToSign (aParts, aSecHeader);
+      if (m_aDigests.isEmpty ())
+        return aRefs;
+
+      final XMLSignatureFactory aSignatureFactory = _getSignatureFactory ();
+      final List <Reference> ret = new CommonsArrayList <> (aRefs.size ());
+      for (final Reference aRef : aRefs)
+      {
+        final byte [] aDigest = _getDigest (aRef);
+        if (aDigest == null)
+          ret.add (aRef);
+        else
+          ret.add (aSignatureFactory.newReference (aRef.getURI (),
+                                                   aRef.getDigestMethod (),
+                                                   aRef.getTransforms (),
+                                                   aRef.getType (),
+                                                   aRef.getId (),
+                                                   aDigest));
+      }
+      return ret;
+    }
+  }
+
+  private static final Logger s_aLogger = LoggerFactory.getLogger (SignedMessageCreator.class);
+
   private final AS4CryptoFactory m_aCryptoFactory;
 
   public SignedMessageCreator ()
   {
-    this (new AS4CryptoFactory ());
+    this (AS4CryptoFactory.getDefaultInstance ());
   }
 
   public SignedMessageCreator (@Nonnull final AS4CryptoFactory aCryptoFactory)
@@ -55,19 +148,17 @@ public class SignedMessageCreator
     m_aCryptoFactory = aCryptoFactory;
   }
 
-  @Nonnull
-  private WSSecSignature _getBasicBuilder (@Nonnull final ECryptoAlgorithmSign eCryptoAlgorithmSign,
-                                           @Nonnull final ECryptoAlgorithmSignDigest eCryptoAlgorithmSignDigest)
+  private void _initBuilder (@Nonnull final WSSecSignature aBuilder,
+                             @Nonnull final ECryptoAlgorithmSign eCryptoAlgorithmSign,
+                             @Nonnull final ECryptoAlgorithmSignDigest eCryptoAlgorithmSignDigest)
   {
     final CryptoProperties aCryptoProps = m_aCryptoFactory.getCryptoProperties ();
 
-    final WSSecSignature aBuilder = new WSSecSignature ();
     aBuilder.setUserInfo (aCryptoProps.getKeyAlias (), aCryptoProps.getKeyPassword ());
     aBuilder.setKeyIdentifierType (WSConstants.BST_DIRECT_REFERENCE);
     aBuilder.setSignatureAlgorithm (eCryptoAlgorithmSign.getAlgorithmURI ());
     // PMode indicates the DigestAlgorithm as Hash Function
     aBuilder.setDigestAlgo (eCryptoAlgorithmSignDigest.getAlgorithmURI ());
-    return aBuilder;
   }
 
   /**
@@ -101,10 +192,24 @@ public class SignedMessageCreator
                                        @Nonnull final ECryptoAlgorithmSign eCryptoAlgorithmSign,
                                        @Nonnull final ECryptoAlgorithmSignDigest eCryptoAlgorithmSignDigest) throws WSSecurityException
   {
-    final WSSecSignature aBuilder = _getBasicBuilder (eCryptoAlgorithmSign, eCryptoAlgorithmSignDigest);
-
+    final WSSecSignature aBuilder;
     if (CollectionHelper.isNotEmpty (aAttachments))
     {
+      // Digest all attachments concurrently up front
+      ICommonsMap <String, byte []> aDigests;
+      try
+      {
+        aDigests = AS4AttachmentDigester.getAllDigests (aAttachments, eCryptoAlgorithmSignDigest);
+      }
+      catch (final IOException ex)
+      {
+        // WSS4J digests them and reports the error
+        s_aLogger.warn ("Failed to pre-digest attachments: " + ex.getMessage ());
+        aDigests = new CommonsHashMap <> ();
+      }
+      aBuilder = new PreDigestedSignature (eCryptoAlgorithmSignDigest, aDigests);
+      _initBuilder (aBuilder, eCryptoAlgorithmSign, eCryptoAlgorithmSignDigest);
+
       // Modify builder for attachments
       aBuilder.getParts ().add (new WSEncryptionPart ("Body", eSOAPVersion.getNamespaceURI (), "Content"));
       // XXX where is this ID used????
@@ -114,6 +219,11 @@ public class SignedMessageCreator
                                                                                                             aResMgr);
       aBuilder.setAttachmentCallbackHandler (aAttachmentCallbackHandler);
     }
+    else
+    {
+      aBuilder = new WSSecSignature ();
+      _initBuilder (aBuilder, eCryptoAlgorithmSign, eCryptoAlgorithmSignDigest);
+    }
 
     // Start signing the document
     final WSSecHeader aSecHeader = new WSSecHeader (aPreSigningMessage);
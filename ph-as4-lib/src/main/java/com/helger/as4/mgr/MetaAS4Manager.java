@@ -23,8 +23,13 @@ import javax.annotation.Nonnull;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.helger.as4.attachment.AS4AttachmentDigester;
+import com.helger.as4.attachment.EAS4CompressionMode;
 import com.helger.as4.duplicate.AS4DuplicateManager;
+import com.helger.as4.duplicate.AS4SegmentedDuplicateStore;
 import com.helger.as4.model.mpc.MPCManager;
+import com.helger.as4.model.mpc.MPCQueue;
+import com.helger.as4.model.mpc.MPCQueueManager;
 import com.helger.as4.model.pmode.PModeManager;
 import com.helger.as4.model.pmode.config.PModeConfigManager;
 import com.helger.as4.partner.PartnerManager;
@@ -34,6 +39,7 @@ import com.helger.commons.exception.InitializationException;
 import com.helger.commons.lang.ClassHelper;
 import com.helger.commons.scope.IScope;
 import com.helger.commons.scope.singleton.AbstractGlobalSingleton;
+import com.helger.photon.basic.app.io.WebFileIO;
 
 public final class MetaAS4Manager extends AbstractGlobalSingleton
 {
@@ -41,7 +47,10 @@ public final class MetaAS4Manager extends AbstractGlobalSingleton
   private static final String PARTNER_XML = "as4-partner.xml";
   private static final String PMODE_CONFIG_XML = "as4-pmodeconfig.xml";
   private static final String PMODE_XML = "as4-pmode.xml";
-  private static final String INCOMING_DUPLICATE_XML = "as4-duplicate-incoming.xml";
+  private static final String INCOMING_DUPLICATE_DIR = "as4-duplicate-incoming";
+  // Written by previous versions
+  private static final String LEGACY_INCOMING_DUPLICATE_XML = "as4-duplicate-incoming.xml";
+  private static final String MPC_OVERFLOW_DIR = "as4-mpc-overflow";
 
   private static final Logger s_aLogger = LoggerFactory.getLogger (MetaAS4Manager.class);
 
@@ -51,6 +60,7 @@ public final class MetaAS4Manager extends AbstractGlobalSingleton
   private PModeManager m_aPModeMgr;
   private AS4ProfileManager m_aProfileMgr;
   private AS4DuplicateManager m_aIncomingDuplicateMgr;
+  private MPCQueueManager m_aMPCQueueMgr;
 
   @Deprecated
   @UsedViaReflection
@@ -73,7 +83,13 @@ public final class MetaAS4Manager extends AbstractGlobalSingleton
       m_aPModeConfigMgr = new PModeConfigManager (PMODE_CONFIG_XML);
       m_aPModeMgr = new PModeManager (PMODE_XML);
       m_aProfileMgr = new AS4ProfileManager ();
-      m_aIncomingDuplicateMgr = new AS4DuplicateManager (INCOMING_DUPLICATE_XML);
+      final AS4SegmentedDuplicateStore aDuplicateStore = new AS4SegmentedDuplicateStore (WebFileIO.getDataIO ()
+                                                                                                  .getFile (INCOMING_DUPLICATE_DIR),
+                                                                                         AS4SegmentedDuplicateStore.DEFAULT_BUCKET_WIDTH);
+      aDuplicateStore.importLegacyXML (WebFileIO.getDataIO ().getFile (LEGACY_INCOMING_DUPLICATE_XML));
+      m_aIncomingDuplicateMgr = new AS4DuplicateManager (aDuplicateStore);
+      m_aMPCQueueMgr = new MPCQueueManager (WebFileIO.getDataIO ().getFile (MPC_OVERFLOW_DIR),
+                                            MPCQueue.DEFAULT_MAX_IN_MEMORY_BYTES);
 
       _initCallbacks ();
 
@@ -91,7 +107,14 @@ public final class MetaAS4Manager extends AbstractGlobalSingleton
 
   @Override
   protected void onBeforeDestroy (@Nonnull final IScope aScopeToBeDestroyed) throws Exception
-  {}
+  {
+    if (m_aIncomingDuplicateMgr != null)
+      m_aIncomingDuplicateMgr.close ();
+
+    // Don't keep threads of the web application alive
+    EAS4CompressionMode.shutdownExecutors ();
+    AS4AttachmentDigester.shutdown ();
+  }
 
   @Nonnull
   public static MetaAS4Manager getInstance ()
@@ -134,4 +157,10 @@ public final class MetaAS4Manager extends AbstractGlobalSingleton
   {
     return getInstance ().m_aIncomingDuplicateMgr;
   }
+
+  @Nonnull
+  public static MPCQueueManager getMPCQueueMgr ()
+  {
+    return getInstance ().m_aMPCQueueMgr;
+  }
 }
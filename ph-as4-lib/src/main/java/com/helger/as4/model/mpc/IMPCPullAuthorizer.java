@@ -0,0 +1,85 @@
+/**
+ * Copyright (C) 2015-2017 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.as4.model.mpc;
+
+import java.security.cert.X509Certificate;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import com.helger.commons.ValueEnforcer;
+import com.helger.commons.collection.ext.CommonsHashSet;
+import com.helger.commons.collection.ext.ICommonsSet;
+
+/**
+ * Decide whether a pulling party may receive the messages queued for an MPC.
+ *
+ * @author Philip Helger
+ */
+@FunctionalInterface
+public interface IMPCPullAuthorizer
+{
+  /**
+   * Check if a pull request is authorized.
+   *
+   * @param aMPC
+   *        The MPC that should be pulled from. May not be <code>null</code>.
+   * @param aUsedCertificate
+   *        The certificate the pull request was signed with. May be
+   *        <code>null</code> if the pull request was not signed.
+   * @return <code>true</code> if the next queued message may be returned.
+   */
+  boolean isPullAuthorized (@Nonnull IMPC aMPC, @Nullable X509Certificate aUsedCertificate);
+
+  /**
+   * @return An authorizer that refuses all pull requests. This is the default.
+   */
+  @Nonnull
+  static IMPCPullAuthorizer denyAll ()
+  {
+    return (aMPC, aCert) -> false;
+  }
+
+  /**
+   * @return An authorizer that accepts all pull requests that were signed by
+   *         any partner. Only use this, if all partners that can sign are
+   *         allowed to receive the messages of all MPCs.
+   */
+  @Nonnull
+  static IMPCPullAuthorizer signedOnly ()
+  {
+    return (aMPC, aCert) -> aCert != null;
+  }
+
+  /**
+   * Get an authorizer that only accepts pull requests signed with one of the
+   * passed certificates. This is usually set per MPC with the certificate of
+   * the partner the messages of the MPC are meant for.
+   *
+   * @param aCertificates
+   *        The certificates of the partners allowed to pull. May neither be
+   *        <code>null</code> nor empty.
+   * @return The new authorizer. Never <code>null</code>.
+   */
+  @Nonnull
+  static IMPCPullAuthorizer signedWith (@Nonnull final X509Certificate... aCertificates)
+  {
+    ValueEnforcer.notEmptyNoNullValue (aCertificates, "Certificates");
+    final ICommonsSet <X509Certificate> aAllowed = new CommonsHashSet <> (aCertificates);
+    return (aMPC, aCert) -> aCert != null && aAllowed.contains (aCert);
+  }
+}
@@ -18,6 +18,7 @@ package com.helger.as4.model.mpc;
 
 import javax.annotation.Nonnull;
 
+import com.helger.as4.util.AS4SystemPrincipal;
 import com.helger.commons.annotation.Nonempty;
 import com.helger.commons.type.ObjectType;
 import com.helger.photon.basic.object.AbstractObject;
@@ -29,7 +30,7 @@ public class MPC extends AbstractObject implements IMPC
 
   public MPC (@Nonnull @Nonempty final String sID)
   {
-    this (StubObject.createForCurrentUserAndID (sID));
+    this (AS4SystemPrincipal.createStubObject (sID));
   }
 
   MPC (@Nonnull final StubObject aStubObject)
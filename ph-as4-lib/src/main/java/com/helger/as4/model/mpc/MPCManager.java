@@ -19,6 +19,7 @@ package com.helger.as4.model.mpc;
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 
+import com.helger.as4.util.AS4SystemPrincipal;
 import com.helger.commons.ValueEnforcer;
 import com.helger.commons.annotation.ReturnsMutableCopy;
 import com.helger.commons.collection.ext.ICommonsList;
@@ -27,7 +28,6 @@ import com.helger.commons.string.StringHelper;
 import com.helger.photon.basic.app.dao.impl.AbstractMapBasedWALDAO;
 import com.helger.photon.basic.app.dao.impl.DAOException;
 import com.helger.photon.basic.audit.AuditHelper;
-import com.helger.photon.security.object.ObjectHelper;
 
 public class MPCManager extends AbstractMapBasedWALDAO <IMPC, MPC>
 {
@@ -74,7 +74,7 @@ public class MPCManager extends AbstractMapBasedWALDAO <IMPC, MPC>
     m_aRWLock.writeLock ().lock ();
     try
     {
-      ObjectHelper.setLastModificationNow (aRealMPC);
+      AS4SystemPrincipal.setLastModificationNow (aRealMPC);
       internalUpdateItem (aRealMPC);
     }
     finally
@@ -99,7 +99,7 @@ public class MPCManager extends AbstractMapBasedWALDAO <IMPC, MPC>
     m_aRWLock.writeLock ().lock ();
     try
     {
-      if (ObjectHelper.setDeletionNow (aDeletedMPC).isUnchanged ())
+      if (AS4SystemPrincipal.setDeletionNow (aDeletedMPC).isUnchanged ())
       {
         AuditHelper.onAuditDeleteFailure (MPC.OT, "already-deleted", sMPCID);
         return EChange.UNCHANGED;
@@ -0,0 +1,419 @@
+/**
+ * Copyright (C) 2015-2017 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.as4.model.mpc;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.helger.as4.util.AS4IOHelper;
+import com.helger.commons.ValueEnforcer;
+import com.helger.commons.annotation.Nonempty;
+import com.helger.commons.io.file.FileHelper;
+import com.helger.commons.io.file.FileSystemIterator;
+import com.helger.commons.io.stream.StreamHelper;
+import com.helger.commons.string.StringHelper;
+import com.helger.commons.string.StringParser;
+import com.helger.commons.string.ToStringGenerator;
+
+/**
+ * The queue of outbound user messages of a single MPC, that are waiting to be
+ * pulled.
+ * <p>
+ * Enqueueing and dequeueing of the in-memory part is lock-free. Each entry is
+ * handed out exactly once, in FIFO order, to the pulling party that asked
+ * first. If the bodies of the entries in memory exceed the configured number
+ * of bytes and an overflow directory is configured, all further entries are
+ * written to one file per entry in that directory, until the in-memory part
+ * has been drained again. Overflow files survive a restart and are re-read on
+ * construction. Overflow files that cannot be read are moved to a quarantine
+ * sub directory.
+ *
+ * @author Philip Helger
+ */
+@ThreadSafe
+public final class MPCQueue
+{
+  /** The default maximum number of body bytes kept in memory */
+  public static final long DEFAULT_MAX_IN_MEMORY_BYTES = 64L * 1024 * 1024;
+  /** The name of the sub directory for unreadable overflow files */
+  public static final String QUARANTINE_DIR_NAME = "quarantine";
+
+  private static final Logger s_aLogger = LoggerFactory.getLogger (MPCQueue.class);
+  private static final String OVERFLOW_FILE_EXT = ".msg";
+  private static final int OVERFLOW_FILE_DIGITS = 19;
+
+  private final String m_sMPCID;
+  private final long m_nMaxInMemoryBytes;
+  private final File m_aOverflowDir;
+
+  private final ConcurrentLinkedDeque <MPCQueueEntry> m_aMemQueue = new ConcurrentLinkedDeque <> ();
+  // Counts the reserved in-memory body bytes - may be temporarily higher than
+  // the bytes in the queue
+  private final AtomicLong m_aMemBytes = new AtomicLong (0);
+  private final AtomicInteger m_aMemCount = new AtomicInteger (0);
+  // Number of entries in the overflow directory
+  private final AtomicInteger m_aOverflowCount = new AtomicInteger (0);
+
+  private final Lock m_aOverflowLock = new ReentrantLock ();
+  @GuardedBy ("m_aOverflowLock")
+  private long m_nOverflowHead = 0;
+  @GuardedBy ("m_aOverflowLock")
+  private long m_nOverflowTail = 0;
+
+  /**
+   * Constructor
+   *
+   * @param sMPCID
+   *        The ID of the MPC this queue belongs to. May neither be
+   *        <code>null</code> nor empty.
+   * @param nMaxInMemoryBytes
+   *        The maximum number of body bytes kept in memory. Must be &gt; 0.
+   * @param aOverflowDir
+   *        The directory to write entries to, if more than the maximum number
+   *        of bytes is queued. May be <code>null</code> in which case all
+   *        entries are kept in memory.
+   */
+  public MPCQueue (@Nonnull @Nonempty final String sMPCID,
+                   @Nonnegative final long nMaxInMemoryBytes,
+                   @Nullable final File aOverflowDir)
+  {
+    ValueEnforcer.notEmpty (sMPCID, "MPCID");
+    ValueEnforcer.isGT0 (nMaxInMemoryBytes, "MaxInMemoryBytes");
+    m_sMPCID = sMPCID;
+    m_nMaxInMemoryBytes = nMaxInMemoryBytes;
+    m_aOverflowDir = aOverflowDir;
+    if (aOverflowDir != null)
+    {
+      if (AS4IOHelper.getFileOperationManager ().createDirRecursiveIfNotExisting (aOverflowDir).isFailure ())
+        throw new IllegalStateException ("Failed to create MPC overflow directory " + aOverflowDir.getAbsolutePath ());
+      _recoverOverflow ();
+    }
+  }
+
+  private void _recoverOverflow ()
+  {
+    long nMin = Long.MAX_VALUE;
+    long nMax = -1;
+    int nCount = 0;
+    for (final File aFile : new FileSystemIterator (m_aOverflowDir))
+      if (aFile.isFile () && aFile.getName ().endsWith (OVERFLOW_FILE_EXT))
+      {
+        final long nSeq = StringParser.parseLong (StringHelper.trimEnd (aFile.getName (), OVERFLOW_FILE_EXT), -1);
+        if (nSeq >= 0)
+        {
+          nMin = Math.min (nMin, nSeq);
+          nMax = Math.max (nMax, nSeq);
+          nCount++;
+        }
+      }
+    if (nCount > 0)
+    {
+      m_nOverflowHead = nMin;
+      m_nOverflowTail = nMax + 1;
+      // Gaps are skipped when reading
+      m_aOverflowCount.set ((int) (m_nOverflowTail - m_nOverflowHead));
+      s_aLogger.info ("Recovered " + nCount + " overflow entries of MPC '" + m_sMPCID + "'");
+    }
+  }
+
+  @Nonnull
+  private File _getOverflowFile (final long nSeq)
+  {
+    return new File (m_aOverflowDir, StringHelper.getLeadingZero (nSeq, OVERFLOW_FILE_DIGITS) + OVERFLOW_FILE_EXT);
+  }
+
+  /**
+   * @return The ID of the MPC this queue belongs to. Neither <code>null</code>
+   *         nor empty.
+   */
+  @Nonnull
+  @Nonempty
+  public String getMPCID ()
+  {
+    return m_sMPCID;
+  }
+
+  @Nonnegative
+  public long getMaxInMemoryBytes ()
+  {
+    return m_nMaxInMemoryBytes;
+  }
+
+  @Nullable
+  public File getOverflowDirectory ()
+  {
+    return m_aOverflowDir;
+  }
+
+  /**
+   * Add a new entry at the end of the queue.
+   *
+   * @param aEntry
+   *        The entry to add. May not be <code>null</code>.
+   * @throws IOException
+   *         In case writing the entry to the overflow directory failed
+   */
+  public void enqueue (@Nonnull final MPCQueueEntry aEntry) throws IOException
+  {
+    ValueEnforcer.notNull (aEntry, "Entry");
+
+    // Fast path: as long as nothing is on disk, stay in memory
+    final int nBodyLength = aEntry.getBodyLength ();
+    if (m_aOverflowCount.get () == 0 || m_aOverflowDir == null)
+    {
+      if (m_aMemBytes.addAndGet (nBodyLength) <= m_nMaxInMemoryBytes || m_aOverflowDir == null)
+      {
+        _offerToMemory (aEntry, false);
+        return;
+      }
+      m_aMemBytes.addAndGet (-nBodyLength);
+    }
+
+    m_aOverflowLock.lock ();
+    try
+    {
+      final File aFile = _getOverflowFile (m_nOverflowTail);
+      try (final OutputStream aOS = StreamHelper.getBuffered (FileHelper.getOutputStream (aFile)))
+      {
+        if (aOS == null)
+          throw new IOException ("Failed to open MPC overflow file " + aFile.getAbsolutePath ());
+        aEntry.writeTo (aOS);
+      }
+      m_nOverflowTail++;
+      m_aOverflowCount.incrementAndGet ();
+    }
+    finally
+    {
+      m_aOverflowLock.unlock ();
+    }
+  }
+
+  /**
+   * Add an entry to the in-memory part, for which the bytes were already
+   * reserved.
+   */
+  private void _offerToMemory (@Nonnull final MPCQueueEntry aEntry, final boolean bFirst)
+  {
+    m_aMemCount.incrementAndGet ();
+    if (bFirst)
+      m_aMemQueue.offerFirst (aEntry);
+    else
+      m_aMemQueue.offerLast (aEntry);
+  }
+
+  @Nullable
+  private MPCQueueEntry _pollFromMemory ()
+  {
+    final MPCQueueEntry ret = m_aMemQueue.pollFirst ();
+    if (ret != null)
+    {
+      m_aMemCount.decrementAndGet ();
+      m_aMemBytes.addAndGet (-ret.getBodyLength ());
+    }
+    return ret;
+  }
+
+  /**
+   * Put an entry that was handed out by {@link #poll()} back at the head of the
+   * queue, e.g. because it could not be delivered. It is kept in memory, even
+   * if this exceeds the maximum number of bytes.
+   *
+   * @param aEntry
+   *        The entry to put back. May not be <code>null</code>.
+   */
+  public void requeue (@Nonnull final MPCQueueEntry aEntry)
+  {
+    ValueEnforcer.notNull (aEntry, "Entry");
+    m_aMemBytes.addAndGet (aEntry.getBodyLength ());
+    _offerToMemory (aEntry, true);
+  }
+
+  /**
+   * Move an unreadable overflow file to the quarantine directory, so that it
+   * is neither read again nor lost.
+   */
+  private void _quarantine (@Nonnull final File aFile)
+  {
+    final File aQuarantineDir = new File (m_aOverflowDir, QUARANTINE_DIR_NAME);
+    final File aTarget = new File (aQuarantineDir, aFile.getName ());
+    if (AS4IOHelper.getFileOperationManager ().createDirIfNotExisting (aQuarantineDir).isSuccess () &&
+        AS4IOHelper.getFileOperationManager ().renameFile (aFile, aTarget).isSuccess ())
+      s_aLogger.error ("Moved unreadable MPC overflow file to " + aTarget.getAbsolutePath ());
+    else
+      s_aLogger.error ("Failed to quarantine unreadable MPC overflow file " + aFile.getAbsolutePath ());
+  }
+
+  /**
+   * Move entries from the overflow directory back to memory, as long as there
+   * is space.
+   */
+  @GuardedBy ("m_aOverflowLock")
+  private void _refillFromOverflow ()
+  {
+    while (m_nOverflowHead < m_nOverflowTail && m_aMemBytes.get () < m_nMaxInMemoryBytes)
+    {
+      final File aFile = _getOverflowFile (m_nOverflowHead);
+      MPCQueueEntry aEntry = null;
+      boolean bUnreadable = false;
+      if (aFile.exists ())
+      {
+        try (final InputStream aIS = StreamHelper.getBuffered (FileHelper.getInputStream (aFile)))
+        {
+          if (aIS == null)
+            throw new IOException ("Failed to open MPC overflow file");
+          aEntry = MPCQueueEntry.readFrom (aIS);
+        }
+        catch (final IOException | RuntimeException ex)
+        {
+          s_aLogger.error ("Failed to read MPC overflow file " + aFile.getAbsolutePath () + " - skipping it", ex);
+          bUnreadable = true;
+        }
+      }
+
+      if (aEntry != null)
+      {
+        m_aMemBytes.addAndGet (aEntry.getBodyLength ());
+        _offerToMemory (aEntry, false);
+      }
+      m_nOverflowHead++;
+      // Decrement only after the entry is visible in memory
+      m_aOverflowCount.decrementAndGet ();
+      if (aEntry != null)
+        AS4IOHelper.getFileOperationManager ().deleteFileIfExisting (aFile);
+      else
+        if (bUnreadable)
+          _quarantine (aFile);
+    }
+  }
+
+  /**
+   * Get and remove the next entry of this queue. This method never blocks on
+   * the in-memory part.
+   *
+   * @return <code>null</code> if the queue is empty.
+   */
+  @Nullable
+  public MPCQueueEntry poll ()
+  {
+    MPCQueueEntry ret = _pollFromMemory ();
+
+    if (m_aOverflowCount.get () > 0)
+    {
+      if (ret == null)
+      {
+        // Nothing in memory - wait for the overflow
+        m_aOverflowLock.lock ();
+        try
+        {
+          _refillFromOverflow ();
+        }
+        finally
+        {
+          m_aOverflowLock.unlock ();
+        }
+        ret = _pollFromMemory ();
+      }
+      else
+        if (m_aOverflowLock.tryLock ())
+        {
+          // Opportunistically refill without blocking the puller
+          try
+          {
+            _refillFromOverflow ();
+          }
+          finally
+          {
+            m_aOverflowLock.unlock ();
+          }
+        }
+    }
+    return ret;
+  }
+
+  /**
+   * @return The number of entries in memory. Only an approximation while other
+   *         threads are modifying the queue.
+   */
+  @Nonnegative
+  public int getInMemoryCount ()
+  {
+    return Math.max (m_aMemCount.get (), 0);
+  }
+
+  /**
+   * @return The number of body bytes in memory. Only an approximation while
+   *         other threads are modifying the queue.
+   */
+  @Nonnegative
+  public long getInMemoryBytes ()
+  {
+    return Math.max (m_aMemBytes.get (), 0);
+  }
+
+  /**
+   * @return The number of entries in the overflow directory. Only an
+   *         approximation while other threads are modifying the queue.
+   */
+  @Nonnegative
+  public int getOverflowCount ()
+  {
+    return m_aOverflowCount.get ();
+  }
+
+  /**
+   * @return The total number of queued entries. Only an approximation while
+   *         other threads are modifying the queue.
+   */
+  @Nonnegative
+  public int size ()
+  {
+    return getInMemoryCount () + getOverflowCount ();
+  }
+
+  public boolean isEmpty ()
+  {
+    return size () == 0;
+  }
+
+  @Override
+  public String toString ()
+  {
+    return new ToStringGenerator (this).append ("MPCID", m_sMPCID)
+                                       .append ("MaxInMemoryBytes", m_nMaxInMemoryBytes)
+                                       .append ("OverflowDir", m_aOverflowDir)
+                                       .append ("InMemoryCount", getInMemoryCount ())
+                                       .append ("InMemoryBytes", getInMemoryBytes ())
+                                       .append ("OverflowCount", getOverflowCount ())
+                                       .getToString ();
+  }
+}
@@ -0,0 +1,206 @@
+/**
+ * Copyright (C) 2015-2017 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.as4.model.mpc;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Map;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.Immutable;
+import javax.mail.MessagingException;
+
+import org.apache.http.HttpEntity;
+
+import com.helger.as4.messaging.domain.MessageHelperMethods;
+import com.helger.commons.ValueEnforcer;
+import com.helger.commons.annotation.Nonempty;
+import com.helger.commons.annotation.ReturnsMutableCopy;
+import com.helger.commons.annotation.ReturnsMutableObject;
+import com.helger.commons.collection.ArrayHelper;
+import com.helger.commons.collection.ext.CommonsLinkedHashMap;
+import com.helger.commons.collection.ext.ICommonsOrderedMap;
+import com.helger.commons.io.stream.NonBlockingByteArrayOutputStream;
+import com.helger.commons.string.ToStringGenerator;
+
+/**
+ * A single fully built (signed and encrypted) user message that waits in an
+ * {@link MPCQueue} until it is pulled. The HTTP headers are stored separately
+ * so that they can be applied to the pull response.
+ *
+ * @author Philip Helger
+ */
+@Immutable
+public final class MPCQueueEntry
+{
+  private final String m_sMessageID;
+  private final ICommonsOrderedMap <String, String> m_aHeaders;
+  private final byte [] m_aBody;
+
+  public MPCQueueEntry (@Nonnull @Nonempty final String sMessageID,
+                        @Nonnull final Map <String, String> aHeaders,
+                        @Nonnull final byte [] aBody)
+  {
+    ValueEnforcer.notEmpty (sMessageID, "MessageID");
+    ValueEnforcer.notNull (aHeaders, "Headers");
+    ValueEnforcer.notNull (aBody, "Body");
+    m_sMessageID = sMessageID;
+    m_aHeaders = new CommonsLinkedHashMap <> (aHeaders);
+    m_aBody = aBody;
+  }
+
+  /**
+   * @return The AS4 message ID of the contained user message. Neither
+   *         <code>null</code> nor empty.
+   */
+  @Nonnull
+  @Nonempty
+  public String getMessageID ()
+  {
+    return m_sMessageID;
+  }
+
+  /**
+   * @return A copy of all HTTP headers to be used when returning this message.
+   *         Never <code>null</code>.
+   */
+  @Nonnull
+  @ReturnsMutableCopy
+  public ICommonsOrderedMap <String, String> getAllHeaders ()
+  {
+    return m_aHeaders.getClone ();
+  }
+
+  /**
+   * @return The serialized HTTP body. Never <code>null</code>. Don't modify.
+   */
+  @Nonnull
+  @ReturnsMutableObject ("performance")
+  public byte [] getBody ()
+  {
+    return m_aBody;
+  }
+
+  @Nonnegative
+  public int getBodyLength ()
+  {
+    return m_aBody.length;
+  }
+
+  /**
+   * Write this entry in a compact binary format. Used for the on-disk overflow
+   * of {@link MPCQueue}.
+   *
+   * @param aOS
+   *        The output stream to write to. May not be <code>null</code>.
+   * @throws IOException
+   *         In case of a write error
+   */
+  public void writeTo (@Nonnull final OutputStream aOS) throws IOException
+  {
+    final DataOutputStream aDOS = new DataOutputStream (aOS);
+    aDOS.writeUTF (m_sMessageID);
+    aDOS.writeInt (m_aHeaders.size ());
+    for (final Map.Entry <String, String> aEntry : m_aHeaders.entrySet ())
+    {
+      aDOS.writeUTF (aEntry.getKey ());
+      aDOS.writeUTF (aEntry.getValue ());
+    }
+    aDOS.writeInt (m_aBody.length);
+    aDOS.write (m_aBody);
+    aDOS.flush ();
+  }
+
+  /**
+   * Read an entry previously written with {@link #writeTo(OutputStream)}.
+   *
+   * @param aIS
+   *        The input stream to read from. May not be <code>null</code>.
+   * @return The read entry. Never <code>null</code>.
+   * @throws IOException
+   *         In case of a read error
+   */
+  @Nonnull
+  public static MPCQueueEntry readFrom (@Nonnull final InputStream aIS) throws IOException
+  {
+    final DataInputStream aDIS = new DataInputStream (aIS);
+    final String sMessageID = aDIS.readUTF ();
+    final int nHeaders = aDIS.readInt ();
+    final ICommonsOrderedMap <String, String> aHeaders = new CommonsLinkedHashMap <> ();
+    for (int i = 0; i < nHeaders; ++i)
+    {
+      final String sName = aDIS.readUTF ();
+      aHeaders.put (sName, aDIS.readUTF ());
+    }
+    final int nBodyLength = aDIS.readInt ();
+    if (nBodyLength < 0)
+      throw new IOException ("Invalid body length " + nBodyLength);
+    final byte [] aBody = nBodyLength == 0 ? ArrayHelper.EMPTY_BYTE_ARRAY : new byte [nBodyLength];
+    aDIS.readFully (aBody);
+    return new MPCQueueEntry (sMessageID, aHeaders, aBody);
+  }
+
+  /**
+   * Create a new queue entry from a built message, as e.g. created by
+   * <code>AS4Client.buildMessage</code>. MIME headers are moved to the HTTP
+   * headers.
+   *
+   * @param sMessageID
+   *        The AS4 message ID of the built message. May neither be
+   *        <code>null</code> nor empty.
+   * @param aHttpEntity
+   *        The built message. May not be <code>null</code>.
+   * @return The new entry. Never <code>null</code>.
+   * @throws IOException
+   *         In case serializing the entity fails
+   */
+  @Nonnull
+  public static MPCQueueEntry create (@Nonnull @Nonempty final String sMessageID,
+                                      @Nonnull final HttpEntity aHttpEntity) throws IOException
+  {
+    ValueEnforcer.notNull (aHttpEntity, "HttpEntity");
+
+    final ICommonsOrderedMap <String, String> aHeaders;
+    try
+    {
+      aHeaders = MessageHelperMethods.getAllHTTPHeaders (aHttpEntity);
+    }
+    catch (final MessagingException ex)
+    {
+      throw new IOException ("Failed to determine MIME headers", ex);
+    }
+
+    try (final NonBlockingByteArrayOutputStream aBAOS = new NonBlockingByteArrayOutputStream ())
+    {
+      aHttpEntity.writeTo (aBAOS);
+      return new MPCQueueEntry (sMessageID, aHeaders, aBAOS.toByteArray ());
+    }
+  }
+
+  @Override
+  public String toString ()
+  {
+    return new ToStringGenerator (this).append ("MessageID", m_sMessageID)
+                                       .append ("Headers", m_aHeaders)
+                                       .append ("BodyLength", m_aBody.length)
+                                       .getToString ();
+  }
+}
@@ -0,0 +1,404 @@
+/**
+ * Copyright (C) 2015-2017 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.as4.model.mpc;
+
+import java.io.File;
+import java.io.IOException;
+import java.security.cert.X509Certificate;
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
+
+import org.apache.http.HttpEntity;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.helger.commons.ValueEnforcer;
+import com.helger.commons.annotation.Nonempty;
+import com.helger.commons.annotation.ReturnsMutableCopy;
+import com.helger.commons.collection.ext.CommonsHashMap;
+import com.helger.commons.collection.ext.ICommonsMap;
+import com.helger.commons.io.file.FilenameHelper;
+
+/**
+ * Manages one {@link MPCQueue} per MPC for the Pull MEP together with the
+ * authorization of the pulling parties. Applications use
+ * {@link #enqueue(IMPC, String, HttpEntity)} to make a built user message
+ * available for pulling.<br>
+ * A pulled message is only removed finally, once the receipt for it was
+ * reported via {@link #acknowledge(IMPC, String)} or
+ * {@link #acknowledgeReceipt(String, X509Certificate)}. If no receipt arrives
+ * within the receipt timeout, the message is put back at the head of its
+ * queue and handed out again. Unacknowledged messages are kept in memory only
+ * and are therefore lost upon a restart.<br>
+ * Pull requests are refused unless the partners allowed to pull are
+ * configured via {@link #setPullAuthorizer(String, IMPCPullAuthorizer)} or
+ * {@link #setDefaultPullAuthorizer(IMPCPullAuthorizer)}.
+ *
+ * @author Philip Helger
+ */
+@ThreadSafe
+public final class MPCQueueManager
+{
+  /** The default time to wait for the receipt of a pulled message */
+  public static final Duration DEFAULT_RECEIPT_TIMEOUT = Duration.ofMinutes (5);
+
+  private static final Logger s_aLogger = LoggerFactory.getLogger (MPCQueueManager.class);
+
+  /**
+   * A pulled message for which no receipt was received yet.
+   */
+  private static final class InFlightEntry
+  {
+    private final IMPC m_aMPC;
+    private final MPCQueueEntry m_aEntry;
+    private final long m_nDeadlineMS;
+
+    InFlightEntry (@Nonnull final IMPC aMPC, @Nonnull final MPCQueueEntry aEntry, final long nDeadlineMS)
+    {
+      m_aMPC = aMPC;
+      m_aEntry = aEntry;
+      m_nDeadlineMS = nDeadlineMS;
+    }
+  }
+
+  private final File m_aOverflowBaseDir;
+  private final long m_nMaxInMemoryBytesPerMPC;
+  private final Map <String, MPCQueue> m_aQueues = new ConcurrentHashMap <> ();
+  // Message ID to entry
+  private final Map <String, InFlightEntry> m_aInFlight = new ConcurrentHashMap <> ();
+  private volatile Duration m_aReceiptTimeout = DEFAULT_RECEIPT_TIMEOUT;
+  private final Map <String, IMPCPullAuthorizer> m_aAuthorizers = new ConcurrentHashMap <> ();
+  private volatile IMPCPullAuthorizer m_aDefaultAuthorizer = IMPCPullAuthorizer.denyAll ();
+
+  /**
+   * Constructor
+   *
+   * @param aOverflowBaseDir
+   *        The base directory in which each MPC gets its own overflow
+   *        directory. May be <code>null</code> to keep all queued messages in
+   *        memory.
+   * @param nMaxInMemoryBytesPerMPC
+   *        The maximum number of message bytes per MPC kept in memory. Must be
+   *        &gt; 0.
+   */
+  public MPCQueueManager (@Nullable final File aOverflowBaseDir, @Nonnegative final long nMaxInMemoryBytesPerMPC)
+  {
+    ValueEnforcer.isGT0 (nMaxInMemoryBytesPerMPC, "MaxInMemoryBytesPerMPC");
+    m_aOverflowBaseDir = aOverflowBaseDir;
+    m_nMaxInMemoryBytesPerMPC = nMaxInMemoryBytesPerMPC;
+  }
+
+  @Nonnull
+  private MPCQueue _createQueue (@Nonnull @Nonempty final String sMPCID)
+  {
+    final File aOverflowDir = m_aOverflowBaseDir == null ? null
+                                                         : new File (m_aOverflowBaseDir,
+                                                                     FilenameHelper.getAsSecureValidASCIIFilename (sMPCID));
+    return new MPCQueue (sMPCID, m_nMaxInMemoryBytesPerMPC, aOverflowDir);
+  }
+
+  @Nonnull
+  private MPCQueue _getQueue (@Nonnull @Nonempty final String sMPCID)
+  {
+    // Creating the queue recovers an existing overflow directory
+    return m_aQueues.computeIfAbsent (sMPCID, this::_createQueue);
+  }
+
+  /**
+   * Get or create the queue of the passed MPC.
+   *
+   * @param aMPC
+   *        The MPC to use. May not be <code>null</code>.
+   * @return The queue and never <code>null</code>.
+   */
+  @Nonnull
+  public MPCQueue getQueue (@Nonnull final IMPC aMPC)
+  {
+    ValueEnforcer.notNull (aMPC, "MPC");
+    return _getQueue (aMPC.getID ());
+  }
+
+  /**
+   * @return A copy of all queues created so far. Never <code>null</code>.
+   */
+  @Nonnull
+  @ReturnsMutableCopy
+  public ICommonsMap <String, MPCQueue> getAllQueues ()
+  {
+    return new CommonsHashMap <> (m_aQueues);
+  }
+
+  /**
+   * Make a built user message available for pulling.
+   *
+   * @param aMPC
+   *        The MPC to queue the message in. May not be <code>null</code>.
+   * @param aEntry
+   *        The entry to queue. May not be <code>null</code>.
+   * @throws IOException
+   *         In case writing to the overflow directory failed
+   */
+  public void enqueue (@Nonnull final IMPC aMPC, @Nonnull final MPCQueueEntry aEntry) throws IOException
+  {
+    getQueue (aMPC).enqueue (aEntry);
+  }
+
+  /**
+   * Make a built user message available for pulling.
+   *
+   * @param aMPC
+   *        The MPC to queue the message in. May not be <code>null</code>.
+   * @param sMessageID
+   *        The AS4 message ID of the built message. May neither be
+   *        <code>null</code> nor empty.
+   * @param aHttpEntity
+   *        The built message as created by <code>AS4Client.buildMessage</code>.
+   *        May not be <code>null</code>.
+   * @return The queued entry. Never <code>null</code>.
+   * @throws IOException
+   *         In case serializing the message or writing to the overflow
+   *         directory failed
+   */
+  @Nonnull
+  public MPCQueueEntry enqueue (@Nonnull final IMPC aMPC,
+                                @Nonnull @Nonempty final String sMessageID,
+                                @Nonnull final HttpEntity aHttpEntity) throws IOException
+  {
+    final MPCQueueEntry aEntry = MPCQueueEntry.create (sMessageID, aHttpEntity);
+    enqueue (aMPC, aEntry);
+    return aEntry;
+  }
+
+  /**
+   * @return The time to wait for the receipt of a pulled message before it is
+   *         handed out again. May be <code>null</code> if pulled messages are
+   *         removed immediately.
+   */
+  @Nullable
+  public Duration getReceiptTimeout ()
+  {
+    return m_aReceiptTimeout;
+  }
+
+  /**
+   * Set the time to wait for the receipt of a pulled message before it is
+   * handed out again.
+   *
+   * @param aReceiptTimeout
+   *        The timeout to use. May be <code>null</code> to remove pulled
+   *        messages immediately without waiting for a receipt.
+   */
+  public void setReceiptTimeout (@Nullable final Duration aReceiptTimeout)
+  {
+    ValueEnforcer.isTrue (aReceiptTimeout == null || !aReceiptTimeout.isNegative (),
+                          "ReceiptTimeout may not be negative");
+    m_aReceiptTimeout = aReceiptTimeout;
+  }
+
+  /**
+   * Put all pulled messages, for which the receipt timed out, back into their
+   * queues.
+   *
+   * @return The number of messages put back. Always &ge; 0.
+   */
+  @Nonnegative
+  public int requeueExpired ()
+  {
+    final long nNow = System.currentTimeMillis ();
+    int ret = 0;
+    for (final Map.Entry <String, InFlightEntry> aEntry : m_aInFlight.entrySet ())
+    {
+      final InFlightEntry aInFlight = aEntry.getValue ();
+      // Don't race with a concurrent acknowledge
+      if (aInFlight.m_nDeadlineMS <= nNow && m_aInFlight.remove (aEntry.getKey (), aInFlight))
+      {
+        s_aLogger.warn ("No receipt for pulled message '" +
+                        aEntry.getKey () +
+                        "' of MPC '" +
+                        aInFlight.m_aMPC.getID () +
+                        "' - queuing it again");
+        getQueue (aInFlight.m_aMPC).requeue (aInFlight.m_aEntry);
+        ret++;
+      }
+    }
+    return ret;
+  }
+
+  /**
+   * Get and remove the next queued message of the passed MPC. If a receipt
+   * timeout is set, the message is handed out again, unless
+   * {@link #acknowledge(IMPC, String)} is called in time.
+   *
+   * @param aMPC
+   *        The MPC to pull from. May not be <code>null</code>.
+   * @return <code>null</code> if no message is queued.
+   */
+  @Nullable
+  public MPCQueueEntry poll (@Nonnull final IMPC aMPC)
+  {
+    ValueEnforcer.notNull (aMPC, "MPC");
+    if (!m_aInFlight.isEmpty ())
+      requeueExpired ();
+
+    final MPCQueueEntry ret = getQueue (aMPC).poll ();
+    final Duration aReceiptTimeout = m_aReceiptTimeout;
+    if (ret != null && aReceiptTimeout != null)
+      m_aInFlight.put (ret.getMessageID (),
+                       new InFlightEntry (aMPC,
+                                          ret,
+                                          System.currentTimeMillis () + aReceiptTimeout.toMillis ()));
+    return ret;
+  }
+
+  /**
+   * Put a message returned by {@link #poll(IMPC)} back at the head of its
+   * queue, because it could not be delivered.
+   *
+   * @param aMPC
+   *        The MPC the message was pulled from. May not be <code>null</code>.
+   * @param aEntry
+   *        The pulled message. May not be <code>null</code>.
+   */
+  public void requeue (@Nonnull final IMPC aMPC, @Nonnull final MPCQueueEntry aEntry)
+  {
+    ValueEnforcer.notNull (aMPC, "MPC");
+    ValueEnforcer.notNull (aEntry, "Entry");
+    // If it is tracked, requeue it only once - it may have expired already
+    final InFlightEntry aInFlight = m_aInFlight.get (aEntry.getMessageID ());
+    final boolean bRequeue = aInFlight != null ? m_aInFlight.remove (aEntry.getMessageID (), aInFlight)
+                                               : m_aReceiptTimeout == null;
+    if (bRequeue)
+      getQueue (aMPC).requeue (aEntry);
+  }
+
+  /**
+   * Finally remove a pulled message, because the receipt for it was received.
+   *
+   * @param aMPC
+   *        The MPC the message was pulled from. May not be <code>null</code>.
+   * @param sMessageID
+   *        The AS4 message ID of the pulled message. May be <code>null</code>.
+   * @return <code>true</code> if a pulled message of the passed MPC was
+   *         removed, <code>false</code> otherwise.
+   */
+  public boolean acknowledge (@Nonnull final IMPC aMPC, @Nullable final String sMessageID)
+  {
+    ValueEnforcer.notNull (aMPC, "MPC");
+    if (sMessageID == null)
+      return false;
+    final InFlightEntry aInFlight = m_aInFlight.get (sMessageID);
+    return aInFlight != null &&
+           aInFlight.m_aMPC.getID ().equals (aMPC.getID ()) &&
+           m_aInFlight.remove (sMessageID, aInFlight);
+  }
+
+  /**
+   * Finally remove a pulled message, because a standalone receipt for it was
+   * received. Such a receipt does not name the MPC, so the MPC the message was
+   * pulled from is used, and the sender of the receipt must be authorized to
+   * pull from it.
+   *
+   * @param sMessageID
+   *        The AS4 message ID of the pulled message. May be <code>null</code>.
+   * @param aUsedCertificate
+   *        The certificate the receipt was signed with. May be
+   *        <code>null</code>.
+   * @return <code>true</code> if a pulled message was removed,
+   *         <code>false</code> if it is unknown or the sender is not
+   *         authorized.
+   */
+  public boolean acknowledgeReceipt (@Nullable final String sMessageID,
+                                     @Nullable final X509Certificate aUsedCertificate)
+  {
+    if (sMessageID == null)
+      return false;
+    final InFlightEntry aInFlight = m_aInFlight.get (sMessageID);
+    return aInFlight != null &&
+           isPullAuthorized (aInFlight.m_aMPC, aUsedCertificate) &&
+           m_aInFlight.remove (sMessageID, aInFlight);
+  }
+
+  /**
+   * @return The number of pulled messages for which no receipt was received
+   *         yet.
+   */
+  @Nonnegative
+  public int getInFlightCount ()
+  {
+    return m_aInFlight.size ();
+  }
+
+  /**
+   * @return The authorizer used for all MPCs without a specific authorizer.
+   *         Never <code>null</code>. By default all pull requests are refused,
+   *         so each MPC must be bound to the partners allowed to pull, e.g.
+   *         with {@link IMPCPullAuthorizer#signedWith(X509Certificate...)}.
+   */
+  @Nonnull
+  public IMPCPullAuthorizer getDefaultPullAuthorizer ()
+  {
+    return m_aDefaultAuthorizer;
+  }
+
+  public void setDefaultPullAuthorizer (@Nonnull final IMPCPullAuthorizer aAuthorizer)
+  {
+    ValueEnforcer.notNull (aAuthorizer, "Authorizer");
+    m_aDefaultAuthorizer = aAuthorizer;
+  }
+
+  /**
+   * Set the authorizer of a single MPC.
+   *
+   * @param sMPCID
+   *        The MPC ID. May neither be <code>null</code> nor empty.
+   * @param aAuthorizer
+   *        The authorizer to use. May be <code>null</code> to use the default
+   *        authorizer again.
+   */
+  public void setPullAuthorizer (@Nonnull @Nonempty final String sMPCID,
+                                 @Nullable final IMPCPullAuthorizer aAuthorizer)
+  {
+    ValueEnforcer.notEmpty (sMPCID, "MPCID");
+    if (aAuthorizer == null)
+      m_aAuthorizers.remove (sMPCID);
+    else
+      m_aAuthorizers.put (sMPCID, aAuthorizer);
+  }
+
+  /**
+   * Check if a pull request for the passed MPC is authorized.
+   *
+   * @param aMPC
+   *        The MPC to pull from. May not be <code>null</code>.
+   * @param aUsedCertificate
+   *        The certificate the pull request was signed with. May be
+   *        <code>null</code>.
+   * @return <code>true</code> if pulling is authorized.
+   */
+  public boolean isPullAuthorized (@Nonnull final IMPC aMPC, @Nullable final X509Certificate aUsedCertificate)
+  {
+    ValueEnforcer.notNull (aMPC, "MPC");
+    final IMPCPullAuthorizer aAuthorizer = m_aAuthorizers.getOrDefault (aMPC.getID (), m_aDefaultAuthorizer);
+    return aAuthorizer.isPullAuthorized (aMPC, aUsedCertificate);
+  }
+}
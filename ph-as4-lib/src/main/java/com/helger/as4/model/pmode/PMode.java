@@ -20,6 +20,7 @@ import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 
 import com.helger.as4.model.pmode.config.IPModeConfig;
+import com.helger.as4.util.AS4SystemPrincipal;
 import com.helger.commons.ValueEnforcer;
 import com.helger.commons.hashcode.HashCodeGenerator;
 import com.helger.commons.string.ToStringGenerator;
@@ -89,7 +90,7 @@ public class PMode extends AbstractBaseObject implements IPMode
                 @Nullable final PModeParty aResponder,
                 @Nonnull final IPModeConfig aConfig)
   {
-    this (StubObject.createForCurrentUser (), aInitiator, aResponder, aConfig);
+    this (AS4SystemPrincipal.createStubObject (), aInitiator, aResponder, aConfig);
   }
 
   PMode (@Nonnull final StubObject aStubObject,
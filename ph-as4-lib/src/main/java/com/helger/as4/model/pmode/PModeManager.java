@@ -16,31 +16,123 @@
  */
 package com.helger.as4.model.pmode;
 
-import java.util.function.Predicate;
-
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.Immutable;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.helger.as4.util.AS4SystemPrincipal;
 import com.helger.commons.ValueEnforcer;
+import com.helger.commons.annotation.ELockType;
+import com.helger.commons.annotation.MustBeLocked;
 import com.helger.commons.annotation.ReturnsMutableCopy;
+import com.helger.commons.collection.ext.CommonsHashMap;
+import com.helger.commons.collection.ext.CommonsLinkedHashSet;
 import com.helger.commons.collection.ext.ICommonsList;
+import com.helger.commons.collection.ext.ICommonsMap;
+import com.helger.commons.collection.ext.ICommonsOrderedSet;
+import com.helger.commons.equals.EqualsHelper;
+import com.helger.commons.hashcode.HashCodeGenerator;
+import com.helger.commons.hashcode.IHashCodeGenerator;
 import com.helger.commons.state.EChange;
 import com.helger.commons.state.ESuccess;
 import com.helger.photon.basic.app.dao.impl.AbstractMapBasedWALDAO;
 import com.helger.photon.basic.app.dao.impl.DAOException;
 import com.helger.photon.basic.audit.AuditHelper;
-import com.helger.photon.security.object.ObjectHelper;
 
 public class PModeManager extends AbstractMapBasedWALDAO <IPMode, PMode>
 {
+  /**
+   * Index key consisting of PModeConfig ID, initiator ID and responder ID.
+   */
+  @Immutable
+  private static final class PModeKey
+  {
+    private final String m_sConfigID;
+    private final String m_sInitiatorID;
+    private final String m_sResponderID;
+    // Status vars
+    private int m_nHashCode = IHashCodeGenerator.ILLEGAL_HASHCODE;
+
+    PModeKey (@Nullable final String sConfigID,
+              @Nullable final String sInitiatorID,
+              @Nullable final String sResponderID)
+    {
+      m_sConfigID = sConfigID;
+      m_sInitiatorID = sInitiatorID;
+      m_sResponderID = sResponderID;
+    }
+
+    PModeKey (@Nonnull final IPMode aPMode)
+    {
+      this (aPMode.getConfigID (), aPMode.getInitiatorID (), aPMode.getResponderID ());
+    }
+
+    @Override
+    public boolean equals (final Object o)
+    {
+      if (o == this)
+        return true;
+      if (o == null || !getClass ().equals (o.getClass ()))
+        return false;
+      final PModeKey rhs = (PModeKey) o;
+      return EqualsHelper.equals (m_sConfigID, rhs.m_sConfigID) &&
+             EqualsHelper.equals (m_sInitiatorID, rhs.m_sInitiatorID) &&
+             EqualsHelper.equals (m_sResponderID, rhs.m_sResponderID);
+    }
+
+    @Override
+    public int hashCode ()
+    {
+      int ret = m_nHashCode;
+      if (ret == IHashCodeGenerator.ILLEGAL_HASHCODE)
+        ret = m_nHashCode = new HashCodeGenerator (this).append (m_sConfigID)
+                                                        .append (m_sInitiatorID)
+                                                        .append (m_sResponderID)
+                                                        .getHashCode ();
+      return ret;
+    }
+  }
+
   private static final Logger s_aLogger = LoggerFactory.getLogger (PModeManager.class);
 
+  // Key to the IDs of all matching PModes in creation order
+  @GuardedBy ("m_aRWLock")
+  private final ICommonsMap <PModeKey, ICommonsOrderedSet <String>> m_aKeyIndex = new CommonsHashMap <> ();
+  // PMode ID to the key it was indexed with
+  @GuardedBy ("m_aRWLock")
+  private final ICommonsMap <String, PModeKey> m_aKeyOfID = new CommonsHashMap <> ();
+
   public PModeManager (@Nullable final String sFilename) throws DAOException
   {
     super (PMode.class, sFilename);
+    m_aRWLock.writeLocked ( () -> {
+      for (final IPMode aPMode : getAll ())
+        _addToIndex (aPMode);
+    });
+  }
+
+  @MustBeLocked (ELockType.WRITE)
+  private void _addToIndex (@Nonnull final IPMode aPMode)
+  {
+    final PModeKey aKey = new PModeKey (aPMode);
+    m_aKeyIndex.computeIfAbsent (aKey, k -> new CommonsLinkedHashSet <> ()).add (aPMode.getID ());
+    m_aKeyOfID.put (aPMode.getID (), aKey);
+  }
+
+  @MustBeLocked (ELockType.WRITE)
+  private void _removeFromIndex (@Nonnull final String sPModeID)
+  {
+    final PModeKey aKey = m_aKeyOfID.remove (sPModeID);
+    if (aKey != null)
+    {
+      final ICommonsOrderedSet <String> aIDs = m_aKeyIndex.get (aKey);
+      if (aIDs != null && aIDs.remove (sPModeID) && aIDs.isEmpty ())
+        m_aKeyIndex.remove (aKey);
+    }
   }
 
   @Nonnull
@@ -53,6 +145,7 @@ public class PModeManager extends AbstractMapBasedWALDAO <IPMode, PMode>
 
     m_aRWLock.writeLocked ( () -> {
       internalCreateItem (aPMode);
+      _addToIndex (aPMode);
     });
     AuditHelper.onAuditCreateSuccess (PMode.OT, aPMode.getID ());
     s_aLogger.info ("Created PMode with ID '" + aPMode.getID () + "'");
@@ -74,8 +167,11 @@ public class PModeManager extends AbstractMapBasedWALDAO <IPMode, PMode>
     m_aRWLock.writeLock ().lock ();
     try
     {
-      ObjectHelper.setLastModificationNow (aRealPMode);
+      AS4SystemPrincipal.setLastModificationNow (aRealPMode);
       internalUpdateItem (aRealPMode);
+      // Initiator or responder may have changed
+      _removeFromIndex (aRealPMode.getID ());
+      _addToIndex (aRealPMode);
     }
     finally
     {
@@ -100,7 +196,7 @@ public class PModeManager extends AbstractMapBasedWALDAO <IPMode, PMode>
     m_aRWLock.writeLock ().lock ();
     try
     {
-      if (ObjectHelper.setDeletionNow (aDeletedPMode).isUnchanged ())
+      if (AS4SystemPrincipal.setDeletionNow (aDeletedPMode).isUnchanged ())
       {
         AuditHelper.onAuditDeleteFailure (PMode.OT, "already-deleted", sPModeID);
         return EChange.UNCHANGED;
@@ -131,6 +227,7 @@ public class PModeManager extends AbstractMapBasedWALDAO <IPMode, PMode>
     try
     {
       internalDeleteItem (sPModeID);
+      _removeFromIndex (sPModeID);
     }
     finally
     {
@@ -144,9 +241,9 @@ public class PModeManager extends AbstractMapBasedWALDAO <IPMode, PMode>
   @Nonnull
   public IPMode createOrUpdatePMode (@Nonnull final PMode aPMode)
   {
-    PMode ret = (PMode) findFirst (_getPModeFilter (aPMode.getConfigID (),
-                                                    aPMode.getInitiator ().getID (),
-                                                    aPMode.getResponder ().getID ()));
+    PMode ret = (PMode) getPModeOfParties (aPMode.getConfigID (),
+                                           aPMode.getInitiator ().getID (),
+                                           aPMode.getResponder ().getID ());
 
     if (ret == null)
     {
@@ -160,14 +257,49 @@ public class PModeManager extends AbstractMapBasedWALDAO <IPMode, PMode>
     return ret;
   }
 
+  /**
+   * Get the first created PMode with the passed PModeConfig, initiator and
+   * responder. This is an index lookup and does not iterate all PModes.
+   *
+   * @param sConfigID
+   *        PModeConfig ID to search. May be <code>null</code>.
+   * @param sInitiatorID
+   *        Initiator ID to search. May be <code>null</code>.
+   * @param sResponderID
+   *        Responder ID to search. May be <code>null</code>.
+   * @return <code>null</code> if no such PMode exists.
+   */
   @Nullable
-  private static Predicate <IPMode> _getPModeFilter (@Nonnull final String sConfigID,
-                                                     @Nonnull final String sIntiatorID,
-                                                     @Nonnull final String sResponderID)
+  public IPMode getPModeOfParties (@Nullable final String sConfigID,
+                                   @Nullable final String sInitiatorID,
+                                   @Nullable final String sResponderID)
+  {
+    final PModeKey aKey = new PModeKey (sConfigID, sInitiatorID, sResponderID);
+    final String sPModeID = m_aRWLock.readLocked ( () -> {
+      final ICommonsOrderedSet <String> aIDs = m_aKeyIndex.get (aKey);
+      return aIDs == null ? null : aIDs.getFirst ();
+    });
+    return sPModeID == null ? null : getOfID (sPModeID);
+  }
+
+  /**
+   * Check if a PMode with the passed PModeConfig, initiator and responder
+   * exists. This is an index lookup and does not iterate all PModes.
+   *
+   * @param sConfigID
+   *        PModeConfig ID to search. May be <code>null</code>.
+   * @param sInitiatorID
+   *        Initiator ID to search. May be <code>null</code>.
+   * @param sResponderID
+   *        Responder ID to search. May be <code>null</code>.
+   * @return <code>true</code> if such a PMode exists.
+   */
+  public boolean containsPModeOfParties (@Nullable final String sConfigID,
+                                         @Nullable final String sInitiatorID,
+                                         @Nullable final String sResponderID)
   {
-    return p -> p.getConfigID ().equals (sConfigID) &&
-                p.getInitiator ().getID ().equals (sIntiatorID) &&
-                p.getResponder ().getID ().equals (sResponderID);
+    final PModeKey aKey = new PModeKey (sConfigID, sInitiatorID, sResponderID);
+    return m_aRWLock.readLocked ( () -> m_aKeyIndex.containsKey (aKey));
   }
 
   @Nonnull
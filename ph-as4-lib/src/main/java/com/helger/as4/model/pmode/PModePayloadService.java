@@ -19,15 +19,26 @@ package com.helger.as4.model.pmode;
 import javax.annotation.Nullable;
 
 import com.helger.as4.attachment.EAS4CompressionMode;
+import com.helger.commons.CGlobal;
+import com.helger.commons.ValueEnforcer;
+import com.helger.commons.equals.EqualsHelper;
 import com.helger.commons.hashcode.HashCodeGenerator;
 
 public class PModePayloadService
 {
   private EAS4CompressionMode m_eCompressionMode;
+  private int m_nCompressionLevel;
+  private int m_nInMemoryThreshold = CGlobal.ILLEGAL_UINT;
 
   public PModePayloadService (@Nullable final EAS4CompressionMode eCompressionMode)
+  {
+    this (eCompressionMode, EAS4CompressionMode.DEFAULT_COMPRESSION_LEVEL);
+  }
+
+  public PModePayloadService (@Nullable final EAS4CompressionMode eCompressionMode, final int nCompressionLevel)
   {
     setCompressionMode (eCompressionMode);
+    setCompressionLevel (nCompressionLevel);
   }
 
   @Nullable
@@ -47,6 +58,51 @@ public class PModePayloadService
     m_eCompressionMode = eCompressionMode;
   }
 
+  /**
+   * @return The compression level from -1 (default) to 9. Only relevant if a
+   *         compression mode is set.
+   */
+  public int getCompressionLevel ()
+  {
+    return m_nCompressionLevel;
+  }
+
+  public final void setCompressionLevel (final int nCompressionLevel)
+  {
+    ValueEnforcer.isBetweenInclusive (nCompressionLevel,
+                                      "CompressionLevel",
+                                      EAS4CompressionMode.DEFAULT_COMPRESSION_LEVEL,
+                                      9);
+    m_nCompressionLevel = nCompressionLevel;
+  }
+
+  /**
+   * @return The maximum number of bytes of an incoming attachment that are
+   *         kept in memory, or {@link CGlobal#ILLEGAL_UINT} if the server
+   *         default should be used.
+   */
+  public int getInMemoryThreshold ()
+  {
+    return m_nInMemoryThreshold;
+  }
+
+  public boolean hasInMemoryThreshold ()
+  {
+    return m_nInMemoryThreshold >= 0;
+  }
+
+  /**
+   * @param nInMemoryThreshold
+   *        The maximum number of bytes of an incoming attachment that are kept
+   *        in memory. Must be &ge; 0 or {@link CGlobal#ILLEGAL_UINT} to use the
+   *        server default.
+   */
+  public final void setInMemoryThreshold (final int nInMemoryThreshold)
+  {
+    ValueEnforcer.isTrue (nInMemoryThreshold >= CGlobal.ILLEGAL_UINT, "InMemoryThreshold is invalid");
+    m_nInMemoryThreshold = nInMemoryThreshold;
+  }
+
   @Override
   public boolean equals (final Object o)
   {
@@ -55,12 +111,17 @@ public class PModePayloadService
     if (o == null || !getClass ().equals (o.getClass ()))
       return false;
     final PModePayloadService rhs = (PModePayloadService) o;
-    return m_eCompressionMode.equals (rhs.m_eCompressionMode);
+    return EqualsHelper.equals (m_eCompressionMode, rhs.m_eCompressionMode) &&
+           m_nCompressionLevel == rhs.m_nCompressionLevel &&
+           m_nInMemoryThreshold == rhs.m_nInMemoryThreshold;
   }
 
   @Override
   public int hashCode ()
   {
-    return new HashCodeGenerator (this).append (m_eCompressionMode).getHashCode ();
+    return new HashCodeGenerator (this).append (m_eCompressionMode)
+                                       .append (m_nCompressionLevel)
+                                       .append (m_nInMemoryThreshold)
+                                       .getHashCode ();
   }
 }
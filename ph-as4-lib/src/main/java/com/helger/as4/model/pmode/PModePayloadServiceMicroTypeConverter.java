@@ -20,6 +20,7 @@ import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 
 import com.helger.as4.attachment.EAS4CompressionMode;
+import com.helger.commons.CGlobal;
 import com.helger.xml.microdom.IMicroElement;
 import com.helger.xml.microdom.MicroElement;
 import com.helger.xml.microdom.convert.IMicroTypeConverter;
@@ -27,6 +28,8 @@ import com.helger.xml.microdom.convert.IMicroTypeConverter;
 public final class PModePayloadServiceMicroTypeConverter implements IMicroTypeConverter
 {
   private static final String ATTR_COMPRESSION_MODE = "CompressionMode";
+  private static final String ATTR_COMPRESSION_LEVEL = "CompressionLevel";
+  private static final String ATTR_IN_MEMORY_THRESHOLD = "InMemoryThreshold";
 
   @Nonnull
   public IMicroElement convertToMicroElement (@Nonnull final Object aObject,
@@ -36,6 +39,9 @@ public final class PModePayloadServiceMicroTypeConverter implements IMicroTypeCo
     final PModePayloadService aValue = (PModePayloadService) aObject;
     final IMicroElement ret = new MicroElement (sNamespaceURI, sTagName);
     ret.setAttribute (ATTR_COMPRESSION_MODE, aValue.getCompressionModeID ());
+    ret.setAttribute (ATTR_COMPRESSION_LEVEL, aValue.getCompressionLevel ());
+    if (aValue.hasInMemoryThreshold ())
+      ret.setAttribute (ATTR_IN_MEMORY_THRESHOLD, aValue.getInMemoryThreshold ());
     return ret;
   }
 
@@ -47,7 +53,11 @@ public final class PModePayloadServiceMicroTypeConverter implements IMicroTypeCo
     if (sCompressionModeID != null && eCompressionMode == null)
       throw new IllegalStateException ("Invalid compression mode ID '" + sCompressionModeID + "' provided!");
 
-    return new PModePayloadService (eCompressionMode);
+    final int nCompressionLevel = aElement.getAttributeValueAsInt (ATTR_COMPRESSION_LEVEL,
+                                                                   EAS4CompressionMode.DEFAULT_COMPRESSION_LEVEL);
 
+    final PModePayloadService ret = new PModePayloadService (eCompressionMode, nCompressionLevel);
+    ret.setInMemoryThreshold (aElement.getAttributeValueAsInt (ATTR_IN_MEMORY_THRESHOLD, CGlobal.ILLEGAL_UINT));
+    return ret;
   }
 }
@@ -16,6 +16,7 @@
  */
 package com.helger.as4.model.pmode;
 
+import javax.annotation.Nonnegative;
 import javax.annotation.Nonnull;
 
 import com.helger.commons.ValueEnforcer;
@@ -27,18 +28,33 @@ public class PModeReceptionAwareness
   public static final boolean DEFAULT_RECEPTION_AWARENESS = true;
   public static final boolean DEFAULT_RETRY = true;
   public static final boolean DEFAULT_DUPLICATE_DETECTION = true;
+  public static final int DEFAULT_MAX_RETRIES = 10;
+  public static final long DEFAULT_RETRY_INTERVAL_MS = 60_000;
 
   private ETriState m_eReceptionAwareness;
   private ETriState m_eRetry;
   private ETriState m_eDuplicateDetection;
+  private int m_nMaxRetries;
+  private long m_nRetryIntervalMS;
 
   public PModeReceptionAwareness (@Nonnull final ETriState eReceptionAwareness,
                                   @Nonnull final ETriState eRetry,
                                   @Nonnull final ETriState eDuplicateDetection)
+  {
+    this (eReceptionAwareness, eRetry, eDuplicateDetection, DEFAULT_MAX_RETRIES, DEFAULT_RETRY_INTERVAL_MS);
+  }
+
+  public PModeReceptionAwareness (@Nonnull final ETriState eReceptionAwareness,
+                                  @Nonnull final ETriState eRetry,
+                                  @Nonnull final ETriState eDuplicateDetection,
+                                  @Nonnegative final int nMaxRetries,
+                                  @Nonnegative final long nRetryIntervalMS)
   {
     setReceptionAwareness (eReceptionAwareness);
     setRetry (eRetry);
     setDuplicateDetection (eDuplicateDetection);
+    setMaxRetries (nMaxRetries);
+    setRetryIntervalMS (nRetryIntervalMS);
   }
 
   public boolean isReceptionAwarenessDefined ()
@@ -107,6 +123,38 @@ public class PModeReceptionAwareness
     m_eDuplicateDetection = eDuplicateDetection;
   }
 
+  /**
+   * @return The maximum number of retries after the first attempt, if no
+   *         receipt was received. Only relevant if retry is enabled.
+   */
+  @Nonnegative
+  public int getMaxRetries ()
+  {
+    return m_nMaxRetries;
+  }
+
+  public void setMaxRetries (@Nonnegative final int nMaxRetries)
+  {
+    ValueEnforcer.isGE0 (nMaxRetries, "MaxRetries");
+    m_nMaxRetries = nMaxRetries;
+  }
+
+  /**
+   * @return The base interval in milliseconds between two retries. Only
+   *         relevant if retry is enabled.
+   */
+  @Nonnegative
+  public long getRetryIntervalMS ()
+  {
+    return m_nRetryIntervalMS;
+  }
+
+  public void setRetryIntervalMS (@Nonnegative final long nRetryIntervalMS)
+  {
+    ValueEnforcer.isGE0 (nRetryIntervalMS, "RetryIntervalMS");
+    m_nRetryIntervalMS = nRetryIntervalMS;
+  }
+
   @Override
   public boolean equals (final Object o)
   {
@@ -117,7 +165,9 @@ public class PModeReceptionAwareness
     final PModeReceptionAwareness rhs = (PModeReceptionAwareness) o;
     return m_eReceptionAwareness.equals (rhs.m_eReceptionAwareness) &&
            m_eRetry.equals (rhs.m_eRetry) &&
-           m_eDuplicateDetection.equals (rhs.m_eDuplicateDetection);
+           m_eDuplicateDetection.equals (rhs.m_eDuplicateDetection) &&
+           m_nMaxRetries == rhs.m_nMaxRetries &&
+           m_nRetryIntervalMS == rhs.m_nRetryIntervalMS;
   }
 
   @Override
@@ -126,6 +176,8 @@ public class PModeReceptionAwareness
     return new HashCodeGenerator (this).append (m_eReceptionAwareness)
                                        .append (m_eRetry)
                                        .append (m_eDuplicateDetection)
+                                       .append (m_nMaxRetries)
+                                       .append (m_nRetryIntervalMS)
                                        .getHashCode ();
   }
 }
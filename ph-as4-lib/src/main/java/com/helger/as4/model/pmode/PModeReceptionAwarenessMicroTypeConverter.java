@@ -25,6 +25,8 @@ public class PModeReceptionAwarenessMicroTypeConverter extends AbstractPModeMicr
   private static final String ATTR_RECEPTION_AWARENESS = "WSSVersion";
   private static final String ATTR_RETRY = "X509Sign";
   private static final String ATTR_DOUBLE_DETECTION = "X509SignatureCertificate";
+  private static final String ATTR_MAX_RETRIES = "MaxRetries";
+  private static final String ATTR_RETRY_INTERVAL_MS = "RetryIntervalMS";
 
   public IMicroElement convertToMicroElement (final Object aObject, final String sNamespaceURI, final String sTagName)
   {
@@ -37,6 +39,8 @@ public class PModeReceptionAwarenessMicroTypeConverter extends AbstractPModeMicr
       ret.setAttribute (ATTR_RETRY, aValue.isRetry ());
     if (aValue.isDuplicateDetectionDefined ())
       ret.setAttribute (ATTR_DOUBLE_DETECTION, aValue.isDuplicateDetection ());
+    ret.setAttribute (ATTR_MAX_RETRIES, aValue.getMaxRetries ());
+    ret.setAttribute (ATTR_RETRY_INTERVAL_MS, aValue.getRetryIntervalMS ());
 
     return ret;
   }
@@ -51,7 +55,12 @@ public class PModeReceptionAwarenessMicroTypeConverter extends AbstractPModeMicr
     final ETriState eDoubleDetection = getTriState (aElement.getAttributeValue (ATTR_DOUBLE_DETECTION),
                                                     PModeReceptionAwareness.DEFAULT_DUPLICATE_DETECTION);
 
-    return new PModeReceptionAwareness (eReceptionAwareness, eRetry, eDoubleDetection);
+    final int nMaxRetries = aElement.getAttributeValueAsInt (ATTR_MAX_RETRIES,
+                                                             PModeReceptionAwareness.DEFAULT_MAX_RETRIES);
+    final long nRetryIntervalMS = aElement.getAttributeValueAsLong (ATTR_RETRY_INTERVAL_MS,
+                                                                    PModeReceptionAwareness.DEFAULT_RETRY_INTERVAL_MS);
+
+    return new PModeReceptionAwareness (eReceptionAwareness, eRetry, eDoubleDetection, nMaxRetries, nRetryIntervalMS);
   }
 
 }
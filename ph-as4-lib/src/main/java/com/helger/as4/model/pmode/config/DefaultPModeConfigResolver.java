@@ -16,35 +16,125 @@
  */
 package com.helger.as4.model.pmode.config;
 
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.annotation.Nonnegative;
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
+import javax.annotation.concurrent.Immutable;
+import javax.annotation.concurrent.ThreadSafe;
 
 import com.helger.as4.mgr.MetaAS4Manager;
 import com.helger.as4.model.pmode.DefaultPMode;
 import com.helger.as4.profile.IAS4Profile;
+import com.helger.commons.ValueEnforcer;
+import com.helger.commons.equals.EqualsHelper;
+import com.helger.commons.hashcode.HashCodeGenerator;
 import com.helger.commons.string.StringHelper;
 
 /**
  * Default implementation of {@link IPModeConfigResolver} using the fixed ID
- * only. If no ID is provided the default pmode is used.
+ * only. If no ID is provided the default pmode is used.<br>
+ * Lookup results, including unsuccessful ones, are cached until the
+ * {@link PModeConfigManager} is modified. The default PModeConfig of each
+ * profile is only created once.
  *
  * @author bayerlma
  */
+@ThreadSafe
 public class DefaultPModeConfigResolver implements IPModeConfigResolver
 {
+  public static final int DEFAULT_MAX_CACHE_SIZE = 1000;
+
+  @Immutable
+  private static final class CacheKey
+  {
+    private final String m_sPModeConfigID;
+    private final String m_sService;
+    private final String m_sAction;
+
+    CacheKey (@Nullable final String sPModeConfigID, @Nullable final String sService, @Nullable final String sAction)
+    {
+      m_sPModeConfigID = sPModeConfigID;
+      m_sService = sService;
+      m_sAction = sAction;
+    }
+
+    @Override
+    public boolean equals (final Object o)
+    {
+      if (o == this)
+        return true;
+      if (o == null || !getClass ().equals (o.getClass ()))
+        return false;
+      final CacheKey rhs = (CacheKey) o;
+      return EqualsHelper.equals (m_sPModeConfigID, rhs.m_sPModeConfigID) &&
+             EqualsHelper.equals (m_sService, rhs.m_sService) &&
+             EqualsHelper.equals (m_sAction, rhs.m_sAction);
+    }
+
+    @Override
+    public int hashCode ()
+    {
+      return new HashCodeGenerator (this).append (m_sPModeConfigID)
+                                         .append (m_sService)
+                                         .append (m_sAction)
+                                         .getHashCode ();
+    }
+  }
+
+  /**
+   * Lookup results for one modification count of the PModeConfig manager.
+   * Replaced as a whole when the PModeConfigs change.
+   */
+  private static final class CacheState
+  {
+    private final int m_nModificationCount;
+    private final Map <CacheKey, Optional <IPModeConfig>> m_aMap = new ConcurrentHashMap <> ();
+
+    CacheState (final int nModificationCount)
+    {
+      m_nModificationCount = nModificationCount;
+    }
+  }
+
   private final boolean m_bUseDefaultAsFallback;
+  private final int m_nMaxCacheSize;
+  private final AtomicReference <CacheState> m_aCache = new AtomicReference <> (new CacheState (-1));
+  // Profile ID to default PModeConfig
+  private final Map <String, IPModeConfig> m_aDefaultPModeConfigs = new ConcurrentHashMap <> ();
 
   public DefaultPModeConfigResolver (final boolean bUseDefaultAsFallback)
   {
+    this (bUseDefaultAsFallback, DEFAULT_MAX_CACHE_SIZE);
+  }
+
+  /**
+   * Constructor
+   *
+   * @param bUseDefaultAsFallback
+   *        <code>true</code> to use the default PModeConfig if no other
+   *        matches.
+   * @param nMaxCacheSize
+   *        The maximum number of cached lookup results. If the limit is
+   *        exceeded the cache is cleared. Use 0 to disable caching.
+   */
+  public DefaultPModeConfigResolver (final boolean bUseDefaultAsFallback, @Nonnegative final int nMaxCacheSize)
+  {
+    ValueEnforcer.isGE0 (nMaxCacheSize, "MaxCacheSize");
     m_bUseDefaultAsFallback = bUseDefaultAsFallback;
+    m_nMaxCacheSize = nMaxCacheSize;
   }
 
   @Nullable
-  public IPModeConfig getPModeConfigOfID (@Nullable final String sPModeConfigID,
-                                          @Nonnull final String sService,
-                                          @Nonnull final String sAction)
+  private static IPModeConfig _lookup (@Nonnull final PModeConfigManager aPModeConfigMgr,
+                                       @Nullable final String sPModeConfigID,
+                                       @Nullable final String sService,
+                                       @Nullable final String sAction)
   {
-    final PModeConfigManager aPModeConfigMgr = MetaAS4Manager.getPModeConfigMgr ();
     IPModeConfig ret = null;
     if (StringHelper.hasText (sPModeConfigID))
     {
@@ -60,7 +150,51 @@ public class DefaultPModeConfigResolver implements IPModeConfigResolver
       // Use combination of service and action
       ret = aPModeConfigMgr.getPModeConfigOfServiceAndAction (sService, sAction);
     }
+    return ret;
+  }
+
+  @Nullable
+  private IPModeConfig _getCached (@Nonnull final PModeConfigManager aPModeConfigMgr,
+                                   @Nullable final String sPModeConfigID,
+                                   @Nullable final String sService,
+                                   @Nullable final String sAction)
+  {
+    if (m_nMaxCacheSize == 0)
+      return _lookup (aPModeConfigMgr, sPModeConfigID, sService, sAction);
+
+    final int nModificationCount = aPModeConfigMgr.getModificationCount ();
+    CacheState aState = m_aCache.get ();
+    if (aState.m_nModificationCount != nModificationCount || aState.m_aMap.size () >= m_nMaxCacheSize)
+    {
+      // PModeConfigs changed or cache is full
+      final CacheState aNewState = new CacheState (nModificationCount);
+      aState = m_aCache.compareAndSet (aState, aNewState) ? aNewState : m_aCache.get ();
+    }
 
+    return aState.m_aMap.computeIfAbsent (new CacheKey (sPModeConfigID, sService, sAction),
+                                          k -> Optional.ofNullable (_lookup (aPModeConfigMgr,
+                                                                             sPModeConfigID,
+                                                                             sService,
+                                                                             sAction)))
+                        .orElse (null);
+  }
+
+  /**
+   * Remove all cached lookup results and default PModeConfigs.
+   */
+  public void clearCache ()
+  {
+    m_aCache.set (new CacheState (-1));
+    m_aDefaultPModeConfigs.clear ();
+  }
+
+  @Nullable
+  public IPModeConfig getPModeConfigOfID (@Nullable final String sPModeConfigID,
+                                          @Nonnull final String sService,
+                                          @Nonnull final String sAction)
+  {
+    final PModeConfigManager aPModeConfigMgr = MetaAS4Manager.getPModeConfigMgr ();
+    final IPModeConfig ret = _getCached (aPModeConfigMgr, sPModeConfigID, sService, sAction);
     if (ret != null)
       return ret;
 
@@ -75,7 +209,7 @@ public class DefaultPModeConfigResolver implements IPModeConfigResolver
     // 2. Default default
     final IAS4Profile aProfile = MetaAS4Manager.getProfileMgr ().getDefaultProfile ();
     if (aProfile != null)
-      return aProfile.createDefaultPModeConfig ();
+      return m_aDefaultPModeConfigs.computeIfAbsent (aProfile.getID (), k -> aProfile.createDefaultPModeConfig ());
 
     return aPModeConfigMgr.getPModeConfigOfID (DefaultPMode.DEFAULT_PMODE_ID);
   }
@@ -63,4 +63,11 @@ public interface IPModeConfig extends IObject
 
   @Nullable
   PModeReceptionAwareness getReceptionAwareness ();
+
+  /**
+   * @return <code>true</code> if the message processors should be invoked
+   *         asynchronously via the durable inbox, so that the receipt can be
+   *         sent immediately. Only applicable to one-way MEPs.
+   */
+  boolean isAsyncSPIInvocation ();
 }
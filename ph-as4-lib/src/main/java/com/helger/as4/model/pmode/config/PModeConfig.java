@@ -24,6 +24,7 @@ import com.helger.as4.model.EMEPBinding;
 import com.helger.as4.model.pmode.PModePayloadService;
 import com.helger.as4.model.pmode.PModeReceptionAwareness;
 import com.helger.as4.model.pmode.leg.PModeLeg;
+import com.helger.as4.util.AS4SystemPrincipal;
 import com.helger.commons.ValueEnforcer;
 import com.helger.commons.annotation.Nonempty;
 import com.helger.commons.hashcode.HashCodeGenerator;
@@ -35,6 +36,7 @@ import com.helger.photon.security.object.StubObject;
 public class PModeConfig extends AbstractBaseObject implements IPModeConfig
 {
   public static final ObjectType OT = new ObjectType ("as4.pmodeconfig");
+  public static final boolean DEFAULT_ASYNC_SPI_INVOCATION = false;
 
   /**
    * (optional) The identifier for the P-Mode, e.g. the name of the business
@@ -74,9 +76,16 @@ public class PModeConfig extends AbstractBaseObject implements IPModeConfig
 
   private PModeReceptionAwareness m_aReceptionAwareness;
 
+  /**
+   * If <code>true</code> incoming one-way user messages are stored in the
+   * inbox and the message processors are invoked asynchronously after the
+   * receipt was sent.
+   */
+  private boolean m_bAsyncSPIInvocation = DEFAULT_ASYNC_SPI_INVOCATION;
+
   public PModeConfig (@Nonnull @Nonempty final String sID)
   {
-    this (StubObject.createForCurrentUserAndID (sID));
+    this (AS4SystemPrincipal.createStubObject (sID));
   }
 
   PModeConfig (@Nonnull final StubObject aStubObject)
@@ -167,6 +176,16 @@ public class PModeConfig extends AbstractBaseObject implements IPModeConfig
     m_aReceptionAwareness = aPModeReceptionAwareness;
   }
 
+  public boolean isAsyncSPIInvocation ()
+  {
+    return m_bAsyncSPIInvocation;
+  }
+
+  public void setAsyncSPIInvocation (final boolean bAsyncSPIInvocation)
+  {
+    m_bAsyncSPIInvocation = bAsyncSPIInvocation;
+  }
+
   @Override
   public boolean equals (final Object o)
   {
@@ -195,6 +214,7 @@ public class PModeConfig extends AbstractBaseObject implements IPModeConfig
                             .append ("Leg2", m_aLeg2)
                             .append ("PayloadService", m_aPayloadService)
                             .append ("ReceptionAwareness", m_aReceptionAwareness)
+                            .append ("AsyncSPIInvocation", m_bAsyncSPIInvocation)
                             .getToString ();
   }
 }
@@ -20,6 +20,7 @@ import java.util.Locale;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
+import javax.annotation.concurrent.Immutable;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -28,28 +29,88 @@ import com.helger.as4.model.pmode.DefaultPMode;
 import com.helger.as4.model.pmode.leg.PModeLeg;
 import com.helger.as4.model.pmode.leg.PModeLegBusinessInformation;
 import com.helger.as4.util.AS4IOHelper;
+import com.helger.as4.util.AS4SystemPrincipal;
 import com.helger.commons.ValueEnforcer;
+import com.helger.commons.annotation.ELockType;
+import com.helger.commons.annotation.MustBeLocked;
 import com.helger.commons.annotation.OverrideOnDemand;
 import com.helger.commons.annotation.ReturnsMutableCopy;
+import com.helger.commons.collection.ext.CommonsHashMap;
 import com.helger.commons.collection.ext.ICommonsList;
+import com.helger.commons.collection.ext.ICommonsMap;
 import com.helger.commons.equals.EqualsHelper;
 import com.helger.commons.error.list.ErrorList;
+import com.helger.commons.hashcode.HashCodeGenerator;
 import com.helger.commons.state.EChange;
 import com.helger.commons.string.StringHelper;
 import com.helger.photon.basic.app.dao.impl.AbstractMapBasedWALDAO;
 import com.helger.photon.basic.app.dao.impl.DAOException;
 import com.helger.photon.basic.audit.AuditHelper;
-import com.helger.photon.security.object.ObjectHelper;
 
 public class PModeConfigManager extends AbstractMapBasedWALDAO <IPModeConfig, PModeConfig>
 {
+  /**
+   * Index key consisting of leg 1 service and action.
+   */
+  @Immutable
+  private static final class ServiceActionKey
+  {
+    private final String m_sService;
+    private final String m_sAction;
+
+    ServiceActionKey (@Nullable final String sService, @Nullable final String sAction)
+    {
+      m_sService = sService;
+      m_sAction = sAction;
+    }
+
+    @Override
+    public boolean equals (final Object o)
+    {
+      if (o == this)
+        return true;
+      if (o == null || !getClass ().equals (o.getClass ()))
+        return false;
+      final ServiceActionKey rhs = (ServiceActionKey) o;
+      return EqualsHelper.equals (m_sService, rhs.m_sService) && EqualsHelper.equals (m_sAction, rhs.m_sAction);
+    }
+
+    @Override
+    public int hashCode ()
+    {
+      return new HashCodeGenerator (this).append (m_sService).append (m_sAction).getHashCode ();
+    }
+  }
+
   private static final Logger s_aLogger = LoggerFactory.getLogger (PModeConfigManager.class);
 
+  // No initializers, because onInit is called from the super constructor.
+  // Modified only with the write lock held.
+  private volatile ICommonsMap <ServiceActionKey, IPModeConfig> m_aServiceActionIndex;
+  private volatile int m_nModificationCount;
+
   public PModeConfigManager (@Nullable final String sFilename) throws DAOException
   {
     super (PModeConfig.class, sFilename);
   }
 
+  @MustBeLocked (ELockType.WRITE)
+  private void _onModified ()
+  {
+    // Rebuilt lazily upon the next lookup
+    m_aServiceActionIndex = null;
+    m_nModificationCount++;
+  }
+
+  /**
+   * @return A counter that is incremented on every change to any PModeConfig
+   *         of this manager. Can be used to invalidate derived caches.
+   */
+  public int getModificationCount ()
+  {
+    return m_nModificationCount;
+  }
+
   @Override
   @Nonnull
   @OverrideOnDemand
@@ -91,6 +152,7 @@ public class PModeConfigManager extends AbstractMapBasedWALDAO <IPModeConfig, PM
 
     m_aRWLock.writeLocked ( () -> {
       internalCreateItem (aPModeConfig);
+      _onModified ();
     });
     AuditHelper.onAuditCreateSuccess (PModeConfig.OT, aPModeConfig.getID ());
     s_aLogger.info ("Created PModeConfig with ID '" + aPModeConfig.getID () + "'");
@@ -112,8 +174,9 @@ public class PModeConfigManager extends AbstractMapBasedWALDAO <IPModeConfig, PM
     m_aRWLock.writeLock ().lock ();
     try
     {
-      ObjectHelper.setLastModificationNow (aRealPModeConfig);
+      AS4SystemPrincipal.setLastModificationNow (aRealPModeConfig);
       internalUpdateItem (aRealPModeConfig);
+      _onModified ();
     }
     finally
     {
@@ -138,12 +201,13 @@ public class PModeConfigManager extends AbstractMapBasedWALDAO <IPModeConfig, PM
     m_aRWLock.writeLock ().lock ();
     try
     {
-      if (ObjectHelper.setDeletionNow (aDeletedPModeConfig).isUnchanged ())
+      if (AS4SystemPrincipal.setDeletionNow (aDeletedPModeConfig).isUnchanged ())
       {
         AuditHelper.onAuditDeleteFailure (PModeConfig.OT, "already-deleted", sPModeConfigID);
         return EChange.UNCHANGED;
       }
       internalMarkItemDeleted (aDeletedPModeConfig);
+      _onModified ();
     }
     finally
     {
@@ -169,6 +233,7 @@ public class PModeConfigManager extends AbstractMapBasedWALDAO <IPModeConfig, PM
     try
     {
       internalDeleteItem (sPModeConfigID);
+      _onModified ();
     }
     finally
     {
@@ -192,21 +257,53 @@ public class PModeConfigManager extends AbstractMapBasedWALDAO <IPModeConfig, PM
     return getOfID (sID);
   }
 
-  @Nullable
-  public IPModeConfig getPModeConfigOfServiceAndAction (@Nullable final String sService, @Nullable final String sAction)
+  @Nonnull
+  private ICommonsMap <ServiceActionKey, IPModeConfig> _getServiceActionIndex ()
   {
-    return findFirst (x -> {
-      final PModeLeg aLeg = x.getLeg1 ();
-      if (aLeg != null)
-      {
-        final PModeLegBusinessInformation aBI = aLeg.getBusinessInfo ();
-        if (aBI != null)
+    ICommonsMap <ServiceActionKey, IPModeConfig> ret = m_aServiceActionIndex;
+    if (ret == null)
+    {
+      ret = m_aRWLock.writeLocked ( () -> {
+        ICommonsMap <ServiceActionKey, IPModeConfig> aIndex = m_aServiceActionIndex;
+        if (aIndex == null)
         {
-          return EqualsHelper.equals (aBI.getService (), sService) && EqualsHelper.equals (aBI.getAction (), sAction);
+          aIndex = new CommonsHashMap <> ();
+          for (final IPModeConfig aPModeConfig : getAll ())
+          {
+            final PModeLeg aLeg = aPModeConfig.getLeg1 ();
+            if (aLeg != null)
+            {
+              final PModeLegBusinessInformation aBI = aLeg.getBusinessInfo ();
+              if (aBI != null)
+              {
+                // First one wins
+                aIndex.putIfAbsent (new ServiceActionKey (aBI.getService (), aBI.getAction ()), aPModeConfig);
+              }
+            }
+          }
+          m_aServiceActionIndex = aIndex;
         }
-      }
-      return false;
-    });
+        return aIndex;
+      });
+    }
+    return ret;
+  }
+
+  /**
+   * Get the PModeConfig whose leg 1 business information matches the passed
+   * service and action. This is an index lookup. The index is rebuilt after
+   * each modification.
+   *
+   * @param sService
+   *        Service to search. May be <code>null</code>.
+   * @param sAction
+   *        Action to search. May be <code>null</code>.
+   * @return <code>null</code> if no such PModeConfig exists.
+   */
+  @Nullable
+  public IPModeConfig getPModeConfigOfServiceAndAction (@Nullable final String sService, @Nullable final String sAction)
+  {
+    return _getServiceActionIndex ().get (new ServiceActionKey (sService, sAction));
   }
 
   public void validatePModeConfig (@Nullable final IPModeConfig aPModeConfig, @Nonnull final ErrorList aErrors)
@@ -32,6 +32,7 @@ public final class PModeConfigMicroTypeConverter extends AbstractObjectMicroType
   private static final String ATTR_AGREEMENT = "Agreement";
   private static final String ATTR_MEP = "MEP";
   private static final String ATTR_MEP_BINDING = "MEPBinding";
+  private static final String ATTR_ASYNC_SPI_INVOCATION = "AsyncSPIInvocation";
   private static final String ELEMENT_LEG1 = "Leg1";
   private static final String ELEMENT_LEG2 = "Leg2";
 
@@ -46,6 +47,7 @@ public final class PModeConfigMicroTypeConverter extends AbstractObjectMicroType
     ret.setAttribute (ATTR_AGREEMENT, aValue.getAgreement ());
     ret.setAttribute (ATTR_MEP, aValue.getMEPID ());
     ret.setAttribute (ATTR_MEP_BINDING, aValue.getMEPBindingID ());
+    ret.setAttribute (ATTR_ASYNC_SPI_INVOCATION, aValue.isAsyncSPIInvocation ());
     ret.appendChild (MicroTypeConverter.convertToMicroElement (aValue.getLeg1 (), sNamespaceURI, ELEMENT_LEG1));
     ret.appendChild (MicroTypeConverter.convertToMicroElement (aValue.getLeg2 (), sNamespaceURI, ELEMENT_LEG2));
 
@@ -59,6 +61,8 @@ public final class PModeConfigMicroTypeConverter extends AbstractObjectMicroType
     ret.setAgreement (aElement.getAttributeValue (ATTR_AGREEMENT));
     ret.setMEP (EMEP.getFromIDOrNull (aElement.getAttributeValue (ATTR_MEP)));
     ret.setMEPBinding (EMEPBinding.getFromIDOrNull (aElement.getAttributeValue (ATTR_MEP_BINDING)));
+    ret.setAsyncSPIInvocation (aElement.getAttributeValueAsBool (ATTR_ASYNC_SPI_INVOCATION,
+                                                                 PModeConfig.DEFAULT_ASYNC_SPI_INVOCATION));
     ret.setLeg1 (MicroTypeConverter.convertToNative (aElement.getFirstChildElement (ELEMENT_LEG1), PModeLeg.class));
     ret.setLeg2 (MicroTypeConverter.convertToNative (aElement.getFirstChildElement (ELEMENT_LEG2), PModeLeg.class));
     return ret;
@@ -21,6 +21,7 @@ import java.util.Map.Entry;
 
 import javax.annotation.Nonnull;
 
+import com.helger.as4.util.AS4SystemPrincipal;
 import com.helger.as4.util.IStringMap;
 import com.helger.as4.util.StringMap;
 import com.helger.commons.annotation.Nonempty;
@@ -49,7 +50,7 @@ public class Partner extends AbstractBaseObject implements IPartner
 
   public Partner (@Nonnull @Nonempty final String sID, @Nonnull final IStringMap aAttrs)
   {
-    this (StubObject.createForCurrentUserAndID (sID), aAttrs);
+    this (AS4SystemPrincipal.createStubObject (sID), aAttrs);
   }
 
   Partner (@Nonnull final StubObject aStubObject, @Nonnull final IStringMap aAttrs)
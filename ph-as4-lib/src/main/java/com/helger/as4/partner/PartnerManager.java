@@ -22,6 +22,7 @@ import javax.annotation.Nullable;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.helger.as4.util.AS4SystemPrincipal;
 import com.helger.as4.util.IStringMap;
 import com.helger.commons.ValueEnforcer;
 import com.helger.commons.annotation.ReturnsMutableCopy;
@@ -30,7 +31,6 @@ import com.helger.commons.state.EChange;
 import com.helger.photon.basic.app.dao.impl.AbstractMapBasedWALDAO;
 import com.helger.photon.basic.app.dao.impl.DAOException;
 import com.helger.photon.basic.audit.AuditHelper;
-import com.helger.photon.security.object.ObjectHelper;
 
 public class PartnerManager extends AbstractMapBasedWALDAO <IPartner, Partner>
 {
@@ -71,7 +71,7 @@ public class PartnerManager extends AbstractMapBasedWALDAO <IPartner, Partner>
     try
     {
       aPartner.setAllAttributes (aNewAttrs);
-      ObjectHelper.setLastModificationNow (aPartner);
+      AS4SystemPrincipal.setLastModificationNow (aPartner);
       internalUpdateItem (aPartner);
     }
     finally
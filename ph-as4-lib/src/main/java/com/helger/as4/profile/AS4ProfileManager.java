@@ -21,7 +21,6 @@ import java.io.Serializable;
 import javax.annotation.Nonnegative;
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
-import javax.annotation.concurrent.GuardedBy;
 import javax.annotation.concurrent.ThreadSafe;
 
 import org.slf4j.Logger;
@@ -39,7 +38,9 @@ import com.helger.commons.string.ToStringGenerator;
 
 /**
  * AS4 profile manager. All profiles are registered by SPI -
- * {@link IAS4ProfileRegistrarSPI}.
+ * {@link IAS4ProfileRegistrarSPI}.<br>
+ * Registrations replace an immutable copy of the profile map (copy on write),
+ * so that lookups require no locking.
  *
  * @author Philip Helger
  */
@@ -48,17 +49,31 @@ public class AS4ProfileManager implements IAS4ProfileRegistrar, Serializable
 {
   private static final Logger s_aLogger = LoggerFactory.getLogger (AS4ProfileManager.class);
 
+  // Only used to serialize the modifications
   private final SimpleReadWriteLock m_aRWLock = new SimpleReadWriteLock ();
-  @GuardedBy ("m_aRWLock")
-  private final ICommonsMap <String, IAS4Profile> m_aMap = new CommonsHashMap<> ();
-  @GuardedBy ("m_aRWLock")
-  private IAS4Profile m_aDefaultProfile;
+  // Never modified after publication
+  private volatile ICommonsMap <String, IAS4Profile> m_aMap = new CommonsHashMap<> ();
+  private volatile IAS4Profile m_aDefaultProfile;
+
+  private static void _addProfile (@Nonnull final ICommonsMap <String, IAS4Profile> aMap,
+                                  @Nonnull final IAS4Profile aAS4Profile)
+  {
+    ValueEnforcer.notNull (aAS4Profile, "AS4Profile");
+
+    final String sID = aAS4Profile.getID ();
+    if (aMap.containsKey (sID))
+      throw new IllegalStateException ("An AS4 profile with ID '" + sID + "' is already registered!");
+    aMap.put (sID, aAS4Profile);
+    s_aLogger.info ("Registered AS4 profile '" + sID + "'");
+  }
 
   private void _registerAll ()
   {
-    m_aRWLock.writeLocked ( () -> m_aMap.clear ());
+    // Collect all profiles first and publish them at once
+    final ICommonsMap <String, IAS4Profile> aNewMap = new CommonsHashMap<> ();
     for (final IAS4ProfileRegistrarSPI aSPI : ServiceLoaderHelper.getAllSPIImplementations (IAS4ProfileRegistrarSPI.class))
-      aSPI.registerAS4Profile (this);
+      aSPI.registerAS4Profile (x -> _addProfile (aNewMap, x));
+    m_aRWLock.writeLocked ( () -> m_aMap = aNewMap);
 
     final int nCount = getProfileCount ();
     s_aLogger.info ((nCount == 1 ? "1 AS4 profile is registered " : nCount + " AS4 profiles are registered"));
@@ -71,28 +86,24 @@ public class AS4ProfileManager implements IAS4ProfileRegistrar, Serializable
 
   public void registerProfile (@Nonnull final IAS4Profile aAS4Profile)
   {
-    ValueEnforcer.notNull (aAS4Profile, "AS4Profile");
-
-    final String sID = aAS4Profile.getID ();
     m_aRWLock.writeLocked ( () -> {
-      if (m_aMap.containsKey (sID))
-        throw new IllegalStateException ("An AS4 profile with ID '" + sID + "' is already registered!");
-      m_aMap.put (sID, aAS4Profile);
+      final ICommonsMap <String, IAS4Profile> aNewMap = m_aMap.getClone ();
+      _addProfile (aNewMap, aAS4Profile);
+      m_aMap = aNewMap;
     });
-    s_aLogger.info ("Registered AS4 profile '" + sID + "'");
   }
 
   @Nonnull
   @ReturnsMutableCopy
   public ICommonsList <IAS4Profile> getAllProfiles ()
   {
-    return m_aRWLock.readLocked ( () -> m_aMap.copyOfValues ());
+    return m_aMap.copyOfValues ();
   }
 
   @Nonnegative
   public final int getProfileCount ()
   {
-    return m_aRWLock.readLocked ( () -> m_aMap.size ());
+    return m_aMap.size ();
   }
 
   @Nullable
@@ -101,7 +112,7 @@ public class AS4ProfileManager implements IAS4ProfileRegistrar, Serializable
     if (StringHelper.hasNoText (sID))
       return null;
 
-    return m_aRWLock.readLocked ( () -> m_aMap.get (sID));
+    return m_aMap.get (sID);
   }
 
   /**
@@ -116,7 +127,7 @@ public class AS4ProfileManager implements IAS4ProfileRegistrar, Serializable
   public IAS4Profile setDefaultProfile (@Nullable final String sDefaultProfileID)
   {
     final IAS4Profile aDefault = getProfileOfID (sDefaultProfileID);
-    m_aRWLock.writeLocked ( () -> m_aDefaultProfile = aDefault);
+    m_aDefaultProfile = aDefault;
     return aDefault;
   }
 
@@ -130,21 +141,19 @@ public class AS4ProfileManager implements IAS4ProfileRegistrar, Serializable
   @Nonnull
   public IAS4Profile getDefaultProfile ()
   {
-    return m_aRWLock.readLocked ( () -> {
-      IAS4Profile ret = m_aDefaultProfile;
-      if (ret == null)
-      {
-        if (m_aMap.size () == 1)
-          ret = m_aMap.getFirstValue ();
+    IAS4Profile ret = m_aDefaultProfile;
+    if (ret == null)
+    {
+      final ICommonsMap <String, IAS4Profile> aMap = m_aMap;
+      if (aMap.size () == 1)
+        ret = aMap.getFirstValue ();
+      else
+        if (aMap.isEmpty ())
+          throw new IllegalStateException ("No AS4 profile is present, so no default profile can be determined!");
         else
-          if (m_aMap.isEmpty ())
-            throw new IllegalStateException ("No AS4 profile is present, so no default profile can be determined!");
-          else
-            throw new IllegalStateException (m_aMap.size () +
-                                             " AS4 profiles are present, but none is declared default!");
-      }
-      return ret;
-    });
+          throw new IllegalStateException (aMap.size () + " AS4 profiles are present, but none is declared default!");
+    }
+    return ret;
   }
 
   @Override
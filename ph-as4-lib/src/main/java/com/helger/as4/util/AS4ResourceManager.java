@@ -18,10 +18,14 @@ package com.helger.as4.util;
 
 import java.io.Closeable;
 import java.io.File;
+import java.io.FilterOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.annotation.Nonnull;
+import javax.annotation.concurrent.GuardedBy;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -30,20 +34,73 @@ import com.helger.commons.ValueEnforcer;
 import com.helger.commons.collection.ext.CommonsArrayList;
 import com.helger.commons.collection.ext.ICommonsList;
 import com.helger.commons.concurrent.SimpleReadWriteLock;
-import com.helger.commons.io.file.FileIOError;
+import com.helger.commons.io.file.FileHelper;
 import com.helger.commons.io.stream.StreamHelper;
 
+/**
+ * Manages the temporary files and other resources of a single request. All
+ * temporary files are created in a request directory of the
+ * {@link AS4SpoolManager}, which is deleted in the background upon
+ * {@link #close()}.
+ *
+ * @author Philip Helger
+ */
 public class AS4ResourceManager implements Closeable
 {
+  /**
+   * Output stream that reserves the spool quota before writing.
+   */
+  private final class QuotaOutputStream extends FilterOutputStream
+  {
+    QuotaOutputStream (@Nonnull final OutputStream aOS)
+    {
+      super (aOS);
+    }
+
+    @Override
+    public void write (final int b) throws IOException
+    {
+      m_aSpoolMgr.reserve (m_aSpooledBytes, 1);
+      out.write (b);
+    }
+
+    @Override
+    public void write (@Nonnull final byte [] aBuf, final int nOfs, final int nLen) throws IOException
+    {
+      m_aSpoolMgr.reserve (m_aSpooledBytes, nLen);
+      out.write (aBuf, nOfs, nLen);
+    }
+  }
+
   private static final Logger s_aLogger = LoggerFactory.getLogger (AS4ResourceManager.class);
 
+  private final AS4SpoolManager m_aSpoolMgr;
   private final SimpleReadWriteLock m_aRWLock = new SimpleReadWriteLock ();
   private final AtomicBoolean m_aInClose = new AtomicBoolean (false);
-  private final ICommonsList <File> m_aTempFiles = new CommonsArrayList<> ();
+  private final AtomicLong m_aSpooledBytes = new AtomicLong (0);
+  @GuardedBy ("m_aRWLock")
+  private File m_aRequestDir;
+  @GuardedBy ("m_aRWLock")
   private final ICommonsList <Closeable> m_aCloseables = new CommonsArrayList<> ();
 
   public AS4ResourceManager ()
-  {}
+  {
+    this (AS4SpoolManager.getDefaultInstance ());
+  }
+
+  public AS4ResourceManager (@Nonnull final AS4SpoolManager aSpoolMgr)
+  {
+    m_aSpoolMgr = ValueEnforcer.notNull (aSpoolMgr, "SpoolMgr");
+  }
+
+  /**
+   * @return The spool manager used. Never <code>null</code>.
+   */
+  @Nonnull
+  public AS4SpoolManager getSpoolManager ()
+  {
+    return m_aSpoolMgr;
+  }
 
   @Nonnull
   public File createTempFile () throws IOException
@@ -51,11 +108,76 @@ public class AS4ResourceManager implements Closeable
     if (m_aInClose.get ())
       throw new IllegalStateException ("ResourceManager is already closing/closed!");
 
-    // Create
-    final File ret = File.createTempFile ("as4-res-", ".tmp");
-    // And remember
-    m_aRWLock.writeLocked ( () -> m_aTempFiles.add (ret));
-    return ret;
+    // The request directory is created upon the first temp file
+    final File aDir;
+    m_aRWLock.writeLock ().lock ();
+    try
+    {
+      if (m_aRequestDir == null)
+        m_aRequestDir = m_aSpoolMgr.createRequestDirectory ();
+      aDir = m_aRequestDir;
+    }
+    finally
+    {
+      m_aRWLock.writeLock ().unlock ();
+    }
+    return File.createTempFile ("as4-res-", ".tmp", aDir);
+  }
+
+  /**
+   * Open an output stream for a temporary file, that is subject to the quotas
+   * of the spool manager.
+   *
+   * @param aFile
+   *        The file to write to. Usually created by {@link #createTempFile()}.
+   *        May not be <code>null</code>.
+   * @return The buffered output stream. Never <code>null</code>. Writing
+   *         throws an {@link AS4SpoolQuotaExceededException} if a quota is
+   *         exceeded.
+   * @throws IOException
+   *         If the file cannot be opened
+   */
+  @Nonnull
+  public OutputStream getOutputStream (@Nonnull final File aFile) throws IOException
+  {
+    ValueEnforcer.notNull (aFile, "File");
+
+    final OutputStream aOS = StreamHelper.getBuffered (FileHelper.getOutputStream (aFile));
+    if (aOS == null)
+      throw new IOException ("Failed to open temporary file " + aFile.getAbsolutePath ());
+    return new QuotaOutputStream (aOS);
+  }
+
+  /**
+   * @return The number of bytes written via {@link #getOutputStream(File)} so
+   *         far.
+   */
+  public long getSpooledBytes ()
+  {
+    return m_aSpooledBytes.get ();
+  }
+
+  /**
+   * Delete a temporary file before this resource manager is closed, and
+   * release its quota. This is meant for big files that are no longer needed,
+   * but whose resource manager lives on (e.g. the one of an AS4 client).
+   *
+   * @param aFile
+   *        The file to delete. Must have been created by
+   *        {@link #createTempFile()} and written completely via
+   *        {@link #getOutputStream(File)}. May not be <code>null</code>.
+   */
+  public void deleteTempFile (@Nonnull final File aFile)
+  {
+    ValueEnforcer.notNull (aFile, "File");
+
+    final long nBytes = aFile.length ();
+    if (AS4IOHelper.getFileOperationManager ().deleteFileIfExisting (aFile).isSuccess ())
+    {
+      // Never release more than was reserved for this request
+      final long nOld = m_aSpooledBytes.getAndUpdate (x -> x - Math.min (x, nBytes));
+      m_aSpoolMgr.release (Math.min (nOld, nBytes));
+    }
   }
 
   public void addCloseable (@Nonnull final Closeable aCloseable)
@@ -65,7 +187,7 @@ public class AS4ResourceManager implements Closeable
     if (m_aInClose.get ())
       throw new IllegalStateException ("ResourceManager is already closing/closed!");
 
-    m_aCloseables.add (aCloseable);
+    m_aRWLock.writeLocked ( () -> m_aCloseables.add (aCloseable));
   }
 
   public void close ()
@@ -81,28 +203,21 @@ public class AS4ResourceManager implements Closeable
     });
     if (aCloseables.isNotEmpty ())
     {
-      s_aLogger.info ("Closing " + aCloseables.size () + " stream handles");
+      if (s_aLogger.isDebugEnabled ())
+        s_aLogger.debug ("Closing " + aCloseables.size () + " stream handles");
       for (final Closeable aCloseable : aCloseables)
         StreamHelper.close (aCloseable);
     }
 
-    // Get and delete all temp files
-    final ICommonsList <File> aFiles = m_aRWLock.writeLocked ( () -> {
-      final ICommonsList <File> ret = m_aTempFiles.getClone ();
-      m_aTempFiles.clear ();
+    // Delete all temp files in the background, so that the response is not
+    // delayed
+    final File aDir = m_aRWLock.writeLocked ( () -> {
+      final File ret = m_aRequestDir;
+      m_aRequestDir = null;
       return ret;
     });
-    if (aFiles.isNotEmpty ())
-    {
-      s_aLogger.info ("Deleting " + aFiles.size () + " temporary files");
-      for (final File aFile : aFiles)
-      {
-        if (s_aLogger.isDebugEnabled ())
-          s_aLogger.debug ("Deleting temporary file " + aFile.getAbsolutePath ());
-        final FileIOError aError = AS4IOHelper.getFileOperationManager ().deleteFileIfExisting (aFile);
-        if (aError.isFailure ())
-          s_aLogger.warn ("  Failed to delete " + aFile.getAbsolutePath () + ": " + aError.toString ());
-      }
-    }
+    final long nBytes = m_aSpooledBytes.getAndSet (0);
+    if (aDir != null || nBytes > 0)
+      m_aSpoolMgr.scheduleDelete (aDir, nBytes);
   }
 }
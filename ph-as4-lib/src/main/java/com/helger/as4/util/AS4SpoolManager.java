@@ -0,0 +1,445 @@
+/**
+ * Copyright (C) 2015-2017 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.as4.util;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.util.UUID;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.helger.commons.ValueEnforcer;
+import com.helger.commons.concurrent.BasicThreadFactory;
+import com.helger.commons.io.file.FileIOError;
+import com.helger.commons.io.file.FileOperationManager;
+import com.helger.commons.io.file.FileSystemIterator;
+import com.helger.commons.string.ToStringGenerator;
+import com.helger.commons.system.SystemProperties;
+
+/**
+ * Manages the spool directory for the temporary files of
+ * {@link AS4ResourceManager} instances:
+ * <ul>
+ * <li>Each manager instance owns a sub directory of the configurable root
+ * directory, that is locked with a file lock as long as the process is
+ * alive.</li>
+ * <li>Each resource manager gets its own request directory inside it, which is
+ * deleted as a whole in a background thread when the resource manager is
+ * closed.</li>
+ * <li>On startup, the directories of dead processes are swept.</li>
+ * <li>Optional global and per-request disk quotas limit the number of bytes
+ * written via {@link AS4ResourceManager#getOutputStream(File)}. Exceeding a
+ * quota fails fast with an {@link AS4SpoolQuotaExceededException}.</li>
+ * </ul>
+ * Quota values &le; 0 mean unlimited. Closing an instance releases the lock of
+ * the instance directory, so that it is swept by the next instance started
+ * on the same root directory.
+ *
+ * @author Philip Helger
+ */
+@ThreadSafe
+public class AS4SpoolManager implements Closeable
+{
+  /** The name of the default root directory inside the system temp dir */
+  public static final String DEFAULT_ROOT_DIR_NAME = "as4-spool";
+  /** Unlocked directories without lock file are only swept after this age */
+  public static final long ORPHAN_MIN_AGE_MS = TimeUnit.MINUTES.toMillis (1);
+
+  private static final Logger s_aLogger = LoggerFactory.getLogger (AS4SpoolManager.class);
+  private static final String INSTANCE_DIR_PREFIX = "inst-";
+  private static final String REQUEST_DIR_PREFIX = "req-";
+  private static final String LOCK_FILE_NAME = "lock";
+
+  // No callback - successful deletions should not be logged
+  private static final FileOperationManager s_aFOM = new FileOperationManager ();
+
+  private static final class SingletonHolder
+  {
+    // A single thread is enough and keeps the disk I/O of deletions low
+    static final ExecutorService s_aCleanupExecutor = Executors.newSingleThreadExecutor (new BasicThreadFactory.Builder ().setNamingPattern ("as4-spool-cleanup-%d")
+                                                                                                                         .setDaemon (true)
+                                                                                                                         .build ());
+  }
+
+  private static AS4SpoolManager s_aDefaultInstance;
+
+  private final File m_aRootDir;
+  private final File m_aInstanceDir;
+  // Keeps the lock file open as long as this object is alive
+  private final FileLock m_aLock;
+  private final AtomicLong m_aUsedBytes = new AtomicLong (0);
+  private final AtomicLong m_aQuotaExceededCount = new AtomicLong (0);
+  private volatile long m_nMaxBytes = 0;
+  private volatile long m_nMaxRequestBytes = 0;
+
+  /**
+   * Constructor. The orphans of dead processes are swept in the background.
+   *
+   * @param aRootDir
+   *        The root directory. It is created if it does not exist. May not be
+   *        <code>null</code>.
+   */
+  public AS4SpoolManager (@Nonnull final File aRootDir)
+  {
+    ValueEnforcer.notNull (aRootDir, "RootDir");
+    m_aRootDir = aRootDir;
+    m_aInstanceDir = new File (aRootDir, INSTANCE_DIR_PREFIX + UUID.randomUUID ().toString ());
+    if (s_aFOM.createDirRecursiveIfNotExisting (m_aInstanceDir).isFailure ())
+      throw new IllegalStateException ("Failed to create AS4 spool directory " + m_aInstanceDir.getAbsolutePath ());
+
+    FileLock aLock = null;
+    try
+    {
+      final FileChannel aChannel = new RandomAccessFile (new File (m_aInstanceDir, LOCK_FILE_NAME), "rw").getChannel ();
+      aLock = aChannel.tryLock ();
+      if (aLock == null)
+        aChannel.close ();
+    }
+    catch (final IOException ex)
+    {
+      // Continue without protection against the sweep of other processes
+      s_aLogger.warn ("Failed to lock AS4 spool directory " + m_aInstanceDir.getAbsolutePath (), ex);
+    }
+    m_aLock = aLock;
+
+    _execute (this::_sweepOrphans);
+  }
+
+  /**
+   * @return The default instance using {@link #DEFAULT_ROOT_DIR_NAME} in the
+   *         system temp directory, unless a different one was set. It is
+   *         created upon the first call. Never <code>null</code>.
+   */
+  @Nonnull
+  public static synchronized AS4SpoolManager getDefaultInstance ()
+  {
+    if (s_aDefaultInstance == null)
+      s_aDefaultInstance = new AS4SpoolManager (new File (SystemProperties.getTmpDir (), DEFAULT_ROOT_DIR_NAME));
+    return s_aDefaultInstance;
+  }
+
+  /**
+   * Set the default instance, that is used by all resource managers created
+   * without an explicit spool manager. A previous default instance is closed.
+   *
+   * @param aSpoolMgr
+   *        The new default instance. May not be <code>null</code>.
+   */
+  public static synchronized void setDefaultInstance (@Nonnull final AS4SpoolManager aSpoolMgr)
+  {
+    ValueEnforcer.notNull (aSpoolMgr, "SpoolMgr");
+    if (s_aDefaultInstance != null && s_aDefaultInstance != aSpoolMgr)
+      s_aDefaultInstance.close ();
+    s_aDefaultInstance = aSpoolMgr;
+  }
+
+  private static void _execute (@Nonnull final Runnable aRunnable)
+  {
+    try
+    {
+      SingletonHolder.s_aCleanupExecutor.execute (aRunnable);
+    }
+    catch (final RejectedExecutionException ex)
+    {
+      aRunnable.run ();
+    }
+  }
+
+  private static void _deleteDir (@Nonnull final File aDir)
+  {
+    final FileIOError aError = s_aFOM.deleteDirRecursiveIfExisting (aDir);
+    if (aError.isFailure ())
+      s_aLogger.warn ("Failed to delete AS4 spool directory " + aDir.getAbsolutePath () + ": " + aError.toString ());
+  }
+
+  private static boolean _isOrphan (@Nonnull final File aDir)
+  {
+    final File aLockFile = new File (aDir, LOCK_FILE_NAME);
+    if (!aLockFile.exists ())
+    {
+      // The owner may be between creating the directory and the lock file
+      return aDir.lastModified () < System.currentTimeMillis () - ORPHAN_MIN_AGE_MS;
+    }
+
+    try (final FileChannel aChannel = new RandomAccessFile (aLockFile, "rw").getChannel ())
+    {
+      final FileLock aLock = aChannel.tryLock ();
+      if (aLock == null)
+        return false;
+      aLock.release ();
+      return true;
+    }
+    catch (final OverlappingFileLockException ex)
+    {
+      // Locked by another instance in this JVM
+      return false;
+    }
+    catch (final IOException ex)
+    {
+      return false;
+    }
+  }
+
+  private void _sweepOrphans ()
+  {
+    int nCount = 0;
+    for (final File aDir : new FileSystemIterator (m_aRootDir))
+      if (aDir.isDirectory () &&
+          aDir.getName ().startsWith (INSTANCE_DIR_PREFIX) &&
+          !aDir.equals (m_aInstanceDir) &&
+          _isOrphan (aDir))
+      {
+        _deleteDir (aDir);
+        ++nCount;
+      }
+    if (nCount > 0)
+      s_aLogger.info ("Deleted " + nCount + " orphaned AS4 spool directories in " + m_aRootDir.getAbsolutePath ());
+  }
+
+  /**
+   * @return The root directory as provided in the constructor. Never
+   *         <code>null</code>.
+   */
+  @Nonnull
+  public File getRootDirectory ()
+  {
+    return m_aRootDir;
+  }
+
+  /**
+   * @return The directory owned by this instance. Never <code>null</code>.
+   */
+  @Nonnull
+  public File getInstanceDirectory ()
+  {
+    return m_aInstanceDir;
+  }
+
+  /**
+   * @return <code>true</code> if the instance directory is protected against
+   *         the sweep of other processes.
+   */
+  public boolean isLocked ()
+  {
+    return m_aLock != null && m_aLock.isValid ();
+  }
+
+  /**
+   * Release the lock of the instance directory. Resource managers still using
+   * this instance continue to work, but their files are no longer protected
+   * against the sweep of other instances.
+   */
+  public void close ()
+  {
+    if (m_aLock != null && m_aLock.isValid ())
+      try
+      {
+        // Closing the channel releases the lock
+        m_aLock.channel ().close ();
+      }
+      catch (final IOException ex)
+      {
+        s_aLogger.warn ("Failed to unlock AS4 spool directory " + m_aInstanceDir.getAbsolutePath (), ex);
+      }
+  }
+
+  /**
+   * @return The maximum number of bytes of all requests together. Values &le; 0
+   *         mean unlimited.
+   */
+  public long getMaxBytes ()
+  {
+    return m_nMaxBytes;
+  }
+
+  public void setMaxBytes (final long nMaxBytes)
+  {
+    m_nMaxBytes = nMaxBytes;
+  }
+
+  /**
+   * @return The maximum number of bytes of a single request. Values &le; 0
+   *         mean unlimited.
+   */
+  public long getMaxRequestBytes ()
+  {
+    return m_nMaxRequestBytes;
+  }
+
+  public void setMaxRequestBytes (final long nMaxRequestBytes)
+  {
+    m_nMaxRequestBytes = nMaxRequestBytes;
+  }
+
+  /**
+   * @return The number of bytes currently spooled and not yet deleted.
+   */
+  @Nonnegative
+  public long getUsedBytes ()
+  {
+    return m_aUsedBytes.get ();
+  }
+
+  /**
+   * @return The number of times a quota was exceeded since startup.
+   */
+  @Nonnegative
+  public long getQuotaExceededCount ()
+  {
+    return m_aQuotaExceededCount.get ();
+  }
+
+  /**
+   * Create a new request directory.
+   *
+   * @return The created directory. Never <code>null</code>.
+   * @throws IOException
+   *         If the directory could not be created
+   */
+  @Nonnull
+  File createRequestDirectory () throws IOException
+  {
+    final File ret = new File (m_aInstanceDir, REQUEST_DIR_PREFIX + UUID.randomUUID ().toString ());
+    // The instance directory may have been removed manually
+    if (s_aFOM.createDirRecursiveIfNotExisting (ret).isFailure ())
+      throw new IOException ("Failed to create AS4 spool directory " + ret.getAbsolutePath ());
+    return ret;
+  }
+
+  /**
+   * Reserve the quota for bytes that are about to be written.
+   *
+   * @param aRequestBytes
+   *        The counter of the bytes of the request. May not be
+   *        <code>null</code>.
+   * @param nBytes
+   *        The number of bytes to be written.
+   * @throws AS4SpoolQuotaExceededException
+   *         If a quota would be exceeded. Nothing is reserved in this case.
+   */
+  void reserve (@Nonnull final AtomicLong aRequestBytes,
+                @Nonnegative final long nBytes) throws AS4SpoolQuotaExceededException
+  {
+    final long nMaxRequestBytes = m_nMaxRequestBytes;
+    if (aRequestBytes.addAndGet (nBytes) > nMaxRequestBytes && nMaxRequestBytes > 0)
+    {
+      aRequestBytes.addAndGet (-nBytes);
+      m_aQuotaExceededCount.incrementAndGet ();
+      throw new AS4SpoolQuotaExceededException (false, nMaxRequestBytes);
+    }
+
+    final long nMaxBytes = m_nMaxBytes;
+    if (m_aUsedBytes.addAndGet (nBytes) > nMaxBytes && nMaxBytes > 0)
+    {
+      m_aUsedBytes.addAndGet (-nBytes);
+      aRequestBytes.addAndGet (-nBytes);
+      m_aQuotaExceededCount.incrementAndGet ();
+      throw new AS4SpoolQuotaExceededException (true, nMaxBytes);
+    }
+  }
+
+  /**
+   * Release the quota of bytes that were already deleted.
+   *
+   * @param nBytes
+   *        The number of reserved bytes to release.
+   */
+  void release (@Nonnegative final long nBytes)
+  {
+    m_aUsedBytes.addAndGet (-nBytes);
+  }
+
+  /**
+   * Delete a request directory in the background and release the quota after
+   * deletion.
+   *
+   * @param aRequestDir
+   *        The directory to delete. May be <code>null</code>.
+   * @param nBytes
+   *        The number of reserved bytes to release.
+   */
+  void scheduleDelete (@Nullable final File aRequestDir, @Nonnegative final long nBytes)
+  {
+    _execute ( () -> {
+      if (aRequestDir != null)
+      {
+        if (s_aLogger.isDebugEnabled ())
+          s_aLogger.debug ("Deleting AS4 spool directory " + aRequestDir.getAbsolutePath ());
+        _deleteDir (aRequestDir);
+      }
+      m_aUsedBytes.addAndGet (-nBytes);
+    });
+  }
+
+  /**
+   * Wait until all deletions scheduled so far are finished. Mainly for
+   * testing.
+   *
+   * @param nTimeout
+   *        The maximum time to wait.
+   * @param eUnit
+   *        The time unit of the timeout. May not be <code>null</code>.
+   * @return <code>true</code> if all deletions are finished,
+   *         <code>false</code> if the timeout elapsed before.
+   * @throws InterruptedException
+   *         If the waiting thread was interrupted
+   */
+  public static boolean waitForPendingDeletions (final long nTimeout,
+                                                 @Nonnull final TimeUnit eUnit) throws InterruptedException
+  {
+    try
+    {
+      // Single threaded - finishes after all previously submitted tasks
+      SingletonHolder.s_aCleanupExecutor.submit ( () -> {}).get (nTimeout, eUnit);
+      return true;
+    }
+    catch (final ExecutionException | TimeoutException | RejectedExecutionException ex)
+    {
+      return false;
+    }
+  }
+
+  @Override
+  public String toString ()
+  {
+    return new ToStringGenerator (this).append ("RootDir", m_aRootDir)
+                                       .append ("InstanceDir", m_aInstanceDir)
+                                       .append ("Locked", isLocked ())
+                                       .append ("UsedBytes", m_aUsedBytes.get ())
+                                       .append ("MaxBytes", m_nMaxBytes)
+                                       .append ("MaxRequestBytes", m_nMaxRequestBytes)
+                                       .getToString ();
+  }
+}
@@ -0,0 +1,59 @@
+/**
+ * Copyright (C) 2015-2017 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.as4.util;
+
+import java.io.IOException;
+
+import javax.annotation.Nonnegative;
+
+/**
+ * Exception thrown if writing to the spool directory would exceed the global
+ * or the per-request disk quota of an {@link AS4SpoolManager}.
+ *
+ * @author Philip Helger
+ */
+public class AS4SpoolQuotaExceededException extends IOException
+{
+  private final boolean m_bGlobalQuota;
+  private final long m_nQuota;
+
+  public AS4SpoolQuotaExceededException (final boolean bGlobalQuota, @Nonnegative final long nQuota)
+  {
+    super ((bGlobalQuota ? "The global" : "The per-request") + " AS4 spool quota of " + nQuota + " bytes is exceeded");
+    m_bGlobalQuota = bGlobalQuota;
+    m_nQuota = nQuota;
+  }
+
+  /**
+   * @return <code>true</code> if the quota of all requests together is
+   *         exceeded, <code>false</code> if the quota of the single request is
+   *         exceeded.
+   */
+  public boolean isGlobalQuota ()
+  {
+    return m_bGlobalQuota;
+  }
+
+  /**
+   * @return The exceeded quota in bytes.
+   */
+  @Nonnegative
+  public long getQuota ()
+  {
+    return m_nQuota;
+  }
+}
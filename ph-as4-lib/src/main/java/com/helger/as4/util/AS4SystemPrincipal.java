@@ -0,0 +1,230 @@
+/**
+ * Copyright (C) 2015-2017 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.as4.util;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
+
+import com.helger.commons.ValueEnforcer;
+import com.helger.commons.annotation.Nonempty;
+import com.helger.commons.datetime.PDTFactory;
+import com.helger.commons.state.EChange;
+import com.helger.commons.string.StringHelper;
+import com.helger.photon.basic.audit.AbstractAuditor;
+import com.helger.photon.basic.audit.AuditHelper;
+import com.helger.photon.basic.audit.IAuditor;
+import com.helger.photon.basic.auth.ICurrentUserIDProvider;
+import com.helger.photon.basic.object.AbstractBaseObject;
+import com.helger.photon.security.CSecurity;
+import com.helger.photon.security.login.LoggedInUserManager;
+import com.helger.photon.security.object.StubObject;
+
+/**
+ * Lightweight audit identity for the AS4 message processing. Instead of
+ * logging in a real user for every incoming message (password check, session
+ * scope handling, login and logout audit events), the processing thread is
+ * marked as running on behalf of the AS4 system user. All DAO writes and audit
+ * events of the AS4 managers use {@link #getCurrentUserID()} so they are
+ * correctly attributed without a login/logout cycle. Outside of an activated
+ * context the user logged in the current session (if any) is used.
+ *
+ * <pre>
+ * try (final AS4SystemPrincipal aPrincipal = AS4SystemPrincipal.activate ())
+ * {
+ *   // process message
+ * }
+ * </pre>
+ *
+ * @author Philip Helger
+ */
+@ThreadSafe
+public final class AS4SystemPrincipal implements AutoCloseable
+{
+  /** The default user ID used for system activities */
+  public static final String DEFAULT_SYSTEM_USER_ID = "as4-system";
+
+  private static final ThreadLocal <String> s_aCurrentUserID = new ThreadLocal <> ();
+  private static volatile String s_sSystemUserID = DEFAULT_SYSTEM_USER_ID;
+
+  private final String m_sPreviousUserID;
+  private boolean m_bClosed = false;
+
+  private AS4SystemPrincipal (@Nullable final String sPreviousUserID)
+  {
+    m_sPreviousUserID = sPreviousUserID;
+  }
+
+  /**
+   * @return The user ID that is used as the audit identity of an activated
+   *         context. Never <code>null</code>.
+   */
+  @Nonnull
+  @Nonempty
+  public static String getSystemUserID ()
+  {
+    return s_sSystemUserID;
+  }
+
+  /**
+   * Set the user ID to be used as the audit identity of an activated context.
+   * This only affects contexts that are activated afterwards.
+   *
+   * @param sSystemUserID
+   *        The user ID to use. May neither be <code>null</code> nor empty.
+   */
+  public static void setSystemUserID (@Nonnull @Nonempty final String sSystemUserID)
+  {
+    ValueEnforcer.notEmpty (sSystemUserID, "SystemUserID");
+    s_sSystemUserID = sSystemUserID;
+  }
+
+  /**
+   * Mark the current thread as running on behalf of the AS4 system user until
+   * the returned object is closed. Contexts may be nested; closing restores
+   * the previous state.
+   *
+   * @return The context to be closed. Never <code>null</code>.
+   */
+  @Nonnull
+  public static AS4SystemPrincipal activate ()
+  {
+    final AS4SystemPrincipal ret = new AS4SystemPrincipal (s_aCurrentUserID.get ());
+    s_aCurrentUserID.set (s_sSystemUserID);
+    return ret;
+  }
+
+  /**
+   * @return <code>true</code> if the current thread runs inside an activated
+   *         context.
+   */
+  public static boolean isActive ()
+  {
+    return s_aCurrentUserID.get () != null;
+  }
+
+  public void close ()
+  {
+    if (!m_bClosed)
+    {
+      m_bClosed = true;
+      if (m_sPreviousUserID == null)
+        s_aCurrentUserID.remove ();
+      else
+        s_aCurrentUserID.set (m_sPreviousUserID);
+    }
+  }
+
+  /**
+   * @return The system user ID if the current thread runs inside an activated
+   *         context, the ID of the user logged in the current session
+   *         otherwise. May be <code>null</code>.
+   */
+  @Nullable
+  public static String getCurrentUserID ()
+  {
+    final String ret = s_aCurrentUserID.get ();
+    if (ret != null)
+      return ret;
+    return LoggedInUserManager.getInstance ().getCurrentUserID ();
+  }
+
+  /**
+   * Create a new stub object for the current user.
+   *
+   * @param sID
+   *        The object ID to use. May neither be <code>null</code> nor empty.
+   * @return Never <code>null</code>.
+   */
+  @Nonnull
+  public static StubObject createStubObject (@Nonnull @Nonempty final String sID)
+  {
+    ValueEnforcer.notEmpty (sID, "ID");
+    return new StubObject (sID, PDTFactory.getCurrentLocalDateTime (), getCurrentUserID (), null, null, null, null);
+  }
+
+  /**
+   * Create a new stub object with a new ID for the current user.
+   *
+   * @return Never <code>null</code>.
+   */
+  @Nonnull
+  public static StubObject createStubObject ()
+  {
+    return StubObject.createForUser (getCurrentUserID ());
+  }
+
+  public static void setLastModificationNow (@Nonnull final AbstractBaseObject aObject)
+  {
+    String sUserID = getCurrentUserID ();
+    if (StringHelper.hasNoText (sUserID))
+      sUserID = CSecurity.USER_ID_NONE_LOGGED_IN;
+    aObject.setLastModification (PDTFactory.getCurrentLocalDateTime (), sUserID);
+  }
+
+  @Nonnull
+  public static EChange setDeletionNow (@Nonnull final AbstractBaseObject aObject)
+  {
+    return aObject.setDeletion (PDTFactory.getCurrentLocalDateTime (), getCurrentUserID ());
+  }
+
+  /**
+   * User ID provider that returns the system user inside an activated context
+   * and delegates to the original provider otherwise.
+   *
+   * @author Philip Helger
+   */
+  private static final class SystemPrincipalUserIDProvider implements ICurrentUserIDProvider
+  {
+    private final ICurrentUserIDProvider m_aDelegate;
+
+    SystemPrincipalUserIDProvider (@Nonnull final ICurrentUserIDProvider aDelegate)
+    {
+      m_aDelegate = aDelegate;
+    }
+
+    @Nullable
+    public String getCurrentUserID ()
+    {
+      final String ret = s_aCurrentUserID.get ();
+      return ret != null ? ret : m_aDelegate.getCurrentUserID ();
+    }
+  }
+
+  /**
+   * Make the current auditor attribute audit events triggered inside an
+   * activated context to the system user. Outside of an activated context the
+   * previously installed user ID provider of the auditor is used unchanged.
+   * Must be called after the auditor was installed (e.g. after the security
+   * manager was initialized).
+   *
+   * @return {@link EChange#CHANGED} if the auditor was modified.
+   */
+  @Nonnull
+  public static EChange installAuditorUserIDProvider ()
+  {
+    final IAuditor aAuditor = AuditHelper.getAuditor ();
+    if (!(aAuditor instanceof AbstractAuditor))
+      return EChange.UNCHANGED;
+    final AbstractAuditor aRealAuditor = (AbstractAuditor) aAuditor;
+    final ICurrentUserIDProvider aOldProvider = aRealAuditor.getCurrentUserIDProvider ();
+    if (aOldProvider instanceof SystemPrincipalUserIDProvider)
+      return EChange.UNCHANGED;
+    aRealAuditor.setCurrentUserIDProvider (new SystemPrincipalUserIDProvider (aOldProvider));
+    return EChange.CHANGED;
+  }
+}
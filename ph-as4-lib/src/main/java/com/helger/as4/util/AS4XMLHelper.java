@@ -16,11 +16,20 @@
  */
 package com.helger.as4.util;
 
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
 import java.util.Locale;
 import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 
 import javax.annotation.Nonnull;
+import javax.annotation.WillNotClose;
 import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerConfigurationException;
 import javax.xml.transform.TransformerException;
 import javax.xml.transform.TransformerFactory;
 import javax.xml.transform.TransformerFactoryConfigurationError;
@@ -34,10 +43,10 @@ import com.helger.commons.ValueEnforcer;
 import com.helger.commons.annotation.ReturnsMutableCopy;
 import com.helger.commons.collection.ext.CommonsLinkedHashMap;
 import com.helger.commons.collection.ext.ICommonsOrderedMap;
+import com.helger.commons.io.stream.NonBlockingByteArrayOutputStream;
 import com.helger.commons.io.stream.NonBlockingStringWriter;
 import com.helger.xml.microdom.IMicroElement;
 import com.helger.xml.serialize.write.EXMLSerializeIndent;
-import com.helger.xml.serialize.write.XMLWriter;
 import com.helger.xml.serialize.write.XMLWriterSettings;
 
 public final class AS4XMLHelper
@@ -50,23 +59,49 @@ public final class AS4XMLHelper
     XWS.setIndent (EXMLSerializeIndent.NONE);
   }
 
+  private static final TransformerFactory s_aTransformerFactory = TransformerFactory.newInstance ();
+  // Transformer instances are not thread-safe but reusable after reset. A
+  // class level pool instead of a ThreadLocal, so that container threads do
+  // not keep references into the web application class loader.
+  private static final int MAX_POOLED_TRANSFORMERS = 2 * Runtime.getRuntime ().availableProcessors ();
+  private static final BlockingQueue <Transformer> s_aTransformerPool = new ArrayBlockingQueue <> (MAX_POOLED_TRANSFORMERS);
+
   private AS4XMLHelper ()
   {}
 
   @Nonnull
-  private static String _serializePh (@Nonnull final Node aNode)
+  private static Transformer _createTransformer ()
   {
-    return XMLWriter.getNodeAsString (aNode, XWS);
+    try
+    {
+      // TransformerFactory is not thread-safe
+      synchronized (s_aTransformerFactory)
+      {
+        return s_aTransformerFactory.newTransformer ();
+      }
+    }
+    catch (final TransformerConfigurationException ex)
+    {
+      throw new IllegalStateException ("Failed to create identity Transformer", ex);
+    }
   }
 
-  @Nonnull
-  private static String _serializeRT (@Nonnull final Node aNode) throws TransformerFactoryConfigurationError,
-                                                                 TransformerException
+  private static void _serializeRT (@Nonnull final Node aNode,
+                                    @Nonnull final StreamResult aResult) throws TransformerException
   {
-    final Transformer transformer = TransformerFactory.newInstance ().newTransformer ();
-    final NonBlockingStringWriter aSW = new NonBlockingStringWriter ();
-    transformer.transform (new DOMSource (aNode), new StreamResult (aSW));
-    return aSW.getAsString ();
+    Transformer aTransformer = s_aTransformerPool.poll ();
+    if (aTransformer == null)
+      aTransformer = _createTransformer ();
+    try
+    {
+      aTransformer.transform (new DOMSource (aNode), aResult);
+    }
+    finally
+    {
+      aTransformer.reset ();
+      // Discarded if the pool is full
+      s_aTransformerPool.offer (aTransformer);
+    }
   }
 
   @Nonnull
@@ -74,7 +109,75 @@ public final class AS4XMLHelper
                                                                 TransformerException
   {
     // Use runtime serialization otherwise XMLDsig signature wont work
-    return true ? _serializeRT (aNode) : _serializePh (aNode);
+    final NonBlockingStringWriter aSW = new NonBlockingStringWriter ();
+    _serializeRT (aNode, new StreamResult (aSW));
+    return aSW.getAsString ();
+  }
+
+  /**
+   * Serialize the passed node as UTF-8 encoded XML to the passed stream. The
+   * stream is neither flushed nor closed.
+   *
+   * @param aNode
+   *        The node to be serialized. May not be <code>null</code>.
+   * @param aOS
+   *        The stream to write to. May not be <code>null</code>.
+   * @throws TransformerException
+   *         In case serialization fails
+   */
+  public static void serializeXML (@Nonnull final Node aNode,
+                                   @Nonnull @WillNotClose final OutputStream aOS) throws TransformerException
+  {
+    ValueEnforcer.notNull (aNode, "Node");
+    ValueEnforcer.notNull (aOS, "OutputStream");
+    // Use runtime serialization otherwise XMLDsig signature wont work
+    _serializeRT (aNode, new StreamResult (aOS));
+  }
+
+  /**
+   * Serialize the passed node as UTF-8 encoded XML to the passed channel. The
+   * channel is not closed.
+   *
+   * @param aNode
+   *        The node to be serialized. May not be <code>null</code>.
+   * @param aChannel
+   *        The channel to write to. May not be <code>null</code>.
+   * @throws TransformerException
+   *         In case serialization fails
+   */
+  public static void serializeXML (@Nonnull final Node aNode,
+                                   @Nonnull @WillNotClose final WritableByteChannel aChannel) throws TransformerException
+  {
+    ValueEnforcer.notNull (aChannel, "Channel");
+    // The stream from Channels is unbuffered and closing it would close the
+    // channel
+    final OutputStream aOS = new BufferedOutputStream (Channels.newOutputStream (aChannel));
+    serializeXML (aNode, aOS);
+    try
+    {
+      aOS.flush ();
+    }
+    catch (final IOException ex)
+    {
+      throw new TransformerException ("Failed to write to channel", ex);
+    }
+  }
+
+  /**
+   * Serialize the passed node as UTF-8 encoded XML to a byte array.
+   *
+   * @param aNode
+   *        The node to be serialized. May not be <code>null</code>.
+   * @return The serialized bytes. Never <code>null</code>.
+   * @throws TransformerException
+   *         In case serialization fails
+   */
+  @Nonnull
+  public static byte [] serializeXMLToBytes (@Nonnull final Node aNode) throws TransformerException
+  {
+    final NonBlockingByteArrayOutputStream aBAOS = new NonBlockingByteArrayOutputStream ();
+    serializeXML (aNode, aBAOS);
+    return aBAOS.toByteArray ();
   }
 
   /**
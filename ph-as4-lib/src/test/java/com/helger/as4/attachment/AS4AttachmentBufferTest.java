@@ -0,0 +1,194 @@
+/**
+ * Copyright (C) 2015-2017 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.as4.attachment;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.junit.Test;
+
+import com.helger.as4.util.AS4ResourceManager;
+import com.helger.commons.io.stream.NonBlockingByteArrayInputStream;
+import com.helger.commons.io.stream.StreamHelper;
+
+/**
+ * Test class for class {@link AS4AttachmentBuffer}.
+ *
+ * @author Philip Helger
+ */
+public final class AS4AttachmentBufferTest
+{
+  private static byte [] _createPayload (final int nSize)
+  {
+    final byte [] ret = new byte [nSize];
+    for (int i = 0; i < nSize; ++i)
+      ret[i] = (byte) (i % 251);
+    return ret;
+  }
+
+  @Test
+  public void testInMemory () throws Exception
+  {
+    // Spans multiple segments
+    final byte [] aPayload = _createPayload (200 * 1024);
+    try (final AS4ResourceManager aResMgr = new AS4ResourceManager ())
+    {
+      final AS4AttachmentBuffer aBuffer = AS4AttachmentBuffer.create (new NonBlockingByteArrayInputStream (aPayload),
+                                                                      AS4AttachmentBuffer.DEFAULT_IN_MEMORY_THRESHOLD,
+                                                                      aResMgr);
+      assertTrue (aBuffer.isInMemory ());
+      assertNull (aBuffer.getFile ());
+      assertEquals (aPayload.length, aBuffer.getSize ());
+
+      // Independent readers
+      try (final InputStream aIS1 = aBuffer.getInputStream (); final InputStream aIS2 = aBuffer.getInputStream ())
+      {
+        assertEquals (aPayload[0] & 0xff, aIS1.read ());
+        assertEquals (100, aIS1.skip (100));
+        assertArrayEquals (aPayload, StreamHelper.getAllBytes (aIS2));
+        assertEquals (aPayload[101] & 0xff, aIS1.read ());
+      }
+      assertArrayEquals (aPayload, StreamHelper.getAllBytes (aBuffer.getInputStream ()));
+    }
+  }
+
+  @Test
+  public void testSpill () throws Exception
+  {
+    final byte [] aPayload = _createPayload (100 * 1024);
+    try (final AS4ResourceManager aResMgr = new AS4ResourceManager ())
+    {
+      final AS4AttachmentBuffer aBuffer = AS4AttachmentBuffer.create (new NonBlockingByteArrayInputStream (aPayload),
+                                                                      50 * 1024,
+                                                                      aResMgr);
+      assertFalse (aBuffer.isInMemory ());
+      assertNotNull (aBuffer.getFile ());
+      assertEquals (aPayload.length, aBuffer.getFile ().length ());
+      assertEquals (aPayload.length, aBuffer.getSize ());
+      for (int i = 0; i < 2; ++i)
+        assertArrayEquals (aPayload, StreamHelper.getAllBytes (aBuffer.getInputStream ()));
+    }
+  }
+
+  @Test
+  public void testEmpty () throws Exception
+  {
+    try (final AS4ResourceManager aResMgr = new AS4ResourceManager ())
+    {
+      final AS4AttachmentBuffer aBuffer = AS4AttachmentBuffer.create (new NonBlockingByteArrayInputStream (new byte [0]),
+                                                                      0,
+                                                                      aResMgr);
+      assertTrue (aBuffer.isInMemory ());
+      assertEquals (0, aBuffer.getSize ());
+      assertEquals (-1, aBuffer.getInputStream ().read ());
+    }
+  }
+
+  @Test
+  public void testSegmentsAreReturned () throws Exception
+  {
+    final AS4AttachmentBuffer aBuffer;
+    try (final AS4ResourceManager aResMgr = new AS4ResourceManager ())
+    {
+      aBuffer = AS4AttachmentBuffer.create (new NonBlockingByteArrayInputStream (_createPayload (AS4AttachmentBuffer.SEGMENT_SIZE * 3)),
+                                            AS4AttachmentBuffer.DEFAULT_IN_MEMORY_THRESHOLD,
+                                            aResMgr);
+      assertTrue (aBuffer.isInMemory ());
+    }
+    // Closing the resource manager returned all segments
+    assertTrue (AS4AttachmentBuffer.getPooledSegmentCount () >= 3);
+    try
+    {
+      aBuffer.getInputStream ();
+      fail ();
+    }
+    catch (final IOException ex)
+    {
+      // expected
+    }
+  }
+
+  @Test
+  public void testReadAfterClose () throws Exception
+  {
+    try (final AS4ResourceManager aResMgr = new AS4ResourceManager ())
+    {
+      final AS4AttachmentBuffer aBuffer = AS4AttachmentBuffer.create (new NonBlockingByteArrayInputStream (_createPayload (1024)),
+                                                                      AS4AttachmentBuffer.DEFAULT_IN_MEMORY_THRESHOLD,
+                                                                      aResMgr);
+      final InputStream aIS = aBuffer.getInputStream ();
+      assertEquals (0, aIS.read ());
+      aBuffer.close ();
+
+      // The segments may already be reused by another buffer
+      try
+      {
+        aIS.read (new byte [10]);
+        fail ();
+      }
+      catch (final IOException ex)
+      {
+        // expected
+      }
+    }
+  }
+
+  @Test
+  public void testDirectMemoryBudget () throws Exception
+  {
+    final long nOldMax = AS4AttachmentBuffer.getMaxDirectMemory ();
+    final long nUsedBefore = AS4AttachmentBuffer.getUsedDirectMemory ();
+    AS4AttachmentBuffer.setMaxDirectMemory (nUsedBefore + 2L * AS4AttachmentBuffer.SEGMENT_SIZE);
+    try
+    {
+      final byte [] aPayload = _createPayload (AS4AttachmentBuffer.SEGMENT_SIZE * 3);
+      try (final AS4ResourceManager aResMgr = new AS4ResourceManager ())
+      {
+        // Below the threshold, but above the remaining budget
+        final AS4AttachmentBuffer aBuffer = AS4AttachmentBuffer.create (new NonBlockingByteArrayInputStream (aPayload),
+                                                                        AS4AttachmentBuffer.DEFAULT_IN_MEMORY_THRESHOLD,
+                                                                        aResMgr);
+        assertFalse (aBuffer.isInMemory ());
+        assertEquals (aPayload.length, aBuffer.getSize ());
+        assertArrayEquals (aPayload, StreamHelper.getAllBytes (aBuffer.getInputStream ()));
+        assertEquals (nUsedBefore, AS4AttachmentBuffer.getUsedDirectMemory ());
+
+        // Fits into the budget
+        final byte [] aSmall = _createPayload (AS4AttachmentBuffer.SEGMENT_SIZE);
+        final AS4AttachmentBuffer aSmallBuffer = AS4AttachmentBuffer.create (new NonBlockingByteArrayInputStream (aSmall),
+                                                                             AS4AttachmentBuffer.DEFAULT_IN_MEMORY_THRESHOLD,
+                                                                             aResMgr);
+        assertTrue (aSmallBuffer.isInMemory ());
+        assertArrayEquals (aSmall, StreamHelper.getAllBytes (aSmallBuffer.getInputStream ()));
+        assertEquals (nUsedBefore + AS4AttachmentBuffer.SEGMENT_SIZE, AS4AttachmentBuffer.getUsedDirectMemory ());
+      }
+      assertEquals (nUsedBefore, AS4AttachmentBuffer.getUsedDirectMemory ());
+    }
+    finally
+    {
+      AS4AttachmentBuffer.setMaxDirectMemory (nOldMax);
+    }
+  }
+}
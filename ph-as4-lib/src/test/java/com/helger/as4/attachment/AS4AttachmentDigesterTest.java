@@ -0,0 +1,102 @@
+/**
+ * Copyright (C) 2015-2017 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.as4.attachment;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.security.MessageDigest;
+
+import javax.annotation.Nonnull;
+
+import org.junit.Test;
+
+import com.helger.as4.crypto.ECryptoAlgorithmSignDigest;
+import com.helger.as4.util.AS4ResourceManager;
+import com.helger.commons.collection.ext.CommonsArrayList;
+import com.helger.commons.collection.ext.ICommonsList;
+import com.helger.commons.collection.ext.ICommonsOrderedMap;
+import com.helger.commons.io.stream.NonBlockingByteArrayInputStream;
+import com.helger.commons.io.stream.StreamHelper;
+
+/**
+ * Test class for class {@link AS4AttachmentDigester}.
+ *
+ * @author Philip Helger
+ */
+public final class AS4AttachmentDigesterTest
+{
+  @Nonnull
+  private static WSS4JAttachment _createAttachment (@Nonnull final AS4ResourceManager aResMgr,
+                                                    @Nonnull final String sID,
+                                                    @Nonnull final String sMimeType,
+                                                    @Nonnull final byte [] aContent)
+  {
+    final WSS4JAttachment ret = new WSS4JAttachment (aResMgr, sMimeType);
+    ret.setId (sID);
+    ret.setSourceStreamProvider ( () -> new NonBlockingByteArrayInputStream (aContent));
+    return ret;
+  }
+
+  @Test
+  public void testIsRawContentDigest ()
+  {
+    assertTrue (AS4AttachmentDigester.isRawContentDigest ("application/octet-stream"));
+    assertTrue (AS4AttachmentDigester.isRawContentDigest ("application/gzip"));
+    assertTrue (AS4AttachmentDigester.isRawContentDigest ("image/png"));
+    assertFalse (AS4AttachmentDigester.isRawContentDigest (null));
+    assertFalse (AS4AttachmentDigester.isRawContentDigest ("text/plain"));
+    assertFalse (AS4AttachmentDigester.isRawContentDigest ("Text/CSV"));
+    assertFalse (AS4AttachmentDigester.isRawContentDigest ("application/xml"));
+    assertFalse (AS4AttachmentDigester.isRawContentDigest ("application/soap+xml"));
+  }
+
+  @Test
+  public void testGetAllDigests () throws Exception
+  {
+    try (final AS4ResourceManager aResMgr = new AS4ResourceManager ())
+    {
+      final ICommonsList <WSS4JAttachment> aAttachments = new CommonsArrayList <> ();
+      for (int i = 0; i < 20; ++i)
+      {
+        final byte [] aContent = new byte [100 * 1024 + i];
+        for (int j = 0; j < aContent.length; ++j)
+          aContent[j] = (byte) (i + j);
+        aAttachments.add (_createAttachment (aResMgr, "att" + i, "application/octet-stream", aContent));
+      }
+      // Not pre-digestable
+      aAttachments.add (_createAttachment (aResMgr, "xml", "application/xml", new byte [] { '<', 'a', '/', '>' }));
+
+      for (final ECryptoAlgorithmSignDigest eDigest : ECryptoAlgorithmSignDigest.values ())
+      {
+        final ICommonsOrderedMap <String, byte []> aDigests = AS4AttachmentDigester.getAllDigests (aAttachments,
+                                                                                                   eDigest);
+        assertEquals (20, aDigests.size ());
+        assertFalse (aDigests.containsKey ("xml"));
+        for (int i = 0; i < 20; ++i)
+        {
+          final WSS4JAttachment aAttachment = aAttachments.get (i);
+          final MessageDigest aMD = MessageDigest.getInstance (eDigest.getJCEName ());
+          final byte [] aExpected = aMD.digest (StreamHelper.getAllBytes (aAttachment.getSourceStream ()));
+          assertArrayEquals (aExpected, aDigests.get ("att" + i));
+        }
+      }
+    }
+  }
+}
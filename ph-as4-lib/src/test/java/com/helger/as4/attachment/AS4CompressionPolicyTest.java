@@ -0,0 +1,125 @@
+/**
+ * Copyright (C) 2015-2017 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.as4.attachment;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.helger.commons.io.file.SimpleFileIO;
+import com.helger.commons.mime.CMimeType;
+import com.helger.commons.mime.MimeTypeParser;
+import com.helger.commons.string.StringHelper;
+
+/**
+ * Test class for class {@link AS4CompressionPolicy}.
+ *
+ * @author Philip Helger
+ */
+public final class AS4CompressionPolicyTest
+{
+  @Rule
+  public final TemporaryFolder m_aTempFolder = new TemporaryFolder ();
+
+  private static byte [] _createRandom (final int nLength)
+  {
+    final byte [] ret = new byte [nLength];
+    new Random (nLength).nextBytes (ret);
+    return ret;
+  }
+
+  private static byte [] _createText (final int nLength)
+  {
+    return StringHelper.getRepeated ("<element attr='value'>text</element>\n", nLength / 37 + 1)
+                       .substring (0, nLength)
+                       .getBytes (StandardCharsets.UTF_8);
+  }
+
+  @Test
+  public void testEntropy ()
+  {
+    assertEquals (0, AS4CompressionPolicy.getEntropyBitsPerByte (new byte [0], 0), 0.001);
+    assertEquals (0, AS4CompressionPolicy.getEntropyBitsPerByte (new byte [100], 100), 0.001);
+    assertEquals (1, AS4CompressionPolicy.getEntropyBitsPerByte (new byte [] { 0, 1, 0, 1 }, 4), 0.001);
+    assertTrue (AS4CompressionPolicy.getEntropyBitsPerByte (_createRandom (100000), 100000) > 7.9);
+  }
+
+  @Test
+  public void testDeniedMimeTypes ()
+  {
+    final AS4CompressionPolicy aPolicy = new AS4CompressionPolicy ();
+    assertTrue (aPolicy.isDeniedMimeType (CMimeType.IMAGE_JPG));
+    assertTrue (aPolicy.isDeniedMimeType (MimeTypeParser.parseMimeType ("video/mp4")));
+    assertFalse (aPolicy.isDeniedMimeType (CMimeType.APPLICATION_XML));
+    assertFalse (aPolicy.isDeniedMimeType (null));
+
+    assertTrue (aPolicy.addDeniedMimeType ("Application/XML").isChanged ());
+    assertTrue (aPolicy.isDeniedMimeType (CMimeType.APPLICATION_XML));
+    assertTrue (aPolicy.removeDeniedMimeType ("application/xml").isChanged ());
+    assertFalse (aPolicy.isDeniedMimeType (CMimeType.APPLICATION_XML));
+  }
+
+  @Test
+  public void testIsCompressionWorthwhile () throws Exception
+  {
+    final AS4CompressionPolicy aPolicy = new AS4CompressionPolicy ();
+
+    final File aText = m_aTempFolder.newFile ();
+    SimpleFileIO.writeFile (aText, _createText (100000));
+    assertTrue (aPolicy.isCompressionWorthwhile (aText, CMimeType.APPLICATION_XML));
+    // Denied regardless of the content
+    assertFalse (aPolicy.isCompressionWorthwhile (aText, CMimeType.IMAGE_JPG));
+
+    final File aRandom = m_aTempFolder.newFile ();
+    SimpleFileIO.writeFile (aRandom, _createRandom (100000));
+    assertFalse (aPolicy.isCompressionWorthwhile (aRandom, CMimeType.APPLICATION_OCTET_STREAM));
+
+    // Entropy check disabled - the trial compression still refuses
+    aPolicy.setMaxEntropyBitsPerByte (8);
+    assertFalse (aPolicy.isCompressionWorthwhile (aRandom, CMimeType.APPLICATION_OCTET_STREAM));
+    // Everything disabled
+    aPolicy.setMinSavingPercent (0);
+    assertTrue (aPolicy.isCompressionWorthwhile (aRandom, CMimeType.APPLICATION_OCTET_STREAM));
+
+    assertEquals (3, aPolicy.getSkippedCount ());
+    assertEquals (300000, aPolicy.getSkippedBytes ());
+  }
+
+  @Test
+  public void testCounters () throws Exception
+  {
+    final AS4CompressionPolicy aPolicy = new AS4CompressionPolicy ();
+    final File aSrc = m_aTempFolder.newFile ();
+    final File aDst = m_aTempFolder.newFile ();
+    SimpleFileIO.writeFile (aSrc, _createText (100000));
+
+    aPolicy.compressFile (EAS4CompressionMode.GZIP, aSrc, aDst, EAS4CompressionMode.DEFAULT_COMPRESSION_LEVEL);
+    assertEquals (1, aPolicy.getCompressedCount ());
+    assertEquals (100000, aPolicy.getUncompressedBytes ());
+    assertEquals (aDst.length (), aPolicy.getCompressedBytes ());
+    assertEquals (100000 - aDst.length (), aPolicy.getBytesSaved ());
+    assertTrue (aPolicy.getBytesSaved () > 0);
+  }
+}
@@ -0,0 +1,149 @@
+/**
+ * Copyright (C) 2015-2017 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.as4.attachment;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Random;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.helger.commons.io.file.SimpleFileIO;
+import com.helger.commons.io.stream.NonBlockingByteArrayInputStream;
+import com.helger.commons.io.stream.NonBlockingByteArrayOutputStream;
+import com.helger.commons.io.stream.StreamHelper;
+
+/**
+ * Test class for class {@link AS4GzipHelper}.
+ *
+ * @author Philip Helger
+ */
+public final class AS4GzipHelperTest
+{
+  @Rule
+  public final TemporaryFolder m_aTempFolder = new TemporaryFolder ();
+
+  private static byte [] _createData (final int nLength)
+  {
+    // Partially compressible
+    final Random aRandom = new Random (nLength);
+    final byte [] ret = new byte [nLength];
+    for (int i = 0; i < nLength; ++i)
+      ret[i] = (byte) (aRandom.nextInt (16) + 'a');
+    return ret;
+  }
+
+  private static byte [] _readAll (final InputStream aIS) throws IOException
+  {
+    try (final InputStream aSrc = aIS; final NonBlockingByteArrayOutputStream aBAOS = new NonBlockingByteArrayOutputStream ())
+    {
+      StreamHelper.copyInputStreamToOutputStream (aSrc, aBAOS);
+      return aBAOS.toByteArray ();
+    }
+  }
+
+  @Test
+  public void testCompressFileInBlocks () throws Exception
+  {
+    final int nBlockSize = 64 * 1024;
+    final byte [] aData = _createData (10 * nBlockSize + 123);
+    final File aSrc = m_aTempFolder.newFile ();
+    final File aDst = m_aTempFolder.newFile ();
+    SimpleFileIO.writeFile (aSrc, aData);
+
+    for (int nLevel = Deflater.DEFAULT_COMPRESSION; nLevel <= Deflater.BEST_COMPRESSION; ++nLevel)
+    {
+      AS4GzipHelper.compressFile (aSrc, aDst, nLevel, nBlockSize);
+      final byte [] aCompressed = SimpleFileIO.getAllFileBytes (aDst);
+
+      // Must be readable by the standard implementation
+      assertArrayEquals (aData, _readAll (new GZIPInputStream (new NonBlockingByteArrayInputStream (aCompressed))));
+      // And by our own
+      assertArrayEquals (aData, _readAll (new AS4GzipInputStream (new NonBlockingByteArrayInputStream (aCompressed))));
+    }
+  }
+
+  @Test
+  public void testShutdown () throws Exception
+  {
+    final int nBlockSize = 64 * 1024;
+    final byte [] aData = _createData (4 * nBlockSize);
+    final File aSrc = m_aTempFolder.newFile ();
+    final File aDst = m_aTempFolder.newFile ();
+    SimpleFileIO.writeFile (aSrc, aData);
+
+    // Shutting down is possible at any time and the next compression
+    // recreates the threads
+    for (int i = 0; i < 2; ++i)
+    {
+      EAS4CompressionMode.shutdownExecutors ();
+      AS4GzipHelper.compressFile (aSrc, aDst, Deflater.BEST_SPEED, nBlockSize);
+      assertArrayEquals (aData,
+                         _readAll (new GZIPInputStream (new NonBlockingByteArrayInputStream (SimpleFileIO.getAllFileBytes (aDst)))));
+    }
+  }
+
+  @Test
+  public void testCompressSmallFile () throws Exception
+  {
+    final byte [] aData = _createData (1000);
+    final File aSrc = m_aTempFolder.newFile ();
+    final File aDst = m_aTempFolder.newFile ();
+    SimpleFileIO.writeFile (aSrc, aData);
+
+    AS4GzipHelper.compressFile (aSrc, aDst, Deflater.BEST_SPEED);
+    final byte [] aCompressed = SimpleFileIO.getAllFileBytes (aDst);
+    assertTrue (aCompressed.length < aData.length);
+    assertArrayEquals (aData, _readAll (new GZIPInputStream (new NonBlockingByteArrayInputStream (aCompressed))));
+  }
+
+  @Test
+  public void testReadStandardMultiMember () throws Exception
+  {
+    final byte [] aData1 = _createData (5000);
+    final byte [] aData2 = _createData (7000);
+    final NonBlockingByteArrayOutputStream aBAOS = new NonBlockingByteArrayOutputStream ();
+    for (final byte [] aData : new byte [] [] { aData1, aData2 })
+    {
+      // Each call creates a separate gzip member
+      final NonBlockingByteArrayOutputStream aMember = new NonBlockingByteArrayOutputStream ();
+      try (final OutputStream aOS = new GZIPOutputStream (aMember))
+      {
+        aOS.write (aData);
+      }
+      aBAOS.write (aMember.toByteArray ());
+    }
+    // Trailing garbage is ignored
+    aBAOS.write (new byte [] { 0, 0, 0 });
+
+    final byte [] aExpected = new byte [aData1.length + aData2.length];
+    System.arraycopy (aData1, 0, aExpected, 0, aData1.length);
+    System.arraycopy (aData2, 0, aExpected, aData1.length, aData2.length);
+    assertArrayEquals (aExpected,
+                       _readAll (new AS4GzipInputStream (new NonBlockingByteArrayInputStream (aBAOS.toByteArray ()))));
+  }
+}
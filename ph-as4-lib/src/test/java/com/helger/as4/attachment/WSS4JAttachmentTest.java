@@ -0,0 +1,164 @@
+/**
+ * Copyright (C) 2015-2017 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.as4.attachment;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Base64;
+
+import javax.mail.internet.InternetHeaders;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.helger.as4.util.AS4ResourceManager;
+import com.helger.commons.io.stream.NonBlockingByteArrayInputStream;
+import com.helger.commons.io.stream.StreamHelper;
+import com.helger.commons.mime.CMimeType;
+
+/**
+ * Test class for class {@link WSS4JAttachment}.
+ *
+ * @author Philip Helger
+ */
+public final class WSS4JAttachmentTest
+{
+  @Rule
+  public final TemporaryFolder m_aTempFolder = new TemporaryFolder ();
+
+  private static byte [] _createPayload (final int nSize)
+  {
+    final byte [] ret = new byte [nSize];
+    for (int i = 0; i < nSize; ++i)
+      ret[i] = (byte) (i % 251);
+    return ret;
+  }
+
+  private static void _checkStreamed (final byte [] aPayload, final int nThreshold, final boolean bBase64) throws Exception
+  {
+    final InternetHeaders aHeaders = new InternetHeaders ();
+    aHeaders.addHeader ("Content-Type", "application/octet-stream");
+    aHeaders.addHeader ("Content-ID", "<id123>");
+    if (bBase64)
+      aHeaders.addHeader ("Content-Transfer-Encoding", "base64");
+    final byte [] aBody = bBase64 ? Base64.getMimeEncoder ().encode (aPayload) : aPayload;
+
+    try (final AS4ResourceManager aResMgr = new AS4ResourceManager ())
+    {
+      final WSS4JAttachment aAttachment = WSS4JAttachment.createIncomingFileAttachment (aHeaders,
+                                                                                       new NonBlockingByteArrayInputStream (aBody),
+                                                                                       nThreshold,
+                                                                                       aResMgr);
+      assertEquals ("id123", aAttachment.getId ());
+      assertEquals ("application/octet-stream", aAttachment.getMimeType ());
+
+      // Must be readable more than once
+      for (int i = 0; i < 2; ++i)
+        try (final InputStream aIS = aAttachment.getSourceStream ())
+        {
+          assertArrayEquals (aPayload, StreamHelper.getAllBytes (aIS));
+        }
+    }
+  }
+
+  @Test
+  public void testStreamedIncoming () throws Exception
+  {
+    for (final boolean bBase64 : new boolean [] { false, true })
+    {
+      // Empty
+      _checkStreamed (new byte [0], 1024, bBase64);
+      // In memory
+      _checkStreamed (_createPayload (1024), 1024, bBase64);
+      // Spilled to disk
+      _checkStreamed (_createPayload (1025), 1024, bBase64);
+      _checkStreamed (_createPayload (200 * 1024), 1024, bBase64);
+      _checkStreamed (_createPayload (10), 0, bBase64);
+    }
+  }
+
+  @Test
+  public void testOutgoingCompressedAsync () throws Exception
+  {
+    final byte [] aPayload = _createPayload (100 * 1024);
+    final File aFile = m_aTempFolder.newFile ("payload.bin");
+    try (final FileOutputStream aFOS = new FileOutputStream (aFile))
+    {
+      aFOS.write (aPayload);
+    }
+
+    try (final AS4ResourceManager aResMgr = new AS4ResourceManager ())
+    {
+      final WSS4JAttachment aAttachment = WSS4JAttachment.createOutgoingFileAttachmentAsync (aFile,
+                                                                                            CMimeType.APPLICATION_OCTET_STREAM,
+                                                                                            EAS4CompressionMode.GZIP,
+                                                                                            9,
+                                                                                            aResMgr);
+      assertEquals (EAS4CompressionMode.GZIP, aAttachment.getCompressionMode ());
+      try (final InputStream aIS = EAS4CompressionMode.GZIP.getDecompressStream (aAttachment.getSourceStream ()))
+      {
+        assertArrayEquals (aPayload, StreamHelper.getAllBytes (aIS));
+      }
+    }
+  }
+
+  @Test
+  public void testOutgoingCompressedAsyncError () throws Exception
+  {
+    final File aFile = new File (m_aTempFolder.getRoot (), "does-not-exist.bin");
+    try (final AS4ResourceManager aResMgr = new AS4ResourceManager ())
+    {
+      // The error is deferred until the content is accessed
+      final WSS4JAttachment aAttachment = WSS4JAttachment.createOutgoingFileAttachmentAsync (aFile,
+                                                                                            CMimeType.APPLICATION_OCTET_STREAM,
+                                                                                            EAS4CompressionMode.GZIP,
+                                                                                            EAS4CompressionMode.DEFAULT_COMPRESSION_LEVEL,
+                                                                                            aResMgr);
+      try
+      {
+        aAttachment.getSourceStream ();
+        fail ();
+      }
+      catch (final IllegalStateException ex)
+      {
+        assertTrue (ex.getCause () instanceof IOException);
+      }
+    }
+
+    // The synchronous version fails immediately
+    try (final AS4ResourceManager aResMgr = new AS4ResourceManager ())
+    {
+      WSS4JAttachment.createOutgoingFileAttachment (aFile,
+                                                    CMimeType.APPLICATION_OCTET_STREAM,
+                                                    EAS4CompressionMode.GZIP,
+                                                    aResMgr);
+      fail ();
+    }
+    catch (final IOException ex)
+    {
+      // expected
+    }
+  }
+}
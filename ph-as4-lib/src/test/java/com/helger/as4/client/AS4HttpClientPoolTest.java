@@ -0,0 +1,160 @@
+/**
+ * Copyright (C) 2015-2017 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.as4.client;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+
+import org.apache.http.HttpHost;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.protocol.HttpClientContext;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.impl.client.BasicResponseHandler;
+import org.apache.http.impl.conn.DefaultRoutePlanner;
+import org.apache.http.impl.conn.DefaultSchemePortResolver;
+import org.apache.http.pool.PoolStats;
+import org.junit.Test;
+
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Test class for class {@link AS4HttpClientPool}.
+ *
+ * @author Philip Helger
+ */
+public final class AS4HttpClientPoolTest
+{
+  @Test
+  public void testLifecycle () throws Exception
+  {
+    final HttpHost aHost = new HttpHost ("localhost", 8080);
+    final HttpHost aSecureHost = new HttpHost ("example.org", -1, "https");
+    try (final AS4HttpClientPool aPool = new AS4HttpClientPool ())
+    {
+      aPool.setMaxTotal (10).setMaxPerRoute (5).setMaxPerRoute (aHost, 2).setMaxPerRoute (aSecureHost, 3);
+      assertFalse (aPool.isStarted ());
+      assertNull (aPool.getTotalStats ());
+
+      try
+      {
+        aPool.execute (new HttpPost ("http://localhost:8080"), new BasicResponseHandler ());
+        fail ();
+      }
+      catch (final IllegalStateException ex)
+      {
+        // expected - not started
+      }
+
+      aPool.start ();
+      assertTrue (aPool.isStarted ());
+      // Starting twice has no effect
+      aPool.start ();
+
+      final PoolStats aTotal = aPool.getTotalStats ();
+      assertNotNull (aTotal);
+      assertEquals (10, aTotal.getMax ());
+      assertEquals (0, aTotal.getLeased ());
+      assertEquals (2, aPool.getStats (aHost).getMax ());
+      assertEquals (3, aPool.getStats (aSecureHost).getMax ());
+      assertEquals (3, aPool.getStats (new HttpHost ("example.org", 443, "https")).getMax ());
+      assertEquals (5, aPool.getStats (new HttpHost ("example.org", 8443, "https")).getMax ());
+
+      try
+      {
+        aPool.setMaxTotal (20);
+        fail ();
+      }
+      catch (final IllegalStateException ex)
+      {
+        // expected - already started
+      }
+
+      aPool.close ();
+      assertFalse (aPool.isStarted ());
+      assertNull (aPool.getTotalStats ());
+
+      try
+      {
+        aPool.start ();
+        fail ();
+      }
+      catch (final IllegalStateException ex)
+      {
+        // expected - already closed
+      }
+    }
+  }
+
+  @Test
+  public void testCreateRoute () throws Exception
+  {
+    final DefaultRoutePlanner aPlanner = new DefaultRoutePlanner (DefaultSchemePortResolver.INSTANCE);
+    for (final String sURL : new String [] { "https://example.org/as4",
+                                             "https://example.org:8443/as4",
+                                             "http://example.org/as4",
+                                             "http://localhost:8080/as4" })
+    {
+      final HttpPost aPost = new HttpPost (sURL);
+      final HttpHost aHost = new HttpHost (aPost.getURI ().getHost (),
+                                           aPost.getURI ().getPort (),
+                                           aPost.getURI ().getScheme ());
+      final HttpRoute aExpected = aPlanner.determineRoute (aHost, aPost, HttpClientContext.create ());
+      assertEquals (aExpected, AS4HttpClientPool.createRoute (aHost));
+    }
+    assertTrue (AS4HttpClientPool.createRoute (new HttpHost ("example.org", -1, "https")).isSecure ());
+    assertFalse (AS4HttpClientPool.createRoute (new HttpHost ("example.org", -1, "http")).isSecure ());
+  }
+
+  @Test
+  public void testLeasedRoute () throws Exception
+  {
+    final HttpServer aServer = HttpServer.create (new InetSocketAddress ("localhost", 0), 0);
+    aServer.createContext ("/", aExchange -> {
+      final byte [] aBytes = "ok".getBytes (StandardCharsets.ISO_8859_1);
+      aExchange.sendResponseHeaders (200, aBytes.length);
+      aExchange.getResponseBody ().write (aBytes);
+      aExchange.close ();
+    });
+    aServer.start ();
+    try (final AS4HttpClientPool aPool = new AS4HttpClientPool ())
+    {
+      final HttpHost aHost = new HttpHost ("localhost", aServer.getAddress ().getPort ());
+      aPool.setMaxPerRoute (aHost, 2).start ();
+      assertEquals ("ok",
+                    aPool.execute (new HttpPost ("http://localhost:" + aHost.getPort () + "/as4"),
+                                   new BasicResponseHandler ()));
+
+      // The connection was returned to the pool of the configured route
+      final PoolStats aStats = aPool.getStats (aHost);
+      assertEquals (2, aStats.getMax ());
+      assertEquals (0, aStats.getLeased ());
+      assertEquals (1, aStats.getAvailable ());
+      assertEquals (1, aPool.getTotalStats ().getAvailable ());
+    }
+    finally
+    {
+      aServer.stop (0);
+    }
+  }
+}
@@ -0,0 +1,108 @@
+/**
+ * Copyright (C) 2015-2017 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.as4.client;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.Locale;
+
+import org.junit.Test;
+
+import com.helger.as4.error.EEbmsError;
+import com.helger.as4.messaging.domain.CreateErrorMessage;
+import com.helger.as4.messaging.domain.MessageHelperMethods;
+import com.helger.as4.soap.ESOAPVersion;
+import com.helger.as4.util.AS4XMLHelper;
+import com.helger.commons.collection.ext.CommonsArrayList;
+import com.helger.commons.mime.CMimeType;
+
+/**
+ * Test class for class {@link AS4PullConsumer}.
+ *
+ * @author Philip Helger
+ */
+public final class AS4PullConsumerTest
+{
+  private static final String MPC = "urn:test:mpc";
+
+  private static byte [] _createErrorResponse (final EEbmsError eError)
+  {
+    return AS4XMLHelper.serializeXMLToBytes (CreateErrorMessage.createErrorMessage (ESOAPVersion.AS4_DEFAULT,
+                                                                                    MessageHelperMethods.createEbms3MessageInfo (),
+                                                                                    new CommonsArrayList <> (eError.getAsEbms3Error (Locale.US,
+                                                                                                                                     "pull")))
+                                                                .getAsSOAPDocument ());
+  }
+
+  @Test
+  public void testGetIncreasedInterval ()
+  {
+    assertEquals (100, AS4PullConsumer.getIncreasedIntervalMS (0, 100, 1000));
+    assertEquals (200, AS4PullConsumer.getIncreasedIntervalMS (100, 100, 1000));
+    assertEquals (800, AS4PullConsumer.getIncreasedIntervalMS (400, 100, 1000));
+    assertEquals (1000, AS4PullConsumer.getIncreasedIntervalMS (800, 100, 1000));
+    assertEquals (1000, AS4PullConsumer.getIncreasedIntervalMS (1000, 100, 1000));
+    // No overflow
+    assertEquals (Long.MAX_VALUE,
+                  AS4PullConsumer.getIncreasedIntervalMS (Long.MAX_VALUE - 1, 100, Long.MAX_VALUE));
+  }
+
+  @Test
+  public void testParsePullResponse () throws Exception
+  {
+    assertNull (AS4PullConsumer.parsePullResponse (MPC, null, null));
+    assertNull (AS4PullConsumer.parsePullResponse (MPC,
+                                                   _createErrorResponse (EEbmsError.EBMS_EMPTY_MESSAGE_PARTITION_CHANNEL),
+                                                   ESOAPVersion.AS4_DEFAULT.getMimeType ().getAsString ()));
+
+    final AS4PulledMessage aMsg = AS4PullConsumer.parsePullResponse (MPC,
+                                                                     AS4XMLHelper.serializeXMLToBytes (MockClientMessages.testUserMessageSoapNotSigned (ESOAPVersion.AS4_DEFAULT,
+                                                                                                                                                         null,
+                                                                                                                                                         null)),
+                                                                     ESOAPVersion.AS4_DEFAULT.getMimeType ()
+                                                                                             .getAsString ());
+    assertNotNull (aMsg);
+    assertEquals (MPC, aMsg.getMPC ());
+    assertNotNull (aMsg.getMessageID ());
+
+    try
+    {
+      AS4PullConsumer.parsePullResponse (MPC,
+                                         _createErrorResponse (EEbmsError.EBMS_FAILED_AUTHENTICATION),
+                                         ESOAPVersion.AS4_DEFAULT.getMimeType ().getAsString ());
+      fail ();
+    }
+    catch (final IOException ex)
+    {
+      // expected
+    }
+
+    try
+    {
+      AS4PullConsumer.parsePullResponse (MPC, "no xml".getBytes (), CMimeType.TEXT_PLAIN.getAsString ());
+      fail ();
+    }
+    catch (final IOException ex)
+    {
+      // expected
+    }
+  }
+}
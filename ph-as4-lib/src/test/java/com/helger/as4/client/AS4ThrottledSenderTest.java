@@ -0,0 +1,152 @@
+/**
+ * Copyright (C) 2015-2017 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.as4.client;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import com.helger.commons.collection.ext.CommonsArrayList;
+import com.helger.commons.collection.ext.ICommonsList;
+
+/**
+ * Test class for class {@link AS4ThrottledSender}.
+ *
+ * @author Philip Helger
+ */
+public final class AS4ThrottledSenderTest
+{
+  @Test
+  public void testGetEndpoint ()
+  {
+    assertEquals ("http://localhost:8080", AS4ThrottledSender.getEndpoint ("http://localhost:8080/as4"));
+    assertEquals ("https://example.org", AS4ThrottledSender.getEndpoint ("HTTPS://Example.org/as4?x=y"));
+    assertEquals ("bla", AS4ThrottledSender.getEndpoint ("bla"));
+  }
+
+  private static void _updateMax (final AtomicInteger aMax, final int nValue)
+  {
+    aMax.accumulateAndGet (nValue, Math::max);
+  }
+
+  @Test
+  public void testConcurrencyLimits () throws Exception
+  {
+    final AtomicInteger aRunningA = new AtomicInteger ();
+    final AtomicInteger aMaxA = new AtomicInteger ();
+    final AtomicInteger aRunningTotal = new AtomicInteger ();
+    final AtomicInteger aMaxTotal = new AtomicInteger ();
+
+    try (final AS4ThrottledSender aSender = new AS4ThrottledSender (3, 2))
+    {
+      final ICommonsList <CompletableFuture <Integer>> aFutures = new CommonsArrayList <> ();
+      for (int i = 0; i < 30; ++i)
+      {
+        final boolean bA = (i % 3) != 0;
+        final String sURL = bA ? "http://a.example.org/as4" : "http://b.example.org/as4";
+        final Integer aValue = Integer.valueOf (i);
+        aFutures.add (aSender.build ( () -> aValue).thenCompose (x -> aSender.send (sURL, () -> {
+          _updateMax (aMaxTotal, aRunningTotal.incrementAndGet ());
+          if (bA)
+            _updateMax (aMaxA, aRunningA.incrementAndGet ());
+          try
+          {
+            Thread.sleep (5);
+          }
+          finally
+          {
+            if (bA)
+              aRunningA.decrementAndGet ();
+            aRunningTotal.decrementAndGet ();
+          }
+          return x;
+        })));
+      }
+
+      for (int i = 0; i < aFutures.size (); ++i)
+        assertEquals (i, aFutures.get (i).get ().intValue ());
+
+      assertTrue (aMaxTotal.get () <= 3);
+      assertTrue (aMaxA.get () <= 2);
+      assertEquals (0, aSender.getInFlightCount ());
+      assertEquals (0, aSender.getPendingCount ());
+    }
+  }
+
+  @Test
+  public void testClose () throws Exception
+  {
+    final AS4ThrottledSender aSender = new AS4ThrottledSender (1, 1);
+    final ICommonsList <CompletableFuture <Integer>> aFutures = new CommonsArrayList <> ();
+    for (int i = 0; i < 10; ++i)
+    {
+      final Integer aValue = Integer.valueOf (i);
+      aFutures.add (aSender.send ("http://localhost/as4", () -> {
+        Thread.sleep (5);
+        return aValue;
+      }));
+    }
+    assertTrue (aSender.getPendingCount () > 0);
+
+    // Waits for the pending sends
+    aSender.close ();
+    for (int i = 0; i < aFutures.size (); ++i)
+      assertEquals (i, aFutures.get (i).getNow (null).intValue ());
+    assertEquals (0, aSender.getInFlightCount ());
+    assertEquals (0, aSender.getPendingCount ());
+
+    // No new sends after close
+    try
+    {
+      aSender.send ("http://localhost/as4", () -> "x").get ();
+      fail ();
+    }
+    catch (final ExecutionException ex)
+    {
+      assertTrue (ex.getCause () instanceof RejectedExecutionException);
+    }
+  }
+
+  @Test
+  public void testException () throws Exception
+  {
+    try (final AS4ThrottledSender aSender = new AS4ThrottledSender ())
+    {
+      final CompletableFuture <Object> aFuture = aSender.send ("http://localhost/as4", () -> {
+        throw new IllegalStateException ("oops");
+      });
+      try
+      {
+        aFuture.get ();
+        fail ();
+      }
+      catch (final ExecutionException ex)
+      {
+        assertTrue (ex.getCause () instanceof IllegalStateException);
+      }
+      // The slot was released
+      assertEquals (0, aSender.getInFlightCount ());
+    }
+  }
+}
@@ -0,0 +1,91 @@
+/**
+ * Copyright (C) 2015-2017 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.as4.client;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.InputStream;
+import java.util.Properties;
+
+import javax.mail.Session;
+import javax.mail.internet.MimeBodyPart;
+import javax.mail.internet.MimeMessage;
+import javax.mail.internet.MimeMultipart;
+
+import org.junit.Test;
+
+import com.helger.as4.util.AS4ResourceManager;
+import com.helger.commons.io.stream.NonBlockingByteArrayOutputStream;
+import com.helger.commons.io.stream.StreamHelper;
+
+/**
+ * Test class for class {@link HttpSpooledMimeMessageEntity}.
+ *
+ * @author Philip Helger
+ */
+public final class HttpSpooledMimeMessageEntityTest
+{
+  @Test
+  public void testRepeatable () throws Exception
+  {
+    final MimeMultipart aMultipart = new MimeMultipart ("related");
+    for (int i = 0; i < 3; ++i)
+    {
+      final MimeBodyPart aPart = new MimeBodyPart ();
+      aPart.setText ("Part " + i);
+      aMultipart.addBodyPart (aPart);
+    }
+    final MimeMessage aMsg = new MimeMessage (Session.getDefaultInstance (new Properties ()));
+    aMsg.setContent (aMultipart);
+    aMsg.saveChanges ();
+
+    try (final AS4ResourceManager aResMgr = new AS4ResourceManager ())
+    {
+      final HttpSpooledMimeMessageEntity aEntity = new HttpSpooledMimeMessageEntity (aMsg, aResMgr);
+      assertTrue (aEntity.isRepeatable ());
+      assertFalse (aEntity.isStreaming ());
+
+      final long nLength = aEntity.getContentLength ();
+      assertTrue (nLength > 0);
+
+      final NonBlockingByteArrayOutputStream aBAOS1 = new NonBlockingByteArrayOutputStream ();
+      aEntity.writeTo (aBAOS1);
+      final NonBlockingByteArrayOutputStream aBAOS2 = new NonBlockingByteArrayOutputStream ();
+      aEntity.writeTo (aBAOS2);
+      assertEquals (nLength, aBAOS1.size ());
+      assertArrayEquals (aBAOS1.toByteArray (), aBAOS2.toByteArray ());
+
+      try (final InputStream aIS = aEntity.getContent ())
+      {
+        assertArrayEquals (aBAOS1.toByteArray (), StreamHelper.getAllBytes (aIS));
+      }
+
+      // Closing deletes the file and releases the quota
+      final File aSpoolFile = aEntity.getSpoolFile ();
+      assertTrue (aSpoolFile.exists ());
+      assertEquals (nLength, aResMgr.getSpooledBytes ());
+      aEntity.close ();
+      assertFalse (aSpoolFile.exists ());
+      assertEquals (0, aResMgr.getSpooledBytes ());
+      assertEquals (-1, aEntity.getContentLength ());
+    }
+  }
+}
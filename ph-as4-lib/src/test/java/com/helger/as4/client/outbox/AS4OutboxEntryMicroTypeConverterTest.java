@@ -0,0 +1,66 @@
+/**
+ * Copyright (C) 2015-2017 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.as4.client.outbox;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import com.helger.commons.collection.ext.CommonsLinkedHashMap;
+import com.helger.commons.collection.ext.ICommonsOrderedMap;
+import com.helger.commons.datetime.PDTFactory;
+import com.helger.xml.microdom.convert.MicroTypeConverter;
+import com.helger.xml.mock.XMLTestHelper;
+
+/**
+ * Test class for class {@link AS4OutboxEntryMicroTypeConverter}.
+ *
+ * @author Philip Helger
+ */
+public final class AS4OutboxEntryMicroTypeConverterTest
+{
+  @Test
+  public void testBasic ()
+  {
+    final ICommonsOrderedMap <String, String> aHeaders = new CommonsLinkedHashMap <> ();
+    aHeaders.put ("Content-Type", "multipart/related; boundary=\"abc\"");
+    aHeaders.put ("MIME-Version", "1.0");
+    final AS4OutboxEntry aEntry = new AS4OutboxEntry ("id", "msgid", "http://localhost:8080/as4", aHeaders, 3, 1000);
+    XMLTestHelper.testMicroTypeConversion (aEntry);
+    assertFalse (aEntry.isFinallyFailed ());
+
+    aEntry.onFailedAttempt (PDTFactory.getCurrentLocalDateTime (), "Oops");
+    final AS4OutboxEntry aEntry2 = MicroTypeConverter.convertToNative (MicroTypeConverter.convertToMicroElement (aEntry,
+                                                                                                                 "x"),
+                                                                       AS4OutboxEntry.class);
+    assertEquals (aEntry, aEntry2);
+    assertEquals ("http://localhost:8080/as4", aEntry2.getURL ());
+    assertEquals (aHeaders, aEntry2.getAllHeaders ());
+    assertEquals (3, aEntry2.getMaxAttempts ());
+    assertEquals (1000, aEntry2.getRetryIntervalMS ());
+    assertEquals (1, aEntry2.getAttempts ());
+    assertEquals ("Oops", aEntry2.getLastError ());
+    assertEquals (aEntry.getNextAttemptDateTime (), aEntry2.getNextAttemptDateTime ());
+    assertEquals (aEntry.getLastAttemptDateTime (), aEntry2.getLastAttemptDateTime ());
+    assertFalse (aEntry2.isFinallyFailed ());
+
+    aEntry2.onFailedAttempt (null, "Oops again");
+    assertTrue (aEntry2.isFinallyFailed ());
+  }
+}
@@ -0,0 +1,258 @@
+/**
+ * Copyright (C) 2015-2017 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.as4.client.outbox;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.StringEntity;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.rules.TestRule;
+import org.w3c.dom.Document;
+
+import com.helger.as4.AS4TestRule;
+import com.helger.as4.client.AS4HttpClientPool;
+import com.helger.as4.client.outbox.AS4Outbox.EResponseType;
+import com.helger.as4.model.pmode.PModeReceptionAwareness;
+import com.helger.commons.collection.ext.CommonsArrayList;
+import com.helger.commons.collection.ext.ICommonsList;
+import com.helger.commons.datetime.PDTFactory;
+import com.helger.commons.io.stream.StreamHelper;
+import com.helger.commons.state.EChange;
+import com.helger.commons.state.ETriState;
+import com.helger.xml.serialize.read.DOMReader;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Test class for class {@link AS4Outbox}.
+ *
+ * @author Philip Helger
+ */
+public final class AS4OutboxTest
+{
+  private static final String NS = "http://docs.oasis-open.org/ebxml-msg/ebms/v3.0/ns/core/200704/";
+
+  /**
+   * A receiver that answers every request with a signal message and records
+   * the request times.
+   */
+  private static final class MockReceiver implements Closeable
+  {
+    private final HttpServer m_aServer;
+    private final ICommonsList <Long> m_aRequestNanos = new CommonsArrayList <> ();
+    private final String m_sReceiptForMessageID;
+
+    MockReceiver (final String sReceiptForMessageID) throws IOException
+    {
+      m_sReceiptForMessageID = sReceiptForMessageID;
+      m_aServer = HttpServer.create (new InetSocketAddress ("localhost", 0), 0);
+      m_aServer.createContext ("/", aExchange -> {
+        synchronized (m_aRequestNanos)
+        {
+          m_aRequestNanos.add (Long.valueOf (System.nanoTime ()));
+        }
+        StreamHelper.getAllBytes (aExchange.getRequestBody ());
+        final String sResponse = m_sReceiptForMessageID != null ? _createSignalXML (m_sReceiptForMessageID,
+                                                                                    "<eb:Receipt/>")
+                                                                : _createSignalXML ("other", "");
+        final byte [] aBytes = sResponse.getBytes (StandardCharsets.UTF_8);
+        aExchange.getResponseHeaders ().add ("Content-Type", "application/soap+xml;charset=utf-8");
+        aExchange.sendResponseHeaders (200, aBytes.length);
+        aExchange.getResponseBody ().write (aBytes);
+        aExchange.close ();
+      });
+      m_aServer.start ();
+    }
+
+    String getURL ()
+    {
+      return "http://localhost:" + m_aServer.getAddress ().getPort () + "/as4";
+    }
+
+    ICommonsList <Long> getAllRequestNanos ()
+    {
+      synchronized (m_aRequestNanos)
+      {
+        return m_aRequestNanos.getClone ();
+      }
+    }
+
+    public void close ()
+    {
+      m_aServer.stop (0);
+    }
+  }
+
+  @Rule
+  public final TestRule m_aTestRule = new AS4TestRule ();
+
+  @Rule
+  public final TemporaryFolder m_aTempFolder = new TemporaryFolder ();
+
+  private static String _createSignalXML (final String sRefToMessageID, final String sContent)
+  {
+    return "<S12:Envelope xmlns:S12='http://www.w3.org/2003/05/soap-envelope' xmlns:eb='" +
+           NS +
+           "'><S12:Header><eb:Messaging><eb:SignalMessage><eb:MessageInfo>" +
+           "<eb:Timestamp>2017-01-01T00:00:00Z</eb:Timestamp><eb:MessageId>sig</eb:MessageId>" +
+           "<eb:RefToMessageId>" +
+           sRefToMessageID +
+           "</eb:RefToMessageId></eb:MessageInfo>" +
+           sContent +
+           "</eb:SignalMessage></eb:Messaging></S12:Header><S12:Body/></S12:Envelope>";
+  }
+
+  private static Document _createSignal (final String sRefToMessageID, final String sContent) throws Exception
+  {
+    return DOMReader.readXMLDOM (_createSignalXML (sRefToMessageID, sContent));
+  }
+
+  private static void _waitFor (final BooleanSupplier aCondition) throws InterruptedException
+  {
+    final long nEnd = System.currentTimeMillis () + 10_000;
+    while (!aCondition.getAsBoolean ())
+    {
+      assertTrue ("Timeout waiting for condition", System.currentTimeMillis () < nEnd);
+      Thread.sleep (10);
+    }
+  }
+
+  private static StringEntity _createBody ()
+  {
+    return new StringEntity ("<payload/>", ContentType.APPLICATION_XML);
+  }
+
+  @Test
+  public void testGetResponseType () throws Exception
+  {
+    assertEquals (EResponseType.NONE, AS4Outbox.getResponseType (null, "msg"));
+    assertEquals (EResponseType.RECEIPT, AS4Outbox.getResponseType (_createSignal ("msg", "<eb:Receipt/>"), "msg"));
+    assertEquals (EResponseType.NONE, AS4Outbox.getResponseType (_createSignal ("other", "<eb:Receipt/>"), "msg"));
+    assertEquals (EResponseType.ERROR,
+                  AS4Outbox.getResponseType (_createSignal ("msg",
+                                                            "<eb:Error errorCode='EBMS:0004' severity='failure'/>"),
+                                             "msg"));
+  }
+
+  @Test
+  public void testRetryBackoffAndFinalFailure () throws Exception
+  {
+    final File aSpoolDir = m_aTempFolder.newFolder ();
+    final AS4OutboxManager aMgr = new AS4OutboxManager ("outbox-" + UUID.randomUUID () + ".xml", aSpoolDir);
+    final PModeReceptionAwareness aRA = new PModeReceptionAwareness (ETriState.TRUE,
+                                                                     ETriState.TRUE,
+                                                                     ETriState.TRUE,
+                                                                     2,
+                                                                     200);
+    try (final MockReceiver aReceiver = new MockReceiver (null);
+         final AS4HttpClientPool aPool = new AS4HttpClientPool ().start ();
+         final AS4Outbox aOutbox = new AS4Outbox (aMgr, aPool, 1))
+    {
+      assertEquals (0, aOutbox.start ());
+
+      final AS4OutboxEntry aEntry = aOutbox.enqueue ("msg-retry", aReceiver.getURL (), _createBody (), aRA);
+      // First attempt plus 2 retries
+      assertEquals (3, aEntry.getMaxAttempts ());
+      assertEquals (200, aEntry.getRetryIntervalMS ());
+
+      _waitFor (aEntry::isFinallyFailed);
+      assertEquals (3, aEntry.getAttempts ());
+      assertNull (aEntry.getNextAttemptDateTime ());
+      assertNotNull (aEntry.getLastAttemptDateTime ());
+      assertEquals ("No receipt received", aEntry.getLastError ());
+
+      // No further attempts after the final failure
+      Thread.sleep (500);
+      final ICommonsList <Long> aNanos = aReceiver.getAllRequestNanos ();
+      assertEquals (3, aNanos.size ());
+
+      // Exponential backoff with jitter in the upper half: [100;200] and
+      // [200;400] milliseconds
+      final long nDelay1MS = TimeUnit.NANOSECONDS.toMillis (aNanos.get (1).longValue () -
+                                                            aNanos.get (0).longValue ());
+      final long nDelay2MS = TimeUnit.NANOSECONDS.toMillis (aNanos.get (2).longValue () -
+                                                            aNanos.get (1).longValue ());
+      assertTrue ("Delay " + nDelay1MS, nDelay1MS >= 100);
+      assertTrue ("Delay " + nDelay2MS, nDelay2MS >= 200);
+
+      // Kept for late receipts until the retention is over
+      assertTrue (aMgr.isPending (aEntry));
+      assertEquals (0, aOutbox.purgeFailedEntries ());
+      assertTrue (new File (aSpoolDir, aEntry.getID ()).isDirectory ());
+
+      aOutbox.setFailedRetention (Duration.ZERO);
+      Thread.sleep (20);
+      assertEquals (1, aOutbox.purgeFailedEntries ());
+      assertFalse (aMgr.isPending (aEntry));
+      assertNull (aMgr.getEntryOfMessageID ("msg-retry"));
+      assertFalse (new File (aSpoolDir, aEntry.getID ()).exists ());
+      assertEquals (EChange.UNCHANGED, aOutbox.onReceipt ("msg-retry"));
+    }
+  }
+
+  @Test
+  public void testPersistenceAcrossReload () throws Exception
+  {
+    final File aSpoolDir = m_aTempFolder.newFolder ();
+    final String sFilename = "outbox-" + UUID.randomUUID () + ".xml";
+    try (final MockReceiver aReceiver = new MockReceiver ("msg-reload"))
+    {
+      // Store and fail once without sending
+      final AS4OutboxManager aMgr1 = new AS4OutboxManager (sFilename, aSpoolDir);
+      final AS4OutboxEntry aEntry1 = aMgr1.storeMessage ("msg-reload", aReceiver.getURL (), _createBody (), 5, 100);
+      assertEquals (EChange.CHANGED, aMgr1.markAttemptFailed (aEntry1, PDTFactory.getCurrentLocalDateTime (), "Oops"));
+
+      // Reload from the journal
+      final AS4OutboxManager aMgr2 = new AS4OutboxManager (sFilename, aSpoolDir);
+      final AS4OutboxEntry aEntry2 = aMgr2.getEntryOfMessageID ("msg-reload");
+      assertNotNull (aEntry2);
+      assertEquals (aEntry1.getID (), aEntry2.getID ());
+      assertEquals (aEntry1.getAllHeaders (), aEntry2.getAllHeaders ());
+      assertEquals (5, aEntry2.getMaxAttempts ());
+      assertEquals (1, aEntry2.getAttempts ());
+      assertEquals ("Oops", aEntry2.getLastError ());
+      assertFalse (aEntry2.isFinallyFailed ());
+
+      // The recovered entry is sent and removed upon the receipt
+      try (final AS4HttpClientPool aPool = new AS4HttpClientPool ().start ();
+           final AS4Outbox aOutbox = new AS4Outbox (aMgr2, aPool, 1))
+      {
+        assertEquals (1, aOutbox.start ());
+        _waitFor ( () -> !aMgr2.isPending (aEntry2));
+      }
+      assertEquals (1, aReceiver.getAllRequestNanos ().size ());
+      assertNull (aMgr2.getEntryOfMessageID ("msg-reload"));
+      assertFalse (new File (aSpoolDir, aEntry2.getID ()).exists ());
+    }
+  }
+}
@@ -0,0 +1,64 @@
+/**
+ * Copyright (C) 2015-2017 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.as4.crypto;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.security.PrivateKey;
+
+import org.apache.wss4j.common.crypto.Crypto;
+import org.junit.Test;
+
+import com.helger.commons.state.EChange;
+
+/**
+ * Test class for class {@link AS4CryptoRegistry}.
+ *
+ * @author Philip Helger
+ */
+public final class AS4CryptoRegistryTest
+{
+  @Test
+  public void testSharedCrypto () throws Exception
+  {
+    final AS4CryptoFactory aFactory = AS4CryptoFactory.getDefaultInstance ();
+    assertSame (aFactory, AS4CryptoFactory.getDefaultInstance ());
+
+    // Different factories with the same properties share the keystore
+    final Crypto aCrypto = aFactory.getCrypto ();
+    assertTrue (aCrypto instanceof AS4CachingMerlin);
+    assertSame (aCrypto, new AS4CryptoFactory ().getCrypto ());
+
+    // Private keys are only decoded once
+    final CryptoProperties aProps = aFactory.getCryptoProperties ();
+    final PrivateKey aKey = aCrypto.getPrivateKey (aProps.getKeyAlias (), aProps.getKeyPassword ());
+    assertNotNull (aKey);
+    assertSame (aKey, aCrypto.getPrivateKey (aProps.getKeyAlias (), aProps.getKeyPassword ()));
+
+    // Nothing changed on disk
+    assertEquals (0, AS4CryptoRegistry.reloadAllModified ());
+    assertSame (aCrypto, aFactory.getCrypto ());
+
+    // Explicit reload is visible to existing factories
+    assertEquals (EChange.CHANGED, AS4CryptoRegistry.reload (aProps));
+    assertNotSame (aCrypto, aFactory.getCrypto ());
+  }
+}
@@ -0,0 +1,220 @@
+/**
+ * Copyright (C) 2015-2017 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.as4.duplicate;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.time.Duration;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.helger.commons.datetime.PDTFactory;
+import com.helger.commons.state.EContinue;
+import com.helger.xml.microdom.IMicroDocument;
+import com.helger.xml.microdom.IMicroElement;
+import com.helger.xml.microdom.MicroDocument;
+import com.helger.xml.microdom.serialize.MicroWriter;
+
+/**
+ * Test class for class {@link AS4SegmentedDuplicateStore}.
+ *
+ * @author Philip Helger
+ */
+public final class AS4SegmentedDuplicateStoreTest
+{
+  @Rule
+  public final TemporaryFolder m_aTempFolder = new TemporaryFolder ();
+
+  @Test
+  public void testInMemory ()
+  {
+    final AS4DuplicateManager aMgr = new AS4DuplicateManager (new AS4SegmentedDuplicateStore (null,
+                                                                                              Duration.ofSeconds (1)));
+    assertEquals (EContinue.CONTINUE, aMgr.registerAndCheck (null));
+    assertEquals (EContinue.CONTINUE, aMgr.registerAndCheck ("a"));
+    assertEquals (EContinue.BREAK, aMgr.registerAndCheck ("a"));
+    assertEquals (EContinue.CONTINUE, aMgr.registerAndCheck ("b"));
+    assertEquals (2, aMgr.getStore ().size ());
+
+    // Nothing is older than one hour
+    assertEquals (0, aMgr.evictAllItemsBefore (PDTFactory.getCurrentLocalDateTime ().minusHours (1)));
+    assertEquals (2, aMgr.getStore ().size ());
+
+    // Everything is older than the next bucket
+    assertEquals (2, aMgr.evictAllItemsBefore (PDTFactory.getCurrentLocalDateTime ().plusSeconds (2)));
+    assertEquals (0, aMgr.getStore ().size ());
+    assertEquals (EContinue.CONTINUE, aMgr.registerAndCheck ("a"));
+
+    aMgr.clearCache ();
+    assertEquals (0, aMgr.getStore ().size ());
+    aMgr.close ();
+  }
+
+  @Test
+  public void testRecovery () throws Exception
+  {
+    final File aDir = m_aTempFolder.newFolder ();
+    try (final AS4SegmentedDuplicateStore aStore = new AS4SegmentedDuplicateStore (aDir, Duration.ofMinutes (1)))
+    {
+      for (int i = 0; i < 100; ++i)
+        assertTrue (aStore.registerIfAbsent ("id" + i));
+    }
+
+    // Simulate a partially written record
+    final File [] aFiles = aDir.listFiles ();
+    assertTrue (aFiles.length > 0);
+    try (final FileOutputStream aFOS = new FileOutputStream (aFiles[0], true))
+    {
+      aFOS.write (0);
+    }
+
+    try (final AS4SegmentedDuplicateStore aStore = new AS4SegmentedDuplicateStore (aDir, Duration.ofMinutes (1)))
+    {
+      assertEquals (100, aStore.size ());
+      assertFalse (aStore.registerIfAbsent ("id5"));
+      assertTrue (aStore.registerIfAbsent ("id100"));
+
+      // Eviction deletes the segment files
+      assertEquals (101, aStore.evictAllItemsBefore (PDTFactory.getCurrentLocalDateTime ().plusMinutes (2)));
+      assertEquals (0, aDir.listFiles ().length);
+    }
+  }
+
+  @Test
+  public void testBatchedFlush () throws Exception
+  {
+    final File aDir = m_aTempFolder.newFolder ();
+    try (final AS4SegmentedDuplicateStore aStore = new AS4SegmentedDuplicateStore (aDir,
+                                                                                   Duration.ofHours (1),
+                                                                                   Duration.ofHours (1)))
+    {
+      assertTrue (aStore.registerIfAbsent ("a"));
+      final File [] aFiles = aDir.listFiles ();
+      assertEquals (1, aFiles.length);
+      // Still in the write buffer
+      assertEquals (0, aFiles[0].length ());
+
+      aStore.flush ();
+      assertEquals (3, aFiles[0].length ());
+
+      // A full batch is flushed immediately
+      for (int i = 0; i < AS4SegmentedDuplicateStore.FLUSH_BATCH_SIZE; ++i)
+        assertTrue (aStore.registerIfAbsent ("b" + i));
+      assertTrue (aFiles[0].length () > 3);
+    }
+  }
+
+  @Test
+  public void testFlushTimer () throws Exception
+  {
+    final File aDir = m_aTempFolder.newFolder ();
+    try (final AS4SegmentedDuplicateStore aStore = new AS4SegmentedDuplicateStore (aDir,
+                                                                                   Duration.ofHours (1),
+                                                                                   Duration.ofMillis (10)))
+    {
+      assertTrue (aStore.registerIfAbsent ("a"));
+      final File aFile = aDir.listFiles ()[0];
+      final long nEnd = System.currentTimeMillis () + 10000;
+      while (aFile.length () == 0 && System.currentTimeMillis () < nEnd)
+        Thread.sleep (10);
+      assertEquals (3, aFile.length ());
+    }
+  }
+
+  @Test
+  public void testImportLegacyXML () throws Exception
+  {
+    final File aDir = m_aTempFolder.newFolder ();
+    final File aLegacyFile = m_aTempFolder.newFile ("as4-duplicate-incoming.xml");
+    // Same layout as written by the previous WAL based duplicate manager
+    final IMicroDocument aDoc = new MicroDocument ();
+    final IMicroElement eRoot = aDoc.appendElement ("root");
+    final IMicroElement eItem1 = eRoot.appendElement ("item");
+    eItem1.setAttributeWithConversion ("dt", PDTFactory.getCurrentLocalDateTime ());
+    eItem1.setAttribute ("msgid", "legacy1");
+    final IMicroElement eItem2 = eRoot.appendElement ("item");
+    eItem2.setAttributeWithConversion ("dt", PDTFactory.getCurrentLocalDateTime ().minusDays (2));
+    eItem2.setAttribute ("msgid", "legacy2");
+    eRoot.appendElement ("item").setAttribute ("msgid", "legacy3");
+    assertTrue (MicroWriter.writeToFile (aDoc, aLegacyFile).isSuccess ());
+
+    try (final AS4SegmentedDuplicateStore aStore = new AS4SegmentedDuplicateStore (aDir, Duration.ofMinutes (1)))
+    {
+      assertEquals (3, aStore.importLegacyXML (aLegacyFile));
+      assertFalse (aLegacyFile.exists ());
+      assertTrue (new File (aLegacyFile.getParentFile (),
+                            aLegacyFile.getName () + AS4SegmentedDuplicateStore.LEGACY_IMPORTED_SUFFIX).exists ());
+      assertFalse (aStore.registerIfAbsent ("legacy1"));
+      assertFalse (aStore.registerIfAbsent ("legacy3"));
+
+      // Importing again does nothing
+      assertEquals (0, aStore.importLegacyXML (aLegacyFile));
+    }
+
+    // The imported IDs were persisted in the segments
+    try (final AS4SegmentedDuplicateStore aStore = new AS4SegmentedDuplicateStore (aDir, Duration.ofMinutes (1)))
+    {
+      assertEquals (3, aStore.size ());
+      // The old entry keeps its original date time
+      assertEquals (1, aStore.evictAllItemsBefore (PDTFactory.getCurrentLocalDateTime ().minusDays (1)));
+      assertTrue (aStore.registerIfAbsent ("legacy2"));
+    }
+  }
+
+  @Test
+  public void testConcurrentClear () throws Exception
+  {
+    try (final AS4SegmentedDuplicateStore aStore = new AS4SegmentedDuplicateStore (null, Duration.ofMinutes (1)))
+    {
+      final AtomicBoolean aRunning = new AtomicBoolean (true);
+      final Thread aClearer = new Thread ( () -> {
+        while (aRunning.get ())
+          aStore.clear ();
+      });
+      aClearer.start ();
+
+      final ExecutorService aES = Executors.newFixedThreadPool (4);
+      for (int t = 0; t < 4; ++t)
+      {
+        final int nThread = t;
+        aES.submit ( () -> {
+          for (int i = 0; i < 10000; ++i)
+            assertTrue (aStore.registerIfAbsent ("id" + nThread + "-" + i));
+        });
+      }
+      aES.shutdown ();
+      assertTrue (aES.awaitTermination (1, TimeUnit.MINUTES));
+      aRunning.set (false);
+      aClearer.join ();
+
+      // Every indexed message ID must be contained in a bucket
+      final int nSize = aStore.size ();
+      assertEquals (nSize, aStore.evictAllItemsBefore (PDTFactory.getCurrentLocalDateTime ().plusMinutes (2)));
+      assertEquals (0, aStore.size ());
+    }
+  }
+}
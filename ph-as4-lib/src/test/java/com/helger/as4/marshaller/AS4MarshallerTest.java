@@ -0,0 +1,123 @@
+/**
+ * Copyright (C) 2015-2017 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.as4.marshaller;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+
+import com.helger.as4lib.ebms3header.Ebms3Messaging;
+import com.helger.as4lib.soap11.Soap11Envelope;
+import com.helger.commons.io.resource.ClassPathResource;
+import com.helger.jaxb.validation.CollectingValidationEventHandler;
+import com.helger.xml.serialize.read.DOMReader;
+
+/**
+ * Test class for class {@link AS4Marshaller}.
+ *
+ * @author Philip Helger
+ */
+public final class AS4MarshallerTest
+{
+  private static Soap11Envelope _readSoap11 (final String sPath) throws Exception
+  {
+    final Document aDoc = DOMReader.readXMLDOM (new ClassPathResource (sPath));
+    assertNotNull (aDoc);
+    final CollectingValidationEventHandler aCVEH = new CollectingValidationEventHandler ();
+    final Soap11Envelope aEnv = AS4Marshaller.read (EEbms3DocumentType.SOAP_11, Soap11Envelope.class, aDoc, aCVEH);
+    assertNotNull (aEnv);
+    assertTrue (aCVEH.getErrorList ().isEmpty ());
+    return aEnv;
+  }
+
+  @Test
+  public void testReadWrite () throws Exception
+  {
+    final Soap11Envelope aEnv = _readSoap11 ("/soap11test/UserMessage.xml");
+    final CollectingValidationEventHandler aCVEH = new CollectingValidationEventHandler ();
+    final Ebms3Messaging aMessaging = AS4Marshaller.read (EEbms3DocumentType.MESSAGING,
+                                                          Ebms3Messaging.class,
+                                                          (Element) aEnv.getHeader ().getAnyAtIndex (0),
+                                                          aCVEH);
+    assertNotNull (aMessaging);
+    assertTrue (aCVEH.getErrorList ().isEmpty ());
+
+    // Writing twice must reuse the cached marshaller
+    for (int i = 0; i < 2; ++i)
+    {
+      final Document aDoc = AS4Marshaller.getAsDocument (EEbms3DocumentType.MESSAGING,
+                                                         Ebms3Messaging.class,
+                                                         aMessaging);
+      assertNotNull (aDoc);
+      assertEquals ("Messaging", aDoc.getDocumentElement ().getLocalName ());
+    }
+  }
+
+  @Test
+  public void testReadInvalid () throws Exception
+  {
+    final Soap11Envelope aEnv = _readSoap11 ("/soap11test/MessageInfoMissing.xml");
+    final CollectingValidationEventHandler aCVEH = new CollectingValidationEventHandler ();
+    final Ebms3Messaging aMessaging = AS4Marshaller.read (EEbms3DocumentType.MESSAGING,
+                                                          Ebms3Messaging.class,
+                                                          (Element) aEnv.getHeader ().getAnyAtIndex (0),
+                                                          aCVEH);
+    assertNull (aMessaging);
+    assertTrue (aCVEH.getErrorList ().containsAtLeastOneError ());
+  }
+
+  @Test
+  public void testValidateOutbound () throws Exception
+  {
+    final Soap11Envelope aEnv = _readSoap11 ("/soap11test/UserMessage.xml");
+    assertTrue (AS4Marshaller.isValidateOutbound ());
+
+    AS4Marshaller.setValidateOutbound (false);
+    try
+    {
+      assertFalse (AS4Marshaller.isValidateOutbound ());
+      assertNotNull (AS4Marshaller.getAsDocument (EEbms3DocumentType.SOAP_11, Soap11Envelope.class, aEnv));
+    }
+    finally
+    {
+      AS4Marshaller.setValidateOutbound (true);
+    }
+  }
+
+  @Test
+  public void testEventHandlerNotKept () throws Exception
+  {
+    final Soap11Envelope aEnv = _readSoap11 ("/soap11test/MessageInfoMissing.xml");
+    final Element aHeader = (Element) aEnv.getHeader ().getAnyAtIndex (0);
+    final CollectingValidationEventHandler aCVEH = new CollectingValidationEventHandler ();
+    assertNull (AS4Marshaller.read (EEbms3DocumentType.MESSAGING, Ebms3Messaging.class, aHeader, aCVEH));
+    final int nErrors = aCVEH.getErrorList ().size ();
+    assertTrue (nErrors > 0);
+
+    // The pooled unmarshaller must not report to the handler of the previous
+    // caller
+    for (int i = 0; i < 10; ++i)
+      assertNull (AS4Marshaller.read (EEbms3DocumentType.MESSAGING, Ebms3Messaging.class, aHeader, null));
+    assertEquals (nErrors, aCVEH.getErrorList ().size ());
+  }
+}
@@ -0,0 +1,204 @@
+/**
+ * Copyright (C) 2015-2017 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.as4.messaging.sign;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import javax.annotation.Nonnull;
+
+import org.apache.wss4j.common.ext.WSSecurityException;
+import org.apache.wss4j.dom.engine.WSSConfig;
+import org.apache.wss4j.dom.engine.WSSecurityEngine;
+import org.apache.wss4j.dom.engine.WSSecurityEngineResult;
+import org.apache.wss4j.dom.handler.RequestData;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.w3c.dom.Document;
+
+import com.helger.as4.CAS4;
+import com.helger.as4.attachment.WSS4JAttachment;
+import com.helger.as4.attachment.WSS4JAttachmentCallbackHandler;
+import com.helger.as4.crypto.AS4CryptoFactory;
+import com.helger.as4.crypto.ECryptoAlgorithmSign;
+import com.helger.as4.crypto.ECryptoAlgorithmSignDigest;
+import com.helger.as4.messaging.domain.CreateUserMessage;
+import com.helger.as4.messaging.domain.MessageHelperMethods;
+import com.helger.as4.mock.MockEbmsHelper;
+import com.helger.as4.soap.ESOAPVersion;
+import com.helger.as4.util.AS4ResourceManager;
+import com.helger.as4.util.AS4XMLHelper;
+import com.helger.commons.CGlobal;
+import com.helger.commons.collection.ext.CommonsArrayList;
+import com.helger.commons.collection.ext.ICommonsList;
+import com.helger.commons.mime.CMimeType;
+import com.helger.xml.serialize.read.DOMReader;
+
+/**
+ * Test class for class {@link SignedMessageCreator}.
+ *
+ * @author Philip Helger
+ */
+public final class SignedMessageCreatorTest
+{
+  private static final int LARGE_ATTACHMENT_SIZE = 8 * CGlobal.BYTES_PER_MEGABYTE;
+
+  @Rule
+  public final TemporaryFolder m_aTempFolder = new TemporaryFolder ();
+
+  @Nonnull
+  private File _createFile (@Nonnull final String sName, final int nSize) throws Exception
+  {
+    final File aFile = m_aTempFolder.newFile (sName);
+    final byte [] aChunk = new byte [64 * 1024];
+    try (final FileOutputStream aFOS = new FileOutputStream (aFile))
+    {
+      int nWritten = 0;
+      while (nWritten < nSize)
+      {
+        final int nCount = Math.min (aChunk.length, nSize - nWritten);
+        for (int i = 0; i < nCount; ++i)
+          aChunk[i] = (byte) ((nWritten + i) % 251);
+        aFOS.write (aChunk, 0, nCount);
+        nWritten += nCount;
+      }
+    }
+    return aFile;
+  }
+
+  @Nonnull
+  private File _createXMLFile () throws Exception
+  {
+    final File aFile = m_aTempFolder.newFile ("payload.xml");
+    try (final FileOutputStream aFOS = new FileOutputStream (aFile))
+    {
+      aFOS.write ("<?xml version=\"1.0\" encoding=\"UTF-8\"?><root><item>value</item></root>".getBytes (StandardCharsets.UTF_8));
+    }
+    return aFile;
+  }
+
+  @Nonnull
+  private static Document _createUserMessage (@Nonnull final ESOAPVersion eSOAPVersion,
+                                              @Nonnull final ICommonsList <WSS4JAttachment> aAttachments)
+  {
+    return CreateUserMessage.createUserMessage (MessageHelperMethods.createEbms3MessageInfo (),
+                                                CreateUserMessage.createEbms3PayloadInfo (null, aAttachments),
+                                                CreateUserMessage.createEbms3CollaborationInfo ("NewPurchaseOrder",
+                                                                                                "MyServiceTypes",
+                                                                                                "QuoteToCollect",
+                                                                                                "4321",
+                                                                                                "pmode-twoway",
+                                                                                                MockEbmsHelper.DEFAULT_AGREEMENT),
+                                                CreateUserMessage.createEbms3PartyInfo (CAS4.DEFAULT_SENDER_URL,
+                                                                                        MockEbmsHelper.DEFAULT_PARTY_ID,
+                                                                                        CAS4.DEFAULT_RESPONDER_URL,
+                                                                                        MockEbmsHelper.DEFAULT_PARTY_ID),
+                                                CreateUserMessage.createEbms3MessageProperties (null),
+                                                eSOAPVersion)
+                            .getAsSOAPDocument ();
+  }
+
+  /**
+   * Verify the signature of the passed message the same way the receiving side
+   * does, using the plain WSS4J security engine.
+   */
+  private static void _verify (@Nonnull final byte [] aSignedMsg,
+                               @Nonnull final ICommonsList <WSS4JAttachment> aAttachments,
+                               @Nonnull final AS4ResourceManager aResMgr) throws Exception
+  {
+    final Document aSOAPDoc = DOMReader.readXMLDOM (aSignedMsg);
+    assertNotNull (aSOAPDoc);
+
+    final RequestData aRequestData = new RequestData ();
+    aRequestData.setAttachmentCallbackHandler (new WSS4JAttachmentCallbackHandler (aAttachments, aResMgr));
+    aRequestData.setSigVerCrypto (AS4CryptoFactory.getDefaultInstance ().getCrypto ());
+    aRequestData.setDecCrypto (AS4CryptoFactory.getDefaultInstance ().getCrypto ());
+    aRequestData.setWssConfig (WSSConfig.getNewInstance ());
+
+    final List <WSSecurityEngineResult> aResults = new WSSecurityEngine ().processSecurityHeader (aSOAPDoc,
+                                                                                                  aRequestData)
+                                                                          .getResults ();
+    assertFalse (aResults.isEmpty ());
+  }
+
+  @Test
+  public void testSignAndVerifyWithAttachments () throws Exception
+  {
+    final ESOAPVersion eSOAPVersion = ESOAPVersion.AS4_DEFAULT;
+    final File aLargeFile = _createFile ("large.bin", LARGE_ATTACHMENT_SIZE);
+    final File aSmallFile = _createFile ("small.bin", 1024);
+
+    try (final AS4ResourceManager aResMgr = new AS4ResourceManager ())
+    {
+      // Raw content - both are pre-digested
+      final ICommonsList <WSS4JAttachment> aAttachments = new CommonsArrayList <> ();
+      aAttachments.add (WSS4JAttachment.createOutgoingFileAttachment (aLargeFile,
+                                                                      CMimeType.APPLICATION_OCTET_STREAM,
+                                                                      null,
+                                                                      aResMgr));
+      aAttachments.add (WSS4JAttachment.createOutgoingFileAttachment (aSmallFile,
+                                                                      CMimeType.APPLICATION_OCTET_STREAM,
+                                                                      null,
+                                                                      aResMgr));
+      // Not raw content - digested by WSS4J
+      aAttachments.add (WSS4JAttachment.createOutgoingFileAttachment (_createXMLFile (),
+                                                                      CMimeType.APPLICATION_XML,
+                                                                      null,
+                                                                      aResMgr));
+
+      final Document aSignedDoc = new SignedMessageCreator ().createSignedMessage (_createUserMessage (eSOAPVersion,
+                                                                                                       aAttachments),
+                                                                                   eSOAPVersion,
+                                                                                   aAttachments,
+                                                                                   aResMgr,
+                                                                                   false,
+                                                                                   ECryptoAlgorithmSign.SIGN_ALGORITHM_DEFAULT,
+                                                                                   ECryptoAlgorithmSignDigest.SIGN_DIGEST_ALGORITHM_DEFAULT);
+      final byte [] aSignedMsg = AS4XMLHelper.serializeXMLToBytes (aSignedDoc);
+
+      // Unmodified attachments must verify
+      _verify (aSignedMsg, aAttachments, aResMgr);
+
+      // Modify a single byte in the middle of the large attachment
+      try (final RandomAccessFile aRAF = new RandomAccessFile (aLargeFile, "rw"))
+      {
+        aRAF.seek (LARGE_ATTACHMENT_SIZE / 2);
+        final int nOld = aRAF.read ();
+        aRAF.seek (LARGE_ATTACHMENT_SIZE / 2);
+        aRAF.write (nOld ^ 0xff);
+      }
+
+      try
+      {
+        _verify (aSignedMsg, aAttachments, aResMgr);
+        fail ("Tampered attachment must not verify");
+      }
+      catch (final WSSecurityException ex)
+      {
+        // expected
+      }
+    }
+  }
+}
@@ -0,0 +1,202 @@
+/**
+ * Copyright (C) 2015-2017 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.as4.model.mpc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.KeyStore;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.time.Duration;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.helger.commons.collection.ext.CommonsLinkedHashMap;
+import com.helger.commons.io.resource.ClassPathResource;
+
+/**
+ * Test class for class {@link MPCQueueManager}.
+ *
+ * @author Philip Helger
+ */
+public final class MPCQueueManagerTest
+{
+  @Rule
+  public final TemporaryFolder m_aTempFolder = new TemporaryFolder ();
+
+  private static MPCQueueEntry _createEntry (final int nIndex)
+  {
+    return new MPCQueueEntry ("msg" + nIndex,
+                              new CommonsLinkedHashMap <> (),
+                              ("body" + nIndex).getBytes (StandardCharsets.UTF_8));
+  }
+
+  static X509Certificate getTestCertificate () throws Exception
+  {
+    final KeyStore aKeyStore = KeyStore.getInstance ("JKS");
+    try (final InputStream aIS = ClassPathResource.getInputStream ("keys/dummy-pw-test.jks"))
+    {
+      aKeyStore.load (aIS, "test".toCharArray ());
+    }
+    return (X509Certificate) aKeyStore.getCertificate ("ph-as4");
+  }
+
+  static X509Certificate getForeignCertificate () throws Exception
+  {
+    try (final InputStream aIS = ClassPathResource.getInputStream ("keys/foreign-partner.crt"))
+    {
+      return (X509Certificate) CertificateFactory.getInstance ("X.509").generateCertificate (aIS);
+    }
+  }
+
+  @Test
+  public void testPollAfterRestart () throws Exception
+  {
+    final File aDir = m_aTempFolder.newFolder ();
+    final IMPC aMPC = new MPC ("mpc");
+    MPCQueueManager aMgr = new MPCQueueManager (aDir, 5);
+    for (int i = 0; i < 3; ++i)
+      aMgr.enqueue (aMPC, _createEntry (i));
+
+    // The overflow is visible without enqueuing anything after the restart
+    aMgr = new MPCQueueManager (aDir, 5);
+    assertEquals ("msg1", aMgr.poll (aMPC).getMessageID ());
+    assertEquals ("msg2", aMgr.poll (aMPC).getMessageID ());
+    assertNull (aMgr.poll (aMPC));
+  }
+
+  @Test
+  public void testAcknowledge () throws Exception
+  {
+    final IMPC aMPC = new MPC ("mpc");
+    final MPCQueueManager aMgr = new MPCQueueManager (null, 100);
+    aMgr.enqueue (aMPC, _createEntry (0));
+
+    assertEquals ("msg0", aMgr.poll (aMPC).getMessageID ());
+    assertEquals (1, aMgr.getInFlightCount ());
+    assertFalse (aMgr.acknowledge (new MPC ("other"), "msg0"));
+    assertFalse (aMgr.acknowledge (aMPC, "msg1"));
+    assertTrue (aMgr.acknowledge (aMPC, "msg0"));
+    assertFalse (aMgr.acknowledge (aMPC, "msg0"));
+    assertEquals (0, aMgr.getInFlightCount ());
+
+    assertEquals (0, aMgr.requeueExpired ());
+    assertNull (aMgr.poll (aMPC));
+  }
+
+  @Test
+  public void testStandaloneReceipt () throws Exception
+  {
+    final X509Certificate aCert = getTestCertificate ();
+    final IMPC aMPC = new MPC ("mpc");
+    final MPCQueueManager aMgr = new MPCQueueManager (null, 100);
+    aMgr.setReceiptTimeout (Duration.ZERO);
+    aMgr.setPullAuthorizer (aMPC.getID (), IMPCPullAuthorizer.signedWith (aCert));
+    aMgr.enqueue (aMPC, _createEntry (0));
+
+    assertTrue (aMgr.isPullAuthorized (aMPC, aCert));
+    assertEquals ("msg0", aMgr.poll (aMPC).getMessageID ());
+
+    // The receipt names no MPC, but must come from someone allowed to pull
+    assertFalse (aMgr.acknowledgeReceipt ("msg0", null));
+    assertFalse (aMgr.acknowledgeReceipt ("msg0", getForeignCertificate ()));
+    assertFalse (aMgr.acknowledgeReceipt ("msg1", aCert));
+    assertTrue (aMgr.acknowledgeReceipt ("msg0", aCert));
+    assertFalse (aMgr.acknowledgeReceipt ("msg0", aCert));
+    assertEquals (0, aMgr.getInFlightCount ());
+
+    // Not handed out again after the receipt timeout
+    Thread.sleep (5);
+    assertEquals (0, aMgr.requeueExpired ());
+    assertNull (aMgr.poll (aMPC));
+  }
+
+  @Test
+  public void testPullAuthorization () throws Exception
+  {
+    final X509Certificate aCert = getTestCertificate ();
+    final X509Certificate aForeignCert = getForeignCertificate ();
+    final IMPC aMPC = new MPC ("mpc");
+    final IMPC aOtherMPC = new MPC ("other");
+    final MPCQueueManager aMgr = new MPCQueueManager (null, 100);
+
+    // Denied by default, even if signed
+    assertFalse (aMgr.isPullAuthorized (aMPC, null));
+    assertFalse (aMgr.isPullAuthorized (aMPC, aCert));
+
+    // A signed but foreign partner may not pull a bound MPC
+    aMgr.setPullAuthorizer (aMPC.getID (), IMPCPullAuthorizer.signedWith (aCert));
+    assertTrue (aMgr.isPullAuthorized (aMPC, aCert));
+    assertFalse (aMgr.isPullAuthorized (aMPC, aForeignCert));
+    assertFalse (aMgr.isPullAuthorized (aMPC, null));
+    assertFalse (aMgr.isPullAuthorized (aOtherMPC, aCert));
+
+    // Back to the default
+    aMgr.setPullAuthorizer (aMPC.getID (), null);
+    assertFalse (aMgr.isPullAuthorized (aMPC, aCert));
+
+    aMgr.setDefaultPullAuthorizer (IMPCPullAuthorizer.signedOnly ());
+    assertTrue (aMgr.isPullAuthorized (aOtherMPC, aForeignCert));
+    assertFalse (aMgr.isPullAuthorized (aOtherMPC, null));
+  }
+
+  @Test
+  public void testReceiptTimeout () throws Exception
+  {
+    final IMPC aMPC = new MPC ("mpc");
+    final MPCQueueManager aMgr = new MPCQueueManager (null, 100);
+    aMgr.setReceiptTimeout (Duration.ZERO);
+    aMgr.enqueue (aMPC, _createEntry (0));
+    aMgr.enqueue (aMPC, _createEntry (1));
+
+    // Not acknowledged - handed out again before the next message
+    assertEquals ("msg0", aMgr.poll (aMPC).getMessageID ());
+    Thread.sleep (5);
+    assertEquals ("msg0", aMgr.poll (aMPC).getMessageID ());
+    assertTrue (aMgr.acknowledge (aMPC, "msg0"));
+    assertEquals ("msg1", aMgr.poll (aMPC).getMessageID ());
+  }
+
+  @Test
+  public void testRequeue () throws Exception
+  {
+    final IMPC aMPC = new MPC ("mpc");
+    final MPCQueueManager aMgr = new MPCQueueManager (null, 100);
+    aMgr.enqueue (aMPC, _createEntry (0));
+
+    final MPCQueueEntry aEntry = aMgr.poll (aMPC);
+    aMgr.requeue (aMPC, aEntry);
+    // Requeuing twice has no effect
+    aMgr.requeue (aMPC, aEntry);
+    assertEquals (0, aMgr.getInFlightCount ());
+    assertEquals (1, aMgr.getQueue (aMPC).size ());
+
+    // Without a receipt timeout, pulled messages are not tracked
+    aMgr.setReceiptTimeout (null);
+    assertEquals ("msg0", aMgr.poll (aMPC).getMessageID ());
+    assertEquals (0, aMgr.getInFlightCount ());
+    assertNull (aMgr.poll (aMPC));
+  }
+}
@@ -0,0 +1,198 @@
+/**
+ * Copyright (C) 2015-2017 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.as4.model.mpc;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.helger.commons.collection.ext.CommonsLinkedHashMap;
+import com.helger.commons.collection.ext.ICommonsOrderedMap;
+import com.helger.commons.string.StringHelper;
+
+/**
+ * Test class for class {@link MPCQueue}.
+ *
+ * @author Philip Helger
+ */
+public final class MPCQueueTest
+{
+  @Rule
+  public final TemporaryFolder m_aTempFolder = new TemporaryFolder ();
+
+  private static MPCQueueEntry _createEntry (final int nIndex)
+  {
+    final ICommonsOrderedMap <String, String> aHeaders = new CommonsLinkedHashMap <> ();
+    aHeaders.put ("Content-Type", "application/soap+xml");
+    aHeaders.put ("Message-Id", "<" + nIndex + ">");
+    return new MPCQueueEntry ("msg" + nIndex, aHeaders, ("body" + nIndex).getBytes (StandardCharsets.UTF_8));
+  }
+
+  @Test
+  public void testInMemory () throws Exception
+  {
+    final MPCQueue aQueue = new MPCQueue ("mpc", 10, null);
+    assertTrue (aQueue.isEmpty ());
+    assertNull (aQueue.poll ());
+
+    // Exceeding the limit without an overflow directory keeps everything
+    for (int i = 0; i < 5; ++i)
+      aQueue.enqueue (_createEntry (i));
+    assertEquals (5, aQueue.size ());
+    assertEquals (0, aQueue.getOverflowCount ());
+
+    for (int i = 0; i < 5; ++i)
+      assertEquals ("msg" + i, aQueue.poll ().getMessageID ());
+    assertNull (aQueue.poll ());
+    assertTrue (aQueue.isEmpty ());
+  }
+
+  @Test
+  public void testOverflow () throws Exception
+  {
+    final File aDir = m_aTempFolder.newFolder ();
+    // Each body has 5 bytes
+    final MPCQueue aQueue = new MPCQueue ("mpc", 15, aDir);
+    for (int i = 0; i < 10; ++i)
+      aQueue.enqueue (_createEntry (i));
+    assertEquals (3, aQueue.getInMemoryCount ());
+    assertEquals (15, aQueue.getInMemoryBytes ());
+    assertEquals (7, aQueue.getOverflowCount ());
+
+    // FIFO order is kept across memory and disk
+    for (int i = 0; i < 10; ++i)
+    {
+      final MPCQueueEntry aEntry = aQueue.poll ();
+      assertNotNull (aEntry);
+      assertEquals ("msg" + i, aEntry.getMessageID ());
+      assertEquals (_createEntry (i).getAllHeaders (), aEntry.getAllHeaders ());
+      assertArrayEquals (_createEntry (i).getBody (), aEntry.getBody ());
+    }
+    assertNull (aQueue.poll ());
+    assertEquals (0, aDir.listFiles ().length);
+  }
+
+  @Test
+  public void testOverflowRecovery () throws Exception
+  {
+    final File aDir = m_aTempFolder.newFolder ();
+    MPCQueue aQueue = new MPCQueue ("mpc", 5, aDir);
+    for (int i = 0; i < 4; ++i)
+      aQueue.enqueue (_createEntry (i));
+    assertEquals (3, aQueue.getOverflowCount ());
+
+    // The in-memory entry is lost, the overflow is recovered
+    aQueue = new MPCQueue ("mpc", 5, aDir);
+    assertEquals (3, aQueue.size ());
+    for (int i = 1; i < 4; ++i)
+      assertEquals ("msg" + i, aQueue.poll ().getMessageID ());
+    assertNull (aQueue.poll ());
+  }
+
+  @Test
+  public void testRequeue () throws Exception
+  {
+    final MPCQueue aQueue = new MPCQueue ("mpc", 5, m_aTempFolder.newFolder ());
+    for (int i = 0; i < 3; ++i)
+      aQueue.enqueue (_createEntry (i));
+
+    // A requeued entry is the next one, even if the memory limit is exceeded
+    final MPCQueueEntry aEntry = aQueue.poll ();
+    assertEquals ("msg0", aEntry.getMessageID ());
+    aQueue.enqueue (_createEntry (3));
+    aQueue.requeue (aEntry);
+    assertEquals (4, aQueue.size ());
+    for (int i = 0; i < 4; ++i)
+      assertEquals ("msg" + i, aQueue.poll ().getMessageID ());
+    assertNull (aQueue.poll ());
+    assertEquals (0, aQueue.getInMemoryBytes ());
+  }
+
+  @Test
+  public void testQuarantine () throws Exception
+  {
+    final File aDir = m_aTempFolder.newFolder ();
+    MPCQueue aQueue = new MPCQueue ("mpc", 5, aDir);
+    for (int i = 0; i < 4; ++i)
+      aQueue.enqueue (_createEntry (i));
+
+    // Truncate the first overflow file
+    final File aBroken = new File (aDir, StringHelper.getLeadingZero (0, 19) + ".msg");
+    assertTrue (aBroken.isFile ());
+    try (final FileOutputStream aFOS = new FileOutputStream (aBroken))
+    {
+      aFOS.write (0);
+    }
+
+    aQueue = new MPCQueue ("mpc", 5, aDir);
+    assertEquals ("msg2", aQueue.poll ().getMessageID ());
+    assertEquals ("msg3", aQueue.poll ().getMessageID ());
+    assertNull (aQueue.poll ());
+
+    // The broken file was moved away and is not recovered again
+    assertFalse (aBroken.exists ());
+    assertTrue (new File (new File (aDir, MPCQueue.QUARANTINE_DIR_NAME), aBroken.getName ()).isFile ());
+    assertTrue (new MPCQueue ("mpc", 5, aDir).isEmpty ());
+  }
+
+  @Test
+  public void testConcurrent () throws Exception
+  {
+    final int nCount = 2000;
+    final MPCQueue aQueue = new MPCQueue ("mpc", 300, m_aTempFolder.newFolder ());
+    final Set <String> aPolled = ConcurrentHashMap.newKeySet ();
+
+    final ExecutorService aES = Executors.newFixedThreadPool (8);
+    for (int i = 0; i < nCount; ++i)
+    {
+      final int nIndex = i;
+      aES.submit ( () -> {
+        aQueue.enqueue (_createEntry (nIndex));
+        final MPCQueueEntry aEntry = aQueue.poll ();
+        if (aEntry != null)
+          assertTrue (aPolled.add (aEntry.getMessageID ()));
+        return null;
+      });
+    }
+    aES.shutdown ();
+    assertTrue (aES.awaitTermination (1, TimeUnit.MINUTES));
+
+    MPCQueueEntry aEntry;
+    while ((aEntry = aQueue.poll ()) != null)
+      assertTrue (aPolled.add (aEntry.getMessageID ()));
+
+    // Every entry was handed out exactly once
+    assertEquals (nCount, aPolled.size ());
+    assertTrue (aQueue.isEmpty ());
+  }
+}
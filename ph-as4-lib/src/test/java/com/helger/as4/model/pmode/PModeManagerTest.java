@@ -16,7 +16,11 @@
  */
 package com.helger.as4.model.pmode;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 
 import org.junit.Rule;
 import org.junit.Test;
@@ -24,6 +28,7 @@ import org.junit.rules.TestRule;
 
 import com.helger.as4.AS4TestRule;
 import com.helger.as4.mgr.MetaAS4Manager;
+import com.helger.as4.model.pmode.config.PModeConfig;
 
 /**
  * Test class for class {@link PModeManager}.
@@ -41,4 +46,37 @@ public final class PModeManagerTest
     final PModeManager aPModeMgr = MetaAS4Manager.getPModeMgr ();
     assertNotNull (aPModeMgr);
   }
+
+  @Test
+  public void testPartiesIndex ()
+  {
+    final PModeManager aPModeMgr = MetaAS4Manager.getPModeMgr ();
+    final PModeConfig aConfig = new PModeConfig ("pmode-index-test");
+    final PModeParty aInitiator = new PModeParty (null, "index-init", "role", null, null);
+    final PModeParty aResponder = new PModeParty (null, "index-resp", "role", null, null);
+    assertFalse (aPModeMgr.containsPModeOfParties (aConfig.getID (), aInitiator.getID (), aResponder.getID ()));
+
+    final PMode aPMode = new PMode (aInitiator, aResponder, aConfig);
+    aPModeMgr.createPMode (aPMode);
+    final PModeParty aResponder2 = new PModeParty (null, "index-resp2", "role", null, null);
+    try
+    {
+      assertTrue (aPModeMgr.containsPModeOfParties (aConfig.getID (), aInitiator.getID (), aResponder.getID ()));
+      assertEquals (aPMode.getID (),
+                    aPModeMgr.getPModeOfParties (aConfig.getID (), aInitiator.getID (), aResponder.getID ())
+                             .getID ());
+      assertNull (aPModeMgr.getPModeOfParties (aConfig.getID (), aResponder.getID (), aInitiator.getID ()));
+
+      // Changing the responder must update the index
+      aPMode.setResponder (aResponder2);
+      aPModeMgr.updatePMode (aPMode);
+      assertFalse (aPModeMgr.containsPModeOfParties (aConfig.getID (), aInitiator.getID (), aResponder.getID ()));
+      assertTrue (aPModeMgr.containsPModeOfParties (aConfig.getID (), aInitiator.getID (), aResponder2.getID ()));
+    }
+    finally
+    {
+      aPModeMgr.deletePMode (aPMode.getID ());
+    }
+    assertNull (aPModeMgr.getPModeOfParties (aConfig.getID (), aInitiator.getID (), aResponder2.getID ()));
+  }
 }
@@ -79,6 +79,7 @@ public final class PModeMicroTypeConverterTest
       aPModeConfig.setLeg2 (_generatePModeLeg ());
       aPModeConfig.setPayloadService (_generatePayloadService ());
       aPModeConfig.setReceptionAwareness (_generatePModeReceptionAwareness ());
+      aPModeConfig.setAsyncSPIInvocation (true);
       XMLTestHelper.testMicroTypeConversion (aPModeConfig);
       XMLTestHelper.testMicroTypeConversion (aPModeConfig.getLeg1 ());
       XMLTestHelper.testMicroTypeConversion (aPModeConfig.getLeg2 ());
@@ -105,7 +106,7 @@ public final class PModeMicroTypeConverterTest
   @Nonnull
   private PModeReceptionAwareness _generatePModeReceptionAwareness ()
   {
-    return new PModeReceptionAwareness (ETriState.TRUE, ETriState.TRUE, ETriState.TRUE);
+    return new PModeReceptionAwareness (ETriState.TRUE, ETriState.TRUE, ETriState.TRUE, 5, 30_000);
   }
 
   @Nonnull
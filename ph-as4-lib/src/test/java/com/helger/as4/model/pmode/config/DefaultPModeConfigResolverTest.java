@@ -0,0 +1,82 @@
+/**
+ * Copyright (C) 2015-2017 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.as4.model.pmode.config;
+
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TestRule;
+
+import com.helger.as4.AS4TestRule;
+import com.helger.as4.mgr.MetaAS4Manager;
+import com.helger.as4.model.EMEP;
+import com.helger.as4.model.EMEPBinding;
+import com.helger.as4.model.pmode.leg.PModeLeg;
+import com.helger.as4.model.pmode.leg.PModeLegBusinessInformation;
+
+/**
+ * Test class for class {@link DefaultPModeConfigResolver}.
+ *
+ * @author Philip Helger
+ */
+public final class DefaultPModeConfigResolverTest
+{
+  @Rule
+  public final TestRule m_aTestRule = new AS4TestRule ();
+
+  @Test
+  public void testServiceAndActionCache ()
+  {
+    final PModeConfigManager aPModeConfigMgr = MetaAS4Manager.getPModeConfigMgr ();
+    final DefaultPModeConfigResolver aResolver = new DefaultPModeConfigResolver (false);
+    final String sService = "urn:resolver-test:service";
+    final String sAction = "resolverTestAction";
+
+    // Negative result is cached
+    assertNull (aResolver.getPModeConfigOfID (null, sService, sAction));
+    assertNull (aResolver.getPModeConfigOfID (null, sService, sAction));
+
+    final PModeConfig aConfig = new PModeConfig ("resolver-test");
+    aConfig.setMEP (EMEP.ONE_WAY);
+    aConfig.setMEPBinding (EMEPBinding.PUSH);
+    aConfig.setLeg1 (new PModeLeg (null,
+                                   new PModeLegBusinessInformation (sService, sAction, null, null),
+                                   null,
+                                   null,
+                                   null));
+    assertNotNull (aPModeConfigMgr.createPModeConfig (aConfig));
+    try
+    {
+      // Creation invalidates the cache
+      assertSame (aConfig, aPModeConfigMgr.getPModeConfigOfServiceAndAction (sService, sAction));
+      assertSame (aConfig, aResolver.getPModeConfigOfID (null, sService, sAction));
+      assertSame (aConfig, aResolver.getPModeConfigOfID ("no-such-id", sService, sAction));
+      assertSame (aConfig, aResolver.getPModeConfigOfID (aConfig.getID (), "other", "other"));
+    }
+    finally
+    {
+      aPModeConfigMgr.deletePModeConfig (aConfig.getID ());
+    }
+
+    // Deletion invalidates the cache
+    assertNull (aPModeConfigMgr.getPModeConfigOfServiceAndAction (sService, sAction));
+    assertNull (aResolver.getPModeConfigOfID (null, sService, sAction));
+  }
+}
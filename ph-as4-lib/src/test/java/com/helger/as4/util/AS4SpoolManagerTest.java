@@ -0,0 +1,189 @@
+/**
+ * Copyright (C) 2015-2017 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.as4.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nonnull;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.helger.commons.io.file.SimpleFileIO;
+
+/**
+ * Test class for class {@link AS4SpoolManager}.
+ *
+ * @author Philip Helger
+ */
+public final class AS4SpoolManagerTest
+{
+  @Rule
+  public final TemporaryFolder m_aTempFolder = new TemporaryFolder ();
+
+  private static void _write (@Nonnull final AS4ResourceManager aResMgr, final int nBytes) throws Exception
+  {
+    try (final OutputStream aOS = aResMgr.getOutputStream (aResMgr.createTempFile ()))
+    {
+      aOS.write (new byte [nBytes]);
+    }
+  }
+
+  @Test
+  public void testAsyncDelete () throws Exception
+  {
+    final AS4SpoolManager aSpoolMgr = new AS4SpoolManager (m_aTempFolder.newFolder ());
+    assertTrue (aSpoolMgr.isLocked ());
+
+    final AS4ResourceManager aResMgr = new AS4ResourceManager (aSpoolMgr);
+    final File aFile = aResMgr.createTempFile ();
+    try (final OutputStream aOS = aResMgr.getOutputStream (aFile))
+    {
+      aOS.write (new byte [100]);
+    }
+    assertEquals (100, aSpoolMgr.getUsedBytes ());
+    assertEquals (100, aFile.length ());
+    final File aRequestDir = aFile.getParentFile ();
+    assertEquals (aSpoolMgr.getInstanceDirectory (), aRequestDir.getParentFile ());
+
+    aResMgr.close ();
+    assertTrue (AS4SpoolManager.waitForPendingDeletions (1, TimeUnit.MINUTES));
+    assertFalse (aFile.exists ());
+    assertFalse (aRequestDir.exists ());
+    assertTrue (aSpoolMgr.getInstanceDirectory ().isDirectory ());
+    assertEquals (0, aSpoolMgr.getUsedBytes ());
+  }
+
+  @Test
+  public void testRequestQuota () throws Exception
+  {
+    final AS4SpoolManager aSpoolMgr = new AS4SpoolManager (m_aTempFolder.newFolder ());
+    aSpoolMgr.setMaxRequestBytes (100);
+
+    try (final AS4ResourceManager aResMgr = new AS4ResourceManager (aSpoolMgr))
+    {
+      _write (aResMgr, 60);
+      _write (aResMgr, 40);
+      try
+      {
+        _write (aResMgr, 1);
+        fail ();
+      }
+      catch (final AS4SpoolQuotaExceededException ex)
+      {
+        assertFalse (ex.isGlobalQuota ());
+        assertEquals (100, ex.getQuota ());
+      }
+      assertEquals (100, aResMgr.getSpooledBytes ());
+
+      // Other requests are not affected
+      try (final AS4ResourceManager aResMgr2 = new AS4ResourceManager (aSpoolMgr))
+      {
+        _write (aResMgr2, 100);
+      }
+    }
+    assertEquals (1, aSpoolMgr.getQuotaExceededCount ());
+  }
+
+  @Test
+  public void testGlobalQuota () throws Exception
+  {
+    final AS4SpoolManager aSpoolMgr = new AS4SpoolManager (m_aTempFolder.newFolder ());
+    aSpoolMgr.setMaxBytes (150);
+
+    final AS4ResourceManager aResMgr1 = new AS4ResourceManager (aSpoolMgr);
+    _write (aResMgr1, 100);
+    try (final AS4ResourceManager aResMgr2 = new AS4ResourceManager (aSpoolMgr))
+    {
+      try
+      {
+        _write (aResMgr2, 100);
+        fail ();
+      }
+      catch (final AS4SpoolQuotaExceededException ex)
+      {
+        assertTrue (ex.isGlobalQuota ());
+      }
+      assertEquals (100, aSpoolMgr.getUsedBytes ());
+
+      // The quota is released after the deletion
+      aResMgr1.close ();
+      assertTrue (AS4SpoolManager.waitForPendingDeletions (1, TimeUnit.MINUTES));
+      _write (aResMgr2, 100);
+    }
+  }
+
+  @Test
+  public void testSweepOrphans () throws Exception
+  {
+    final File aRootDir = m_aTempFolder.newFolder ();
+
+    // Left over by a dead process
+    final File aOrphan = new File (aRootDir, "inst-orphan");
+    final File aOrphanReqDir = new File (aOrphan, "req-1");
+    assertTrue (aOrphanReqDir.mkdirs ());
+    SimpleFileIO.writeFile (new File (aOrphanReqDir, "as4-res-1.tmp"), new byte [10]);
+    SimpleFileIO.writeFile (new File (aOrphan, "lock"), new byte [0]);
+
+    // Crashed before the lock file was created
+    final File aOrphanNoLock = new File (aRootDir, "inst-nolock");
+    assertTrue (aOrphanNoLock.mkdirs ());
+    assertTrue (aOrphanNoLock.setLastModified (System.currentTimeMillis () - 2 * AS4SpoolManager.ORPHAN_MIN_AGE_MS));
+
+    // Not owned by the spool manager
+    final File aForeign = new File (aRootDir, "foreign");
+    assertTrue (aForeign.mkdirs ());
+
+    final AS4SpoolManager aSpoolMgr = new AS4SpoolManager (aRootDir);
+    // Second instance on the same root must not sweep the first one
+    final AS4SpoolManager aSpoolMgr2 = new AS4SpoolManager (aRootDir);
+    assertTrue (AS4SpoolManager.waitForPendingDeletions (1, TimeUnit.MINUTES));
+
+    assertFalse (aOrphan.exists ());
+    assertFalse (aOrphanNoLock.exists ());
+    assertTrue (aForeign.exists ());
+    assertTrue (aSpoolMgr.getInstanceDirectory ().exists ());
+    assertTrue (aSpoolMgr2.getInstanceDirectory ().exists ());
+  }
+
+  @Test
+  public void testClose () throws Exception
+  {
+    final File aRootDir = m_aTempFolder.newFolder ();
+    final AS4SpoolManager aSpoolMgr = new AS4SpoolManager (aRootDir);
+    assertTrue (aSpoolMgr.isLocked ());
+    aSpoolMgr.close ();
+    assertFalse (aSpoolMgr.isLocked ());
+    // Closing twice is fine
+    aSpoolMgr.close ();
+
+    // The unlocked directory is swept by the next instance
+    final AS4SpoolManager aSpoolMgr2 = new AS4SpoolManager (aRootDir);
+    assertTrue (AS4SpoolManager.waitForPendingDeletions (1, TimeUnit.MINUTES));
+    assertFalse (aSpoolMgr.getInstanceDirectory ().exists ());
+    assertTrue (aSpoolMgr2.getInstanceDirectory ().exists ());
+    aSpoolMgr2.close ();
+  }
+}
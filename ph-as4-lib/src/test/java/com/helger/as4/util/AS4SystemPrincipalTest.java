@@ -0,0 +1,120 @@
+/**
+ * Copyright (C) 2015-2017 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.as4.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TestRule;
+
+import com.helger.as4.AS4TestRule;
+import com.helger.as4.partner.Partner;
+import com.helger.photon.basic.audit.AbstractAuditor;
+import com.helger.photon.basic.audit.AuditHelper;
+import com.helger.photon.basic.audit.IAuditor;
+import com.helger.photon.basic.audit.LoggingAuditor;
+import com.helger.photon.basic.auth.ICurrentUserIDProvider;
+import com.helger.photon.security.object.StubObject;
+
+/**
+ * Test class for class {@link AS4SystemPrincipal}.
+ *
+ * @author Philip Helger
+ */
+public final class AS4SystemPrincipalTest
+{
+  @Rule
+  public final TestRule m_aTestRule = new AS4TestRule ();
+
+  @Test
+  public void testActivate ()
+  {
+    assertFalse (AS4SystemPrincipal.isActive ());
+    assertNull (AS4SystemPrincipal.getCurrentUserID ());
+
+    try (final AS4SystemPrincipal aPrincipal = AS4SystemPrincipal.activate ())
+    {
+      assertTrue (AS4SystemPrincipal.isActive ());
+      assertEquals (AS4SystemPrincipal.DEFAULT_SYSTEM_USER_ID, AS4SystemPrincipal.getCurrentUserID ());
+
+      // Nested
+      try (final AS4SystemPrincipal aPrincipal2 = AS4SystemPrincipal.activate ())
+      {
+        assertEquals (AS4SystemPrincipal.DEFAULT_SYSTEM_USER_ID, AS4SystemPrincipal.getCurrentUserID ());
+      }
+      assertTrue (AS4SystemPrincipal.isActive ());
+
+      // Closing twice is fine
+      aPrincipal.close ();
+      assertFalse (AS4SystemPrincipal.isActive ());
+    }
+    assertFalse (AS4SystemPrincipal.isActive ());
+    assertNull (AS4SystemPrincipal.getCurrentUserID ());
+  }
+
+  @Test
+  public void testStubObject ()
+  {
+    StubObject aStub = AS4SystemPrincipal.createStubObject ("id1");
+    assertEquals ("id1", aStub.getID ());
+    assertNull (aStub.getCreationUserID ());
+
+    try (final AS4SystemPrincipal aPrincipal = AS4SystemPrincipal.activate ())
+    {
+      aStub = AS4SystemPrincipal.createStubObject ("id2");
+      assertEquals ("id2", aStub.getID ());
+      assertEquals (AS4SystemPrincipal.DEFAULT_SYSTEM_USER_ID, aStub.getCreationUserID ());
+
+      final StringMap aAttrs = new StringMap ();
+      aAttrs.setAttribute (Partner.ATTR_PARTNER_NAME, "name");
+      final Partner aPartner = new Partner ("partner", aAttrs);
+      assertEquals (AS4SystemPrincipal.DEFAULT_SYSTEM_USER_ID, aPartner.getCreationUserID ());
+      AS4SystemPrincipal.setLastModificationNow (aPartner);
+      assertEquals (AS4SystemPrincipal.DEFAULT_SYSTEM_USER_ID, aPartner.getLastModificationUserID ());
+    }
+  }
+
+  @Test
+  public void testAuditorUserIDProvider ()
+  {
+    final IAuditor aOldAuditor = AuditHelper.getAuditor ();
+    try
+    {
+      AuditHelper.setAuditor (new LoggingAuditor ( () -> "outside"));
+      assertTrue (AS4SystemPrincipal.installAuditorUserIDProvider ().isChanged ());
+      // Installing twice does not wrap twice
+      assertFalse (AS4SystemPrincipal.installAuditorUserIDProvider ().isChanged ());
+
+      final ICurrentUserIDProvider aProvider = ((AbstractAuditor) AuditHelper.getAuditor ()).getCurrentUserIDProvider ();
+      // Only activated contexts are affected
+      assertEquals ("outside", aProvider.getCurrentUserID ());
+      try (final AS4SystemPrincipal aPrincipal = AS4SystemPrincipal.activate ())
+      {
+        assertEquals (AS4SystemPrincipal.DEFAULT_SYSTEM_USER_ID, aProvider.getCurrentUserID ());
+      }
+      assertEquals ("outside", aProvider.getCurrentUserID ());
+    }
+    finally
+    {
+      AuditHelper.setAuditor (aOldAuditor);
+    }
+  }
+}
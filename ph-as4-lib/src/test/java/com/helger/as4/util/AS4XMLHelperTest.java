@@ -0,0 +1,95 @@
+/**
+ * Copyright (C) 2015-2017 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.as4.util;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+
+import com.helger.commons.collection.ext.CommonsArrayList;
+import com.helger.commons.collection.ext.ICommonsList;
+import com.helger.commons.io.stream.NonBlockingByteArrayOutputStream;
+import com.helger.xml.XMLFactory;
+
+/**
+ * Test class for class {@link AS4XMLHelper}.
+ *
+ * @author Philip Helger
+ */
+public final class AS4XMLHelperTest
+{
+  private static Document _createDoc (final String sText)
+  {
+    final Document aDoc = XMLFactory.newDocument ();
+    final Element eRoot = (Element) aDoc.appendChild (aDoc.createElementNS ("urn:test", "root"));
+    eRoot.setAttribute ("id", "a1");
+    eRoot.appendChild (aDoc.createTextNode (sText));
+    return aDoc;
+  }
+
+  @Test
+  public void testSerializeVariants () throws Exception
+  {
+    final Document aDoc = _createDoc ("Grüße €");
+    final String sXML = AS4XMLHelper.serializeXML (aDoc);
+    assertNotNull (sXML);
+
+    final byte [] aBytes = AS4XMLHelper.serializeXMLToBytes (aDoc);
+    assertEquals (sXML, new String (aBytes, StandardCharsets.UTF_8));
+
+    final NonBlockingByteArrayOutputStream aBAOS = new NonBlockingByteArrayOutputStream ();
+    AS4XMLHelper.serializeXML (aDoc, Channels.newChannel (aBAOS));
+    assertArrayEquals (aBytes, aBAOS.toByteArray ());
+  }
+
+  @Test
+  public void testConcurrentSerialization () throws Exception
+  {
+    final ExecutorService aES = Executors.newFixedThreadPool (8);
+    try
+    {
+      final ICommonsList <Future <Boolean>> aFutures = new CommonsArrayList <> ();
+      for (int i = 0; i < 200; ++i)
+      {
+        final String sText = "text" + i;
+        aFutures.add (aES.submit ( () -> {
+          final Document aDoc = _createDoc (sText);
+          return Boolean.valueOf (new String (AS4XMLHelper.serializeXMLToBytes (aDoc),
+                                              StandardCharsets.UTF_8).equals (AS4XMLHelper.serializeXML (aDoc)));
+        }));
+      }
+      for (final Future <Boolean> aFuture : aFutures)
+        assertEquals (Boolean.TRUE, aFuture.get ());
+    }
+    finally
+    {
+      aES.shutdown ();
+      aES.awaitTermination (1, TimeUnit.MINUTES);
+    }
+  }
+}
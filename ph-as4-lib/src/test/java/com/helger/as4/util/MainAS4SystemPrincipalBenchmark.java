@@ -0,0 +1,120 @@
+/**
+ * Copyright (C) 2015-2017 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.as4.util;
+
+import java.util.Locale;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.helger.as4.AS4TestRule;
+import com.helger.commons.timing.StopWatch;
+import com.helger.photon.security.CSecurity;
+import com.helger.photon.security.login.ELoginResult;
+import com.helger.photon.security.login.LoggedInUserManager;
+import com.helger.photon.security.mgr.PhotonSecurityManager;
+import com.helger.photon.security.object.StubObject;
+import com.helger.photon.security.user.UserManager;
+
+/**
+ * Compares the per request costs of the previous administrator login/logout
+ * cycle with the {@link AS4SystemPrincipal} context. Each iteration creates one
+ * stub object, like a DAO write does.
+ *
+ * @author Philip Helger
+ */
+public final class MainAS4SystemPrincipalBenchmark
+{
+  private static final Logger s_aLogger = LoggerFactory.getLogger (MainAS4SystemPrincipalBenchmark.class);
+  // The login includes a password hash check and is therefore slow
+  private static final int LOGIN_RUNS = 200;
+  private static final int PRINCIPAL_RUNS = 100_000;
+
+  private MainAS4SystemPrincipalBenchmark ()
+  {}
+
+  private static void _loginLogout (final int nRuns)
+  {
+    final LoggedInUserManager aLUM = LoggedInUserManager.getInstance ();
+    for (int i = 0; i < nRuns; ++i)
+    {
+      final ELoginResult e = aLUM.loginUser (CSecurity.USER_ADMINISTRATOR_LOGIN, CSecurity.USER_ADMINISTRATOR_PASSWORD);
+      if (e.isFailure ())
+        throw new IllegalStateException ("Login failed: " + e);
+      try
+      {
+        StubObject.createForCurrentUser ();
+      }
+      finally
+      {
+        aLUM.logoutCurrentUser ();
+      }
+    }
+  }
+
+  private static void _systemPrincipal (final int nRuns)
+  {
+    for (int i = 0; i < nRuns; ++i)
+      try (final AS4SystemPrincipal aPrincipal = AS4SystemPrincipal.activate ())
+      {
+        AS4SystemPrincipal.createStubObject ();
+      }
+  }
+
+  public static void main (final String [] args)
+  {
+    final AS4TestRule aRule = new AS4TestRule ();
+    aRule.before ();
+    try
+    {
+      final UserManager aUserMgr = PhotonSecurityManager.getUserMgr ();
+      if (!aUserMgr.containsWithID (CSecurity.USER_ADMINISTRATOR_ID))
+        aUserMgr.createPredefinedUser (CSecurity.USER_ADMINISTRATOR_ID,
+                                       CSecurity.USER_ADMINISTRATOR_LOGIN,
+                                       CSecurity.USER_ADMINISTRATOR_EMAIL,
+                                       CSecurity.USER_ADMINISTRATOR_PASSWORD,
+                                       "Admin",
+                                       "istrator",
+                                       null,
+                                       Locale.US,
+                                       null,
+                                       false);
+
+      // Warm up
+      _loginLogout (LOGIN_RUNS / 10);
+      _systemPrincipal (PRINCIPAL_RUNS / 10);
+
+      StopWatch aSW = StopWatch.createdStarted ();
+      _loginLogout (LOGIN_RUNS);
+      final long nLoginNanos = aSW.stopAndGetNanos ();
+
+      aSW = StopWatch.createdStarted ();
+      _systemPrincipal (PRINCIPAL_RUNS);
+      final long nPrincipalNanos = aSW.stopAndGetNanos ();
+
+      final long nLoginPerRequest = nLoginNanos / LOGIN_RUNS;
+      final long nPrincipalPerRequest = nPrincipalNanos / PRINCIPAL_RUNS;
+      s_aLogger.info ("Login/logout:      " + nLoginPerRequest + " ns per request");
+      s_aLogger.info ("System principal:  " + nPrincipalPerRequest + " ns per request");
+      s_aLogger.info ("Saved per request: " + (nLoginPerRequest - nPrincipalPerRequest) + " ns");
+    }
+    finally
+    {
+      aRule.after ();
+    }
+  }
+}
@@ -79,8 +79,6 @@ public final class AS4WebAppListener extends WebAppListener
     SLF4JBridgeHandler.removeHandlersForRootLogger ();
     SLF4JBridgeHandler.install ();
 
-    AS4ServerInitializer.initAS4Server ();
-
     if (GlobalDebug.isDebugMode ())
       RequestTracker.getInstance ().getRequestTrackingMgr ().setLongRunningCheckEnabled (false);
 
@@ -98,6 +96,9 @@ public final class AS4WebAppListener extends WebAppListener
                                      null,
                                      false);
 
+    // After the security manager, so that the AS4 auditor settings are kept
+    AS4ServerInitializer.initAS4Server ();
+
     s_aLogger.info ("AS4 server started");
   }
 
@@ -16,9 +16,13 @@
  */
 package com.helger.as4.lib.client;
 
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
+import java.io.File;
+
 import javax.annotation.Nonnull;
 
 import org.apache.http.util.EntityUtils;
@@ -29,6 +33,8 @@ import org.junit.Test;
 import com.helger.as4.CAS4;
 import com.helger.as4.attachment.EAS4CompressionMode;
 import com.helger.as4.client.AS4Client;
+import com.helger.as4.client.AS4CryptoFactoryCache;
+import com.helger.as4.crypto.AS4CryptoFactory;
 import com.helger.as4.crypto.ECryptoAlgorithmCrypt;
 import com.helger.as4.crypto.ECryptoAlgorithmSign;
 import com.helger.as4.crypto.ECryptoAlgorithmSignDigest;
@@ -199,6 +205,26 @@ public final class AS4ClientTest
 
   }
 
+  @Test
+  public void testCryptoFactoryCache () throws Exception
+  {
+    final File aKeyStoreFile = new ClassPathResource ("keys/dummy-pw-test.jks").getAsFile ();
+    final AS4CryptoFactory aCryptoFactory = AS4CryptoFactoryCache.getCryptoFactory (aKeyStoreFile,
+                                                                                   "jks",
+                                                                                   "ph-as4",
+                                                                                   "test");
+    assertSame (aCryptoFactory, AS4CryptoFactoryCache.getCryptoFactory (aKeyStoreFile, "jks", "ph-as4", "test"));
+    assertNotSame (aCryptoFactory, AS4CryptoFactoryCache.getCryptoFactory (aKeyStoreFile, "jks", "ph-as4", "other"));
+
+    // A prebuilt crypto factory replaces the keystore attributes
+    final AS4Client aClient = _getMandatoryAttributesSuccessMessage ();
+    aClient.setCryptoAlgorithmSign (ECryptoAlgorithmSign.RSA_SHA_256);
+    aClient.setECryptoAlgorithmSignDigest (ECryptoAlgorithmSignDigest.DIGEST_SHA_256);
+    _ensureInvalidState (aClient);
+    aClient.setCryptoFactory (aCryptoFactory);
+    _ensureValidState (aClient);
+  }
+
   @Test
   public void sendBodyPayloadMessageSuccessful () throws Exception
   {
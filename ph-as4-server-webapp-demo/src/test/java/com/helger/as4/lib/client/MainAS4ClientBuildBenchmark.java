@@ -0,0 +1,132 @@
+/**
+ * Copyright (C) 2015-2017 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.as4.lib.client;
+
+import java.io.File;
+
+import javax.annotation.Nonnull;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.helger.as4.CAS4;
+import com.helger.as4.client.AS4Client;
+import com.helger.as4.client.AS4CryptoFactoryCache;
+import com.helger.as4.crypto.AS4CryptoFactory;
+import com.helger.as4.crypto.AS4CryptoRegistry;
+import com.helger.as4.crypto.ECryptoAlgorithmSign;
+import com.helger.as4.crypto.ECryptoAlgorithmSignDigest;
+import com.helger.as4.mock.MockEbmsHelper;
+import com.helger.as4.soap.ESOAPVersion;
+import com.helger.as4.util.AS4ResourceManager;
+import com.helger.commons.io.resource.ClassPathResource;
+import com.helger.commons.timing.StopWatch;
+
+/**
+ * Compares the per message costs of {@link AS4Client#buildMessage()} with a
+ * keystore loaded for every message (as before) and with the shared
+ * {@link AS4CryptoFactoryCache}. All messages are signed.
+ *
+ * @author Philip Helger
+ */
+public final class MainAS4ClientBuildBenchmark
+{
+  private static final Logger s_aLogger = LoggerFactory.getLogger (MainAS4ClientBuildBenchmark.class);
+  private static final int RUNS = 1_000;
+
+  private static final String KEY_STORE_TYPE = "jks";
+  private static final String KEY_STORE_ALIAS = "ph-as4";
+  private static final String KEY_STORE_PASSWORD = "test";
+
+  private MainAS4ClientBuildBenchmark ()
+  {}
+
+  @Nonnull
+  private static AS4Client _createClient (@Nonnull final AS4ResourceManager aResMgr, @Nonnull final File aKeyStoreFile)
+  {
+    final AS4Client aClient = new AS4Client (aResMgr);
+    aClient.setSOAPVersion (ESOAPVersion.SOAP_12);
+    aClient.setAction ("AnAction");
+    aClient.setServiceType ("MyServiceType");
+    aClient.setServiceValue ("OrderPaper");
+    aClient.setConversationID ("9898");
+    aClient.setAgreementRefPMode ("pm-benchmark");
+    aClient.setAgreementRefValue (MockEbmsHelper.DEFAULT_AGREEMENT);
+    aClient.setFromRole (CAS4.DEFAULT_ROLE);
+    aClient.setFromPartyID ("MyPartyIDforSending");
+    aClient.setToRole (CAS4.DEFAULT_ROLE);
+    aClient.setToPartyID ("MyPartyIDforReceving");
+    aClient.setEbms3Properties (MockEbmsHelper.getEBMSProperties ());
+    aClient.setCryptoAlgorithmSign (ECryptoAlgorithmSign.RSA_SHA_256);
+    aClient.setECryptoAlgorithmSignDigest (ECryptoAlgorithmSignDigest.DIGEST_SHA_256);
+    aClient.setKeyStoreFile (aKeyStoreFile);
+    aClient.setKeyStoreType (KEY_STORE_TYPE);
+    aClient.setKeyStoreAlias (KEY_STORE_ALIAS);
+    aClient.setKeyStorePassword (KEY_STORE_PASSWORD);
+    return aClient;
+  }
+
+  private static void _buildUncached (@Nonnull final AS4Client aClient,
+                                      @Nonnull final File aKeyStoreFile,
+                                      final int nRuns) throws Exception
+  {
+    for (int i = 0; i < nRuns; ++i)
+    {
+      // Load the keystore for every message
+      AS4CryptoRegistry.clear ();
+      aClient.setCryptoFactory (new AS4CryptoFactory (AS4CryptoFactoryCache.createCryptoProperties (aKeyStoreFile,
+                                                                                                    KEY_STORE_TYPE,
+                                                                                                    KEY_STORE_ALIAS,
+                                                                                                    KEY_STORE_PASSWORD)));
+      aClient.buildMessage ();
+    }
+  }
+
+  private static void _buildCached (@Nonnull final AS4Client aClient, final int nRuns) throws Exception
+  {
+    aClient.setCryptoFactory (null);
+    for (int i = 0; i < nRuns; ++i)
+      aClient.buildMessage ();
+  }
+
+  public static void main (final String [] args) throws Exception
+  {
+    final File aKeyStoreFile = new ClassPathResource ("keys/dummy-pw-test.jks").getAsFile ();
+    try (final AS4ResourceManager aResMgr = new AS4ResourceManager ())
+    {
+      final AS4Client aClient = _createClient (aResMgr, aKeyStoreFile);
+
+      // Warm up
+      _buildUncached (aClient, aKeyStoreFile, RUNS / 10);
+      _buildCached (aClient, RUNS / 10);
+
+      StopWatch aSW = StopWatch.createdStarted ();
+      _buildUncached (aClient, aKeyStoreFile, RUNS);
+      final long nUncachedNanos = aSW.stopAndGetNanos ();
+
+      aSW = StopWatch.createdStarted ();
+      _buildCached (aClient, RUNS);
+      final long nCachedNanos = aSW.stopAndGetNanos ();
+
+      final long nUncachedPerMessage = nUncachedNanos / RUNS;
+      final long nCachedPerMessage = nCachedNanos / RUNS;
+      s_aLogger.info ("Keystore per message: " + nUncachedPerMessage + " ns per message");
+      s_aLogger.info ("Cached crypto:        " + nCachedPerMessage + " ns per message");
+      s_aLogger.info ("Saved per message:    " + (nUncachedPerMessage - nCachedPerMessage) + " ns");
+    }
+  }
+}
@@ -0,0 +1,711 @@
+/**
+ * Copyright (C) 2015-2017 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.as4.servlet;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.SequenceInputStream;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.GuardedBy;
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.ReadListener;
+import javax.servlet.ServletException;
+import javax.servlet.ServletInputStream;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.helger.as4.servlet.mgr.AS4AdmissionController;
+import com.helger.as4.servlet.mgr.AS4ServerConfiguration;
+import com.helger.as4.servlet.mgr.AS4ServerSettings;
+import com.helger.as4.util.AS4ResourceManager;
+import com.helger.commons.CGlobal;
+import com.helger.commons.collection.ext.CommonsArrayList;
+import com.helger.commons.collection.ext.ICommonsList;
+import com.helger.commons.concurrent.BasicThreadFactory;
+import com.helger.commons.concurrent.ManagedExecutorService;
+import com.helger.commons.io.file.FileHelper;
+import com.helger.commons.io.stream.StreamHelper;
+import com.helger.commons.lang.ClassHelper;
+import com.helger.http.EHTTPMethod;
+import com.helger.http.EHTTPVersion;
+import com.helger.web.scope.mgr.WebScopeManager;
+
+/**
+ * Asynchronous AS4 receiving servlet based on the Servlet 3.1 non-blocking
+ * I/O API. The request body is read with a {@link ReadListener} and spooled -
+ * up to {@link #MAX_IN_MEMORY_REQUEST_BYTES} in memory, the rest to a file of
+ * the spool manager. Only after the complete body was received, the message
+ * is processed on a separate executor, and the response body is streamed back
+ * with a {@link WriteListener}. So neither a container thread nor a
+ * processing thread ever waits for a slow client. Message processing and
+ * error mapping are identical to {@link AS4Servlet}.<br>
+ * The executor can be provided via
+ * {@link AS4ServerSettings#setAsyncExecutor(ExecutorService)}; otherwise a
+ * fixed size pool with {@link AS4ServerConfiguration#getAsyncProcessingThreadCount()}
+ * threads is created. Use a configuration like the following in your
+ * <code>WEB-INF/web.xml</code> file:
+ *
+ * <pre>
+&lt;servlet&gt;
+  &lt;servlet-name&gt;AS4Servlet&lt;/servlet-name&gt;
+  &lt;servlet-class&gt;com.helger.as4.servlet.AS4AsyncServlet&lt;/servlet-class&gt;
+  &lt;async-supported&gt;true&lt;/async-supported&gt;
+&lt;/servlet&gt;
+&lt;servlet-mapping&gt;
+  &lt;servlet-name&gt;AS4Servlet&lt;/servlet-name&gt;
+  &lt;url-pattern&gt;/as4&lt;/url-pattern&gt;
+&lt;/servlet-mapping&gt;
+ * </pre>
+ *
+ * @author Philip Helger
+ */
+public final class AS4AsyncServlet extends HttpServlet
+{
+  private static final Logger s_aLogger = LoggerFactory.getLogger (AS4AsyncServlet.class);
+  private static final int BUFFER_SIZE = 16 * CGlobal.BYTES_PER_KILOBYTE;
+  /** Maximum number of request body bytes kept in memory per request */
+  public static final int MAX_IN_MEMORY_REQUEST_BYTES = CGlobal.BYTES_PER_MEGABYTE;
+
+  private ExecutorService m_aExecutor;
+  private boolean m_bOwnsExecutor;
+
+  public AS4AsyncServlet ()
+  {}
+
+  @Override
+  public void init () throws ServletException
+  {
+    final ExecutorService aExecutor = AS4ServerSettings.getAsyncExecutor ();
+    if (aExecutor != null)
+    {
+      m_aExecutor = aExecutor;
+      m_bOwnsExecutor = false;
+    }
+    else
+    {
+      final int nThreads = Math.max (1, AS4ServerConfiguration.getAsyncProcessingThreadCount ());
+      m_aExecutor = Executors.newFixedThreadPool (nThreads,
+                                                  new BasicThreadFactory.Builder ().setNamingPattern ("as4-async-%d")
+                                                                                   .setDaemon (true)
+                                                                                   .build ());
+      m_bOwnsExecutor = true;
+      s_aLogger.info ("Created AS4 async executor with " + nThreads + " threads");
+    }
+  }
+
+  @Override
+  public void destroy ()
+  {
+    if (m_bOwnsExecutor && m_aExecutor != null)
+      ManagedExecutorService.shutdownAndWaitUntilAllTasksAreFinished (m_aExecutor);
+    m_aExecutor = null;
+  }
+
+  @Override
+  protected void doPost (@Nonnull final HttpServletRequest aHttpRequest,
+                         @Nonnull final HttpServletResponse aHttpResponse) throws IOException
+  {
+    // The response object reads the request headers it needs on creation, so
+    // create it on the container thread
+    final AS4Response aAS4Response = _createResponse (aHttpRequest);
+
+    // Check before anything is read
+    final AS4AdmissionController.Ticket aTicket = AS4Servlet.admitAS4Request (aHttpRequest, aAS4Response);
+    if (aTicket == null)
+    {
+      // Rejected - the response is small, so write it synchronously
+      aAS4Response.applyToResponse (aHttpResponse);
+      return;
+    }
+
+    try
+    {
+      final AsyncContext aAsyncContext = aHttpRequest.startAsync (aHttpRequest, aHttpResponse);
+      aAsyncContext.setTimeout (Math.max (0, AS4ServerConfiguration.getAsyncTimeoutMilliseconds ()));
+
+      final AsyncExchange aExchange = new AsyncExchange (aAsyncContext,
+                                                         aHttpRequest,
+                                                         aHttpResponse,
+                                                         aAS4Response,
+                                                         m_aExecutor,
+                                                         aTicket);
+      aAsyncContext.addListener (aExchange);
+      aHttpRequest.getInputStream ().setReadListener (aExchange);
+    }
+    catch (final IOException | RuntimeException ex)
+    {
+      aTicket.close ();
+      throw ex;
+    }
+  }
+
+  @Nonnull
+  private static AS4Response _createResponse (@Nonnull final HttpServletRequest aHttpRequest)
+  {
+    EHTTPVersion eHTTPVersion = EHTTPVersion.getFromNameOrNull (aHttpRequest.getProtocol ());
+    if (eHTTPVersion == null)
+      eHTTPVersion = EHTTPVersion.HTTP_11;
+    return new AS4Response (eHTTPVersion, EHTTPMethod.POST, aHttpRequest);
+  }
+
+  /**
+   * The state of a single asynchronous request.<br>
+   * The container request and response objects are only accessed while
+   * holding {@link #m_aLock} and only as long as {@link #m_aDone} is not set.
+   * Timeout, error and completion set {@link #m_aDone} while holding the same
+   * lock, so the processing thread never touches the request or response
+   * after the container may have recycled them.
+   *
+   * @author Philip Helger
+   */
+  private static final class AsyncExchange implements ReadListener, WriteListener, AsyncListener
+  {
+    private final AsyncContext m_aAsyncContext;
+    private final HttpServletRequest m_aHttpRequest;
+    private final HttpServletResponse m_aHttpResponse;
+    private final String m_sContentType;
+    private final AS4Response m_aAS4Response;
+    private final ExecutorService m_aExecutor;
+    private final AS4AdmissionController.Ticket m_aTicket;
+    private final long m_nMaxRequestBytes;
+    private final Object m_aLock = new Object ();
+    private final AtomicBoolean m_aDone = new AtomicBoolean (false);
+    private final byte [] m_aReadBuffer = new byte [BUFFER_SIZE];
+    @GuardedBy ("m_aLock")
+    private boolean m_bProcessingStarted = false;
+    @GuardedBy ("m_aLock")
+    private boolean m_bRequestRejected = false;
+    @GuardedBy ("m_aLock")
+    private IOException m_aIOError;
+
+    // Request body received so far - first in memory, then in a spool file
+    @GuardedBy ("m_aLock")
+    private final ICommonsList <byte []> m_aRequestChunks = new CommonsArrayList <> ();
+    @GuardedBy ("m_aLock")
+    private long m_nRequestBytes = 0;
+    @GuardedBy ("m_aLock")
+    private AS4ResourceManager m_aSpoolResMgr;
+    @GuardedBy ("m_aLock")
+    private File m_aSpoolFile;
+    @GuardedBy ("m_aLock")
+    private OutputStream m_aSpoolOS;
+
+    // Response body created but not yet written to the container
+    @GuardedBy ("m_aLock")
+    private final ArrayDeque <byte []> m_aResponseChunks = new ArrayDeque <> ();
+    @GuardedBy ("m_aLock")
+    private boolean m_bWriteListenerSet = false;
+    @GuardedBy ("m_aLock")
+    private boolean m_bResponseClosed = false;
+
+    AsyncExchange (@Nonnull final AsyncContext aAsyncContext,
+                   @Nonnull final HttpServletRequest aHttpRequest,
+                   @Nonnull final HttpServletResponse aHttpResponse,
+                   @Nonnull final AS4Response aAS4Response,
+                   @Nonnull final ExecutorService aExecutor,
+                   @Nonnull final AS4AdmissionController.Ticket aTicket)
+    {
+      m_aAsyncContext = aAsyncContext;
+      m_aHttpRequest = aHttpRequest;
+      m_aHttpResponse = aHttpResponse;
+      m_sContentType = aHttpRequest.getContentType ();
+      m_aAS4Response = aAS4Response;
+      m_aExecutor = aExecutor;
+      m_aTicket = aTicket;
+      m_nMaxRequestBytes = AS4ServerConfiguration.getMaxRequestBytes ();
+    }
+
+    /**
+     * Reject the request without reading the rest of the body. The response
+     * must already be filled.
+     */
+    @GuardedBy ("m_aLock")
+    private void _reject ()
+    {
+      m_bRequestRejected = true;
+      _releaseSpool ();
+      // The error responses are small, so this does not block the container
+      // thread
+      _sendResponse ();
+    }
+
+    @GuardedBy ("m_aLock")
+    private void _startProcessing ()
+    {
+      if (m_bProcessingStarted)
+        return;
+      m_bProcessingStarted = true;
+      try
+      {
+        m_aExecutor.execute (this::_process);
+      }
+      catch (final RejectedExecutionException ex)
+      {
+        m_aAS4Response.setResponseError (HttpServletResponse.SC_SERVICE_UNAVAILABLE,
+                                         "AS4 request processing capacity exhausted",
+                                         ex);
+        _reject ();
+      }
+    }
+
+    /**
+     * Append the passed bytes to the request body. Up to
+     * {@link AS4AsyncServlet#MAX_IN_MEMORY_REQUEST_BYTES} are kept in memory,
+     * everything else is written to a spool file that is subject to the
+     * quotas of the spool manager.
+     */
+    @GuardedBy ("m_aLock")
+    private void _spool (@Nonnull final byte [] aBuf, final int nLen) throws IOException
+    {
+      if (m_aSpoolOS == null && m_nRequestBytes + nLen > MAX_IN_MEMORY_REQUEST_BYTES)
+      {
+        // Switch to the spool file
+        m_aSpoolResMgr = new AS4ResourceManager (AS4ServerSettings.getSpoolManager ());
+        m_aSpoolFile = m_aSpoolResMgr.createTempFile ();
+        m_aSpoolOS = m_aSpoolResMgr.getOutputStream (m_aSpoolFile);
+        for (final byte [] aChunk : m_aRequestChunks)
+          m_aSpoolOS.write (aChunk);
+        m_aRequestChunks.clear ();
+      }
+
+      if (m_aSpoolOS != null)
+        m_aSpoolOS.write (aBuf, 0, nLen);
+      else
+        m_aRequestChunks.add (Arrays.copyOf (aBuf, nLen));
+      m_nRequestBytes += nLen;
+    }
+
+    public void onDataAvailable () throws IOException
+    {
+      synchronized (m_aLock)
+      {
+        if (m_aDone.get () || m_bRequestRejected)
+          return;
+
+        final ServletInputStream aIS = m_aHttpRequest.getInputStream ();
+        // If not ready, onDataAvailable is invoked again as soon as there is
+        // data, and onAllDataRead after the last byte
+        while (aIS.isReady ())
+        {
+          final int nRead = aIS.read (m_aReadBuffer);
+          if (nRead < 0)
+            return;
+          if (nRead > 0)
+          {
+            // Chunked requests have no declared length
+            if (m_nMaxRequestBytes > 0 && m_nRequestBytes + nRead > m_nMaxRequestBytes)
+            {
+              AS4Servlet.rejectContentTooLarge (m_nMaxRequestBytes, m_aAS4Response);
+              _reject ();
+              return;
+            }
+
+            try
+            {
+              _spool (m_aReadBuffer, nRead);
+            }
+            catch (final IOException ex)
+            {
+              if (!AS4Servlet.rejectIfSpoolQuotaExceeded (ex, m_aAS4Response))
+                throw ex;
+              _reject ();
+              return;
+            }
+          }
+        }
+      }
+    }
+
+    public void onAllDataRead () throws IOException
+    {
+      synchronized (m_aLock)
+      {
+        if (m_aDone.get () || m_bRequestRejected)
+          return;
+
+        if (m_aSpoolOS != null)
+        {
+          m_aSpoolOS.close ();
+          m_aSpoolOS = null;
+        }
+        // Only now the processing thread is needed
+        _startProcessing ();
+      }
+    }
+
+    @GuardedBy ("m_aLock")
+    private void _releaseSpool ()
+    {
+      m_aRequestChunks.clear ();
+      StreamHelper.close (m_aSpoolOS);
+      m_aSpoolOS = null;
+      if (m_aSpoolResMgr != null)
+      {
+        // Deletes the spool file
+        m_aSpoolResMgr.close ();
+        m_aSpoolResMgr = null;
+      }
+    }
+
+    /**
+     * @return The complete request body as received. Never <code>null</code>.
+     */
+    @Nonnull
+    @GuardedBy ("m_aLock")
+    private InputStream _getRequestBody () throws IOException
+    {
+      if (m_aSpoolFile == null)
+      {
+        final ICommonsList <InputStream> aStreams = new CommonsArrayList <> ();
+        for (final byte [] aChunk : m_aRequestChunks)
+          aStreams.add (new ByteArrayInputStream (aChunk));
+        return new SequenceInputStream (Collections.enumeration (aStreams));
+      }
+
+      final InputStream aIS = FileHelper.getInputStream (m_aSpoolFile);
+      if (aIS == null)
+        throw new IOException ("Failed to open AS4 request spool file " + m_aSpoolFile.getAbsolutePath ());
+      return StreamHelper.getBuffered (aIS);
+    }
+
+    /**
+     * Send the response body to the container as long as this is possible
+     * without blocking. Completes the request after the last chunk was
+     * written.
+     */
+    @GuardedBy ("m_aLock")
+    private void _drainResponse () throws IOException
+    {
+      if (m_aDone.get () || !m_bWriteListenerSet)
+        return;
+
+      final ServletOutputStream aOS = m_aHttpResponse.getOutputStream ();
+      // If not ready, onWritePossible is invoked as soon as it is possible
+      while (aOS.isReady ())
+      {
+        final byte [] aChunk = m_aResponseChunks.poll ();
+        if (aChunk == null)
+        {
+          if (m_bResponseClosed)
+            _complete ();
+          return;
+        }
+        aOS.write (aChunk);
+      }
+    }
+
+    public void onWritePossible () throws IOException
+    {
+      synchronized (m_aLock)
+      {
+        _drainResponse ();
+      }
+    }
+
+    public void onError (@Nonnull final Throwable t)
+    {
+      // Error reading the request or writing the response
+      synchronized (m_aLock)
+      {
+        m_aIOError = t instanceof IOException ? (IOException) t : new IOException (t);
+        if (!m_bProcessingStarted || m_bResponseClosed)
+        {
+          // Nobody else is going to finish the request
+          s_aLogger.error ("I/O error in asynchronous AS4 request", t);
+          _complete ();
+        }
+        // Otherwise the processing thread fails with the error
+      }
+    }
+
+    @GuardedBy ("m_aLock")
+    private void _checkUsable () throws IOException
+    {
+      if (m_aIOError != null)
+        throw m_aIOError;
+      if (m_aDone.get ())
+        throw new IOException ("The asynchronous AS4 request is already finished");
+    }
+
+    private void _process ()
+    {
+      final InputStream aBodyIS;
+      synchronized (m_aLock)
+      {
+        if (m_aDone.get ())
+        {
+          s_aLogger.warn ("Not processing AS4 request because the asynchronous request is already finished");
+          _releaseSpool ();
+          return;
+        }
+        try
+        {
+          aBodyIS = _getRequestBody ();
+        }
+        catch (final IOException ex)
+        {
+          _releaseSpool ();
+          m_aAS4Response.setResponseError (HttpServletResponse.SC_INTERNAL_SERVER_ERROR,
+                                           "Internal error processing AS4 request",
+                                           ex);
+          _sendResponse ();
+          return;
+        }
+        WebScopeManager.onRequestBegin (ClassHelper.getClassLocalName (AS4AsyncServlet.class),
+                                        m_aHttpRequest,
+                                        m_aHttpResponse);
+      }
+      try
+      {
+        AS4Servlet.handleAS4Request (m_sContentType, aBodyIS, m_aAS4Response);
+      }
+      catch (final Throwable t)
+      {
+        m_aAS4Response.setResponseError (HttpServletResponse.SC_INTERNAL_SERVER_ERROR,
+                                         "Internal error processing AS4 request",
+                                         t);
+      }
+      finally
+      {
+        StreamHelper.close (aBodyIS);
+        synchronized (m_aLock)
+        {
+          _releaseSpool ();
+          WebScopeManager.onRequestEnd ();
+        }
+      }
+      _sendResponse ();
+    }
+
+    private void _sendResponse ()
+    {
+      synchronized (m_aLock)
+      {
+        if (m_aDone.get ())
+        {
+          // E.g. timeout
+          s_aLogger.warn ("Dropping AS4 response because the asynchronous request is already finished");
+          return;
+        }
+
+        try
+        {
+          // Status and headers go to the real response, the body is streamed
+          // via onWritePossible
+          m_aHttpResponse.getOutputStream ().setWriteListener (this);
+          m_bWriteListenerSet = true;
+          final ResponseBodyCapture aCapture = new ResponseBodyCapture (m_aHttpResponse,
+                                                                        new ResponseBodyOutputStream ());
+          m_aAS4Response.applyToResponse (aCapture);
+          aCapture.close ();
+        }
+        catch (final Throwable t)
+        {
+          s_aLogger.error ("Failed to send AS4 response", t);
+          _complete ();
+        }
+      }
+    }
+
+    @GuardedBy ("m_aLock")
+    private void _complete ()
+    {
+      m_aTicket.close ();
+      // While processing, the processing thread releases the spool
+      if (!m_bProcessingStarted)
+        _releaseSpool ();
+      if (m_aDone.compareAndSet (false, true))
+        m_aAsyncContext.complete ();
+    }
+
+    public void onComplete (@Nonnull final AsyncEvent aEvent)
+    {
+      synchronized (m_aLock)
+      {
+        m_aDone.set (true);
+        if (!m_bProcessingStarted)
+          _releaseSpool ();
+      }
+      m_aTicket.close ();
+    }
+
+    public void onTimeout (@Nonnull final AsyncEvent aEvent)
+    {
+      synchronized (m_aLock)
+      {
+        if (m_aDone.get ())
+          return;
+        s_aLogger.warn ("Asynchronous AS4 request timed out");
+        if (!m_aHttpResponse.isCommitted ())
+          m_aHttpResponse.setStatus (HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+        _complete ();
+      }
+    }
+
+    public void onError (@Nonnull final AsyncEvent aEvent)
+    {
+      s_aLogger.error ("Error in asynchronous AS4 request", aEvent.getThrowable ());
+      synchronized (m_aLock)
+      {
+        _complete ();
+      }
+    }
+
+    public void onStartAsync (@Nonnull final AsyncEvent aEvent)
+    {}
+
+    /**
+     * Response body stream for the processing thread. It never waits for the
+     * client: the chunks are queued and written to the container by
+     * {@link AsyncExchange#onWritePossible()}. The content of an
+     * {@link AS4Response} is held in memory anyway, so the queue does not
+     * raise the memory needed per request by more than this copy.
+     *
+     * @author Philip Helger
+     */
+    private final class ResponseBodyOutputStream extends ServletOutputStream
+    {
+      @Override
+      public void write (final int b) throws IOException
+      {
+        write (new byte [] { (byte) b }, 0, 1);
+      }
+
+      @Override
+      public void write (@Nonnull final byte [] aBuf, final int nOfs, final int nLen) throws IOException
+      {
+        if (nLen == 0)
+          return;
+        synchronized (m_aLock)
+        {
+          _checkUsable ();
+          if (m_bResponseClosed)
+            throw new IOException ("Response body stream is already closed");
+          m_aResponseChunks.add (Arrays.copyOfRange (aBuf, nOfs, nOfs + nLen));
+          _drainResponse ();
+        }
+      }
+
+      @Override
+      public void close () throws IOException
+      {
+        synchronized (m_aLock)
+        {
+          if (!m_bResponseClosed)
+          {
+            m_bResponseClosed = true;
+            _drainResponse ();
+          }
+        }
+      }
+
+      /**
+       * The stream queues all data, so it is always ready.
+       */
+      @Override
+      public boolean isReady ()
+      {
+        return true;
+      }
+
+      @Override
+      public void setWriteListener (@Nonnull final WriteListener aWriteListener)
+      {
+        try
+        {
+          aWriteListener.onWritePossible ();
+        }
+        catch (final Throwable t)
+        {
+          aWriteListener.onError (t);
+        }
+      }
+    }
+  }
+
+  /**
+   * Response wrapper that passes status and headers through but redirects
+   * the response body to the provided stream.
+   *
+   * @author Philip Helger
+   */
+  private static final class ResponseBodyCapture extends HttpServletResponseWrapper
+  {
+    private final ServletOutputStream m_aOS;
+    private PrintWriter m_aWriter;
+
+    ResponseBodyCapture (@Nonnull final HttpServletResponse aResponse, @Nonnull final ServletOutputStream aOS)
+    {
+      super (aResponse);
+      m_aOS = aOS;
+    }
+
+    @Override
+    @Nonnull
+    public ServletOutputStream getOutputStream ()
+    {
+      return m_aOS;
+    }
+
+    @Override
+    @Nonnull
+    public PrintWriter getWriter () throws IOException
+    {
+      if (m_aWriter == null)
+        m_aWriter = new PrintWriter (new OutputStreamWriter (m_aOS, getCharacterEncoding ()));
+      return m_aWriter;
+    }
+
+    @Override
+    public void flushBuffer () throws IOException
+    {
+      if (m_aWriter != null)
+        m_aWriter.flush ();
+      m_aOS.flush ();
+    }
+
+    void close () throws IOException
+    {
+      if (m_aWriter != null)
+        m_aWriter.close ();
+      else
+        m_aOS.close ();
+    }
+  }
+}
@@ -32,6 +32,7 @@ import com.helger.as4.model.pmode.config.IPModeConfig;
 import com.helger.as4.soap.ESOAPVersion;
 import com.helger.as4.util.AS4ResourceManager;
 import com.helger.as4lib.ebms3header.Ebms3Messaging;
+import com.helger.as4lib.ebms3header.Ebms3PullRequest;
 import com.helger.commons.ValueEnforcer;
 import com.helger.commons.collection.attr.MapBasedAttributeContainerAny;
 import com.helger.commons.collection.ext.ICommonsList;
@@ -50,7 +51,9 @@ public class AS4MessageState extends MapBasedAttributeContainerAny <String>
 {
   private static final String KEY_EBMS3_MESSAGING = "as4.ebms3.messaging";
   private static final String KEY_PMODE_CONFIG = "as4.pmode.config";
+  private static final String KEY_PMODE_CONFIG_PLAN = "as4.pmode.config.plan";
   private static final String KEY_MPC = "as4.mpc";
+  private static final String KEY_PULL_REQUEST = "as4.pull.request";
   private static final String KEY_ORIGINAL_ATTACHMENT_LIST = "as4.soap.attachmentlist";
   private static final String KEY_DECRYPTED_SOAP_DOCUMENT = "as4.soap.decrypted.document";
   private static final String KEY_DECRYPTED_ATTACHMENT_LIST = "as4.soap.decrypted.attachmentlist";
@@ -115,6 +118,7 @@ public class AS4MessageState extends MapBasedAttributeContainerAny <String>
   public void setPModeConfig (@Nullable final IPModeConfig aPModeConfig)
   {
     setAttribute (KEY_PMODE_CONFIG, aPModeConfig);
+    setAttribute (KEY_PMODE_CONFIG_PLAN, aPModeConfig == null ? null : AS4PModeConfigPlanCache.getPlan (aPModeConfig));
   }
 
   @Nullable
@@ -123,6 +127,16 @@ public class AS4MessageState extends MapBasedAttributeContainerAny <String>
     return getCastedAttribute (KEY_PMODE_CONFIG);
   }
 
+  /**
+   * @return The execution plan of the current PModeConfig. Only
+   *         <code>null</code> if no PModeConfig is set.
+   */
+  @Nullable
+  public AS4PModeConfigPlan getPModeConfigPlan ()
+  {
+    return getCastedAttribute (KEY_PMODE_CONFIG_PLAN);
+  }
+
   public void setOriginalAttachments (@Nullable final ICommonsList <WSS4JAttachment> aAttachments)
   {
     setAttribute (KEY_ORIGINAL_ATTACHMENT_LIST, aAttachments);
@@ -213,6 +227,27 @@ public class AS4MessageState extends MapBasedAttributeContainerAny <String>
     return getCastedAttribute (KEY_MPC);
   }
 
+  public void setPullRequest (@Nullable final Ebms3PullRequest aPullRequest)
+  {
+    setAttribute (KEY_PULL_REQUEST, aPullRequest);
+  }
+
+  /**
+   * @return The pull request signal contained in the message. If this is not
+   *         <code>null</code>, no user message is present and no P-Mode config
+   *         was resolved.
+   */
+  @Nullable
+  public Ebms3PullRequest getPullRequest ()
+  {
+    return getCastedAttribute (KEY_PULL_REQUEST);
+  }
+
+  public boolean isPullRequest ()
+  {
+    return containsAttribute (KEY_PULL_REQUEST);
+  }
+
   public void setSoapBodyPayloadPresent (final boolean bHasSoapBodyPayload)
   {
     setAttribute (KEY_SOAP_BODY_PAYLOAD_PRESENT, bHasSoapBodyPayload);
@@ -0,0 +1,409 @@
+/**
+ * Copyright (C) 2015-2017 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.as4.servlet;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import com.helger.as4.CAS4;
+import com.helger.as4.crypto.ECryptoAlgorithmCrypt;
+import com.helger.as4.crypto.ECryptoAlgorithmSign;
+import com.helger.as4.crypto.ECryptoAlgorithmSignDigest;
+import com.helger.as4.messaging.domain.EAS4MessageType;
+import com.helger.as4.mgr.MetaAS4Manager;
+import com.helger.as4.model.MEPHelper;
+import com.helger.as4.model.pmode.EPModeSendReceiptReplyPattern;
+import com.helger.as4.model.pmode.config.IPModeConfig;
+import com.helger.as4.model.pmode.leg.PModeLeg;
+import com.helger.as4.model.pmode.leg.PModeLegBusinessInformation;
+import com.helger.as4.model.pmode.leg.PModeLegErrorHandling;
+import com.helger.as4.model.pmode.leg.PModeLegSecurity;
+import com.helger.as4.profile.IAS4Profile;
+import com.helger.as4.soap.ESOAPVersion;
+import com.helger.commons.ValueEnforcer;
+import com.helger.commons.error.IError;
+import com.helger.commons.error.list.ErrorList;
+import com.helger.commons.string.StringHelper;
+import com.helger.commons.string.ToStringGenerator;
+
+/**
+ * The execution plan of a single {@link IPModeConfig} for the inbound
+ * pipeline. All decisions that only depend on the PModeConfig (and the
+ * configured profile) are made once upon creation, so that the servlet and the
+ * SOAP header processors don't need to re-evaluate the PModeConfig for every
+ * message. Instances are created and cached by
+ * {@link AS4PModeConfigPlanCache}.<br>
+ * The plan itself is not modified after construction, but it references the
+ * live (mutable) PModeConfig and its legs. Changes made via the PModeConfig
+ * manager are picked up by the cache via the modification count.
+ *
+ * @author Philip Helger
+ */
+public final class AS4PModeConfigPlan
+{
+  /**
+   * Response signing settings of a single leg.
+   */
+  public static final class LegPlan
+  {
+    private final PModeLeg m_aLeg;
+    private final boolean m_bSecured;
+    private final ECryptoAlgorithmSign m_eSignAlgorithm;
+    private final ECryptoAlgorithmSignDigest m_eSignDigestAlgorithm;
+    private final ECryptoAlgorithmCrypt m_eCryptAlgorithm;
+    private final ESOAPVersion m_eSOAPVersion;
+
+    LegPlan (@Nullable final PModeLeg aLeg)
+    {
+      m_aLeg = aLeg;
+      final PModeLegSecurity aSecurity = aLeg == null ? null : aLeg.getSecurity ();
+      m_bSecured = aSecurity != null;
+      m_eSignAlgorithm = aSecurity == null ? null : aSecurity.getX509SignatureAlgorithm ();
+      m_eSignDigestAlgorithm = aSecurity == null ? null : aSecurity.getX509SignatureHashFunction ();
+      m_eCryptAlgorithm = aSecurity == null ? null : aSecurity.getX509EncryptionAlgorithm ();
+      m_eSOAPVersion = aLeg == null || aLeg.getProtocol () == null ? null : aLeg.getProtocol ().getSOAPVersion ();
+    }
+
+    /**
+     * @return The underlying leg. May be <code>null</code>.
+     */
+    @Nullable
+    public PModeLeg getLeg ()
+    {
+      return m_aLeg;
+    }
+
+    /**
+     * @return <code>true</code> if the leg contains security settings. In this
+     *         case signatures are verified and content is decrypted.
+     */
+    public boolean isSecured ()
+    {
+      return m_bSecured;
+    }
+
+    /**
+     * @return <code>true</code> if responses on this leg must be signed.
+     */
+    public boolean isSignResponse ()
+    {
+      return m_eSignAlgorithm != null && m_eSignDigestAlgorithm != null;
+    }
+
+    @Nullable
+    public ECryptoAlgorithmSign getSignAlgorithm ()
+    {
+      return m_eSignAlgorithm;
+    }
+
+    @Nullable
+    public ECryptoAlgorithmSignDigest getSignDigestAlgorithm ()
+    {
+      return m_eSignDigestAlgorithm;
+    }
+
+    /**
+     * @return <code>true</code> if response attachments on this leg must be
+     *         encrypted.
+     */
+    public boolean isEncryptResponse ()
+    {
+      return m_eCryptAlgorithm != null;
+    }
+
+    @Nullable
+    public ECryptoAlgorithmCrypt getCryptAlgorithm ()
+    {
+      return m_eCryptAlgorithm;
+    }
+
+    /**
+     * @param eFallback
+     *        The SOAP version to use if the leg has no protocol. May not be
+     *        <code>null</code>.
+     * @return The SOAP version of this leg. Never <code>null</code>.
+     */
+    @Nonnull
+    public ESOAPVersion getSOAPVersion (@Nonnull final ESOAPVersion eFallback)
+    {
+      return m_eSOAPVersion != null ? m_eSOAPVersion : eFallback;
+    }
+
+    @Override
+    public String toString ()
+    {
+      return new ToStringGenerator (this).append ("Secured", m_bSecured)
+                                         .appendIfNotNull ("SignAlgorithm", m_eSignAlgorithm)
+                                         .appendIfNotNull ("SignDigestAlgorithm", m_eSignDigestAlgorithm)
+                                         .appendIfNotNull ("CryptAlgorithm", m_eCryptAlgorithm)
+                                         .appendIfNotNull ("SOAPVersion", m_eSOAPVersion)
+                                         .getToString ();
+    }
+  }
+
+  private final IPModeConfig m_aPModeConfig;
+  private final int m_nModificationCount;
+  private final String m_sProfileName;
+  private final IAS4Profile m_aProfile;
+  private final ErrorList m_aPModeConfigErrors = new ErrorList ();
+  private final LegPlan m_aLeg1;
+  private final LegPlan m_aLeg2;
+  private final boolean m_bPing;
+  private final boolean m_bAsyncSPIInvocation;
+  private final boolean m_bOneWay;
+  private final boolean m_bSendErrorAsResponse;
+  private final boolean m_bSendReceiptAsResponse;
+  private final boolean m_bSendNonRepudiationInformation;
+  private final boolean m_bUserMessageResponseOnLeg2;
+
+  /**
+   * Constructor
+   *
+   * @param aPModeConfig
+   *        The PModeConfig to compile. May not be <code>null</code>.
+   * @param nModificationCount
+   *        The modification count of the PModeConfig manager at the time of
+   *        compilation.
+   * @param sProfileName
+   *        The name of the profile to validate against. May be
+   *        <code>null</code>.
+   */
+  AS4PModeConfigPlan (@Nonnull final IPModeConfig aPModeConfig,
+                      final int nModificationCount,
+                      @Nullable final String sProfileName)
+  {
+    ValueEnforcer.notNull (aPModeConfig, "PModeConfig");
+    m_aPModeConfig = aPModeConfig;
+    m_nModificationCount = nModificationCount;
+    m_sProfileName = sProfileName;
+
+    // Only do profile checks if a profile is set
+    if (StringHelper.hasText (sProfileName))
+    {
+      m_aProfile = MetaAS4Manager.getProfileMgr ().getProfileOfID (sProfileName);
+      if (m_aProfile != null)
+        m_aProfile.getValidator ().validatePModeConfig (aPModeConfig, m_aPModeConfigErrors);
+    }
+    else
+      m_aProfile = null;
+
+    final PModeLeg aLeg1 = aPModeConfig.getLeg1 ();
+    m_aLeg1 = new LegPlan (aLeg1);
+    m_aLeg2 = new LegPlan (aPModeConfig.getLeg2 ());
+
+    // EBMS core specification 4.2 default values are used for "ping"
+    final PModeLegBusinessInformation aBInfo = aLeg1 == null ? null : aLeg1.getBusinessInfo ();
+    m_bPing = aBInfo != null &&
+              CAS4.DEFAULT_ACTION_URL.equals (aBInfo.getAction ()) &&
+              CAS4.DEFAULT_SERVICE_URL.equals (aBInfo.getService ());
+
+    m_bOneWay = aPModeConfig.getMEP ().isOneWay ();
+    m_bAsyncSPIInvocation = aPModeConfig.isAsyncSPIInvocation () && m_bOneWay;
+
+    // Default is true. Note: this is enabled in Default PMode
+    final PModeLegErrorHandling aErrorHandling = aLeg1 == null ? null : aLeg1.getErrorHandling ();
+    m_bSendErrorAsResponse = aErrorHandling == null ||
+                             !aErrorHandling.isReportAsResponseDefined () ||
+                             aErrorHandling.isReportAsResponse ();
+
+    // Default is true if no security is present
+    final PModeLegSecurity aSecurity1 = aLeg1 == null ? null : aLeg1.getSecurity ();
+    m_bSendReceiptAsResponse = aSecurity1 == null ||
+                               EPModeSendReceiptReplyPattern.RESPONSE.equals (aSecurity1.getSendReceiptReplyPattern ());
+
+    // Default is false
+    m_bSendNonRepudiationInformation = aSecurity1 != null &&
+                                       aSecurity1.isSendReceiptNonRepudiationDefined () &&
+                                       aSecurity1.isSendReceiptNonRepudiation ();
+
+    // Except for two way push push, every response as user message is always
+    // on leg 2
+    m_bUserMessageResponseOnLeg2 = m_aLeg2.getLeg () != null &&
+                                   MEPHelper.isValidResponseType (aPModeConfig.getMEP (),
+                                                                  aPModeConfig.getMEPBinding (),
+                                                                  EAS4MessageType.USER_MESSAGE,
+                                                                  false);
+  }
+
+  /**
+   * @return The PModeConfig this plan was compiled from. Never
+   *         <code>null</code>.
+   */
+  @Nonnull
+  public IPModeConfig getPModeConfig ()
+  {
+    return m_aPModeConfig;
+  }
+
+  /**
+   * @return The modification count of the PModeConfig manager at the time of
+   *         compilation.
+   */
+  public int getModificationCount ()
+  {
+    return m_nModificationCount;
+  }
+
+  /**
+   * @return The name of the profile this plan was compiled for. May be
+   *         <code>null</code>.
+   */
+  @Nullable
+  public String getProfileName ()
+  {
+    return m_sProfileName;
+  }
+
+  /**
+   * @return <code>true</code> if a profile name is configured, so profile
+   *         validation is required.
+   */
+  public boolean isProfileValidation ()
+  {
+    return StringHelper.hasText (m_sProfileName);
+  }
+
+  /**
+   * @return The resolved profile. May be <code>null</code> if no profile is
+   *         configured or if the configured profile does not exist.
+   */
+  @Nullable
+  public IAS4Profile getProfile ()
+  {
+    return m_aProfile;
+  }
+
+  /**
+   * Copy all errors of the PModeConfig validation against the profile to the
+   * passed error list.
+   *
+   * @param aErrorList
+   *        The error list to add to. May not be <code>null</code>.
+   */
+  public void addPModeConfigErrorsTo (@Nonnull final ErrorList aErrorList)
+  {
+    for (final IError aError : m_aPModeConfigErrors)
+      aErrorList.add (aError);
+  }
+
+  /**
+   * @return The plan for leg 1. Never <code>null</code>.
+   */
+  @Nonnull
+  public LegPlan getLeg1 ()
+  {
+    return m_aLeg1;
+  }
+
+  /**
+   * @return The plan for leg 2. Never <code>null</code>.
+   */
+  @Nonnull
+  public LegPlan getLeg2 ()
+  {
+    return m_aLeg2;
+  }
+
+  /**
+   * @param bHasRefToMessageID
+   *        <code>true</code> if the incoming user message references a
+   *        previous message.
+   * @return The plan of the leg to be used for an incoming message. Never
+   *         <code>null</code>.
+   */
+  @Nonnull
+  public LegPlan getIncomingLeg (final boolean bHasRefToMessageID)
+  {
+    return bHasRefToMessageID ? m_aLeg2 : m_aLeg1;
+  }
+
+  /**
+   * @return <code>true</code> if the PModeConfig uses the EBMS default service
+   *         and action, meaning that no SPI processing happens.
+   */
+  public boolean isPing ()
+  {
+    return m_bPing;
+  }
+
+  /**
+   * @return <code>true</code> if the SPIs should be invoked asynchronously
+   *         after the receipt was sent.
+   */
+  public boolean isAsyncSPIInvocation ()
+  {
+    return m_bAsyncSPIInvocation;
+  }
+
+  public boolean isOneWay ()
+  {
+    return m_bOneWay;
+  }
+
+  /**
+   * @return <code>true</code> if errors should be sent back as the response.
+   */
+  public boolean isSendErrorAsResponse ()
+  {
+    return m_bSendErrorAsResponse;
+  }
+
+  /**
+   * @return <code>true</code> if the receipt should be sent back as the
+   *         response.
+   */
+  public boolean isSendReceiptAsResponse ()
+  {
+    return m_bSendReceiptAsResponse;
+  }
+
+  /**
+   * @return <code>true</code> if the receipt should contain non-repudiation
+   *         information.
+   */
+  public boolean isSendNonRepudiationInformation ()
+  {
+    return m_bSendNonRepudiationInformation;
+  }
+
+  /**
+   * @return <code>true</code> if a two-way response user message should be
+   *         sent on leg 2.
+   */
+  public boolean isUserMessageResponseOnLeg2 ()
+  {
+    return m_bUserMessageResponseOnLeg2;
+  }
+
+  @Override
+  public String toString ()
+  {
+    return new ToStringGenerator (this).append ("PModeConfigID", m_aPModeConfig.getID ())
+                                       .append ("ModificationCount", m_nModificationCount)
+                                       .appendIfNotNull ("ProfileName", m_sProfileName)
+                                       .append ("Leg1", m_aLeg1)
+                                       .append ("Leg2", m_aLeg2)
+                                       .append ("Ping", m_bPing)
+                                       .append ("AsyncSPIInvocation", m_bAsyncSPIInvocation)
+                                       .append ("OneWay", m_bOneWay)
+                                       .append ("SendErrorAsResponse", m_bSendErrorAsResponse)
+                                       .append ("SendReceiptAsResponse", m_bSendReceiptAsResponse)
+                                       .append ("SendNonRepudiationInformation", m_bSendNonRepudiationInformation)
+                                       .append ("UserMessageResponseOnLeg2", m_bUserMessageResponseOnLeg2)
+                                       .getToString ();
+  }
+}
@@ -0,0 +1,82 @@
+/**
+ * Copyright (C) 2015-2017 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.as4.servlet;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.ThreadSafe;
+
+import com.helger.as4.mgr.MetaAS4Manager;
+import com.helger.as4.model.pmode.config.IPModeConfig;
+import com.helger.as4.servlet.mgr.AS4ServerConfiguration;
+import com.helger.commons.ValueEnforcer;
+import com.helger.commons.equals.EqualsHelper;
+
+/**
+ * Cache for {@link AS4PModeConfigPlan} objects, indexed by PModeConfig ID. A
+ * plan is recompiled if the PModeConfig manager was modified, if another
+ * PModeConfig object with the same ID is passed (e.g. a profile default
+ * PModeConfig) or if the configured profile changed.
+ *
+ * @author Philip Helger
+ */
+@ThreadSafe
+public final class AS4PModeConfigPlanCache
+{
+  private static final Map <String, AS4PModeConfigPlan> s_aMap = new ConcurrentHashMap <> ();
+
+  private AS4PModeConfigPlanCache ()
+  {}
+
+  /**
+   * Get the execution plan of the passed PModeConfig, compiling it if
+   * necessary.
+   *
+   * @param aPModeConfig
+   *        The PModeConfig to get the plan of. May not be <code>null</code>.
+   * @return The plan and never <code>null</code>.
+   */
+  @Nonnull
+  public static AS4PModeConfigPlan getPlan (@Nonnull final IPModeConfig aPModeConfig)
+  {
+    ValueEnforcer.notNull (aPModeConfig, "PModeConfig");
+
+    final int nModificationCount = MetaAS4Manager.getPModeConfigMgr ().getModificationCount ();
+    final String sProfileName = AS4ServerConfiguration.getAS4ProfileName ();
+    final AS4PModeConfigPlan aPlan = s_aMap.get (aPModeConfig.getID ());
+    if (aPlan != null &&
+        aPlan.getPModeConfig () == aPModeConfig &&
+        aPlan.getModificationCount () == nModificationCount &&
+        EqualsHelper.equals (aPlan.getProfileName (), sProfileName))
+      return aPlan;
+
+    // Concurrent compilations of the same PModeConfig are harmless
+    final AS4PModeConfigPlan aNewPlan = new AS4PModeConfigPlan (aPModeConfig, nModificationCount, sProfileName);
+    s_aMap.put (aPModeConfig.getID (), aNewPlan);
+    return aNewPlan;
+  }
+
+  /**
+   * Remove all cached plans.
+   */
+  public static void clearCache ()
+  {
+    s_aMap.clear ();
+  }
+}
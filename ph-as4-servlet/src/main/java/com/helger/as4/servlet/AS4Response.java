@@ -22,11 +22,15 @@ import javax.annotation.Nonnegative;
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 import javax.servlet.http.HttpServletRequest;
+import javax.xml.transform.TransformerException;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.w3c.dom.Node;
 
+import com.helger.as4.util.AS4XMLHelper;
 import com.helger.commons.mime.CMimeType;
+import com.helger.commons.mime.IMimeType;
 import com.helger.http.EHTTPMethod;
 import com.helger.http.EHTTPVersion;
 import com.helger.servlet.response.UnifiedResponse;
@@ -55,8 +59,46 @@ public class AS4Response extends UnifiedResponse
                                 @Nullable final Throwable t)
   {
     s_aLogger.error ("HTTP " + nStatusCode + ": " + sMsg, t);
+    setResponseRejected (nStatusCode, sMsg);
+  }
+
+  /**
+   * Set an error response without logging. Used for rejected requests, which
+   * are logged in a rate limited way by the caller.
+   *
+   * @param nStatusCode
+   *        The HTTP status code to use.
+   * @param sMsg
+   *        The plain text response body. May not be <code>null</code>.
+   */
+  public void setResponseRejected (@Nonnegative final int nStatusCode, @Nonnull final String sMsg)
+  {
     setContentAndCharset (sMsg, StandardCharsets.UTF_8);
     setMimeType (CMimeType.TEXT_PLAIN);
     setStatus (nStatusCode);
   }
+
+  /**
+   * Set the passed XML node as UTF-8 encoded response content. The node is
+   * serialized directly into a byte buffer without an intermediate String.
+   * The buffer cannot be avoided here, because the response content must be
+   * present before it is applied to the HTTP response.
+   *
+   * @param aNode
+   *        The node to be serialized. May not be <code>null</code>.
+   * @param aMimeType
+   *        The MIME type to use. May not be <code>null</code>.
+   * @return this for chaining
+   * @throws TransformerException
+   *         In case serialization fails
+   */
+  @Nonnull
+  public AS4Response setXMLContent (@Nonnull final Node aNode,
+                                    @Nonnull final IMimeType aMimeType) throws TransformerException
+  {
+    setContent (AS4XMLHelper.serializeXMLToBytes (aNode));
+    setCharset (StandardCharsets.UTF_8);
+    setMimeType (aMimeType);
+    return this;
+  }
 }
@@ -26,15 +26,18 @@ import org.apache.wss4j.common.crypto.CryptoType;
 import org.apache.wss4j.common.crypto.CryptoType.TYPE;
 import org.apache.wss4j.common.ext.WSSecurityException;
 
+import com.helger.as4.marshaller.AS4Marshaller;
 import com.helger.as4.mgr.MetaAS4Manager;
 import com.helger.as4.partner.Partner;
 import com.helger.as4.partner.PartnerManager;
+import com.helger.as4.servlet.inbox.AS4Inbox;
 import com.helger.as4.servlet.mgr.AS4DuplicateCleanupJob;
 import com.helger.as4.servlet.mgr.AS4ServerConfiguration;
 import com.helger.as4.servlet.mgr.AS4ServerSettings;
 import com.helger.as4.servlet.soap.SOAPHeaderElementProcessorExtractEbms3Messaging;
 import com.helger.as4.servlet.soap.SOAPHeaderElementProcessorRegistry;
 import com.helger.as4.servlet.soap.SOAPHeaderElementProcessorWSS4J;
+import com.helger.as4.util.AS4SystemPrincipal;
 import com.helger.as4.util.StringMap;
 import com.helger.commons.collection.ArrayHelper;
 import com.helger.security.certificate.CertificateHelper;
@@ -75,7 +78,9 @@ public final class AS4ServerInitializer
 
   /**
    * Call this method in your AS4 server to initialize everything that is
-   * necessary to use the {@link AS4Servlet}.
+   * necessary to use the {@link AS4Servlet}. If an auditor is used (e.g. via
+   * the photon security manager) it must be installed before this method is
+   * invoked.
    */
   public static void initAS4Server ()
   {
@@ -90,9 +95,21 @@ public final class AS4ServerInitializer
                                                     "Security"),
                                          new SOAPHeaderElementProcessorWSS4J ());
 
+    // Our own documents are created from valid JAXB objects
+    AS4Marshaller.setValidateOutbound (AS4ServerConfiguration.isValidateOutbound ());
+
+    // Audit events of the AS4 processing are attributed to the system user
+    AS4SystemPrincipal.installAuditorUserIDProvider ();
+
     // Ensure all managers are initialized
     MetaAS4Manager.getInstance ();
-    _createDefaultResponder (AS4ServerSettings.getDefaultResponderID ());
+    try (final AS4SystemPrincipal aPrincipal = AS4SystemPrincipal.activate ())
+    {
+      _createDefaultResponder (AS4ServerSettings.getDefaultResponderID ());
+    }
+
+    // Recover and deliver pending inbox entries
+    AS4Inbox.getInstance ();
 
     // Schedule jobs
     AS4DuplicateCleanupJob.scheduleMe (AS4ServerConfiguration.getIncomingDuplicateDisposalMinutes ());
@@ -16,6 +16,7 @@
  */
 package com.helger.as4.servlet;
 
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.nio.charset.StandardCharsets;
@@ -25,14 +26,14 @@ import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Set;
-import java.util.function.Predicate;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 import javax.mail.Header;
 import javax.mail.MessagingException;
-import javax.mail.internet.MimeBodyPart;
+import javax.mail.internet.InternetHeaders;
 import javax.mail.internet.MimeMessage;
+import javax.mail.internet.MimeUtility;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import javax.xml.namespace.QName;
@@ -59,29 +60,28 @@ import com.helger.as4.messaging.domain.AS4UserMessage;
 import com.helger.as4.messaging.domain.CreateErrorMessage;
 import com.helger.as4.messaging.domain.CreateReceiptMessage;
 import com.helger.as4.messaging.domain.CreateUserMessage;
-import com.helger.as4.messaging.domain.EAS4MessageType;
 import com.helger.as4.messaging.domain.MessageHelperMethods;
 import com.helger.as4.messaging.encrypt.EncryptionCreator;
 import com.helger.as4.messaging.mime.MimeMessageCreator;
 import com.helger.as4.messaging.sign.SignedMessageCreator;
 import com.helger.as4.mgr.MetaAS4Manager;
-import com.helger.as4.model.MEPHelper;
-import com.helger.as4.model.pmode.EPModeSendReceiptReplyPattern;
-import com.helger.as4.model.pmode.IPMode;
+import com.helger.as4.model.mpc.IMPC;
+import com.helger.as4.model.mpc.MPCQueueEntry;
+import com.helger.as4.model.mpc.MPCQueueManager;
 import com.helger.as4.model.pmode.PMode;
 import com.helger.as4.model.pmode.PModeManager;
 import com.helger.as4.model.pmode.PModeParty;
 import com.helger.as4.model.pmode.config.IPModeConfig;
 import com.helger.as4.model.pmode.config.PModeConfigManager;
-import com.helger.as4.model.pmode.leg.PModeLeg;
-import com.helger.as4.model.pmode.leg.PModeLegBusinessInformation;
-import com.helger.as4.model.pmode.leg.PModeLegSecurity;
 import com.helger.as4.partner.Partner;
 import com.helger.as4.partner.PartnerManager;
 import com.helger.as4.profile.IAS4Profile;
+import com.helger.as4.servlet.inbox.AS4Inbox;
+import com.helger.as4.servlet.mgr.AS4AdmissionController;
 import com.helger.as4.servlet.mgr.AS4ServerConfiguration;
 import com.helger.as4.servlet.mgr.AS4ServerSettings;
 import com.helger.as4.servlet.mgr.AS4ServletMessageProcessorManager;
+import com.helger.as4.servlet.mgr.EAS4RejectReason;
 import com.helger.as4.servlet.soap.AS4SingleSOAPHeader;
 import com.helger.as4.servlet.soap.ISOAPHeaderElementProcessor;
 import com.helger.as4.servlet.soap.SOAPHeaderElementProcessorRegistry;
@@ -89,6 +89,8 @@ import com.helger.as4.servlet.spi.AS4MessageProcessorResult;
 import com.helger.as4.servlet.spi.IAS4ServletMessageProcessorSPI;
 import com.helger.as4.soap.ESOAPVersion;
 import com.helger.as4.util.AS4ResourceManager;
+import com.helger.as4.util.AS4SpoolQuotaExceededException;
+import com.helger.as4.util.AS4SystemPrincipal;
 import com.helger.as4.util.AS4XMLHelper;
 import com.helger.as4.util.StringMap;
 import com.helger.as4lib.ebms3header.Ebms3CollaborationInfo;
@@ -103,30 +105,32 @@ import com.helger.as4lib.ebms3header.Ebms3PartyInfo;
 import com.helger.as4lib.ebms3header.Ebms3PayloadInfo;
 import com.helger.as4lib.ebms3header.Ebms3Property;
 import com.helger.as4lib.ebms3header.Ebms3PullRequest;
+import com.helger.as4lib.ebms3header.Ebms3SignalMessage;
 import com.helger.as4lib.ebms3header.Ebms3To;
 import com.helger.as4lib.ebms3header.Ebms3UserMessage;
 import com.helger.commons.ValueEnforcer;
 import com.helger.commons.collection.ArrayHelper;
 import com.helger.commons.collection.CollectionHelper;
 import com.helger.commons.collection.ext.CommonsArrayList;
+import com.helger.commons.collection.ext.CommonsHashMap;
 import com.helger.commons.collection.ext.ICommonsList;
-import com.helger.commons.equals.EqualsHelper;
+import com.helger.commons.collection.ext.ICommonsMap;
 import com.helger.commons.error.IError;
 import com.helger.commons.error.list.ErrorList;
+import com.helger.commons.io.stream.NonBlockingByteArrayInputStream;
 import com.helger.commons.mime.EMimeContentType;
 import com.helger.commons.mime.IMimeType;
 import com.helger.commons.mime.MimeType;
 import com.helger.commons.mime.MimeTypeParser;
 import com.helger.commons.string.StringHelper;
+import com.helger.http.CHTTPHeader;
 import com.helger.http.EHTTPMethod;
 import com.helger.http.EHTTPVersion;
 import com.helger.http.HTTPStringHelper;
 import com.helger.photon.core.servlet.AbstractUnifiedResponseServlet;
-import com.helger.photon.security.CSecurity;
-import com.helger.photon.security.login.ELoginResult;
-import com.helger.photon.security.login.LoggedInUserManager;
 import com.helger.security.certificate.CertificateHelper;
 import com.helger.servlet.response.UnifiedResponse;
+import com.helger.web.multipart.MultipartMalformedStreamException;
 import com.helger.web.multipart.MultipartProgressNotifier;
 import com.helger.web.multipart.MultipartStream;
 import com.helger.web.multipart.MultipartStream.MultipartItemInputStream;
@@ -170,8 +174,9 @@ public final class AS4Servlet extends AbstractUnifiedResponseServlet
 
   private static void _decompressAttachments (@Nonnull final Ebms3UserMessage aUserMessage,
                                               @Nonnull final AS4MessageState aState,
-                                              @Nonnull final ICommonsList <WSS4JAttachment> aIncomingDecryptedAttachments)
+                                              @Nonnull final ICommonsList <WSS4JAttachment> aIncomingDecryptedAttachments) throws IOException
   {
+    final int nInMemoryThreshold = AS4ServerSettings.getAttachmentInMemoryThreshold (aState.getPModeConfig ());
     for (final WSS4JAttachment aIncomingAttachment : aIncomingDecryptedAttachments.getClone ())
     {
       final EAS4CompressionMode eCompressionMode = aState.getAttachmentCompressionMode (aIncomingAttachment.getId ());
@@ -179,6 +184,8 @@ public final class AS4Servlet extends AbstractUnifiedResponseServlet
       {
         final IHasAttachmentSourceStream aOldISP = aIncomingAttachment.getInputStreamProvider ();
         aIncomingAttachment.setSourceStreamProvider ( () -> eCompressionMode.getDecompressStream (aOldISP.getInputStream ()));
+        // Decompress only once, independent of the number of readers
+        aIncomingAttachment.bufferSourceStream (nInMemoryThreshold);
 
         final String sAttachmentContentID = StringHelper.trimStart (aIncomingAttachment.getId (), "attachment=");
         final Ebms3PartInfo aPart = CollectionHelper.findFirst (aUserMessage.getPayloadInfo ().getPartInfo (),
@@ -197,7 +204,7 @@ public final class AS4Servlet extends AbstractUnifiedResponseServlet
     }
   }
 
-  private void _processSOAPHeaderElements (@Nonnull final Document aSOAPDocument,
+  private static void _processSOAPHeaderElements (@Nonnull final Document aSOAPDocument,
                                            @Nonnull final ESOAPVersion eSOAPVersion,
                                            @Nonnull final ICommonsList <WSS4JAttachment> aIncomingAttachments,
                                            @Nonnull final Locale aDisplayLocale,
@@ -205,6 +212,8 @@ public final class AS4Servlet extends AbstractUnifiedResponseServlet
                                            @Nonnull final ICommonsList <Ebms3Error> aErrorMessages) throws BadRequestException
   {
     final ICommonsList <AS4SingleSOAPHeader> aHeaders = new CommonsArrayList <> ();
+    // Index by QName - first occurrence wins
+    final ICommonsMap <QName, AS4SingleSOAPHeader> aHeadersByQName = new CommonsHashMap <> ();
     {
       // Find SOAP header
       final Node aHeaderNode = XMLHelper.getFirstChildElementOfName (aSOAPDocument.getDocumentElement (),
@@ -219,19 +228,21 @@ public final class AS4Servlet extends AbstractUnifiedResponseServlet
         final QName aQName = XMLHelper.getQName (aHeaderChild);
         final String sMustUnderstand = aHeaderChild.getAttributeNS (eSOAPVersion.getNamespaceURI (), "mustUnderstand");
         final boolean bIsMustUnderstand = eSOAPVersion.getMustUnderstandValue (true).equals (sMustUnderstand);
-        aHeaders.add (new AS4SingleSOAPHeader (aHeaderChild, aQName, bIsMustUnderstand));
+        final AS4SingleSOAPHeader aHeader = new AS4SingleSOAPHeader (aHeaderChild, aQName, bIsMustUnderstand);
+        aHeaders.add (aHeader);
+        aHeadersByQName.putIfAbsent (aQName, aHeader);
       }
     }
 
     // handle all headers in the order of the registered handlers!
     for (final Map.Entry <QName, ISOAPHeaderElementProcessor> aEntry : SOAPHeaderElementProcessorRegistry.getInstance ()
-                                                                                                         .getAllElementProcessors ()
+                                                                                                         .getElementProcessorSnapshot ()
                                                                                                          .entrySet ())
     {
       final QName aQName = aEntry.getKey ();
 
       // Check if this message contains a header for the current handler
-      final AS4SingleSOAPHeader aHeader = aHeaders.findFirst (x -> aQName.equals (x.getQName ()));
+      final AS4SingleSOAPHeader aHeader = aHeadersByQName.get (aQName);
       if (aHeader == null)
       {
         // no header element for current processor
@@ -310,7 +321,7 @@ public final class AS4Servlet extends AbstractUnifiedResponseServlet
     }
   }
 
-  private void _handleSOAPMessage (@Nonnull final AS4ResourceManager aResMgr,
+  private static void _handleSOAPMessage (@Nonnull final AS4ResourceManager aResMgr,
                                    @Nonnull final Document aSOAPDocument,
                                    @Nonnull final ESOAPVersion eSOAPVersion,
                                    @Nonnull final ICommonsList <WSS4JAttachment> aIncomingAttachments,
@@ -318,7 +329,8 @@ public final class AS4Servlet extends AbstractUnifiedResponseServlet
                                    @Nonnull final Locale aLocale) throws TransformerFactoryConfigurationError,
                                                                   TransformerException,
                                                                   WSSecurityException,
-                                                                  MessagingException
+                                                                  MessagingException,
+                                                                  IOException
   {
     ValueEnforcer.notNull (aSOAPDocument, "SOAPDocument");
     ValueEnforcer.notNull (eSOAPVersion, "SOAPVersion");
@@ -343,6 +355,10 @@ public final class AS4Servlet extends AbstractUnifiedResponseServlet
     // Handle all headers
     _processSOAPHeaderElements (aSOAPDocument, eSOAPVersion, aIncomingAttachments, aLocale, aState, aErrorMessages);
 
+    // The execution plan of the PModeConfig determined while processing the
+    // headers
+    final AS4PModeConfigPlan aPlan = aState.getPModeConfigPlan ();
+
     Ebms3UserMessage aUserMessage = null;
     Ebms3PullRequest aPullRequest = null;
     Node aPayloadNode = null;
@@ -360,10 +376,24 @@ public final class AS4Servlet extends AbstractUnifiedResponseServlet
                                                                                  .getPullRequest ()
                                                                          : null;
       if (aUserMessage == null && aPullRequest == null)
-        throw new BadRequestException ("UserMessage or PullRequest must be present!");
+      {
+        if (!_containsReceipt (aState))
+          throw new BadRequestException ("UserMessage, PullRequest or Receipt must be present!");
+
+        // Standalone receipts have no PMode and acknowledge pulled messages
+        _handleReceipts (aState, aAS4Response);
+        return;
+      }
       if (aUserMessage != null && aPullRequest != null)
         throw new BadRequestException ("Only UserMessage or PullRequest may be present!");
 
+      if (aPullRequest != null)
+      {
+        // Pull requests have no PMode and are answered from the MPC queue
+        _handlePullRequest (aState, eSOAPVersion, aAS4Response, aLocale);
+        return;
+      }
+
       // Ensure the decrypted attachments are used
       aDecryptedAttachments = aState.hasDecryptedAttachments () ? aState.getDecryptedAttachments ()
                                                                 : aState.getOriginalAttachments ();
@@ -440,7 +470,7 @@ public final class AS4Servlet extends AbstractUnifiedResponseServlet
         }
       }
 
-      if (_isNotPingMessage (aState.getPModeConfig ()))
+      if (!aPlan.isPing ())
       {
         final String sMessageID = aUserMessage.getMessageInfo ().getMessageId ();
         final boolean bIsDuplicate = MetaAS4Manager.getIncomingDuplicateMgr ().registerAndCheck (sMessageID).isBreak ();
@@ -453,84 +483,94 @@ public final class AS4Servlet extends AbstractUnifiedResponseServlet
           aErrorMessages.add (EEbmsError.EBMS_OTHER.getAsEbms3Error (aLocale, sMessageID, null, aDesc));
         }
         else
-        {
-          // Invoke all SPIs
-          for (final IAS4ServletMessageProcessorSPI aProcessor : AS4ServletMessageProcessorManager.getAllProcessors ())
+          if (aPlan.isAsyncSPIInvocation ())
+          {
+            // Store durably and invoke the SPIs after the receipt was sent
             try
             {
-              if (s_aLogger.isDebugEnabled ())
-                s_aLogger.debug ("Invoking AS4 message processor " + aProcessor);
-
-              final AS4MessageProcessorResult aResult = aProcessor.processAS4Message (aUserMessage,
-                                                                                      aPayloadNode,
-                                                                                      aDecryptedAttachments);
-              if (aResult == null)
-                throw new IllegalStateException ("No result object present!");
-
-              if (aResult.isSuccess ())
+              AS4Inbox.getInstance ().enqueue (aUserMessage, aPayloadNode, aDecryptedAttachments);
+            }
+            catch (final IOException ex)
+            {
+              throw new IllegalStateException ("Failed to store incoming AS4 message " + sMessageID + " in inbox", ex);
+            }
+          }
+          else
+          {
+            // Invoke all SPIs
+            for (final IAS4ServletMessageProcessorSPI aProcessor : AS4ServletMessageProcessorManager.getProcessorSnapshot ())
+              try
               {
-                // Add response attachments, payloads
-                aResult.addAllAttachmentsTo (aResponseAttachments);
                 if (s_aLogger.isDebugEnabled ())
-                  s_aLogger.debug ("Successfully invoked AS4 message processor " + aProcessor);
+                  s_aLogger.debug ("Invoking AS4 message processor " + aProcessor);
+
+                final AS4MessageProcessorResult aResult = aProcessor.processAS4Message (aUserMessage,
+                                                                                        aPayloadNode,
+                                                                                        aDecryptedAttachments);
+                if (aResult == null)
+                  throw new IllegalStateException ("No result object present!");
+
+                if (aResult.isSuccess ())
+                {
+                  // Add response attachments, payloads
+                  aResult.addAllAttachmentsTo (aResponseAttachments);
+                  if (s_aLogger.isDebugEnabled ())
+                    s_aLogger.debug ("Successfully invoked AS4 message processor " + aProcessor);
+                }
+                else
+                {
+                  s_aLogger.warn ("Invoked AS4 message processor SPI " + aProcessor + " returned a failure");
+
+                  final Ebms3Error aError = new Ebms3Error ();
+                  aError.setSeverity (EEbmsErrorSeverity.FAILURE.getSeverity ());
+                  aError.setErrorCode (EEbmsError.EBMS_OTHER.getErrorCode ());
+                  aError.setRefToMessageInError (sMessageID);
+                  final Ebms3Description aDesc = new Ebms3Description ();
+                  aDesc.setValue (aResult.getErrorMessage ());
+                  aDesc.setLang (aLocale.getLanguage ());
+                  aError.setDescription (aDesc);
+                  aErrorMessages.add (aError);
+
+                  // Stop processing
+                  break;
+                }
               }
-              else
+              catch (final Throwable t)
               {
-                s_aLogger.warn ("Invoked AS4 message processor SPI " + aProcessor + " returned a failure");
-
-                final Ebms3Error aError = new Ebms3Error ();
-                aError.setSeverity (EEbmsErrorSeverity.FAILURE.getSeverity ());
-                aError.setErrorCode (EEbmsError.EBMS_OTHER.getErrorCode ());
-                aError.setRefToMessageInError (sMessageID);
-                final Ebms3Description aDesc = new Ebms3Description ();
-                aDesc.setValue (aResult.getErrorMessage ());
-                aDesc.setLang (aLocale.getLanguage ());
-                aError.setDescription (aDesc);
-                aErrorMessages.add (aError);
-
-                // Stop processing
-                break;
+                throw new BadRequestException ("Error processing incoming AS4 message with processor " + aProcessor, t);
               }
-            }
-            catch (final Throwable t)
-            {
-              throw new BadRequestException ("Error processing incoming AS4 message with processor " + aProcessor, t);
-            }
-        }
+          }
       }
     }
 
-    final IPModeConfig aPModeConfig = aState.getPModeConfig ();
     if (aErrorMessages.isEmpty ())
     {
       // PModeConfig - determined inside SPI providers!
-      if (aPModeConfig == null)
+      if (aPlan == null)
       {
         throw new BadRequestException ("No AS4 P-Mode configuration found!");
       }
 
+      // Only do profile checks if a profile is set
+      if (aPlan.isProfileValidation ())
       {
-        // Only do profile checks if a profile is set
-        final String sProfileName = AS4ServerConfiguration.getAS4ProfileName ();
-        if (StringHelper.hasText (sProfileName))
+        final IAS4Profile aProfile = aPlan.getProfile ();
+        if (aProfile == null)
         {
-          final IAS4Profile aProfile = MetaAS4Manager.getProfileMgr ().getProfileOfID (sProfileName);
-          if (aProfile == null)
-          {
-            throw new BadRequestException ("The AS4 profile " + sProfileName + " does not exist.");
-          }
+          throw new BadRequestException ("The AS4 profile " + aPlan.getProfileName () + " does not exist.");
+        }
 
-          // Profile Checks gets set when started with Server
-          final ErrorList aErrorList = new ErrorList ();
-          aProfile.getValidator ().validatePModeConfig (aPModeConfig, aErrorList);
-          aProfile.getValidator ().validateUserMessage (aUserMessage, aErrorList);
-          if (aErrorList.isNotEmpty ())
-          {
-            throw new BadRequestException ("Error validating incoming AS4 message with the profile " +
-                                           aProfile.getDisplayName () +
-                                           "\n Following errors are present: " +
-                                           aErrorList.getAllErrors ().getAllTexts (aLocale));
-          }
+        // Profile Checks gets set when started with Server
+        // The PModeConfig was already validated when compiling the plan
+        final ErrorList aErrorList = new ErrorList ();
+        aPlan.addPModeConfigErrorsTo (aErrorList);
+        aProfile.getValidator ().validateUserMessage (aUserMessage, aErrorList);
+        if (aErrorList.isNotEmpty ())
+        {
+          throw new BadRequestException ("Error validating incoming AS4 message with the profile " +
+                                         aProfile.getDisplayName () +
+                                         "\n Following errors are present: " +
+                                         aErrorList.getAllErrors ().getAllTexts (aLocale));
         }
       }
     }
@@ -539,15 +579,13 @@ public final class AS4Servlet extends AbstractUnifiedResponseServlet
     // partners declared in their pmode config they want an error response
     if (aErrorMessages.isNotEmpty ())
     {
-      if (_isSendErrorAsResponse (aPModeConfig))
+      if (aPlan == null || aPlan.isSendErrorAsResponse ())
       {
         final AS4ErrorMessage aErrorMsg = CreateErrorMessage.createErrorMessage (eSOAPVersion,
                                                                                  MessageHelperMethods.createEbms3MessageInfo (),
                                                                                  aErrorMessages);
 
-        aAS4Response.setContentAndCharset (AS4XMLHelper.serializeXML (aErrorMsg.getAsSOAPDocument ()),
-                                           StandardCharsets.UTF_8)
-                    .setMimeType (eSOAPVersion.getMimeType ());
+        aAS4Response.setXMLContent (aErrorMsg.getAsSOAPDocument (), eSOAPVersion.getMimeType ());
       }
       else
         s_aLogger.warn ("Not sending back the error, because sending error response is prohibited in PMode");
@@ -557,31 +595,32 @@ public final class AS4Servlet extends AbstractUnifiedResponseServlet
       // If no Error is present check if partners declared if they want a
       // response and if this response should contain non-repudiation
       // information if applicable
-      if (_isSendReceiptAsResponse (aPModeConfig))
+      if (aPlan.isSendReceiptAsResponse ())
       {
-        if (aPModeConfig.getMEP ().isOneWay ())
+        if (aPlan.isOneWay ())
         {
           final Ebms3MessageInfo aEbms3MessageInfo = MessageHelperMethods.createEbms3MessageInfo ();
           final AS4ReceiptMessage aReceiptMessage = CreateReceiptMessage.createReceiptMessage (eSOAPVersion,
                                                                                                aEbms3MessageInfo,
                                                                                                aUserMessage,
                                                                                                aSOAPDocument,
-                                                                                               _isSendNonRepudiationInformation (aPModeConfig))
+                                                                                               aPlan.isSendNonRepudiationInformation ())
                                                                         .setMustUnderstand (true);
 
           // We've got our response
           Document aResponseDoc = aReceiptMessage.getAsSOAPDocument ();
 
-          final PModeLeg aLeg1 = aPModeConfig.getLeg1 ();
-
-          aResponseDoc = _signResponse (aResMgr,
-                                        aResponseAttachments,
-                                        aLeg1.getSecurity (),
-                                        aResponseDoc,
-                                        aLeg1.getProtocol ().getSOAPVersion ());
+          final AS4PModeConfigPlan.LegPlan aLeg1 = aPlan.getLeg1 ();
+          if (aLeg1.isSignResponse ())
+          {
+            aResponseDoc = _signResponse (aResMgr,
+                                          aResponseAttachments,
+                                          aLeg1,
+                                          aResponseDoc,
+                                          aLeg1.getSOAPVersion (eSOAPVersion));
+          }
 
-          aAS4Response.setContentAndCharset (AS4XMLHelper.serializeXML (aResponseDoc), StandardCharsets.UTF_8)
-                      .setMimeType (eSOAPVersion.getMimeType ());
+          aAS4Response.setXMLContent (aResponseDoc, eSOAPVersion.getMimeType ());
         }
         else
         {
@@ -589,119 +628,112 @@ public final class AS4Servlet extends AbstractUnifiedResponseServlet
           // TWO - WAY
           // Except for two way push push, every response as usermessage is
           // always on leg 2
-          final PModeLeg aLeg2 = aPModeConfig.getLeg2 ();
-          if (aLeg2 != null)
+          if (aPlan.isUserMessageResponseOnLeg2 ())
           {
-            if (MEPHelper.isValidResponseType (aPModeConfig.getMEP (),
-                                               aPModeConfig.getMEPBinding (),
-                                               EAS4MessageType.USER_MESSAGE,
-                                               false))
+            final AS4PModeConfigPlan.LegPlan aLeg2 = aPlan.getLeg2 ();
+            final Ebms3MessageInfo aEbms3MessageInfo = MessageHelperMethods.createEbms3MessageInfo (MessageHelperMethods.createRandomMessageID (),
+                                                                                                    aUserMessage.getMessageInfo ()
+                                                                                                                .getMessageId ());
+            final Ebms3PayloadInfo aEbms3PayloadInfo = CreateUserMessage.createEbms3PayloadInfo (null,
+                                                                                                 aResponseAttachments);
+
+            // Invert from and to role from original user message
+            final Ebms3PartyInfo aEbms3PartyInfo = CreateUserMessage.createEbms3PartyInfo (aUserMessage.getPartyInfo ()
+                                                                                                       .getTo ()
+                                                                                                       .getRole (),
+                                                                                           aUserMessage.getPartyInfo ()
+                                                                                                       .getTo ()
+                                                                                                       .getPartyIdAtIndex (0)
+                                                                                                       .getValue (),
+                                                                                           aUserMessage.getPartyInfo ()
+                                                                                                       .getFrom ()
+                                                                                                       .getRole (),
+                                                                                           aUserMessage.getPartyInfo ()
+                                                                                                       .getFrom ()
+                                                                                                       .getPartyIdAtIndex (0)
+                                                                                                       .getValue ());
+
+            // Should be exactly the same as incoming message
+            final Ebms3CollaborationInfo aEbms3CollaborationInfo = aUserMessage.getCollaborationInfo ();
+
+            // Need to switch C1 and C4 around from the original usermessage
+            final Ebms3MessageProperties aEbms3MessageProperties = new Ebms3MessageProperties ();
+            Ebms3Property aFinalRecipient = null;
+            Ebms3Property aOriginalSender = null;
+            for (final Ebms3Property aProp : aUserMessage.getMessageProperties ().getProperty ())
             {
-
-              final Ebms3MessageInfo aEbms3MessageInfo = MessageHelperMethods.createEbms3MessageInfo (MessageHelperMethods.createRandomMessageID (),
-                                                                                                      aUserMessage.getMessageInfo ()
-                                                                                                                  .getMessageId ());
-              final Ebms3PayloadInfo aEbms3PayloadInfo = CreateUserMessage.createEbms3PayloadInfo (null,
-                                                                                                   aResponseAttachments);
-
-              // Invert from and to role from original user message
-              final Ebms3PartyInfo aEbms3PartyInfo = CreateUserMessage.createEbms3PartyInfo (aUserMessage.getPartyInfo ()
-                                                                                                         .getTo ()
-                                                                                                         .getRole (),
-                                                                                             aUserMessage.getPartyInfo ()
-                                                                                                         .getTo ()
-                                                                                                         .getPartyIdAtIndex (0)
-                                                                                                         .getValue (),
-                                                                                             aUserMessage.getPartyInfo ()
-                                                                                                         .getFrom ()
-                                                                                                         .getRole (),
-                                                                                             aUserMessage.getPartyInfo ()
-                                                                                                         .getFrom ()
-                                                                                                         .getPartyIdAtIndex (0)
-                                                                                                         .getValue ());
-
-              // Should be exactly the same as incoming message
-              final Ebms3CollaborationInfo aEbms3CollaborationInfo = aUserMessage.getCollaborationInfo ();
-
-              // Need to switch C1 and C4 around from the original usermessage
-              final Ebms3MessageProperties aEbms3MessageProperties = new Ebms3MessageProperties ();
-              Ebms3Property aFinalRecipient = null;
-              Ebms3Property aOriginalSender = null;
-              for (final Ebms3Property aProp : aUserMessage.getMessageProperties ().getProperty ())
+              if (aProp.getName ().equals (CAS4.FINAL_RECIPIENT))
               {
-                if (aProp.getName ().equals (CAS4.FINAL_RECIPIENT))
+                aOriginalSender = aProp;
+              }
+              else
+                if (aProp.getName ().equals (CAS4.ORIGINAL_SENDER))
                 {
-                  aOriginalSender = aProp;
+                  aFinalRecipient = aProp;
                 }
-                else
-                  if (aProp.getName ().equals (CAS4.ORIGINAL_SENDER))
-                  {
-                    aFinalRecipient = aProp;
-                  }
-              }
+            }
 
-              aFinalRecipient.setName (CAS4.ORIGINAL_SENDER);
-              aOriginalSender.setName (CAS4.FINAL_RECIPIENT);
+            aFinalRecipient.setName (CAS4.ORIGINAL_SENDER);
+            aOriginalSender.setName (CAS4.FINAL_RECIPIENT);
 
-              aEbms3MessageProperties.addProperty (aFinalRecipient);
-              aEbms3MessageProperties.addProperty (aOriginalSender);
+            aEbms3MessageProperties.addProperty (aFinalRecipient);
+            aEbms3MessageProperties.addProperty (aOriginalSender);
 
-              final AS4UserMessage aResponeUserMesage = CreateUserMessage.createUserMessage (aEbms3MessageInfo,
-                                                                                             aEbms3PayloadInfo,
-                                                                                             aEbms3CollaborationInfo,
-                                                                                             aEbms3PartyInfo,
-                                                                                             aEbms3MessageProperties,
-                                                                                             eSOAPVersion);
-              // We've got our response
-              Document aResponseDoc = aResponeUserMesage.getAsSOAPDocument ();
+            final AS4UserMessage aResponeUserMesage = CreateUserMessage.createUserMessage (aEbms3MessageInfo,
+                                                                                           aEbms3PayloadInfo,
+                                                                                           aEbms3CollaborationInfo,
+                                                                                           aEbms3PartyInfo,
+                                                                                           aEbms3MessageProperties,
+                                                                                           eSOAPVersion);
+            // We've got our response
+            Document aResponseDoc = aResponeUserMesage.getAsSOAPDocument ();
 
-              if (aLeg2.getSecurity () != null)
-              {
-                aResponseDoc = _signResponse (aResMgr,
-                                              aResponseAttachments,
-                                              aLeg2.getSecurity (),
-                                              aResponseDoc,
-                                              aLeg2.getProtocol ().getSOAPVersion ());
-              }
+            if (aLeg2.isSignResponse ())
+            {
+              aResponseDoc = _signResponse (aResMgr,
+                                            aResponseAttachments,
+                                            aLeg2,
+                                            aResponseDoc,
+                                            aLeg2.getSOAPVersion (eSOAPVersion));
+            }
+
+            if (aResponseAttachments.isNotEmpty ())
+            {
+
+              final MimeMessage aMimeMsg = _generateMimeMessageForResponse (aResMgr,
+                                                                            aResponseAttachments,
+                                                                            aLeg2,
+                                                                            aResponseDoc,
+                                                                            eSOAPVersion);
 
-              if (aResponseAttachments.isNotEmpty ())
+              // Move all mime headers to the HTTP request
+              final Enumeration <?> aEnum = aMimeMsg.getAllHeaders ();
+              while (aEnum.hasMoreElements ())
               {
+                final Header h = (Header) aEnum.nextElement ();
+                // Make a single-line HTTP header value!
+                aAS4Response.addCustomResponseHeader (h.getName (),
+                                                      HTTPStringHelper.getUnifiedHTTPHeaderValue (h.getValue ()));
 
-                final MimeMessage aMimeMsg = _generateMimeMessageForResponse (aResMgr,
-                                                                              aResponseAttachments,
-                                                                              aLeg2,
-                                                                              aResponseDoc);
+                // Remove from MIME message!
+                aMimeMsg.removeHeader (h.getName ());
+              }
 
-                // Move all mime headers to the HTTP request
-                final Enumeration <?> aEnum = aMimeMsg.getAllHeaders ();
-                while (aEnum.hasMoreElements ())
+              // send mime with unified response
+              aAS4Response.setContent ( () -> {
+                try
                 {
-                  final Header h = (Header) aEnum.nextElement ();
-                  // Make a single-line HTTP header value!
-                  aAS4Response.addCustomResponseHeader (h.getName (),
-                                                        HTTPStringHelper.getUnifiedHTTPHeaderValue (h.getValue ()));
-
-                  // Remove from MIME message!
-                  aMimeMsg.removeHeader (h.getName ());
+                  return aMimeMsg.getInputStream ();
                 }
-
-                // send mime with unified response
-                aAS4Response.setContent ( () -> {
-                  try
-                  {
-                    return aMimeMsg.getInputStream ();
-                  }
-                  catch (IOException | MessagingException ex)
-                  {
-                    throw new IllegalStateException ("Failed to get MIME input stream", ex);
-                  }
-                }).setMimeType (MT_MULTIPART_RELATED);
-              }
-              else
-              {
-                aAS4Response.setContentAndCharset (AS4XMLHelper.serializeXML (aResponseDoc), StandardCharsets.UTF_8)
-                            .setMimeType (eSOAPVersion.getMimeType ());
-              }
+                catch (IOException | MessagingException ex)
+                {
+                  throw new IllegalStateException ("Failed to get MIME input stream", ex);
+                }
+              }).setMimeType (MT_MULTIPART_RELATED);
+            }
+            else
+            {
+              aAS4Response.setXMLContent (aResponseDoc, eSOAPVersion.getMimeType ());
             }
           }
         }
@@ -712,36 +744,158 @@ public final class AS4Servlet extends AbstractUnifiedResponseServlet
   }
 
   /**
-   * If the PModeLegSecurity has set a Sign and Digest Algorithm the message
-   * will be signed, else the message will be returned as it is.
+   * Answer a pull request with the next user message queued for the requested
+   * MPC. If the puller is not authorized for the MPC or nothing is queued, an
+   * ebMS error is returned instead. Receipts bundled with the pull request
+   * finally remove the previously pulled messages they refer to.
+   *
+   * @param aState
+   *        The message state with the resolved MPC. May not be
+   *        <code>null</code>.
+   * @param eSOAPVersion
+   *        The SOAP version of the pull request. May not be <code>null</code>.
+   * @param aAS4Response
+   *        The response to fill. May not be <code>null</code>.
+   * @param aLocale
+   *        The locale for error texts. May not be <code>null</code>.
+   */
+  private static void _handlePullRequest (@Nonnull final AS4MessageState aState,
+                                          @Nonnull final ESOAPVersion eSOAPVersion,
+                                          @Nonnull final AS4Response aAS4Response,
+                                          @Nonnull final Locale aLocale)
+  {
+    final IMPC aMPC = aState.getMPC ();
+    final String sPullMessageID = aState.getMessaging ().getSignalMessageAtIndex (0).getMessageInfo ().getMessageId ();
+    final MPCQueueManager aMPCQueueMgr = MetaAS4Manager.getMPCQueueMgr ();
+
+    EEbmsError eError;
+    if (!aMPCQueueMgr.isPullAuthorized (aMPC, aState.getUsedCertificate ()))
+    {
+      s_aLogger.warn ("Pull request '" + sPullMessageID + "' is not authorized for MPC '" + aMPC.getID () + "'");
+      eError = EEbmsError.EBMS_FAILED_AUTHENTICATION;
+    }
+    else
+    {
+      for (final Ebms3SignalMessage aSignalMessage : aState.getMessaging ().getSignalMessage ())
+        if (_isReceipt (aSignalMessage))
+        {
+          final String sRefToMessageID = aSignalMessage.getMessageInfo ().getRefToMessageId ();
+          if (!aMPCQueueMgr.acknowledge (aMPC, sRefToMessageID))
+            s_aLogger.warn ("Received receipt for unknown pulled message '" +
+                            sRefToMessageID +
+                            "' of MPC '" +
+                            aMPC.getID () +
+                            "'");
+        }
+
+      final MPCQueueEntry aEntry = aMPCQueueMgr.poll (aMPC);
+      if (aEntry != null)
+      {
+        if (s_aLogger.isDebugEnabled ())
+          s_aLogger.debug ("Returning message '" +
+                           aEntry.getMessageID () +
+                           "' from MPC '" +
+                           aMPC.getID () +
+                           "' for pull request '" +
+                           sPullMessageID +
+                           "'");
+
+        try
+        {
+          IMimeType aMimeType = null;
+          for (final Map.Entry <String, String> aHeader : aEntry.getAllHeaders ().entrySet ())
+            if (aHeader.getKey ().equalsIgnoreCase (CHTTPHeader.CONTENT_TYPE))
+              aMimeType = MimeTypeParser.parseMimeType (aHeader.getValue ());
+            else
+              aAS4Response.addCustomResponseHeader (aHeader.getKey (), aHeader.getValue ());
+          aAS4Response.setContent (aEntry.getBody ())
+                      .setMimeType (aMimeType != null ? aMimeType : eSOAPVersion.getMimeType ());
+        }
+        catch (final RuntimeException ex)
+        {
+          // Make it available for the next pull request
+          aMPCQueueMgr.requeue (aMPC, aEntry);
+          throw ex;
+        }
+        return;
+      }
+      eError = EEbmsError.EBMS_EMPTY_MESSAGE_PARTITION_CHANNEL;
+    }
+
+    final AS4ErrorMessage aErrorMsg = CreateErrorMessage.createErrorMessage (eSOAPVersion,
+                                                                             MessageHelperMethods.createEbms3MessageInfo (),
+                                                                             new CommonsArrayList <> (eError.getAsEbms3Error (aLocale,
+                                                                                                                               sPullMessageID)));
+    aAS4Response.setXMLContent (aErrorMsg.getAsSOAPDocument (), eSOAPVersion.getMimeType ());
+  }
+
+  private static boolean _isReceipt (@Nonnull final Ebms3SignalMessage aSignalMessage)
+  {
+    return aSignalMessage.getReceipt () != null && aSignalMessage.getMessageInfo () != null;
+  }
+
+  private static boolean _containsReceipt (@Nonnull final AS4MessageState aState)
+  {
+    return aState.getMessaging () != null &&
+           aState.getMessaging ().getSignalMessage ().stream ().anyMatch (AS4Servlet::_isReceipt);
+  }
+
+  /**
+   * Handle signal messages that only contain receipts. Each receipt finally
+   * removes the pulled message it refers to from the MPC it was pulled from,
+   * if the sender is authorized to pull from that MPC. Nothing is returned.
+   *
+   * @param aState
+   *        The message state. May not be <code>null</code>.
+   * @param aAS4Response
+   *        The response to fill. May not be <code>null</code>.
+   */
+  private static void _handleReceipts (@Nonnull final AS4MessageState aState, @Nonnull final AS4Response aAS4Response)
+  {
+    final MPCQueueManager aMPCQueueMgr = MetaAS4Manager.getMPCQueueMgr ();
+    for (final Ebms3SignalMessage aSignalMessage : aState.getMessaging ().getSignalMessage ())
+      if (_isReceipt (aSignalMessage))
+      {
+        final String sRefToMessageID = aSignalMessage.getMessageInfo ().getRefToMessageId ();
+        if (aMPCQueueMgr.acknowledgeReceipt (sRefToMessageID, aState.getUsedCertificate ()))
+        {
+          if (s_aLogger.isDebugEnabled ())
+            s_aLogger.debug ("Received receipt for pulled message '" + sRefToMessageID + "'");
+        }
+        else
+          s_aLogger.warn ("Received receipt for unknown or not authorized pulled message '" + sRefToMessageID + "'");
+      }
+    aAS4Response.setStatus (HttpServletResponse.SC_NO_CONTENT);
+  }
+
+  /**
+   * Sign the passed document with the algorithms of the passed leg. Only call
+   * this if {@link AS4PModeConfigPlan.LegPlan#isSignResponse()} is
+   * <code>true</code>.
    *
    * @param aResMgr
    * @param aResponseAttachments
-   * @param aSecurity
+   * @param aLeg
    * @param aDocToBeSigned
    * @param eSOAPVersion
    * @return
    * @throws WSSecurityException
    */
-  private Document _signResponse (@Nonnull final AS4ResourceManager aResMgr,
+  private static Document _signResponse (@Nonnull final AS4ResourceManager aResMgr,
                                   @Nonnull final ICommonsList <WSS4JAttachment> aResponseAttachments,
-                                  @Nonnull final PModeLegSecurity aSecurity,
+                                  @Nonnull final AS4PModeConfigPlan.LegPlan aLeg,
                                   @Nonnull final Document aDocToBeSigned,
                                   @Nonnull final ESOAPVersion eSOAPVersion) throws WSSecurityException
   {
-    if (aSecurity.getX509SignatureAlgorithm () != null && aSecurity.getX509SignatureHashFunction () != null)
-    {
-      final SignedMessageCreator aCreator = new SignedMessageCreator ();
-      final boolean bMustUnderstand = true;
-      return aCreator.createSignedMessage (aDocToBeSigned,
-                                           eSOAPVersion,
-                                           aResponseAttachments,
-                                           aResMgr,
-                                           bMustUnderstand,
-                                           aSecurity.getX509SignatureAlgorithm (),
-                                           aSecurity.getX509SignatureHashFunction ());
-    }
-    return aDocToBeSigned;
+    final SignedMessageCreator aCreator = new SignedMessageCreator (AS4ServerSettings.getAS4CryptoFactory ());
+    final boolean bMustUnderstand = true;
+    return aCreator.createSignedMessage (aDocToBeSigned,
+                                         eSOAPVersion,
+                                         aResponseAttachments,
+                                         aResMgr,
+                                         bMustUnderstand,
+                                         aLeg.getSignAlgorithm (),
+                                         aLeg.getSignDigestAlgorithm ());
   }
 
   /**
@@ -754,9 +908,12 @@ public final class AS4Servlet extends AbstractUnifiedResponseServlet
    * @param aResponseAttachments
    *        The Attachments that should be encrypted
    * @param aLeg2
-   *        Leg2 to get necessary information, EncryptionAlgorithm, SOAPVersion
+   *        Plan of leg 2 to get necessary information, EncryptionAlgorithm,
+   *        SOAPVersion
    * @param aResponseDoc
    *        the document that contains the user message
+   * @param eFallbackSOAPVersion
+   *        SOAP version to use if leg 2 has no protocol
    * @return a MimeMessage to be sent
    * @throws MessagingException
    * @throws TransformerException
@@ -764,124 +921,30 @@ public final class AS4Servlet extends AbstractUnifiedResponseServlet
    * @throws WSSecurityException
    */
   @Nonnull
-  private MimeMessage _generateMimeMessageForResponse (@Nonnull final AS4ResourceManager aResMgr,
+  private static MimeMessage _generateMimeMessageForResponse (@Nonnull final AS4ResourceManager aResMgr,
                                                        @Nonnull final ICommonsList <WSS4JAttachment> aResponseAttachments,
-                                                       @Nonnull final PModeLeg aLeg2,
-                                                       @Nonnull final Document aResponseDoc) throws WSSecurityException,
-                                                                                             TransformerFactoryConfigurationError,
-                                                                                             TransformerException,
-                                                                                             MessagingException
+                                                       @Nonnull final AS4PModeConfigPlan.LegPlan aLeg2,
+                                                       @Nonnull final Document aResponseDoc,
+                                                       @Nonnull final ESOAPVersion eFallbackSOAPVersion) throws WSSecurityException,
+                                                                                                            TransformerFactoryConfigurationError,
+                                                                                                            TransformerException,
+                                                                                                            MessagingException
   {
-    MimeMessage aMimeMsg = null;
-    if (aLeg2.getSecurity () != null)
-    {
-      if (aLeg2.getSecurity ().getX509EncryptionAlgorithm () != null)
-      {
-        final EncryptionCreator aEncryptCreator = new EncryptionCreator ();
-        aMimeMsg = aEncryptCreator.encryptMimeMessage (aLeg2.getProtocol ().getSOAPVersion (),
-                                                       aResponseDoc,
-                                                       true,
-                                                       aResponseAttachments,
-                                                       aResMgr,
-                                                       aLeg2.getSecurity ().getX509EncryptionAlgorithm ());
-
-      }
-      else
-      {
-        aMimeMsg = new MimeMessageCreator (aLeg2.getProtocol ()
-                                                .getSOAPVersion ()).generateMimeMessage (aResponseDoc,
-                                                                                         aResponseAttachments);
-      }
-    }
-    if (aMimeMsg == null)
+    if (!aLeg2.isSecured ())
       throw new IllegalStateException ("Unexpected");
-    return aMimeMsg;
-  }
-
-  /**
-   * EBMS core specification 4.2 details these default values. In eSENS they get
-   * used to implement a ping service, we took this over even outside of eSENS.
-   * If you use these default values you can try to "ping" the server, the
-   * method just checks if the pmode got these exact values set. If true, no SPI
-   * processing is done.
-   *
-   * @param aPModeConfig
-   *        to check
-   * @return true if the default values to ping are not used else false
-   */
-  private static boolean _isNotPingMessage (@Nonnull final IPModeConfig aPModeConfig)
-  {
-    final PModeLegBusinessInformation aBInfo = aPModeConfig.getLeg1 ().getBusinessInfo ();
 
-    if (aBInfo != null &&
-        CAS4.DEFAULT_ACTION_URL.equals (aBInfo.getAction ()) &&
-        CAS4.DEFAULT_SERVICE_URL.equals (aBInfo.getService ()))
+    final ESOAPVersion eSOAPVersion = aLeg2.getSOAPVersion (eFallbackSOAPVersion);
+    if (aLeg2.isEncryptResponse ())
     {
-      return false;
+      final EncryptionCreator aEncryptCreator = new EncryptionCreator (AS4ServerSettings.getAS4CryptoFactory ());
+      return aEncryptCreator.encryptMimeMessage (eSOAPVersion,
+                                                 aResponseDoc,
+                                                 true,
+                                                 aResponseAttachments,
+                                                 aResMgr,
+                                                 aLeg2.getCryptAlgorithm ());
     }
-    return true;
-  }
-
-  /**
-   * Checks if in the given PModeConfig the isSendReceiptNonRepudiation is set
-   * or not.
-   *
-   * @param aPModeConfig
-   *        to check the attribute
-   * @return Returns the value if set, else DEFAULT <code>false</code>.
-   */
-  private static boolean _isSendNonRepudiationInformation (@Nullable final IPModeConfig aPModeConfig)
-  {
-    if (aPModeConfig != null)
-      if (aPModeConfig.getLeg1 () != null)
-        if (aPModeConfig.getLeg1 ().getSecurity () != null)
-          if (aPModeConfig.getLeg1 ().getSecurity ().isSendReceiptNonRepudiationDefined ())
-            return aPModeConfig.getLeg1 ().getSecurity ().isSendReceiptNonRepudiation ();
-    // Default behavior
-    return false;
-  }
-
-  /**
-   * Checks if in the given PModeConfig isReportAsResponse is set.
-   *
-   * @param aPModeConfig
-   *        to check the attribute
-   * @return Returns the value if set, else DEFAULT <code>TRUE</code>.
-   */
-  private static boolean _isSendErrorAsResponse (@Nullable final IPModeConfig aPModeConfig)
-  {
-    if (aPModeConfig != null)
-      if (aPModeConfig.getLeg1 () != null)
-        if (aPModeConfig.getLeg1 ().getErrorHandling () != null)
-          if (aPModeConfig.getLeg1 ().getErrorHandling ().isReportAsResponseDefined ())
-          {
-            // Note: this is enabled in Default PMode
-            return aPModeConfig.getLeg1 ().getErrorHandling ().isReportAsResponse ();
-          }
-    // Default behavior
-    return true;
-  }
-
-  /**
-   * Checks if a ReceiptReplyPattern is set to Response or not.
-   *
-   * @param aPModeConfig
-   *        to check the attribute
-   * @return Returns the value if set, else DEFAULT <code>TRUE</code>.
-   */
-  private static boolean _isSendReceiptAsResponse (@Nullable final IPModeConfig aPModeConfig)
-  {
-    if (aPModeConfig != null)
-      if (aPModeConfig.getLeg1 () != null)
-        if (aPModeConfig.getLeg1 ().getSecurity () != null)
-        {
-          // Note: this is enabled in Default PMode
-          return EPModeSendReceiptReplyPattern.RESPONSE.equals (aPModeConfig.getLeg1 ()
-                                                                            .getSecurity ()
-                                                                            .getSendReceiptReplyPattern ());
-        }
-    // Default behaviour if the value is not set or no security is existing
-    return true;
+    return new MimeMessageCreator (eSOAPVersion).generateMimeMessage (aResponseDoc, aResponseAttachments);
   }
 
   /**
@@ -950,9 +1013,7 @@ public final class AS4Servlet extends AbstractUnifiedResponseServlet
                                              @Nonnull final Ebms3PartyInfo aPartyInfo)
   {
     final PModeManager aPModeMgr = MetaAS4Manager.getPModeMgr ();
-    if (aPModeMgr.containsNone (doesPartnerAndPartnerExist (aState.getInitiatorID (),
-                                                            aState.getResponderID (),
-                                                            sConfigID)))
+    if (!aPModeMgr.containsPModeOfParties (sConfigID, aState.getInitiatorID (), aState.getResponderID ()))
     {
       final Ebms3From aFrom = aPartyInfo.getFrom ();
       final Ebms3PartyId aFromID = aFrom.getPartyIdAtIndex (0);
@@ -971,28 +1032,6 @@ public final class AS4Servlet extends AbstractUnifiedResponseServlet
     // If the PMode already exists we do not need to do anything
   }
 
-  /**
-   * This Predicate helps to find if a Partner (Initiator), Partner (Responder)
-   * with a specific PModeConfig already exists.
-   *
-   * @param sInitiatorID
-   *        Initiator to check
-   * @param sResponderID
-   *        Responder to check
-   * @param sPModeConfigID
-   *        PModeConfig to check
-   * @return aPMode if it already exists with all 3 components
-   */
-  @Nullable
-  public static Predicate <IPMode> doesPartnerAndPartnerExist (@Nullable final String sInitiatorID,
-                                                               @Nullable final String sResponderID,
-                                                               @Nullable final String sPModeConfigID)
-  {
-    return x -> EqualsHelper.equals (x.getInitiatorID (), sInitiatorID) &&
-                EqualsHelper.equals (x.getResponderID (), sResponderID) &&
-                x.getConfigID ().equals (sPModeConfigID);
-  }
-
   @Override
   @Nonnull
   protected AS4Response createUnifiedResponse (@Nonnull final EHTTPVersion eHTTPVersion,
@@ -1003,31 +1042,127 @@ public final class AS4Servlet extends AbstractUnifiedResponseServlet
   }
 
   @Nonnull
-  private InputStream _getRequestIS (@Nonnull final HttpServletRequest aHttpServletRequest) throws IOException
+  private static InternetHeaders _readPartHeaders (@Nonnull final MultipartStream aMulti) throws MessagingException,
+                                                                                          MultipartMalformedStreamException
   {
-    final InputStream aIS = aHttpServletRequest.getInputStream ();
-    return aIS;
+    final String sHeaders = aMulti.readHeaders ();
+    return new InternetHeaders (new NonBlockingByteArrayInputStream (sHeaders.getBytes (StandardCharsets.ISO_8859_1)));
   }
 
   @Override
   protected void handleRequest (@Nonnull final IRequestWebScopeWithoutResponse aRequestScope,
                                 @Nonnull final UnifiedResponse aUnifiedResponse) throws Exception
   {
-    final AS4Response aHttpResponse = (AS4Response) aUnifiedResponse;
     final HttpServletRequest aHttpServletRequest = aRequestScope.getRequest ();
+    final AS4Response aAS4Response = (AS4Response) aUnifiedResponse;
+    try (final AS4AdmissionController.Ticket aTicket = admitAS4Request (aHttpServletRequest, aAS4Response))
+    {
+      if (aTicket != null)
+        handleAS4Request (aHttpServletRequest.getContentType (), aHttpServletRequest.getInputStream (), aAS4Response);
+    }
+  }
 
-    // TODO make locale dynamic
-    final Locale aLocale = Locale.US;
+  @Nullable
+  private static String _getPrecheckError (@Nonnull final HttpServletRequest aHttpServletRequest)
+  {
+    final String sContentType = aHttpServletRequest.getContentType ();
+    if (StringHelper.hasNoText (sContentType))
+      return "Content-Type header is missing";
+
+    final MimeType aContentType = MimeTypeParser.parseMimeType (sContentType);
+    if (aContentType == null)
+      return "Failed to parse Content-Type '" + sContentType + "'";
+
+    if (aContentType.getCopyWithoutParameters ().equals (MT_MULTIPART_RELATED) &&
+        StringHelper.hasNoText (aContentType.getParameterValueWithName ("boundary")))
+      return "Content-Type '" + sContentType + "' misses boundary parameter";
+    return null;
+  }
+
+  /**
+   * Perform the cheap checks based on the HTTP headers only and try to admit
+   * the request. This must be called before the request body is read.
+   *
+   * @param aHttpServletRequest
+   *        The HTTP request to check. May not be <code>null</code>.
+   * @param aHttpResponse
+   *        The response to be filled in case of a rejection. May not be
+   *        <code>null</code>.
+   * @return <code>null</code> if the request was rejected and the response
+   *         was filled. The admission ticket to be closed after processing
+   *         otherwise.
+   */
+  @Nullable
+  static AS4AdmissionController.Ticket admitAS4Request (@Nonnull final HttpServletRequest aHttpServletRequest,
+                                                        @Nonnull final AS4Response aHttpResponse)
+  {
+    final String sPrecheckError = _getPrecheckError (aHttpServletRequest);
+    if (sPrecheckError != null)
+    {
+      AS4AdmissionController.onRejected (EAS4RejectReason.BAD_REQUEST, sPrecheckError);
+      aHttpResponse.setResponseRejected (HttpServletResponse.SC_BAD_REQUEST, sPrecheckError);
+      return null;
+    }
 
-    // XXX By default login in admin user; why do we need a logged-in user?
-    final ELoginResult e = LoggedInUserManager.getInstance ().loginUser (CSecurity.USER_ADMINISTRATOR_LOGIN,
-                                                                         CSecurity.USER_ADMINISTRATOR_PASSWORD);
-    assert e.isSuccess () : "Login failed: " + e.toString ();
+    final long nContentLength = aHttpServletRequest.getContentLengthLong ();
+    final long nMaxBytes = AS4ServerConfiguration.getMaxRequestBytes ();
+    if (nMaxBytes > 0 && nContentLength > nMaxBytes)
+    {
+      final String sMsg = "Declared Content-Length " + nContentLength + " exceeds the maximum of " + nMaxBytes;
+      AS4AdmissionController.onRejected (EAS4RejectReason.CONTENT_TOO_LARGE, sMsg);
+      aHttpResponse.setResponseRejected (HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE, sMsg);
+      return null;
+    }
+
+    // Requests without Content-Length (chunked) are charged with the maximum
+    // request size; the size is enforced while reading
+    final long nAdmitBytes = nContentLength >= 0 ? nContentLength : Math.max (0, nMaxBytes);
+    final AS4AdmissionController.Ticket aTicket = AS4AdmissionController.tryAdmit (nAdmitBytes);
+    if (!aTicket.isAdmitted ())
+    {
+      final EAS4RejectReason eReason = aTicket.getRejectReason ();
+      final String sMsg = eReason == EAS4RejectReason.CONCURRENT_REQUESTS ? "Too many concurrent AS4 requests"
+                                                                            : "AS4 request size budget exhausted";
+      AS4AdmissionController.onRejected (eReason, sMsg);
+      aHttpResponse.setResponseRejected (HttpServletResponse.SC_SERVICE_UNAVAILABLE, sMsg);
+      aHttpResponse.addCustomResponseHeader (CHTTPHeader.RETRY_AFTER,
+                                             Integer.toString (AS4ServerConfiguration.getAdmissionRetryAfterSeconds ()));
+      return null;
+    }
+    return aTicket;
+  }
 
-    try (final AS4ResourceManager aResMgr = new AS4ResourceManager ())
+  /**
+   * Process a single AS4 request. This is the main entry point shared by the
+   * synchronous {@link AS4Servlet} and the {@link AS4AsyncServlet}. All errors
+   * are mapped onto the provided response object.
+   *
+   * @param sContentType
+   *        The Content-Type header of the HTTP request. It is passed
+   *        explicitly, so that the container request object is not accessed
+   *        during processing. May be <code>null</code>.
+   * @param aRequestIS
+   *        The input stream with the request body. May not be
+   *        <code>null</code>.
+   * @param aHttpResponse
+   *        The response to be filled. May not be <code>null</code>.
+   */
+  static void handleAS4Request (@Nullable final String sContentType,
+                                @Nonnull final InputStream aRequestIS,
+                                @Nonnull final AS4Response aHttpResponse)
+  {
+    // TODO make locale dynamic
+    final Locale aLocale = Locale.US;
+    // Chunked requests have no declared length, so the limit is enforced
+    // while reading
+    final SizeLimitInputStream aBodyIS = new SizeLimitInputStream (aRequestIS,
+                                                                   AS4ServerConfiguration.getMaxRequestBytes ());
+
+    // All DAO writes and audit events are attributed to the AS4 system user
+    try (final AS4SystemPrincipal aPrincipal = AS4SystemPrincipal.activate ();
+         final AS4ResourceManager aResMgr = new AS4ResourceManager (AS4ServerSettings.getSpoolManager ()))
     {
       // Determine content type
-      final String sContentType = aHttpServletRequest.getContentType ();
       if (StringHelper.hasNoText (sContentType))
         throw new BadRequestException ("Content-Type header is missing");
 
@@ -1051,18 +1186,17 @@ public final class AS4Servlet extends AbstractUnifiedResponseServlet
         final String sBoundary = aContentType.getParameterValueWithName ("boundary");
         if (StringHelper.hasNoText (sBoundary))
         {
-          throw new BadRequestException ("Content-Type '" +
-                                         aHttpServletRequest.getContentType () +
-                                         "' misses boundary parameter");
+          throw new BadRequestException ("Content-Type '" + sContentType + "' misses boundary parameter");
         }
 
         if (s_aLogger.isDebugEnabled ())
           s_aLogger.debug ("MIME Boundary = " + sBoundary);
 
         // PARSING MIME Message via MultiPartStream
-        final MultipartStream aMulti = new MultipartStream (_getRequestIS (aHttpServletRequest),
+        final MultipartStream aMulti = new MultipartStream (aBodyIS,
                                                             sBoundary.getBytes (StandardCharsets.ISO_8859_1),
                                                             (MultipartProgressNotifier) null);
+        aMulti.setHeaderEncoding (StandardCharsets.ISO_8859_1.name ());
         final IIncomingAttachmentFactory aIAF = AS4ServerSettings.getIncomingAttachmentFactory ();
 
         int nIndex = 0;
@@ -1074,26 +1208,36 @@ public final class AS4Servlet extends AbstractUnifiedResponseServlet
 
           if (s_aLogger.isDebugEnabled ())
             s_aLogger.debug ("Found MIME part " + nIndex);
-          final MultipartItemInputStream aItemIS2 = aMulti.createInputStream ();
-
-          final MimeBodyPart aBodyPart = new MimeBodyPart (aItemIS2);
-          if (nIndex == 0)
+          // Parse only the part headers - the body is read directly from the
+          // request stream afterwards
+          final InternetHeaders aPartHeaders = _readPartHeaders (aMulti);
+          try (final MultipartItemInputStream aItemIS2 = aMulti.createInputStream ())
           {
-            // First MIME part -> SOAP document
-            final IMimeType aPlainPartMT = MimeTypeParser.parseMimeType (aBodyPart.getContentType ())
-                                                         .getCopyWithoutParameters ();
-
-            // Determine SOAP version from MIME part content type
-            eSOAPVersion = ArrayHelper.findFirst (ESOAPVersion.values (), x -> aPlainPartMT.equals (x.getMimeType ()));
+            if (nIndex == 0)
+            {
+              // First MIME part -> SOAP document
+              final String sPartContentType = aPartHeaders.getHeader (CHTTPHeader.CONTENT_TYPE, null);
+              final MimeType aPartMT = sPartContentType == null ? null
+                                                                : MimeTypeParser.parseMimeType (sPartContentType);
+              if (aPartMT != null)
+              {
+                // Determine SOAP version from MIME part content type
+                final IMimeType aPlainPartMT = aPartMT.getCopyWithoutParameters ();
+                eSOAPVersion = ArrayHelper.findFirst (ESOAPVersion.values (),
+                                                      x -> aPlainPartMT.equals (x.getMimeType ()));
+              }
 
-            // Read SOAP document
-            aSOAPDocument = DOMReader.readXMLDOM (aBodyPart.getInputStream ());
-          }
-          else
-          {
-            // MIME Attachment (index is gt 0)
-            final WSS4JAttachment aAttachment = aIAF.createAttachment (aBodyPart, aResMgr);
-            aIncomingAttachments.add (aAttachment);
+              // Read SOAP document
+              final String sCTE = aPartHeaders.getHeader (CHTTPHeader.CONTENT_TRANSFER_ENCODING, null);
+              aSOAPDocument = DOMReader.readXMLDOM (sCTE == null ? aItemIS2
+                                                                 : MimeUtility.decode (aItemIS2, sCTE.trim ()));
+            }
+            else
+            {
+              // MIME Attachment (index is gt 0)
+              final WSS4JAttachment aAttachment = aIAF.createAttachment (aPartHeaders, aItemIS2, aResMgr);
+              aIncomingAttachments.add (aAttachment);
+            }
           }
           nIndex++;
         }
@@ -1105,7 +1249,7 @@ public final class AS4Servlet extends AbstractUnifiedResponseServlet
 
         // Expect plain SOAP - read whole request to DOM
         // Note: this may require a huge amount of memory for large requests
-        aSOAPDocument = DOMReader.readXMLDOM (_getRequestIS (aHttpServletRequest));
+        aSOAPDocument = DOMReader.readXMLDOM (aBodyIS);
 
         // Determine SOAP version from content type
         eSOAPVersion = ArrayHelper.findFirst (ESOAPVersion.values (), x -> aPlainContentType.equals (x.getMimeType ()));
@@ -1135,17 +1279,159 @@ public final class AS4Servlet extends AbstractUnifiedResponseServlet
     }
     catch (final BadRequestException ex)
     {
-      aHttpResponse.setResponseError (HttpServletResponse.SC_BAD_REQUEST, ex.getMessage (), ex.getCause ());
+      if (!_rejectIfSizeLimitExceeded (aBodyIS, aHttpResponse))
+      {
+        // No stack trace - logging is rate limited
+        AS4AdmissionController.onRejected (EAS4RejectReason.BAD_REQUEST, ex.getMessage ());
+        if (ex.getCause () != null && s_aLogger.isDebugEnabled ())
+          s_aLogger.debug ("Cause of bad AS4 request: " + ex.getMessage (), ex.getCause ());
+        aHttpResponse.setResponseRejected (HttpServletResponse.SC_BAD_REQUEST, ex.getMessage ());
+      }
     }
     catch (final Throwable t)
     {
-      aHttpResponse.setResponseError (HttpServletResponse.SC_INTERNAL_SERVER_ERROR,
-                                      "Internal error processing AS4 request",
-                                      t);
+      // The quota exception may be wrapped, e.g. by the MIME parser
+      if (!_rejectIfSizeLimitExceeded (aBodyIS, aHttpResponse) && !rejectIfSpoolQuotaExceeded (t, aHttpResponse))
+        aHttpResponse.setResponseError (HttpServletResponse.SC_INTERNAL_SERVER_ERROR,
+                                        "Internal error processing AS4 request",
+                                        t);
+    }
+  }
+
+  private static boolean _rejectIfSizeLimitExceeded (@Nonnull final SizeLimitInputStream aBodyIS,
+                                                     @Nonnull final AS4Response aHttpResponse)
+  {
+    // Checked independent of the exception, as the parsers may wrap it
+    if (!aBodyIS.isLimitExceeded ())
+      return false;
+
+    rejectContentTooLarge (aBodyIS.getMaxBytes (), aHttpResponse);
+    return true;
+  }
+
+  /**
+   * Reject a request, because its body exceeds the configured maximum size.
+   *
+   * @param nMaxBytes
+   *        The maximum number of request body bytes.
+   * @param aHttpResponse
+   *        The response to be filled. May not be <code>null</code>.
+   */
+  static void rejectContentTooLarge (final long nMaxBytes, @Nonnull final AS4Response aHttpResponse)
+  {
+    final String sMsg = "Request body exceeds the maximum of " + nMaxBytes + " bytes";
+    AS4AdmissionController.onRejected (EAS4RejectReason.CONTENT_TOO_LARGE, sMsg);
+    aHttpResponse.setResponseRejected (HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE, sMsg);
+  }
+
+  /**
+   * Reject a request if the passed exception or one of its causes is an
+   * {@link AS4SpoolQuotaExceededException}. An exceeded per-request quota is
+   * answered with HTTP 413, an exceeded global quota with HTTP 503.
+   *
+   * @param t
+   *        The exception to check. May be <code>null</code>.
+   * @param aHttpResponse
+   *        The response to be filled in case of a rejection. May not be
+   *        <code>null</code>.
+   * @return <code>true</code> if the request was rejected and the response
+   *         was filled, <code>false</code> otherwise.
+   */
+  static boolean rejectIfSpoolQuotaExceeded (@Nullable final Throwable t, @Nonnull final AS4Response aHttpResponse)
+  {
+    Throwable aCur = t;
+    while (aCur != null && !(aCur instanceof AS4SpoolQuotaExceededException))
+      aCur = aCur.getCause ();
+    if (aCur == null)
+      return false;
+
+    final AS4SpoolQuotaExceededException ex = (AS4SpoolQuotaExceededException) aCur;
+    if (ex.isGlobalQuota ())
+    {
+      AS4AdmissionController.onRejected (EAS4RejectReason.SPOOL_QUOTA, ex.getMessage ());
+      aHttpResponse.setResponseRejected (HttpServletResponse.SC_SERVICE_UNAVAILABLE, ex.getMessage ());
+      aHttpResponse.addCustomResponseHeader (CHTTPHeader.RETRY_AFTER,
+                                             Integer.toString (AS4ServerConfiguration.getAdmissionRetryAfterSeconds ()));
+    }
+    else
+    {
+      AS4AdmissionController.onRejected (EAS4RejectReason.REQUEST_SPOOL_QUOTA, ex.getMessage ());
+      aHttpResponse.setResponseRejected (HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE, ex.getMessage ());
+    }
+    return true;
+  }
+
+  /**
+   * Input stream that fails as soon as more than the maximum number of bytes
+   * were read. The flag remains set, even if the parser wraps or swallows the
+   * exception.
+   *
+   * @author Philip Helger
+   */
+  private static final class SizeLimitInputStream extends FilterInputStream
+  {
+    private final long m_nMaxBytes;
+    private long m_nRead = 0;
+    private boolean m_bLimitExceeded = false;
+
+    SizeLimitInputStream (@Nonnull final InputStream aIS, final long nMaxBytes)
+    {
+      super (aIS);
+      m_nMaxBytes = nMaxBytes;
+    }
+
+    private void _count (final long nRead) throws IOException
+    {
+      if (nRead > 0)
+      {
+        m_nRead += nRead;
+        if (m_nMaxBytes > 0 && m_nRead > m_nMaxBytes)
+        {
+          m_bLimitExceeded = true;
+          throw new IOException ("Request body exceeds the maximum of " + m_nMaxBytes + " bytes");
+        }
+      }
+    }
+
+    @Override
+    public int read () throws IOException
+    {
+      final int ret = super.read ();
+      if (ret >= 0)
+        _count (1);
+      return ret;
+    }
+
+    @Override
+    public int read (@Nonnull final byte [] aBuf, final int nOfs, final int nLen) throws IOException
+    {
+      final int ret = super.read (aBuf, nOfs, nLen);
+      _count (ret);
+      return ret;
+    }
+
+    @Override
+    public long skip (final long n) throws IOException
+    {
+      final long ret = super.skip (n);
+      _count (ret);
+      return ret;
     }
-    finally
+
+    @Override
+    public boolean markSupported ()
+    {
+      return false;
+    }
+
+    long getMaxBytes ()
+    {
+      return m_nMaxBytes;
+    }
+
+    boolean isLimitExceeded ()
     {
-      LoggedInUserManager.getInstance ().logoutCurrentUser ();
+      return m_bLimitExceeded;
     }
   }
 }
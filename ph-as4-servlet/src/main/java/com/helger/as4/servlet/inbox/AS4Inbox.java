@@ -0,0 +1,274 @@
+/**
+ * Copyright (C) 2015-2017 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.as4.servlet.inbox;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.w3c.dom.Node;
+
+import com.helger.as4.attachment.WSS4JAttachment;
+import com.helger.as4.servlet.mgr.AS4ServerConfiguration;
+import com.helger.as4.servlet.mgr.AS4ServerSettings;
+import com.helger.as4.servlet.mgr.AS4ServletMessageProcessorManager;
+import com.helger.as4.servlet.spi.AS4MessageProcessorResult;
+import com.helger.as4.servlet.spi.IAS4ServletMessageProcessorSPI;
+import com.helger.as4.util.AS4ResourceManager;
+import com.helger.as4.util.AS4SystemPrincipal;
+import com.helger.as4lib.ebms3header.Ebms3UserMessage;
+import com.helger.commons.annotation.UsedViaReflection;
+import com.helger.commons.collection.ext.ICommonsList;
+import com.helger.commons.concurrent.BasicThreadFactory;
+import com.helger.commons.concurrent.ManagedExecutorService;
+import com.helger.commons.datetime.PDTFactory;
+import com.helger.commons.exception.InitializationException;
+import com.helger.commons.lang.ClassHelper;
+import com.helger.commons.scope.IScope;
+import com.helger.commons.scope.singleton.AbstractGlobalSingleton;
+import com.helger.photon.basic.app.io.WebFileIO;
+
+/**
+ * The durable inbox. Incoming one-way user messages whose P-Mode configuration
+ * requests asynchronous SPI invocation are persisted via the
+ * {@link AS4InboxManager} before the receipt is sent. A worker pool delivers
+ * them to all {@link IAS4ServletMessageProcessorSPI} implementations
+ * afterwards, retrying failed deliveries with exponential backoff. Entries
+ * that were not yet delivered are picked up again after a restart, so message
+ * processors must be able to handle the same message more than once.
+ *
+ * @author Philip Helger
+ */
+@ThreadSafe
+public final class AS4Inbox extends AbstractGlobalSingleton
+{
+  private static final Logger s_aLogger = LoggerFactory.getLogger (AS4Inbox.class);
+  private static final String INBOX_XML = "as4-inbox.xml";
+  private static final String INBOX_SPOOL_DIR = "as4-inbox";
+  private static final long MAX_RETRY_DELAY_MS = Duration.ofHours (1).toMillis ();
+
+  private AS4InboxManager m_aMgr;
+  private ScheduledThreadPoolExecutor m_aExecutor;
+  private int m_nMaxAttempts;
+  private long m_nRetryDelayMS;
+  private int m_nFailedRetentionDays;
+
+  @Deprecated
+  @UsedViaReflection
+  public AS4Inbox ()
+  {}
+
+  @Nonnull
+  public static AS4Inbox getInstance ()
+  {
+    return getGlobalSingleton (AS4Inbox.class);
+  }
+
+  @Override
+  protected void onAfterInstantiation (@Nonnull final IScope aScope)
+  {
+    try
+    {
+      m_aMgr = new AS4InboxManager (INBOX_XML, WebFileIO.getDataIO ().getFile (INBOX_SPOOL_DIR));
+    }
+    catch (final Throwable t)
+    {
+      throw new InitializationException ("Failed to init " + ClassHelper.getClassLocalName (this), t);
+    }
+    m_nMaxAttempts = Math.max (1, AS4ServerConfiguration.getInboxMaxAttempts ());
+    m_nRetryDelayMS = Math.max (1, AS4ServerConfiguration.getInboxRetryDelayMilliseconds ());
+    m_nFailedRetentionDays = AS4ServerConfiguration.getInboxFailedRetentionDays ();
+    m_aExecutor = new ScheduledThreadPoolExecutor (Math.max (1, AS4ServerConfiguration.getInboxThreadCount ()),
+                                                   new BasicThreadFactory.Builder ().setNamingPattern ("as4-inbox-%d")
+                                                                                    .setDaemon (true)
+                                                                                    .build ());
+    // Pending entries are recovered from the journal upon next startup
+    m_aExecutor.setExecuteExistingDelayedTasksAfterShutdownPolicy (false);
+
+    // Crash recovery - schedule everything that is not yet delivered
+    int nRecovered = 0;
+    for (final AS4InboxEntry aEntry : m_aMgr.getAllEntries ())
+      if (aEntry.getAttempts () < m_nMaxAttempts)
+      {
+        _schedule (aEntry);
+        nRecovered++;
+      }
+      else
+        s_aLogger.warn ("Inbox entry " + aEntry.getID () + " exceeded the maximum delivery attempts: " + aEntry);
+    if (nRecovered > 0)
+      s_aLogger.info ("Recovered " + nRecovered + " pending inbox entries");
+
+    if (m_nFailedRetentionDays > 0)
+      m_aExecutor.scheduleWithFixedDelay (this::purgeFailedEntries, 0, 1, TimeUnit.HOURS);
+  }
+
+  @Override
+  protected void onBeforeDestroy (@Nonnull final IScope aScopeToBeDestroyed)
+  {
+    ManagedExecutorService.shutdownAndWaitUntilAllTasksAreFinished (m_aExecutor);
+  }
+
+  @Nonnull
+  public AS4InboxManager getInboxMgr ()
+  {
+    return m_aMgr;
+  }
+
+  /**
+   * Durably store the passed message and schedule it for asynchronous
+   * delivery.
+   *
+   * @param aUserMessage
+   *        The user message. May not be <code>null</code>.
+   * @param aPayloadNode
+   *        The SOAP body payload. May be <code>null</code>.
+   * @param aAttachments
+   *        The decrypted and decompressed attachments. May not be
+   *        <code>null</code>.
+   * @throws IOException
+   *         If the message could not be stored
+   */
+  public void enqueue (@Nonnull final Ebms3UserMessage aUserMessage,
+                       @Nullable final Node aPayloadNode,
+                       @Nonnull final ICommonsList <WSS4JAttachment> aAttachments) throws IOException
+  {
+    final AS4InboxEntry aEntry = m_aMgr.storeMessage (aUserMessage, aPayloadNode, aAttachments);
+    if (s_aLogger.isDebugEnabled ())
+      s_aLogger.debug ("Stored message " + aEntry.getMessageID () + " in inbox as " + aEntry.getID ());
+    _schedule (aEntry);
+  }
+
+  /**
+   * Remove all entries that exhausted their delivery attempts longer than the
+   * configured retention period ago. This is invoked periodically if a
+   * retention period is configured.
+   *
+   * @return The number of removed entries. Always &ge; 0.
+   * @see AS4ServerConfiguration#getInboxFailedRetentionDays()
+   */
+  @Nonnegative
+  public int purgeFailedEntries ()
+  {
+    if (m_nFailedRetentionDays <= 0)
+      return 0;
+
+    final int nPurged = m_aMgr.purgeFailedEntries (m_nMaxAttempts,
+                                                   PDTFactory.getCurrentLocalDateTime ()
+                                                             .minusDays (m_nFailedRetentionDays));
+    if (nPurged > 0)
+      s_aLogger.info ("Purged " + nPurged + " failed inbox entries older than " + m_nFailedRetentionDays + " days");
+    return nPurged;
+  }
+
+  private void _schedule (@Nonnull final AS4InboxEntry aEntry)
+  {
+    final LocalDateTime aNextDT = aEntry.getNextAttemptDateTime ();
+    final long nDelayMS = aNextDT == null ? 0
+                                          : Math.max (0,
+                                                      Duration.between (PDTFactory.getCurrentLocalDateTime (), aNextDT)
+                                                              .toMillis ());
+    try
+    {
+      m_aExecutor.schedule ( () -> {
+        // Message processors run on behalf of the AS4 system user
+        try (final AS4SystemPrincipal aPrincipal = AS4SystemPrincipal.activate ())
+        {
+          _deliver (aEntry);
+        }
+      }, nDelayMS, TimeUnit.MILLISECONDS);
+    }
+    catch (final RejectedExecutionException ex)
+    {
+      // Shutting down - will be recovered on next startup
+      s_aLogger.info ("Inbox entry " + aEntry.getID () + " will be delivered after restart");
+    }
+  }
+
+  private void _deliver (@Nonnull final AS4InboxEntry aEntry)
+  {
+    String sError;
+    try (final AS4ResourceManager aResMgr = new AS4ResourceManager (AS4ServerSettings.getSpoolManager ()))
+    {
+      final Ebms3UserMessage aUserMessage = m_aMgr.readUserMessage (aEntry);
+      if (aUserMessage == null)
+        throw new IllegalStateException ("Failed to read stored user message");
+      final Node aPayloadNode = m_aMgr.readPayload (aEntry);
+      final ICommonsList <WSS4JAttachment> aAttachments = m_aMgr.createAttachments (aEntry, aResMgr);
+
+      sError = null;
+      for (final IAS4ServletMessageProcessorSPI aProcessor : AS4ServletMessageProcessorManager.getProcessorSnapshot ())
+      {
+        final AS4MessageProcessorResult aResult = aProcessor.processAS4Message (aUserMessage,
+                                                                                aPayloadNode,
+                                                                                aAttachments);
+        if (aResult == null)
+          throw new IllegalStateException ("No result object present from " + aProcessor);
+        if (aResult.isFailure ())
+        {
+          sError = "AS4 message processor " + aProcessor + " returned a failure: " + aResult.getErrorMessage ();
+          break;
+        }
+      }
+    }
+    catch (final Throwable t)
+    {
+      s_aLogger.warn ("Error delivering inbox entry " + aEntry.getID (), t);
+      sError = t.getClass ().getName () + ": " + t.getMessage ();
+    }
+
+    if (sError == null)
+    {
+      m_aMgr.markDelivered (aEntry);
+      if (s_aLogger.isDebugEnabled ())
+        s_aLogger.debug ("Successfully delivered inbox entry " + aEntry.getID ());
+    }
+    else
+    {
+      final int nAttempt = aEntry.getAttempts () + 1;
+      if (nAttempt < m_nMaxAttempts)
+      {
+        // Exponential backoff
+        final long nDelayMS = Math.min (MAX_RETRY_DELAY_MS, m_nRetryDelayMS << Math.min (nAttempt - 1, 30));
+        m_aMgr.markAttemptFailed (aEntry, PDTFactory.getCurrentLocalDateTime ().plus (Duration.ofMillis (nDelayMS)), sError);
+        s_aLogger.warn ("Delivery attempt " + nAttempt + " of inbox entry " + aEntry.getID () + " failed: " + sError);
+        _schedule (aEntry);
+      }
+      else
+      {
+        m_aMgr.markAttemptFailed (aEntry, null, sError);
+        s_aLogger.error ("Giving up delivering inbox entry " +
+                         aEntry.getID () +
+                         " with message ID " +
+                         aEntry.getMessageID () +
+                         " after " +
+                         nAttempt +
+                         " attempts: " +
+                         sError);
+      }
+    }
+  }
+}
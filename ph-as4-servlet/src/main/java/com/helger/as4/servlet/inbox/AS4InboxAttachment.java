@@ -0,0 +1,120 @@
+/**
+ * Copyright (C) 2015-2017 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.as4.servlet.inbox;
+
+import java.io.Serializable;
+import java.util.Map;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.Immutable;
+
+import com.helger.commons.ValueEnforcer;
+import com.helger.commons.annotation.Nonempty;
+import com.helger.commons.annotation.ReturnsMutableCopy;
+import com.helger.commons.collection.ext.CommonsLinkedHashMap;
+import com.helger.commons.collection.ext.ICommonsOrderedMap;
+import com.helger.commons.string.ToStringGenerator;
+
+/**
+ * Meta data of a single attachment stored in the inbox. The content itself
+ * resides in the spool directory of the owning {@link AS4InboxEntry}.
+ *
+ * @author Philip Helger
+ */
+@Immutable
+public class AS4InboxAttachment implements Serializable
+{
+  private final String m_sID;
+  private final String m_sMimeType;
+  private final String m_sFilename;
+  private final ICommonsOrderedMap <String, String> m_aHeaders;
+
+  public AS4InboxAttachment (@Nonnull @Nonempty final String sID,
+                             @Nullable final String sMimeType,
+                             @Nonnull @Nonempty final String sFilename)
+  {
+    this (sID, sMimeType, sFilename, null);
+  }
+
+  public AS4InboxAttachment (@Nonnull @Nonempty final String sID,
+                             @Nullable final String sMimeType,
+                             @Nonnull @Nonempty final String sFilename,
+                             @Nullable final Map <String, String> aHeaders)
+  {
+    m_sID = ValueEnforcer.notEmpty (sID, "ID");
+    m_sMimeType = sMimeType;
+    m_sFilename = ValueEnforcer.notEmpty (sFilename, "Filename");
+    m_aHeaders = new CommonsLinkedHashMap <> ();
+    if (aHeaders != null)
+      m_aHeaders.putAll (aHeaders);
+  }
+
+  /**
+   * @return The original attachment ID (Content-ID). Neither
+   *         <code>null</code> nor empty.
+   */
+  @Nonnull
+  @Nonempty
+  public String getID ()
+  {
+    return m_sID;
+  }
+
+  /**
+   * @return The MIME type of the decrypted and decompressed attachment. May
+   *         be <code>null</code>.
+   */
+  @Nullable
+  public String getMimeType ()
+  {
+    return m_sMimeType;
+  }
+
+  /**
+   * @return The local filename inside the entry spool directory. Neither
+   *         <code>null</code> nor empty.
+   */
+  @Nonnull
+  @Nonempty
+  public String getFilename ()
+  {
+    return m_sFilename;
+  }
+
+  /**
+   * @return All MIME headers of the original attachment (e.g.
+   *         Content-Description or Content-Disposition) in the original
+   *         order. Never <code>null</code> but maybe empty.
+   */
+  @Nonnull
+  @ReturnsMutableCopy
+  public ICommonsOrderedMap <String, String> getAllHeaders ()
+  {
+    return m_aHeaders.getClone ();
+  }
+
+  @Override
+  public String toString ()
+  {
+    return new ToStringGenerator (this).append ("ID", m_sID)
+                                       .append ("MimeType", m_sMimeType)
+                                       .append ("Filename", m_sFilename)
+                                       .append ("Headers", m_aHeaders)
+                                       .getToString ();
+  }
+}
@@ -0,0 +1,191 @@
+/**
+ * Copyright (C) 2015-2017 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.as4.servlet.inbox;
+
+import java.io.Serializable;
+import java.time.LocalDateTime;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.NotThreadSafe;
+
+import com.helger.commons.ValueEnforcer;
+import com.helger.commons.annotation.Nonempty;
+import com.helger.commons.annotation.ReturnsMutableCopy;
+import com.helger.commons.collection.ext.CommonsArrayList;
+import com.helger.commons.collection.ext.ICommonsList;
+import com.helger.commons.datetime.PDTFactory;
+import com.helger.commons.hashcode.HashCodeGenerator;
+import com.helger.commons.id.IHasID;
+import com.helger.commons.string.ToStringGenerator;
+
+/**
+ * A single message stored in the durable inbox, waiting to be delivered to
+ * the message processors.
+ *
+ * @author Philip Helger
+ */
+@NotThreadSafe
+public class AS4InboxEntry implements IHasID <String>, Serializable
+{
+  private final String m_sID;
+  private final String m_sMessageID;
+  private final LocalDateTime m_aCreationDT;
+  private final ICommonsList <AS4InboxAttachment> m_aAttachments;
+  private int m_nAttempts;
+  private LocalDateTime m_aLastAttemptDT;
+  private LocalDateTime m_aNextAttemptDT;
+  private String m_sLastError;
+
+  public AS4InboxEntry (@Nonnull @Nonempty final String sID,
+                        @Nonnull @Nonempty final String sMessageID,
+                        @Nonnull final Iterable <AS4InboxAttachment> aAttachments)
+  {
+    this (sID, sMessageID, PDTFactory.getCurrentLocalDateTime (), aAttachments, 0, null, null, null);
+  }
+
+  AS4InboxEntry (@Nonnull @Nonempty final String sID,
+                 @Nonnull @Nonempty final String sMessageID,
+                 @Nonnull final LocalDateTime aCreationDT,
+                 @Nonnull final Iterable <AS4InboxAttachment> aAttachments,
+                 @Nonnegative final int nAttempts,
+                 @Nullable final LocalDateTime aLastAttemptDT,
+                 @Nullable final LocalDateTime aNextAttemptDT,
+                 @Nullable final String sLastError)
+  {
+    m_sID = ValueEnforcer.notEmpty (sID, "ID");
+    m_sMessageID = ValueEnforcer.notEmpty (sMessageID, "MessageID");
+    m_aCreationDT = ValueEnforcer.notNull (aCreationDT, "CreationDT");
+    m_aAttachments = new CommonsArrayList <> (ValueEnforcer.notNull (aAttachments, "Attachments"));
+    m_nAttempts = ValueEnforcer.isGE0 (nAttempts, "Attempts");
+    m_aLastAttemptDT = aLastAttemptDT;
+    m_aNextAttemptDT = aNextAttemptDT;
+    m_sLastError = sLastError;
+  }
+
+  /**
+   * @return The internal inbox ID which is also the spool directory name.
+   */
+  @Nonnull
+  @Nonempty
+  public String getID ()
+  {
+    return m_sID;
+  }
+
+  /**
+   * @return The AS4 message ID of the stored user message.
+   */
+  @Nonnull
+  @Nonempty
+  public String getMessageID ()
+  {
+    return m_sMessageID;
+  }
+
+  @Nonnull
+  public LocalDateTime getCreationDateTime ()
+  {
+    return m_aCreationDT;
+  }
+
+  @Nonnull
+  @ReturnsMutableCopy
+  public ICommonsList <AS4InboxAttachment> getAllAttachments ()
+  {
+    return m_aAttachments.getClone ();
+  }
+
+  /**
+   * @return The number of failed delivery attempts so far.
+   */
+  @Nonnegative
+  public int getAttempts ()
+  {
+    return m_nAttempts;
+  }
+
+  /**
+   * @return The date time of the last failed delivery attempt. May be
+   *         <code>null</code> if no attempt failed so far.
+   */
+  @Nullable
+  public LocalDateTime getLastAttemptDateTime ()
+  {
+    return m_aLastAttemptDT;
+  }
+
+  /**
+   * @return The earliest date time for the next delivery attempt. May be
+   *         <code>null</code> if the entry can be delivered immediately.
+   */
+  @Nullable
+  public LocalDateTime getNextAttemptDateTime ()
+  {
+    return m_aNextAttemptDT;
+  }
+
+  /**
+   * @return The error message of the last failed attempt. May be
+   *         <code>null</code>.
+   */
+  @Nullable
+  public String getLastError ()
+  {
+    return m_sLastError;
+  }
+
+  void onFailedAttempt (@Nullable final LocalDateTime aNextAttemptDT, @Nullable final String sLastError)
+  {
+    m_nAttempts++;
+    m_aLastAttemptDT = PDTFactory.getCurrentLocalDateTime ();
+    m_aNextAttemptDT = aNextAttemptDT;
+    m_sLastError = sLastError;
+  }
+
+  @Override
+  public boolean equals (final Object o)
+  {
+    if (o == this)
+      return true;
+    if (o == null || !getClass ().equals (o.getClass ()))
+      return false;
+    final AS4InboxEntry rhs = (AS4InboxEntry) o;
+    return m_sID.equals (rhs.m_sID);
+  }
+
+  @Override
+  public int hashCode ()
+  {
+    return new HashCodeGenerator (this).append (m_sID).getHashCode ();
+  }
+
+  @Override
+  public String toString ()
+  {
+    return new ToStringGenerator (null).append ("ID", m_sID)
+                                       .append ("MessageID", m_sMessageID)
+                                       .append ("CreationDT", m_aCreationDT)
+                                       .append ("Attachments", m_aAttachments)
+                                       .append ("Attempts", m_nAttempts)
+                                       .append ("LastAttemptDT", m_aLastAttemptDT)
+                                       .append ("NextAttemptDT", m_aNextAttemptDT)
+                                       .append ("LastError", m_sLastError)
+                                       .getToString ();
+  }
+}
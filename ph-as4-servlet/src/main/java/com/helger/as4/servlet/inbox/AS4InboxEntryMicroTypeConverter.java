@@ -0,0 +1,120 @@
+/**
+ * Copyright (C) 2015-2017 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.as4.servlet.inbox;
+
+import java.time.LocalDateTime;
+import java.util.Map;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import com.helger.commons.collection.ext.CommonsArrayList;
+import com.helger.commons.collection.ext.CommonsLinkedHashMap;
+import com.helger.commons.collection.ext.ICommonsList;
+import com.helger.commons.collection.ext.ICommonsOrderedMap;
+import com.helger.xml.microdom.IMicroElement;
+import com.helger.xml.microdom.MicroElement;
+import com.helger.xml.microdom.convert.IMicroTypeConverter;
+
+/**
+ * Micro type converter for class {@link AS4InboxEntry}.
+ *
+ * @author Philip Helger
+ */
+public final class AS4InboxEntryMicroTypeConverter implements IMicroTypeConverter
+{
+  private static final String ATTR_ID = "id";
+  private static final String ATTR_MESSAGE_ID = "msgid";
+  private static final String ATTR_CREATION_DT = "creationdt";
+  private static final String ATTR_ATTEMPTS = "attempts";
+  private static final String ATTR_LAST_ATTEMPT_DT = "lastattemptdt";
+  private static final String ATTR_NEXT_ATTEMPT_DT = "nextattemptdt";
+  private static final String ELEMENT_LAST_ERROR = "lasterror";
+  private static final String ELEMENT_ATTACHMENT = "attachment";
+  private static final String ATTR_ATTACHMENT_ID = "id";
+  private static final String ATTR_ATTACHMENT_MIME_TYPE = "mimetype";
+  private static final String ATTR_ATTACHMENT_FILENAME = "filename";
+  private static final String ELEMENT_HEADER = "header";
+  private static final String ATTR_HEADER_NAME = "name";
+  private static final String ATTR_HEADER_VALUE = "value";
+
+  @Nonnull
+  public IMicroElement convertToMicroElement (@Nonnull final Object aObject,
+                                              @Nullable final String sNamespaceURI,
+                                              @Nonnull final String sTagName)
+  {
+    final AS4InboxEntry aValue = (AS4InboxEntry) aObject;
+    final IMicroElement ret = new MicroElement (sNamespaceURI, sTagName);
+    ret.setAttribute (ATTR_ID, aValue.getID ());
+    ret.setAttribute (ATTR_MESSAGE_ID, aValue.getMessageID ());
+    ret.setAttributeWithConversion (ATTR_CREATION_DT, aValue.getCreationDateTime ());
+    ret.setAttribute (ATTR_ATTEMPTS, aValue.getAttempts ());
+    ret.setAttributeWithConversion (ATTR_LAST_ATTEMPT_DT, aValue.getLastAttemptDateTime ());
+    ret.setAttributeWithConversion (ATTR_NEXT_ATTEMPT_DT, aValue.getNextAttemptDateTime ());
+    if (aValue.getLastError () != null)
+      ret.appendElement (sNamespaceURI, ELEMENT_LAST_ERROR).appendText (aValue.getLastError ());
+    for (final AS4InboxAttachment aAttachment : aValue.getAllAttachments ())
+    {
+      final IMicroElement eAttachment = ret.appendElement (sNamespaceURI, ELEMENT_ATTACHMENT)
+                                           .setAttribute (ATTR_ATTACHMENT_ID, aAttachment.getID ())
+                                           .setAttribute (ATTR_ATTACHMENT_MIME_TYPE, aAttachment.getMimeType ())
+                                           .setAttribute (ATTR_ATTACHMENT_FILENAME, aAttachment.getFilename ());
+      for (final Map.Entry <String, String> aEntry : aAttachment.getAllHeaders ().entrySet ())
+        eAttachment.appendElement (sNamespaceURI, ELEMENT_HEADER)
+                   .setAttribute (ATTR_HEADER_NAME, aEntry.getKey ())
+                   .setAttribute (ATTR_HEADER_VALUE, aEntry.getValue ());
+    }
+    return ret;
+  }
+
+  @Nonnull
+  public AS4InboxEntry convertToNative (@Nonnull final IMicroElement aElement)
+  {
+    final String sID = aElement.getAttributeValue (ATTR_ID);
+    final String sMessageID = aElement.getAttributeValue (ATTR_MESSAGE_ID);
+    final LocalDateTime aCreationDT = aElement.getAttributeValueWithConversion (ATTR_CREATION_DT,
+                                                                                 LocalDateTime.class);
+    final int nAttempts = aElement.getAttributeValueAsInt (ATTR_ATTEMPTS, 0);
+    final LocalDateTime aLastAttemptDT = aElement.getAttributeValueWithConversion (ATTR_LAST_ATTEMPT_DT,
+                                                                                    LocalDateTime.class);
+    final LocalDateTime aNextAttemptDT = aElement.getAttributeValueWithConversion (ATTR_NEXT_ATTEMPT_DT,
+                                                                                    LocalDateTime.class);
+    final IMicroElement eLastError = aElement.getFirstChildElement (ELEMENT_LAST_ERROR);
+    final String sLastError = eLastError == null ? null : eLastError.getTextContent ();
+
+    final ICommonsList <AS4InboxAttachment> aAttachments = new CommonsArrayList <> ();
+    for (final IMicroElement eAttachment : aElement.getAllChildElements (ELEMENT_ATTACHMENT))
+    {
+      final ICommonsOrderedMap <String, String> aHeaders = new CommonsLinkedHashMap <> ();
+      for (final IMicroElement eHeader : eAttachment.getAllChildElements (ELEMENT_HEADER))
+        aHeaders.put (eHeader.getAttributeValue (ATTR_HEADER_NAME), eHeader.getAttributeValue (ATTR_HEADER_VALUE));
+      aAttachments.add (new AS4InboxAttachment (eAttachment.getAttributeValue (ATTR_ATTACHMENT_ID),
+                                                eAttachment.getAttributeValue (ATTR_ATTACHMENT_MIME_TYPE),
+                                                eAttachment.getAttributeValue (ATTR_ATTACHMENT_FILENAME),
+                                                aHeaders));
+    }
+
+    return new AS4InboxEntry (sID,
+                              sMessageID,
+                              aCreationDT,
+                              aAttachments,
+                              nAttempts,
+                              aLastAttemptDT,
+                              aNextAttemptDT,
+                              sLastError);
+  }
+}
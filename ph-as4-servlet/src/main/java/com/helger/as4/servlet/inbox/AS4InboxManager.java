@@ -0,0 +1,332 @@
+/**
+ * Copyright (C) 2015-2017 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.as4.servlet.inbox;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.time.LocalDateTime;
+import java.util.UUID;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
+import javax.xml.transform.TransformerException;
+
+import org.apache.wss4j.common.util.AttachmentUtils;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.xml.sax.SAXException;
+
+import com.helger.as4.attachment.WSS4JAttachment;
+import com.helger.as4.marshaller.AS4Marshaller;
+import com.helger.as4.marshaller.EEbms3DocumentType;
+import com.helger.as4.util.AS4IOHelper;
+import com.helger.as4.util.AS4ResourceManager;
+import com.helger.as4.util.AS4XMLHelper;
+import com.helger.as4lib.ebms3header.Ebms3Messaging;
+import com.helger.as4lib.ebms3header.Ebms3UserMessage;
+import com.helger.commons.ValueEnforcer;
+import com.helger.commons.annotation.ReturnsMutableCopy;
+import com.helger.commons.collection.ext.CommonsArrayList;
+import com.helger.commons.collection.ext.ICommonsList;
+import com.helger.commons.collection.ext.ICommonsOrderedMap;
+import com.helger.commons.io.file.FileHelper;
+import com.helger.commons.io.stream.StreamHelper;
+import com.helger.photon.basic.app.dao.impl.AbstractMapBasedWALDAO;
+import com.helger.photon.basic.app.dao.impl.DAOException;
+import com.helger.xml.serialize.read.DOMReader;
+
+/**
+ * Persistent store of the durable inbox. The meta data of all entries is
+ * journaled in a WAL DAO, whereas the message content (user message, SOAP body
+ * payload and decrypted attachments) is spooled into one directory per entry.
+ * The spool files are owned by the inbox and survive the request that created
+ * them.
+ *
+ * @author Philip Helger
+ */
+@ThreadSafe
+public final class AS4InboxManager extends AbstractMapBasedWALDAO <AS4InboxEntry, AS4InboxEntry>
+{
+  private static final String FILENAME_USER_MESSAGE = "usermessage.xml";
+  private static final String FILENAME_PAYLOAD = "payload.xml";
+
+  private final File m_aSpoolDir;
+
+  public AS4InboxManager (@Nullable final String sFilename, @Nonnull final File aSpoolDir) throws DAOException
+  {
+    super (AS4InboxEntry.class, sFilename);
+    ValueEnforcer.notNull (aSpoolDir, "SpoolDir");
+    m_aSpoolDir = aSpoolDir;
+    if (AS4IOHelper.getFileOperationManager ().createDirRecursiveIfNotExisting (aSpoolDir).isFailure ())
+      throw new DAOException ("Failed to create inbox spool directory " + aSpoolDir.getAbsolutePath ());
+  }
+
+  @Nonnull
+  private File _getEntryDir (@Nonnull final String sID)
+  {
+    return new File (m_aSpoolDir, sID);
+  }
+
+  /**
+   * Persist a new message in the inbox. When this method returns, the message
+   * is durably stored and the receipt may be sent.
+   *
+   * @param aUserMessage
+   *        The user message. May not be <code>null</code>.
+   * @param aPayloadNode
+   *        The SOAP body payload. May be <code>null</code>.
+   * @param aAttachments
+   *        The decrypted and decompressed attachments. May not be
+   *        <code>null</code>.
+   * @return The created entry. Never <code>null</code>.
+   * @throws IOException
+   *         In case storing fails
+   */
+  @Nonnull
+  public AS4InboxEntry storeMessage (@Nonnull final Ebms3UserMessage aUserMessage,
+                                     @Nullable final Node aPayloadNode,
+                                     @Nonnull final ICommonsList <WSS4JAttachment> aAttachments) throws IOException
+  {
+    ValueEnforcer.notNull (aUserMessage, "UserMessage");
+    ValueEnforcer.notNull (aAttachments, "Attachments");
+
+    final String sID = UUID.randomUUID ().toString ();
+    final File aDir = _getEntryDir (sID);
+    if (AS4IOHelper.getFileOperationManager ().createDir (aDir).isFailure ())
+      throw new IOException ("Failed to create inbox directory " + aDir.getAbsolutePath ());
+
+    try
+    {
+      final Ebms3Messaging aMessaging = new Ebms3Messaging ();
+      aMessaging.addUserMessage (aUserMessage);
+      if (AS4Marshaller.write (EEbms3DocumentType.MESSAGING,
+                               Ebms3Messaging.class,
+                               aMessaging,
+                               new File (aDir, FILENAME_USER_MESSAGE))
+                       .isFailure ())
+        throw new IOException ("Failed to write user message to inbox");
+
+      if (aPayloadNode instanceof Element)
+      {
+        try (final OutputStream aOS = StreamHelper.getBuffered (FileHelper.getOutputStream (new File (aDir,
+                                                                                                 FILENAME_PAYLOAD))))
+        {
+          if (aOS == null)
+            throw new IOException ("Failed to write SOAP body payload to inbox");
+          AS4XMLHelper.serializeXML (aPayloadNode, aOS);
+        }
+        catch (final TransformerException ex)
+        {
+          throw new IOException ("Failed to serialize SOAP body payload", ex);
+        }
+      }
+
+      final ICommonsList <AS4InboxAttachment> aInboxAttachments = new CommonsArrayList <> ();
+      for (final WSS4JAttachment aAttachment : aAttachments)
+      {
+        final String sFilename = "attachment-" + aInboxAttachments.size () + ".bin";
+        try (final InputStream aIS = aAttachment.getSourceStream ();
+            final OutputStream aOS = StreamHelper.getBuffered (FileHelper.getOutputStream (new File (aDir,
+                                                                                                   sFilename))))
+        {
+          if (aOS == null || StreamHelper.copyInputStreamToOutputStream (aIS, aOS).isFailure ())
+            throw new IOException ("Failed to write attachment " + aAttachment.getId () + " to inbox");
+        }
+        aInboxAttachments.add (new AS4InboxAttachment (aAttachment.getId (),
+                                                       aAttachment.getMimeType (),
+                                                       sFilename,
+                                                       aAttachment.getHeaders ()));
+      }
+
+      final AS4InboxEntry aEntry = new AS4InboxEntry (sID,
+                                                      aUserMessage.getMessageInfo ().getMessageId (),
+                                                      aInboxAttachments);
+      m_aRWLock.writeLocked ( () -> {
+        internalCreateItem (aEntry);
+      });
+      return aEntry;
+    }
+    catch (final IOException | RuntimeException ex)
+    {
+      AS4IOHelper.getFileOperationManager ().deleteDirRecursiveIfExisting (aDir);
+      throw ex;
+    }
+  }
+
+  /**
+   * Read the stored user message of an entry.
+   *
+   * @param aEntry
+   *        The entry to read. May not be <code>null</code>.
+   * @return <code>null</code> if reading failed.
+   */
+  @Nullable
+  public Ebms3UserMessage readUserMessage (@Nonnull final AS4InboxEntry aEntry)
+  {
+    final Ebms3Messaging aMessaging = AS4Marshaller.read (EEbms3DocumentType.MESSAGING,
+                                                          Ebms3Messaging.class,
+                                                          new File (_getEntryDir (aEntry.getID ()), FILENAME_USER_MESSAGE));
+    return aMessaging == null || aMessaging.hasNoUserMessageEntries () ? null : aMessaging.getUserMessageAtIndex (0);
+  }
+
+  /**
+   * Read the stored SOAP body payload of an entry.
+   *
+   * @param aEntry
+   *        The entry to read. May not be <code>null</code>.
+   * @return <code>null</code> if no payload was stored.
+   * @throws SAXException
+   *         If the stored payload cannot be parsed
+   */
+  @Nullable
+  public Node readPayload (@Nonnull final AS4InboxEntry aEntry) throws SAXException
+  {
+    final File aFile = new File (_getEntryDir (aEntry.getID ()), FILENAME_PAYLOAD);
+    if (!aFile.exists ())
+      return null;
+    final Document aDoc = DOMReader.readXMLDOM (aFile);
+    return aDoc == null ? null : aDoc.getDocumentElement ();
+  }
+
+  /**
+   * Create attachment objects for all stored attachments of an entry.
+   *
+   * @param aEntry
+   *        The entry to read. May not be <code>null</code>.
+   * @param aResMgr
+   *        The resource manager that closes the opened streams. May not be
+   *        <code>null</code>.
+   * @return A non-<code>null</code> list of attachments.
+   */
+  @Nonnull
+  @ReturnsMutableCopy
+  public ICommonsList <WSS4JAttachment> createAttachments (@Nonnull final AS4InboxEntry aEntry,
+                                                          @Nonnull final AS4ResourceManager aResMgr)
+  {
+    final File aDir = _getEntryDir (aEntry.getID ());
+    final ICommonsList <WSS4JAttachment> ret = new CommonsArrayList <> ();
+    for (final AS4InboxAttachment aInboxAttachment : aEntry.getAllAttachments ())
+    {
+      final WSS4JAttachment aAttachment = new WSS4JAttachment (aResMgr, aInboxAttachment.getMimeType ());
+      aAttachment.setId (aInboxAttachment.getID ());
+      final ICommonsOrderedMap <String, String> aHeaders = aInboxAttachment.getAllHeaders ();
+      if (aHeaders.isEmpty ())
+      {
+        // Entries stored by previous versions only know the ID
+        aAttachment.addHeader (AttachmentUtils.MIME_HEADER_CONTENT_ID, "<attachment=" + aInboxAttachment.getID () + ">");
+      }
+      else
+      {
+        aHeaders.forEach (aAttachment::addHeader);
+        // The stored content is decrypted and decompressed
+        if (aInboxAttachment.getMimeType () != null)
+          aAttachment.addHeader (AttachmentUtils.MIME_HEADER_CONTENT_TYPE, aInboxAttachment.getMimeType ());
+      }
+      final File aFile = new File (aDir, aInboxAttachment.getFilename ());
+      aAttachment.setSourceStreamProvider ( () -> StreamHelper.getBuffered (FileHelper.getInputStream (aFile)));
+      ret.add (aAttachment);
+    }
+    return ret;
+  }
+
+  /**
+   * Remember a failed delivery attempt.
+   *
+   * @param aEntry
+   *        The entry that failed. May not be <code>null</code>.
+   * @param aNextAttemptDT
+   *        The date time of the next attempt. May be <code>null</code> if no
+   *        further attempts should be made.
+   * @param sError
+   *        The error message. May be <code>null</code>.
+   */
+  public void markAttemptFailed (@Nonnull final AS4InboxEntry aEntry,
+                                 @Nullable final LocalDateTime aNextAttemptDT,
+                                 @Nullable final String sError)
+  {
+    ValueEnforcer.notNull (aEntry, "Entry");
+    m_aRWLock.writeLocked ( () -> {
+      aEntry.onFailedAttempt (aNextAttemptDT, sError);
+      internalUpdateItem (aEntry);
+    });
+  }
+
+  /**
+   * Remove an entry and all its spool files after successful delivery.
+   *
+   * @param aEntry
+   *        The entry that was delivered. May not be <code>null</code>.
+   */
+  public void markDelivered (@Nonnull final AS4InboxEntry aEntry)
+  {
+    ValueEnforcer.notNull (aEntry, "Entry");
+    m_aRWLock.writeLocked ( () -> {
+      internalDeleteItem (aEntry.getID ());
+    });
+    AS4IOHelper.getFileOperationManager ().deleteDirRecursiveIfExisting (_getEntryDir (aEntry.getID ()));
+  }
+
+  /**
+   * Remove all entries that exhausted their delivery attempts, together with
+   * their spool files.
+   *
+   * @param nMaxAttempts
+   *        The maximum number of delivery attempts. Entries with at least this
+   *        number of failed attempts are considered finally failed.
+   * @param aLastAttemptBefore
+   *        Only entries whose last attempt is before this date time are
+   *        removed. May not be <code>null</code>.
+   * @return The number of removed entries. Always &ge; 0.
+   */
+  @Nonnegative
+  public int purgeFailedEntries (@Nonnegative final int nMaxAttempts, @Nonnull final LocalDateTime aLastAttemptBefore)
+  {
+    ValueEnforcer.notNull (aLastAttemptBefore, "LastAttemptBefore");
+
+    final ICommonsList <AS4InboxEntry> aPurged = new CommonsArrayList <> ();
+    for (final AS4InboxEntry aEntry : getAll ())
+    {
+      final LocalDateTime aLastAttemptDT = aEntry.getLastAttemptDateTime ();
+      if (aEntry.getAttempts () >= nMaxAttempts &&
+          aLastAttemptDT != null &&
+          aLastAttemptDT.isBefore (aLastAttemptBefore))
+        aPurged.add (aEntry);
+    }
+    if (aPurged.isNotEmpty ())
+    {
+      m_aRWLock.writeLocked ( () -> {
+        for (final AS4InboxEntry aEntry : aPurged)
+          internalDeleteItem (aEntry.getID ());
+      });
+      for (final AS4InboxEntry aEntry : aPurged)
+        AS4IOHelper.getFileOperationManager ().deleteDirRecursiveIfExisting (_getEntryDir (aEntry.getID ()));
+    }
+    return aPurged.size ();
+  }
+
+  @Nonnull
+  @ReturnsMutableCopy
+  public ICommonsList <AS4InboxEntry> getAllEntries ()
+  {
+    return getAll ();
+  }
+}
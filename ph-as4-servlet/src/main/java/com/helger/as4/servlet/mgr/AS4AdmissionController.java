@@ -0,0 +1,231 @@
+/**
+ * Copyright (C) 2015-2017 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.as4.servlet.mgr;
+
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.helger.commons.ValueEnforcer;
+import com.helger.commons.collection.ext.CommonsEnumMap;
+import com.helger.commons.statistics.IMutableStatisticsHandlerCounter;
+import com.helger.commons.statistics.IMutableStatisticsHandlerKeyedCounter;
+import com.helger.commons.statistics.StatisticsManager;
+
+/**
+ * Admission control for incoming AS4 requests. It limits the number of
+ * requests processed concurrently and the sum of the declared content lengths
+ * of all requests in flight. Both limits are configured in
+ * {@link AS4ServerConfiguration}; values &le; 0 mean unlimited.<br>
+ * Rejected requests are counted per {@link EAS4RejectReason} and logged at most
+ * once per reason within the configured log interval, so that a misbehaving
+ * partner cannot flood the log.
+ *
+ * @author Philip Helger
+ */
+@ThreadSafe
+public final class AS4AdmissionController
+{
+  private static final Logger s_aLogger = LoggerFactory.getLogger (AS4AdmissionController.class);
+  private static final IMutableStatisticsHandlerCounter s_aStatsAdmitted = StatisticsManager.getCounterHandler (AS4AdmissionController.class.getName () +
+                                                                                                                   "$admitted");
+  private static final IMutableStatisticsHandlerKeyedCounter s_aStatsRejected = StatisticsManager.getKeyedCounterHandler (AS4AdmissionController.class.getName () +
+                                                                                                                         "$rejected");
+
+  private static final AtomicInteger s_aConcurrentRequests = new AtomicInteger (0);
+  private static final AtomicLong s_aInFlightBytes = new AtomicLong (0);
+
+  // Rate limiting of reject log entries
+  private static final Map <EAS4RejectReason, AtomicLong> s_aLastLogMillis = new CommonsEnumMap <> (EAS4RejectReason.class);
+  private static final Map <EAS4RejectReason, AtomicLong> s_aSuppressedLogs = new CommonsEnumMap <> (EAS4RejectReason.class);
+
+  static
+  {
+    for (final EAS4RejectReason e : EAS4RejectReason.values ())
+    {
+      s_aLastLogMillis.put (e, new AtomicLong (Long.MIN_VALUE));
+      s_aSuppressedLogs.put (e, new AtomicLong (0));
+    }
+  }
+
+  private AS4AdmissionController ()
+  {}
+
+  /**
+   * Try to admit a new request.
+   *
+   * @param nDeclaredBytes
+   *        The content length to charge to the in-flight budget. Requests
+   *        without a declared length should be charged with the maximum
+   *        request size. Negative values are treated as 0.
+   * @return The ticket. Never <code>null</code>. Check
+   *         {@link Ticket#isAdmitted()}.
+   */
+  @Nonnull
+  public static Ticket tryAdmit (final long nDeclaredBytes)
+  {
+    final int nMaxConcurrent = AS4ServerConfiguration.getAdmissionMaxConcurrentRequests ();
+    final long nMaxInFlightBytes = AS4ServerConfiguration.getAdmissionMaxInFlightBytes ();
+    final long nBytes = Math.max (0, nDeclaredBytes);
+
+    final int nConcurrent = s_aConcurrentRequests.incrementAndGet ();
+    if (nMaxConcurrent > 0 && nConcurrent > nMaxConcurrent)
+    {
+      s_aConcurrentRequests.decrementAndGet ();
+      return new Ticket (EAS4RejectReason.CONCURRENT_REQUESTS, 0);
+    }
+
+    final long nInFlight = s_aInFlightBytes.addAndGet (nBytes);
+    // A single request bigger than the budget is admitted if nothing else is
+    // in flight
+    if (nMaxInFlightBytes > 0 && nInFlight > nMaxInFlightBytes && nInFlight != nBytes)
+    {
+      s_aInFlightBytes.addAndGet (-nBytes);
+      s_aConcurrentRequests.decrementAndGet ();
+      return new Ticket (EAS4RejectReason.IN_FLIGHT_BYTES, 0);
+    }
+
+    s_aStatsAdmitted.increment ();
+    return new Ticket (null, nBytes);
+  }
+
+  /**
+   * @return The number of requests currently admitted.
+   */
+  @Nonnegative
+  public static int getConcurrentRequestCount ()
+  {
+    return s_aConcurrentRequests.get ();
+  }
+
+  /**
+   * @return The sum of the declared content lengths of all requests currently
+   *         admitted.
+   */
+  @Nonnegative
+  public static long getInFlightBytes ()
+  {
+    return s_aInFlightBytes.get ();
+  }
+
+  /**
+   * @return The number of admitted requests since startup.
+   */
+  @Nonnegative
+  public static long getAdmittedCount ()
+  {
+    return s_aStatsAdmitted.getCount ();
+  }
+
+  /**
+   * @param eReason
+   *        The reason to query. May not be <code>null</code>.
+   * @return The number of rejected requests with the provided reason since
+   *         startup.
+   */
+  @Nonnegative
+  public static long getRejectedCount (@Nonnull final EAS4RejectReason eReason)
+  {
+    ValueEnforcer.notNull (eReason, "Reason");
+    final long ret = s_aStatsRejected.getCount (eReason.getID ());
+    // Unknown keys return CGlobal.ILLEGAL_ULONG
+    return ret < 0 ? 0 : ret;
+  }
+
+  /**
+   * Count a rejected request and log it, unless another rejection with the
+   * same reason was logged within the configured interval.
+   *
+   * @param eReason
+   *        The reject reason. May not be <code>null</code>.
+   * @param sMessage
+   *        The details to log. May not be <code>null</code>.
+   */
+  public static void onRejected (@Nonnull final EAS4RejectReason eReason, @Nonnull final String sMessage)
+  {
+    ValueEnforcer.notNull (eReason, "Reason");
+    s_aStatsRejected.increment (eReason.getID ());
+
+    final long nNow = System.currentTimeMillis ();
+    final long nInterval = AS4ServerConfiguration.getRejectLogIntervalMilliseconds ();
+    final AtomicLong aLastLog = s_aLastLogMillis.get (eReason);
+    final long nLastLog = aLastLog.get ();
+    if ((nLastLog == Long.MIN_VALUE || nNow - nLastLog >= nInterval) && aLastLog.compareAndSet (nLastLog, nNow))
+    {
+      final long nSuppressed = s_aSuppressedLogs.get (eReason).getAndSet (0);
+      s_aLogger.warn ("Rejected AS4 request (" +
+                      eReason.getID () +
+                      "): " +
+                      sMessage +
+                      (nSuppressed > 0 ? " [" + nSuppressed + " similar rejections not logged]" : ""));
+    }
+    else
+      s_aSuppressedLogs.get (eReason).incrementAndGet ();
+  }
+
+  /**
+   * The result of an admission request. If the request was admitted, the
+   * ticket must be closed after the request was processed.
+   *
+   * @author Philip Helger
+   */
+  public static final class Ticket implements AutoCloseable
+  {
+    private final EAS4RejectReason m_eRejectReason;
+    private final long m_nBytes;
+    private final AtomicBoolean m_aClosed = new AtomicBoolean (false);
+
+    private Ticket (@Nullable final EAS4RejectReason eRejectReason, final long nBytes)
+    {
+      m_eRejectReason = eRejectReason;
+      m_nBytes = nBytes;
+    }
+
+    public boolean isAdmitted ()
+    {
+      return m_eRejectReason == null;
+    }
+
+    /**
+     * @return The reason why the request was rejected or <code>null</code> if
+     *         it was admitted.
+     */
+    @Nullable
+    public EAS4RejectReason getRejectReason ()
+    {
+      return m_eRejectReason;
+    }
+
+    public void close ()
+    {
+      if (m_eRejectReason == null && m_aClosed.compareAndSet (false, true))
+      {
+        s_aInFlightBytes.addAndGet (-m_nBytes);
+        s_aConcurrentRequests.decrementAndGet ();
+      }
+    }
+  }
+}
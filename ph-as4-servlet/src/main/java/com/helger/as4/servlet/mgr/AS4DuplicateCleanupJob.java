@@ -9,7 +9,6 @@ import org.slf4j.LoggerFactory;
 
 import com.helger.as4.mgr.MetaAS4Manager;
 import com.helger.commons.collection.ext.CommonsHashMap;
-import com.helger.commons.collection.ext.ICommonsList;
 import com.helger.commons.collection.ext.ICommonsMap;
 import com.helger.commons.datetime.PDTFactory;
 import com.helger.commons.lang.ClassHelper;
@@ -43,9 +42,9 @@ public final class AS4DuplicateCleanupJob extends AbstractScopeAwareJob
     final long nMins = aJobDataMap.getLong (KEY_MINUTES);
     final LocalDateTime aOldDT = PDTFactory.getCurrentLocalDateTime ().minusMinutes (nMins);
 
-    final ICommonsList <String> aEvicted = MetaAS4Manager.getIncomingDuplicateMgr ().evictAllItemsBefore (aOldDT);
-    if (aEvicted.isNotEmpty ())
-      s_aLogger.info ("Evicted " + aEvicted.size () + " incoming duplicate message IDs");
+    final int nEvicted = MetaAS4Manager.getIncomingDuplicateMgr ().evictAllItemsBefore (aOldDT);
+    if (nEvicted > 0)
+      s_aLogger.info ("Evicted " + nEvicted + " incoming duplicate message IDs");
   }
 
   public static void scheduleMe (final long nDisposalMinutes)
@@ -23,6 +23,7 @@ import javax.annotation.concurrent.NotThreadSafe;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.helger.commons.CGlobal;
 import com.helger.commons.annotation.VisibleForTesting;
 import com.helger.commons.exception.InitializationException;
 import com.helger.settings.ISettings;
@@ -48,6 +49,13 @@ public final class AS4ServerConfiguration
   private static final Settings SETTINGS = new Settings ("as4-server");
   private static boolean s_bTestMode = false;
   private static final long DEFAULT_RESET_MINUTES = 10;
+  private static final long DEFAULT_ASYNC_TIMEOUT_MS = 5 * CGlobal.MILLISECONDS_PER_MINUTE;
+  private static final int DEFAULT_INBOX_THREADS = 2;
+  private static final int DEFAULT_INBOX_MAX_ATTEMPTS = 10;
+  private static final long DEFAULT_INBOX_RETRY_DELAY_MS = CGlobal.MILLISECONDS_PER_MINUTE;
+  private static final int DEFAULT_INBOX_FAILED_RETENTION_DAYS = 30;
+  private static final int DEFAULT_ADMISSION_RETRY_AFTER_SECONDS = 5;
+  private static final long DEFAULT_REJECT_LOG_INTERVAL_MS = 10 * CGlobal.MILLISECONDS_PER_SECOND;
 
   public static void reinit (final boolean bForTest)
   {
@@ -140,4 +148,149 @@ public final class AS4ServerConfiguration
     final String sFieldName = "server.incoming.duplicatedisposal.minutes";
     return getSettings ().getAsLong (sFieldName, DEFAULT_RESET_MINUTES);
   }
+
+  /**
+   * @return The number of worker threads used by the asynchronous servlet to
+   *         process AS4 messages. Defaults to the number of available
+   *         processors.
+   */
+  public static int getAsyncProcessingThreadCount ()
+  {
+    return getSettings ().getAsInt ("server.async.threads", Runtime.getRuntime ().availableProcessors ());
+  }
+
+  /**
+   * @return The timeout in milliseconds for a single asynchronous request,
+   *         including upload, processing and response writing. Values &le; 0
+   *         mean no timeout.
+   */
+  public static long getAsyncTimeoutMilliseconds ()
+  {
+    return getSettings ().getAsLong ("server.async.timeout.ms", DEFAULT_ASYNC_TIMEOUT_MS);
+  }
+
+  /**
+   * @return The number of worker threads delivering inbox entries to the
+   *         message processors.
+   */
+  public static int getInboxThreadCount ()
+  {
+    return getSettings ().getAsInt ("server.inbox.threads", DEFAULT_INBOX_THREADS);
+  }
+
+  /**
+   * @return The maximum number of delivery attempts per inbox entry.
+   */
+  public static int getInboxMaxAttempts ()
+  {
+    return getSettings ().getAsInt ("server.inbox.maxattempts", DEFAULT_INBOX_MAX_ATTEMPTS);
+  }
+
+  /**
+   * @return The delay in milliseconds before the first retry of a failed inbox
+   *         delivery. It is doubled for every subsequent retry.
+   */
+  public static long getInboxRetryDelayMilliseconds ()
+  {
+    return getSettings ().getAsLong ("server.inbox.retry.ms", DEFAULT_INBOX_RETRY_DELAY_MS);
+  }
+
+  /**
+   * @return The number of days inbox entries that exhausted all delivery
+   *         attempts are kept before they are purged. Values &le; 0 mean they
+   *         are kept forever.
+   */
+  public static int getInboxFailedRetentionDays ()
+  {
+    return getSettings ().getAsInt ("server.inbox.failed.retention.days", DEFAULT_INBOX_FAILED_RETENTION_DAYS);
+  }
+
+  /**
+   * @return The maximum content length of a single request in bytes. Bigger
+   *         requests are rejected before reading the body. Requests without a
+   *         declared length (chunked) are rejected as soon as more bytes were
+   *         read. Values &le; 0 mean unlimited.
+   */
+  public static long getMaxRequestBytes ()
+  {
+    return getSettings ().getAsLong ("server.request.maxbytes", 0);
+  }
+
+  /**
+   * @return The maximum number of requests processed concurrently. Additional
+   *         requests are rejected with HTTP 503. Values &le; 0 mean unlimited.
+   */
+  public static int getAdmissionMaxConcurrentRequests ()
+  {
+    return getSettings ().getAsInt ("server.admission.maxconcurrent", 0);
+  }
+
+  /**
+   * @return The maximum sum of the declared content lengths of all requests in
+   *         flight. Additional requests are rejected with HTTP 503. Values
+   *         &le; 0 mean unlimited.
+   */
+  public static long getAdmissionMaxInFlightBytes ()
+  {
+    return getSettings ().getAsLong ("server.admission.maxinflightbytes", 0);
+  }
+
+  /**
+   * @return The number of seconds to be sent in the "Retry-After" header of
+   *         overload rejections.
+   */
+  public static int getAdmissionRetryAfterSeconds ()
+  {
+    return getSettings ().getAsInt ("server.admission.retryafter.seconds", DEFAULT_ADMISSION_RETRY_AFTER_SECONDS);
+  }
+
+  /**
+   * @return The minimum interval in milliseconds between two log entries for
+   *         rejected requests with the same reason.
+   */
+  public static long getRejectLogIntervalMilliseconds ()
+  {
+    return getSettings ().getAsLong ("server.reject.log.interval.ms", DEFAULT_REJECT_LOG_INTERVAL_MS);
+  }
+
+  /**
+   * @return The root directory for the temporary files of incoming requests.
+   *         May be <code>null</code> to use the default directory in the
+   *         system temp directory.
+   */
+  @Nullable
+  public static String getSpoolDirectory ()
+  {
+    return getSettings ().getAsString ("server.spool.dir");
+  }
+
+  /**
+   * @return The maximum number of bytes of the temporary files of all requests
+   *         together. Requests exceeding it are rejected with HTTP 503. Values
+   *         &le; 0 mean unlimited.
+   */
+  public static long getSpoolMaxBytes ()
+  {
+    return getSettings ().getAsLong ("server.spool.maxbytes", 0);
+  }
+
+  /**
+   * @return The maximum number of bytes of the temporary files of a single
+   *         request. Requests exceeding it are rejected with HTTP 413. Values
+   *         &le; 0 mean unlimited.
+   */
+  public static long getSpoolMaxRequestBytes ()
+  {
+    return getSettings ().getAsLong ("server.spool.request.maxbytes", 0);
+  }
+
+  /**
+   * @return <code>true</code> if the receipts and errors created by this server
+   *         should be validated against the XML Schema before they are sent.
+   *         Incoming messages are always validated.
+   */
+  public static boolean isValidateOutbound ()
+  {
+    return getSettings ().getAsBoolean ("server.outbound.validate", true);
+  }
 }
@@ -16,16 +16,27 @@
  */
 package com.helger.as4.servlet.mgr;
 
+import java.io.File;
+import java.util.concurrent.ExecutorService;
+
+import javax.annotation.Nonnegative;
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 import javax.annotation.concurrent.NotThreadSafe;
 
+import com.helger.as4.attachment.DefaultIncomingAttachmentFactory;
 import com.helger.as4.attachment.IIncomingAttachmentFactory;
 import com.helger.as4.attachment.WSS4JAttachment;
 import com.helger.as4.crypto.AS4CryptoFactory;
+import com.helger.as4.model.pmode.PModePayloadService;
 import com.helger.as4.model.pmode.config.DefaultPModeConfigResolver;
+import com.helger.as4.model.pmode.config.IPModeConfig;
 import com.helger.as4.model.pmode.config.IPModeConfigResolver;
+import com.helger.as4.util.AS4SpoolManager;
 import com.helger.commons.ValueEnforcer;
 import com.helger.commons.annotation.Nonempty;
+import com.helger.commons.string.StringHelper;
+import com.helger.commons.system.SystemProperties;
 
 @NotThreadSafe
 public final class AS4ServerSettings
@@ -33,10 +44,15 @@ public final class AS4ServerSettings
   private final static String DEFAULT_RESPONDER_ID = "default";
 
   private static String m_sResponderID = DEFAULT_RESPONDER_ID;
-  private static IIncomingAttachmentFactory s_aIncomingAttachmentFactory = WSS4JAttachment::createIncomingFileAttachment;
+  private static IIncomingAttachmentFactory s_aIncomingAttachmentFactory = new DefaultIncomingAttachmentFactory ();
   private static IPModeConfigResolver s_aPModeConfigResolver = new DefaultPModeConfigResolver (false);
 
-  private static AS4CryptoFactory m_aAS4CryptoFactory = new AS4CryptoFactory ();
+  private static AS4CryptoFactory m_aAS4CryptoFactory = AS4CryptoFactory.getDefaultInstance ();
+  private static ExecutorService s_aAsyncExecutor;
+  private static int s_nAttachmentInMemoryThreshold = WSS4JAttachment.DEFAULT_IN_MEMORY_THRESHOLD;
+  private static AS4SpoolManager s_aSpoolManager;
+  // true if s_aSpoolManager was created from the configuration
+  private static boolean s_bOwnSpoolManager = false;
 
   private AS4ServerSettings ()
   {}
@@ -87,4 +103,104 @@ public final class AS4ServerSettings
   {
     m_aAS4CryptoFactory = aAS4CryptoFactory;
   }
+
+  /**
+   * @return The executor to be used by the asynchronous servlet for the CPU
+   *         intensive processing steps. May be <code>null</code> in which case
+   *         the servlet creates its own fixed size thread pool.
+   */
+  @Nullable
+  public static ExecutorService getAsyncExecutor ()
+  {
+    return s_aAsyncExecutor;
+  }
+
+  /**
+   * Set a custom executor for the asynchronous servlet. The lifecycle of the
+   * provided executor is not managed by the servlet. Must be called before the
+   * servlet is initialized.
+   *
+   * @param aAsyncExecutor
+   *        The executor to use. May be <code>null</code>.
+   */
+  public static void setAsyncExecutor (@Nullable final ExecutorService aAsyncExecutor)
+  {
+    s_aAsyncExecutor = aAsyncExecutor;
+  }
+
+  /**
+   * @return The maximum number of bytes of a decrypted or decompressed
+   *         attachment that are kept in memory, if the PMode does not define
+   *         it. Always &ge; 0.
+   */
+  @Nonnegative
+  public static int getAttachmentInMemoryThreshold ()
+  {
+    return s_nAttachmentInMemoryThreshold;
+  }
+
+  public static void setAttachmentInMemoryThreshold (@Nonnegative final int nAttachmentInMemoryThreshold)
+  {
+    ValueEnforcer.isGE0 (nAttachmentInMemoryThreshold, "AttachmentInMemoryThreshold");
+    s_nAttachmentInMemoryThreshold = nAttachmentInMemoryThreshold;
+  }
+
+  /**
+   * Get the in-memory threshold for attachments of the passed PMode.
+   *
+   * @param aPModeConfig
+   *        The PMode config of the current message. May be <code>null</code>.
+   * @return The threshold of the PMode payload service if defined, the global
+   *         threshold otherwise. Always &ge; 0.
+   */
+  @Nonnegative
+  public static int getAttachmentInMemoryThreshold (@Nullable final IPModeConfig aPModeConfig)
+  {
+    final PModePayloadService aPayloadService = aPModeConfig == null ? null : aPModeConfig.getPayloadService ();
+    if (aPayloadService != null && aPayloadService.hasInMemoryThreshold ())
+      return aPayloadService.getInMemoryThreshold ();
+    return s_nAttachmentInMemoryThreshold;
+  }
+
+  /**
+   * @return The spool manager for the temporary files of incoming requests.
+   *         If none was set, it is created upon the first call from the
+   *         settings of {@link AS4ServerConfiguration}. Without a configured
+   *         spool directory, it uses the default root directory of
+   *         {@link AS4SpoolManager} but is a separate instance, so that the
+   *         server quotas don't apply to clients. Never <code>null</code>.
+   */
+  @Nonnull
+  public static synchronized AS4SpoolManager getSpoolManager ()
+  {
+    if (s_aSpoolManager == null)
+    {
+      final String sSpoolDir = AS4ServerConfiguration.getSpoolDirectory ();
+      final File aRootDir = StringHelper.hasText (sSpoolDir) ? new File (sSpoolDir)
+                                                             : new File (SystemProperties.getTmpDir (),
+                                                                         AS4SpoolManager.DEFAULT_ROOT_DIR_NAME);
+      final AS4SpoolManager aSpoolMgr = new AS4SpoolManager (aRootDir);
+      aSpoolMgr.setMaxBytes (AS4ServerConfiguration.getSpoolMaxBytes ());
+      aSpoolMgr.setMaxRequestBytes (AS4ServerConfiguration.getSpoolMaxRequestBytes ());
+      s_aSpoolManager = aSpoolMgr;
+      s_bOwnSpoolManager = true;
+    }
+    return s_aSpoolManager;
+  }
+
+  /**
+   * Set a custom spool manager for the temporary files of incoming requests.
+   * A spool manager previously created from the configuration is closed.
+   *
+   * @param aSpoolManager
+   *        The spool manager to use. May be <code>null</code> to create it
+   *        from the configuration upon the next access.
+   */
+  public static synchronized void setSpoolManager (@Nullable final AS4SpoolManager aSpoolManager)
+  {
+    if (s_bOwnSpoolManager && s_aSpoolManager != aSpoolManager)
+      s_aSpoolManager.close ();
+    s_aSpoolManager = aSpoolManager;
+    s_bOwnSpoolManager = false;
+  }
 }
@@ -16,18 +16,20 @@
  */
 package com.helger.as4.servlet.mgr;
 
+import java.util.Collections;
+import java.util.List;
+
 import javax.annotation.Nonnull;
-import javax.annotation.concurrent.GuardedBy;
 import javax.annotation.concurrent.ThreadSafe;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.helger.as4.servlet.spi.IAS4ServletMessageProcessorSPI;
+import com.helger.commons.annotation.ReturnsImmutableObject;
 import com.helger.commons.annotation.ReturnsMutableCopy;
 import com.helger.commons.collection.ext.CommonsArrayList;
 import com.helger.commons.collection.ext.ICommonsList;
-import com.helger.commons.concurrent.SimpleReadWriteLock;
 import com.helger.commons.lang.ServiceLoaderHelper;
 
 /**
@@ -41,9 +43,8 @@ public final class AS4ServletMessageProcessorManager
 {
   private static final Logger s_aLogger = LoggerFactory.getLogger (AS4ServletMessageProcessorManager.class);
 
-  private static final SimpleReadWriteLock s_aRWLock = new SimpleReadWriteLock ();
-  @GuardedBy ("s_aRWLock")
-  private static final ICommonsList <IAS4ServletMessageProcessorSPI> s_aProcessors = new CommonsArrayList<> ();
+  // Immutable list - replaced as a whole on reinit
+  private static volatile List <IAS4ServletMessageProcessorSPI> s_aProcessors = Collections.emptyList ();
 
   private AS4ServletMessageProcessorManager ()
   {}
@@ -59,7 +60,7 @@ public final class AS4ServletMessageProcessorManager
     else
       s_aLogger.info ("Found " + aProcessorSPIs.size () + " AS4 message processors");
 
-    s_aRWLock.writeLocked ( () -> s_aProcessors.setAll (aProcessorSPIs));
+    s_aProcessors = Collections.unmodifiableList (aProcessorSPIs);
   }
 
   static
@@ -76,6 +77,18 @@ public final class AS4ServletMessageProcessorManager
   @ReturnsMutableCopy
   public static ICommonsList <IAS4ServletMessageProcessorSPI> getAllProcessors ()
   {
-    return s_aRWLock.readLocked ( () -> s_aProcessors.getClone ());
+    return new CommonsArrayList <> (s_aProcessors);
+  }
+
+  /**
+   * @return An immutable snapshot of all registered receiver handlers. Never
+   *         <code>null</code> but maybe empty. Use this in the message
+   *         processing to avoid copying the list for every message.
+   */
+  @Nonnull
+  @ReturnsImmutableObject
+  public static List <IAS4ServletMessageProcessorSPI> getProcessorSnapshot ()
+  {
+    return s_aProcessors;
   }
 }
@@ -0,0 +1,58 @@
+/**
+ * Copyright (C) 2015-2017 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.as4.servlet.mgr;
+
+import javax.annotation.Nonnull;
+
+import com.helger.commons.annotation.Nonempty;
+import com.helger.commons.id.IHasID;
+
+/**
+ * The reasons why an incoming AS4 request is rejected before it is
+ * processed.
+ *
+ * @author Philip Helger
+ */
+public enum EAS4RejectReason implements IHasID <String>
+{
+  /** Missing or invalid HTTP headers or an unparsable message */
+  BAD_REQUEST ("badrequest"),
+  /** The declared content length exceeds the configured maximum */
+  CONTENT_TOO_LARGE ("toolarge"),
+  /** The maximum number of concurrent requests is reached */
+  CONCURRENT_REQUESTS ("concurrent"),
+  /** The budget of bytes of all requests in flight is exhausted */
+  IN_FLIGHT_BYTES ("inflightbytes"),
+  /** The spooled temporary files of a single request exceed the quota */
+  REQUEST_SPOOL_QUOTA ("requestspoolquota"),
+  /** The disk quota of the spool directory for all requests is exhausted */
+  SPOOL_QUOTA ("spoolquota");
+
+  private final String m_sID;
+
+  private EAS4RejectReason (@Nonnull @Nonempty final String sID)
+  {
+    m_sID = sID;
+  }
+
+  @Nonnull
+  @Nonempty
+  public String getID ()
+  {
+    return m_sID;
+  }
+}
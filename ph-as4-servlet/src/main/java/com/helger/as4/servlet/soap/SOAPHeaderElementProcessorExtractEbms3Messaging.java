@@ -28,7 +28,8 @@ import org.w3c.dom.Element;
 import com.helger.as4.attachment.EAS4CompressionMode;
 import com.helger.as4.attachment.WSS4JAttachment;
 import com.helger.as4.error.EEbmsError;
-import com.helger.as4.marshaller.Ebms3ReaderBuilder;
+import com.helger.as4.marshaller.AS4Marshaller;
+import com.helger.as4.marshaller.EEbms3DocumentType;
 import com.helger.as4.messaging.domain.CreateUserMessage;
 import com.helger.as4.mgr.MetaAS4Manager;
 import com.helger.as4.model.mpc.IMPC;
@@ -42,6 +43,8 @@ import com.helger.as4lib.ebms3header.Ebms3Messaging;
 import com.helger.as4lib.ebms3header.Ebms3PartInfo;
 import com.helger.as4lib.ebms3header.Ebms3PayloadInfo;
 import com.helger.as4lib.ebms3header.Ebms3Property;
+import com.helger.as4lib.ebms3header.Ebms3PullRequest;
+import com.helger.as4lib.ebms3header.Ebms3SignalMessage;
 import com.helger.as4lib.ebms3header.Ebms3UserMessage;
 import com.helger.commons.collection.CollectionHelper;
 import com.helger.commons.collection.ext.CommonsHashMap;
@@ -80,9 +83,10 @@ public final class SOAPHeaderElementProcessorExtractEbms3Messaging implements IS
 
     // Parse EBMS3 Messaging object
     final CollectingValidationEventHandler aCVEH = new CollectingValidationEventHandler ();
-    final Ebms3Messaging aMessaging = Ebms3ReaderBuilder.ebms3Messaging ()
-                                                        .setValidationEventHandler (aCVEH)
-                                                        .read (aElement);
+    final Ebms3Messaging aMessaging = AS4Marshaller.read (EEbms3DocumentType.MESSAGING,
+                                                          Ebms3Messaging.class,
+                                                          aElement,
+                                                          aCVEH);
 
     // If the ebms3reader above fails aMessageing will be null => invalid/not
     // wellformed
@@ -113,9 +117,40 @@ public final class SOAPHeaderElementProcessorExtractEbms3Messaging implements IS
     final Ebms3UserMessage aUserMessage = CollectionHelper.getAtIndex (aMessaging.getUserMessage (), 0);
     if (aUserMessage == null)
     {
-      // No UserMessage was found
-      s_aLogger.warn ("No UserMessage object contained!");
-      return ESuccess.FAILURE;
+      // A pull request does not contain a PMode - it is only reachable over
+      // the MPC where the user message is supposed to be stored
+      final Ebms3SignalMessage aSignalMessage = CollectionHelper.getAtIndex (aMessaging.getSignalMessage (), 0);
+      final Ebms3PullRequest aPullRequest = aSignalMessage == null ? null : aSignalMessage.getPullRequest ();
+      if (aPullRequest == null)
+      {
+        // Standalone receipts are acknowledging pulled messages
+        if (aSignalMessage != null && aSignalMessage.getReceipt () != null)
+        {
+          aState.setMessaging (aMessaging);
+          aState.setOriginalAttachments (aAttachments);
+          return ESuccess.SUCCESS;
+        }
+
+        // No UserMessage was found
+        s_aLogger.warn ("No UserMessage object contained!");
+        return ESuccess.FAILURE;
+      }
+
+      final IMPC aPullMPC = aMPCMgr.getMPCOrDefaultOfID (aPullRequest.getMpc ());
+      if (aPullMPC == null)
+      {
+        s_aLogger.warn ("Error processing the pull request, MPC ID '" + aPullRequest.getMpc () + "' is unknown!");
+
+        aErrorList.add (EEbmsError.EBMS_VALUE_INCONSISTENT.getAsError (aLocale));
+        return ESuccess.FAILURE;
+      }
+
+      // Remember in state
+      aState.setMessaging (aMessaging);
+      aState.setPullRequest (aPullRequest);
+      aState.setOriginalAttachments (aAttachments);
+      aState.setMPC (aPullMPC);
+      return ESuccess.SUCCESS;
     }
 
     IPModeConfig aPModeConfig = null;
@@ -312,12 +347,6 @@ public final class SOAPHeaderElementProcessorExtractEbms3Messaging implements IS
       }
     }
 
-    // TODO if pullrequest the methode for extracting the pmode needs to be
-    // different since the pullrequest itself does not contain the pmode, it
-    // is
-    // just reachable over the mpc where the usermessage is supposed to be
-    // stored
-
     // Remember in state
     aState.setMessaging (aMessaging);
     aState.setPModeConfig (aPModeConfig);
@@ -16,9 +16,11 @@
  */
 package com.helger.as4.servlet.soap;
 
+import java.util.Collections;
+import java.util.Map;
+
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
-import javax.annotation.concurrent.GuardedBy;
 import javax.annotation.concurrent.ThreadSafe;
 import javax.xml.namespace.QName;
 
@@ -26,6 +28,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.helger.commons.ValueEnforcer;
+import com.helger.commons.annotation.ReturnsImmutableObject;
 import com.helger.commons.annotation.ReturnsMutableCopy;
 import com.helger.commons.annotation.UsedViaReflection;
 import com.helger.commons.collection.ext.CommonsLinkedHashMap;
@@ -35,7 +38,9 @@ import com.helger.commons.scope.singleton.AbstractGlobalSingleton;
 /**
  * This class manages the SOAP header element processors. This is used to
  * validate the "must understand" SOAP requirement. It manages all instances of
- * {@link ISOAPHeaderElementProcessor}.
+ * {@link ISOAPHeaderElementProcessor}.<br>
+ * Each registration publishes a new immutable snapshot of all processors, so
+ * that the message processing can access them without locking or copying.
  *
  * @author Philip Helger
  */
@@ -43,8 +48,9 @@ import com.helger.commons.scope.singleton.AbstractGlobalSingleton;
 public final class SOAPHeaderElementProcessorRegistry extends AbstractGlobalSingleton
 {
   private static final Logger s_aLogger = LoggerFactory.getLogger (SOAPHeaderElementProcessorRegistry.class);
-  @GuardedBy ("m_aRWLock")
-  private final ICommonsOrderedMap <QName, ISOAPHeaderElementProcessor> m_aMap = new CommonsLinkedHashMap<> ();
+  // Immutable snapshot of all processors - replaced on every change while
+  // holding the write lock
+  private volatile Map <QName, ISOAPHeaderElementProcessor> m_aSnapshot = Collections.emptyMap ();
 
   @Deprecated
   @UsedViaReflection
@@ -64,9 +70,11 @@ public final class SOAPHeaderElementProcessorRegistry extends AbstractGlobalSing
     ValueEnforcer.notNull (aProcessor, "Processor");
 
     m_aRWLock.writeLocked ( () -> {
-      if (m_aMap.containsKey (aQName))
+      if (m_aSnapshot.containsKey (aQName))
         throw new IllegalArgumentException ("A processor for QName " + aQName.toString () + " is already registered!");
-      m_aMap.put (aQName, aProcessor);
+      final ICommonsOrderedMap <QName, ISOAPHeaderElementProcessor> aNewMap = new CommonsLinkedHashMap <> (m_aSnapshot);
+      aNewMap.put (aQName, aProcessor);
+      m_aSnapshot = Collections.unmodifiableMap (aNewMap);
     });
     s_aLogger.info ("Successfully registered SOAP header element processor for " + aQName.toString ());
   }
@@ -76,13 +84,25 @@ public final class SOAPHeaderElementProcessorRegistry extends AbstractGlobalSing
   {
     if (aQName == null)
       return null;
-    return m_aRWLock.readLocked ( () -> m_aMap.get (aQName));
+    return m_aSnapshot.get (aQName);
   }
 
   @Nonnull
   @ReturnsMutableCopy
   public ICommonsOrderedMap <QName, ISOAPHeaderElementProcessor> getAllElementProcessors ()
   {
-    return m_aRWLock.readLocked ( () -> m_aMap.getClone ());
+    return new CommonsLinkedHashMap <> (m_aSnapshot);
+  }
+
+  /**
+   * @return An immutable snapshot of all registered processors in registration
+   *         order. Never <code>null</code>. Changes to the registry do not
+   *         affect an already retrieved snapshot.
+   */
+  @Nonnull
+  @ReturnsImmutableObject
+  public Map <QName, ISOAPHeaderElementProcessor> getElementProcessorSnapshot ()
+  {
+    return m_aSnapshot;
   }
 }
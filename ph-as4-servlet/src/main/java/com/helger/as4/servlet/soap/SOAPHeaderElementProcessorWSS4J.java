@@ -16,8 +16,6 @@
  */
 package com.helger.as4.servlet.soap;
 
-import java.io.File;
-import java.io.InputStream;
 import java.security.cert.X509Certificate;
 import java.util.Arrays;
 import java.util.List;
@@ -41,9 +39,8 @@ import com.helger.as4.attachment.WSS4JAttachmentCallbackHandler;
 import com.helger.as4.crypto.ECryptoAlgorithmSign;
 import com.helger.as4.crypto.ECryptoAlgorithmSignDigest;
 import com.helger.as4.error.EEbmsError;
-import com.helger.as4.model.pmode.config.IPModeConfig;
-import com.helger.as4.model.pmode.leg.PModeLeg;
 import com.helger.as4.servlet.AS4MessageState;
+import com.helger.as4.servlet.AS4PModeConfigPlan;
 import com.helger.as4.servlet.mgr.AS4ServerSettings;
 import com.helger.as4lib.ebms3header.Ebms3Messaging;
 import com.helger.as4lib.ebms3header.Ebms3UserMessage;
@@ -52,8 +49,6 @@ import com.helger.commons.collection.ext.ICommonsList;
 import com.helger.commons.collection.ext.ICommonsSet;
 import com.helger.commons.debug.GlobalDebug;
 import com.helger.commons.error.list.ErrorList;
-import com.helger.commons.io.file.FileHelper;
-import com.helger.commons.io.stream.StreamHelper;
 import com.helger.commons.state.ESuccess;
 import com.helger.commons.string.StringHelper;
 import com.helger.xml.XMLHelper;
@@ -76,27 +71,25 @@ public class SOAPHeaderElementProcessorWSS4J implements ISOAPHeaderElementProces
                                         @Nonnull final ErrorList aErrorList,
                                         @Nonnull final Locale aLocale)
   {
-    final IPModeConfig aPModeConfig = aState.getPModeConfig ();
-    // Safety Check
-    if (aPModeConfig == null)
+    final AS4PModeConfigPlan aPlan = aState.getPModeConfigPlan ();
+    // Safety Check - pull requests have no PMode
+    if (aPlan == null && !aState.isPullRequest ())
       throw new IllegalStateException ("No PMode contained in AS4 state - seems like Ebms3 Messaging header is missing!");
 
     // Default is Leg 1, gets overwritten when a reference to a message id
     // exists and then uses leg2
-    PModeLeg aPModeLeg = aPModeConfig.getLeg1 ();
+    boolean bHasRefToMessageID = false;
     final Ebms3Messaging aMessage = aState.getMessaging ();
     if (aMessage != null)
       if (aMessage.getUserMessageAtIndex (0) != null)
-        if (StringHelper.hasText (aState.getMessaging ()
-                                        .getUserMessageAtIndex (0)
-                                        .getMessageInfo ()
-                                        .getRefToMessageId ()))
-        {
-          aPModeLeg = aPModeConfig.getLeg2 ();
-        }
+        bHasRefToMessageID = StringHelper.hasText (aMessage.getUserMessageAtIndex (0)
+                                                           .getMessageInfo ()
+                                                           .getRefToMessageId ());
 
     // Does security - legpart checks if not <code>null</code>
-    if (aPModeLeg.getSecurity () != null)
+    // A present security header of a pull request is always verified, as it
+    // is the basis for the MPC authorization
+    if (aPlan == null || aPlan.getIncomingLeg (bHasRefToMessageID).isSecured ())
     {
       // Get Signature Algorithm
       Element aSignedNode = XMLHelper.getFirstChildElementOfName (aSecurityNode, CAS4.DS_NS, "Signature");
@@ -155,32 +148,33 @@ public class SOAPHeaderElementProcessorWSS4J implements ISOAPHeaderElementProces
 
       }
 
-      final Ebms3UserMessage aUserMessage = aState.getMessaging ().getUserMessage ().get (0);
+      final Ebms3UserMessage aUserMessage = aState.getMessaging ().getUserMessageAtIndex (0);
       final boolean bBodyPayloadPresent = aState.isSoapBodyPayloadPresent ();
 
       // Check if Attachment IDs are the same
-      for (int i = 0; i < aAttachments.size (); i++)
-      {
-        String sAttachmentId = aAttachments.get (i).getHeaders ().get (AttachmentUtils.MIME_HEADER_CONTENT_ID);
-        sAttachmentId = sAttachmentId.substring ("<attachment=".length (), sAttachmentId.length () - 1);
-
-        // Add +1 because the payload has index 0
-        final String sHref = aUserMessage.getPayloadInfo ()
-                                         .getPartInfoAtIndex ((bBodyPayloadPresent ? 1 : 0) + i)
-                                         .getHref ();
-        if (!sHref.contains (sAttachmentId))
+      if (aUserMessage != null)
+        for (int i = 0; i < aAttachments.size (); i++)
         {
-          s_aLogger.info ("Error processing the Attachments, the attachment '" +
-                          sHref +
-                          "' is not valid with what is specified in the usermessage ('" +
-                          sAttachmentId +
-                          "')");
-
-          aErrorList.add (EEbmsError.EBMS_VALUE_INCONSISTENT.getAsError (aLocale));
-
-          return ESuccess.FAILURE;
+          String sAttachmentId = aAttachments.get (i).getHeaders ().get (AttachmentUtils.MIME_HEADER_CONTENT_ID);
+          sAttachmentId = sAttachmentId.substring ("<attachment=".length (), sAttachmentId.length () - 1);
+
+          // Add +1 because the payload has index 0
+          final String sHref = aUserMessage.getPayloadInfo ()
+                                           .getPartInfoAtIndex ((bBodyPayloadPresent ? 1 : 0) + i)
+                                           .getHref ();
+          if (!sHref.contains (sAttachmentId))
+          {
+            s_aLogger.info ("Error processing the Attachments, the attachment '" +
+                            sHref +
+                            "' is not valid with what is specified in the usermessage ('" +
+                            sAttachmentId +
+                            "')");
+
+            aErrorList.add (EEbmsError.EBMS_VALUE_INCONSISTENT.getAsError (aLocale));
+
+            return ESuccess.FAILURE;
+          }
         }
-      }
 
       // Signing Verification and Decryption
       final WSSecurityEngine aSecurityEngine = new WSSecurityEngine ();
@@ -190,8 +184,13 @@ public class SOAPHeaderElementProcessorWSS4J implements ISOAPHeaderElementProces
       {
         // Convert to WSS4J attachments
         final KeyStoreCallbackHandler aKeyStoreCallback = new KeyStoreCallbackHandler ();
+        // Decrypted attachments are buffered concurrently, so that only the
+        // digest verification remains sequential. Small attachments stay in
+        // memory.
+        final int nInMemoryThreshold = AS4ServerSettings.getAttachmentInMemoryThreshold (aState.getPModeConfig ());
         final WSS4JAttachmentCallbackHandler aAttachmentCallbackHandler = new WSS4JAttachmentCallbackHandler (aAttachments,
-                                                                                                              aState.getResourceMgr ());
+                                                                                                              aState.getResourceMgr (),
+                                                                                                              nInMemoryThreshold);
 
         // Configure RequestData needed for the check / decrpyt process!
         final RequestData aRequestData = new RequestData ();
@@ -225,20 +224,9 @@ public class SOAPHeaderElementProcessorWSS4J implements ISOAPHeaderElementProces
         aState.setUsedCertificate (aCerts.getAtIndex (0));
         aState.setDecryptedSOAPDocument (aSOAPDoc);
 
-        // Decrypting the Attachments
+        // Decrypting the Attachments - content can be read more than once
+        aAttachmentCallbackHandler.waitForBufferedAttachments ();
         final ICommonsList <WSS4JAttachment> aResponseAttachments = aAttachmentCallbackHandler.getAllResponseAttachments ();
-        for (final WSS4JAttachment aResponseAttachment : aResponseAttachments)
-        {
-          final InputStream aIS = aResponseAttachment.getSourceStream ();
-
-          // Always copy to a temporary file, so that decrypted content can be
-          // read more than once.
-          // Not nice, but working :)
-          final File aTempFile = aState.getResourceMgr ().createTempFile ();
-          StreamHelper.copyInputStreamToOutputStreamAndCloseOS (aIS,
-                                                                StreamHelper.getBuffered (FileHelper.getOutputStream (aTempFile)));
-          aResponseAttachment.setSourceStreamProvider ( () -> StreamHelper.getBuffered (FileHelper.getInputStream (aTempFile)));
-        }
 
         // Remember in State
         aState.setDecryptedAttachments (aResponseAttachments);
@@ -0,0 +1,84 @@
+/**
+ * Copyright (C) 2015-2017 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.as4.servlet;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import com.helger.as4.crypto.ECryptoAlgorithmSign;
+import com.helger.as4.crypto.ECryptoAlgorithmSignDigest;
+import com.helger.as4.model.pmode.DefaultPMode;
+import com.helger.as4.model.pmode.config.PModeConfig;
+import com.helger.as4.model.pmode.leg.PModeLegSecurity;
+import com.helger.as4.soap.ESOAPVersion;
+
+/**
+ * Test class for class {@link AS4PModeConfigPlan}.
+ *
+ * @author Philip Helger
+ */
+public final class AS4PModeConfigPlanTest
+{
+  @Test
+  public void testDefaultPModeConfig ()
+  {
+    final PModeConfig aConfig = DefaultPMode.createDefaultPModeConfig ();
+    AS4PModeConfigPlan aPlan = new AS4PModeConfigPlan (aConfig, 0, null);
+    assertSame (aConfig, aPlan.getPModeConfig ());
+    assertFalse (aPlan.isProfileValidation ());
+    assertNull (aPlan.getProfile ());
+    assertTrue (aPlan.isPing ());
+    assertTrue (aPlan.isOneWay ());
+    assertFalse (aPlan.isAsyncSPIInvocation ());
+    assertTrue (aPlan.isSendErrorAsResponse ());
+    assertTrue (aPlan.isSendReceiptAsResponse ());
+    assertFalse (aPlan.isSendNonRepudiationInformation ());
+    assertFalse (aPlan.isUserMessageResponseOnLeg2 ());
+
+    assertTrue (aPlan.getLeg1 ().isSecured ());
+    assertFalse (aPlan.getLeg1 ().isSignResponse ());
+    assertFalse (aPlan.getLeg1 ().isEncryptResponse ());
+    assertEquals (ESOAPVersion.AS4_DEFAULT, aPlan.getLeg1 ().getSOAPVersion (ESOAPVersion.SOAP_11));
+    assertSame (aPlan.getLeg1 (), aPlan.getIncomingLeg (false));
+
+    // Leg 2 is not present
+    assertFalse (aPlan.getLeg2 ().isSecured ());
+    assertNull (aPlan.getLeg2 ().getLeg ());
+    assertEquals (ESOAPVersion.SOAP_11, aPlan.getLeg2 ().getSOAPVersion (ESOAPVersion.SOAP_11));
+    assertSame (aPlan.getLeg2 (), aPlan.getIncomingLeg (true));
+
+    // Changes are only visible in a new plan
+    final PModeLegSecurity aSecurity = aConfig.getLeg1 ().getSecurity ();
+    aSecurity.setX509SignatureAlgorithm (ECryptoAlgorithmSign.SIGN_ALGORITHM_DEFAULT);
+    aSecurity.setX509SignatureHashFunction (ECryptoAlgorithmSignDigest.SIGN_DIGEST_ALGORITHM_DEFAULT);
+    aSecurity.setSendReceiptNonRepudiation (true);
+    assertFalse (aPlan.getLeg1 ().isSignResponse ());
+    assertFalse (aPlan.isSendNonRepudiationInformation ());
+
+    aPlan = new AS4PModeConfigPlan (aConfig, 1, null);
+    assertTrue (aPlan.getLeg1 ().isSignResponse ());
+    assertEquals (ECryptoAlgorithmSign.SIGN_ALGORITHM_DEFAULT, aPlan.getLeg1 ().getSignAlgorithm ());
+    assertEquals (ECryptoAlgorithmSignDigest.SIGN_DIGEST_ALGORITHM_DEFAULT,
+                  aPlan.getLeg1 ().getSignDigestAlgorithm ());
+    assertTrue (aPlan.isSendNonRepudiationInformation ());
+  }
+}
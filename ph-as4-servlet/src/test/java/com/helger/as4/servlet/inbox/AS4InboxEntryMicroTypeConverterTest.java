@@ -0,0 +1,70 @@
+/**
+ * Copyright (C) 2015-2017 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.as4.servlet.inbox;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import com.helger.commons.collection.ext.CommonsArrayList;
+import com.helger.commons.collection.ext.CommonsLinkedHashMap;
+import com.helger.commons.collection.ext.ICommonsOrderedMap;
+import com.helger.commons.datetime.PDTFactory;
+import com.helger.xml.microdom.convert.MicroTypeConverter;
+import com.helger.xml.mock.XMLTestHelper;
+
+/**
+ * Test class for class {@link AS4InboxEntryMicroTypeConverter}.
+ *
+ * @author Philip Helger
+ */
+public final class AS4InboxEntryMicroTypeConverterTest
+{
+  @Test
+  public void testBasic ()
+  {
+    final ICommonsOrderedMap <String, String> aHeaders = new CommonsLinkedHashMap <> ();
+    aHeaders.put ("Content-Description", "Attachment");
+    aHeaders.put ("Content-Disposition", "attachment; filename=\"a.xml\"");
+    final AS4InboxEntry aEntry = new AS4InboxEntry ("id",
+                                                    "msgid",
+                                                    new CommonsArrayList <> (new AS4InboxAttachment ("att1",
+                                                                                                     "application/xml",
+                                                                                                     "attachment-0.bin",
+                                                                                                     aHeaders),
+                                                                             new AS4InboxAttachment ("att2",
+                                                                                                     null,
+                                                                                                     "attachment-1.bin")));
+    XMLTestHelper.testMicroTypeConversion (aEntry);
+
+    aEntry.onFailedAttempt (PDTFactory.getCurrentLocalDateTime (), "Oops");
+    final AS4InboxEntry aEntry2 = MicroTypeConverter.convertToNative (MicroTypeConverter.convertToMicroElement (aEntry,
+                                                                                                                "x"),
+                                                                      AS4InboxEntry.class);
+    assertEquals (aEntry, aEntry2);
+    assertEquals (1, aEntry2.getAttempts ());
+    assertNotNull (aEntry2.getLastAttemptDateTime ());
+    assertEquals ("Oops", aEntry2.getLastError ());
+    assertEquals (aEntry.getNextAttemptDateTime (), aEntry2.getNextAttemptDateTime ());
+    assertEquals (2, aEntry2.getAllAttachments ().size ());
+    assertEquals ("application/xml", aEntry2.getAllAttachments ().getFirst ().getMimeType ());
+    assertEquals (aHeaders, aEntry2.getAllAttachments ().getFirst ().getAllHeaders ());
+    assertTrue (aEntry2.getAllAttachments ().getLast ().getAllHeaders ().isEmpty ());
+  }
+}
@@ -0,0 +1,99 @@
+/**
+ * Copyright (C) 2015-2017 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.as4.servlet.mgr;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * Test class for class {@link AS4AdmissionController}.
+ *
+ * @author Philip Helger
+ */
+public final class AS4AdmissionControllerTest
+{
+  @After
+  public void after ()
+  {
+    AS4ServerConfiguration.getMutableSettings ().removeValue ("server.admission.maxconcurrent");
+    AS4ServerConfiguration.getMutableSettings ().removeValue ("server.admission.maxinflightbytes");
+  }
+
+  @Test
+  public void testConcurrentRequests ()
+  {
+    AS4ServerConfiguration.getMutableSettings ().setValue ("server.admission.maxconcurrent", 2);
+    final long nRejected = AS4AdmissionController.getRejectedCount (EAS4RejectReason.CONCURRENT_REQUESTS);
+
+    try (final AS4AdmissionController.Ticket a1 = AS4AdmissionController.tryAdmit (-1);
+         final AS4AdmissionController.Ticket a2 = AS4AdmissionController.tryAdmit (-1))
+    {
+      assertTrue (a1.isAdmitted ());
+      assertTrue (a2.isAdmitted ());
+      assertEquals (2, AS4AdmissionController.getConcurrentRequestCount ());
+
+      try (final AS4AdmissionController.Ticket a3 = AS4AdmissionController.tryAdmit (-1))
+      {
+        assertFalse (a3.isAdmitted ());
+        assertEquals (EAS4RejectReason.CONCURRENT_REQUESTS, a3.getRejectReason ());
+        AS4AdmissionController.onRejected (a3.getRejectReason (), "test");
+      }
+      assertEquals (2, AS4AdmissionController.getConcurrentRequestCount ());
+
+      // Closing twice must not release twice
+      a1.close ();
+      a1.close ();
+      assertEquals (1, AS4AdmissionController.getConcurrentRequestCount ());
+    }
+    assertEquals (0, AS4AdmissionController.getConcurrentRequestCount ());
+    assertEquals (nRejected + 1, AS4AdmissionController.getRejectedCount (EAS4RejectReason.CONCURRENT_REQUESTS));
+  }
+
+  @Test
+  public void testInFlightBytes ()
+  {
+    AS4ServerConfiguration.getMutableSettings ().setValue ("server.admission.maxinflightbytes", 1000);
+
+    // A single big request is admitted if nothing else is in flight
+    try (final AS4AdmissionController.Ticket a1 = AS4AdmissionController.tryAdmit (2000))
+    {
+      assertTrue (a1.isAdmitted ());
+      assertEquals (2000, AS4AdmissionController.getInFlightBytes ());
+    }
+
+    try (final AS4AdmissionController.Ticket a1 = AS4AdmissionController.tryAdmit (600))
+    {
+      assertTrue (a1.isAdmitted ());
+      try (final AS4AdmissionController.Ticket a2 = AS4AdmissionController.tryAdmit (600))
+      {
+        assertFalse (a2.isAdmitted ());
+        assertEquals (EAS4RejectReason.IN_FLIGHT_BYTES, a2.getRejectReason ());
+      }
+      // Unknown length
+      try (final AS4AdmissionController.Ticket a2 = AS4AdmissionController.tryAdmit (-1))
+      {
+        assertTrue (a2.isAdmitted ());
+      }
+      assertEquals (600, AS4AdmissionController.getInFlightBytes ());
+    }
+    assertEquals (0, AS4AdmissionController.getInFlightBytes ());
+  }
+}